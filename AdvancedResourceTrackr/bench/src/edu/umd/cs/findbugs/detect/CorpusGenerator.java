@@ -0,0 +1,337 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.ACONST_NULL;
+import org.apache.bcel.generic.ALOAD;
+import org.apache.bcel.generic.ASTORE;
+import org.apache.bcel.generic.BranchInstruction;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.GOTO;
+import org.apache.bcel.generic.IFNULL;
+import org.apache.bcel.generic.IF_ICMPLE;
+import org.apache.bcel.generic.IINC;
+import org.apache.bcel.generic.ILOAD;
+import org.apache.bcel.generic.InstructionConstants;
+import org.apache.bcel.generic.InstructionFactory;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.PUSH;
+import org.apache.bcel.generic.Type;
+
+/**
+ * Generates class files exercising the detector, with the shape of the
+ * methods controlled by a few parameters:
+ * <ul>
+ * <li>resources: streams opened per method, through a factory method of the
+ * class</li>
+ * <li>wrapDepth: BufferedInputStreams wrapped around each stream</li>
+ * <li>handlerPercent: percentage of the streams opened inside a try block
+ * with an IOException handler</li>
+ * <li>branches: if/else diamonds per method, to grow the CFG</li>
+ * <li>finallyPercent: percentage of the streams read in a try block and
+ * closed in its finally block, without wrappers or handler, as the shapes
+ * CloseShapeMatcher recognizes</li>
+ * <li>prologue: if/else diamonds at the start of each method, before the
+ * first stream is opened, to grow the part of the CFG no stream reaches</li>
+ * </ul>
+ * Every other stream not closed in a finally block is closed at the end of
+ * the method, so about half of them leak.
+ */
+public class CorpusGenerator {
+	static final String PACKAGE_NAME = "bench";
+
+	private static final ObjectType INPUT_STREAM = new ObjectType(
+			"java.io.InputStream");
+
+	private static final ObjectType BUFFERED_INPUT_STREAM = new ObjectType(
+			"java.io.BufferedInputStream");
+
+	private static final ObjectType FILE_INPUT_STREAM = new ObjectType(
+			"java.io.FileInputStream");
+
+	private static final ObjectType IO_EXCEPTION = new ObjectType(
+			"java.io.IOException");
+
+	/**
+	 * Parameters of one generated class.
+	 */
+	public static class Shape {
+		public final int methods;
+
+		public final int resources;
+
+		public final int wrapDepth;
+
+		public final int handlerPercent;
+
+		public final int branches;
+
+		public final int finallyPercent;
+
+		public final int prologue;
+
+		public Shape(int methods, int resources, int wrapDepth,
+				int handlerPercent, int branches, int finallyPercent,
+				int prologue) {
+			this.methods = methods;
+			this.resources = resources;
+			this.wrapDepth = wrapDepth;
+			this.handlerPercent = handlerPercent;
+			this.branches = branches;
+			this.finallyPercent = finallyPercent;
+			this.prologue = prologue;
+		}
+
+		public String getClassName() {
+			return PACKAGE_NAME + ".Corpus_r" + resources + "_w" + wrapDepth
+					+ "_h" + handlerPercent + "_b" + branches + "_f"
+					+ finallyPercent + "_p" + prologue;
+		}
+
+		public String toJSON() {
+			return "{\"methods\":" + methods + ",\"resources\":" + resources
+					+ ",\"wrapDepth\":" + wrapDepth + ",\"handlerPercent\":"
+					+ handlerPercent + ",\"branches\":" + branches
+					+ ",\"finallyPercent\":" + finallyPercent
+					+ ",\"prologue\":" + prologue + "}";
+		}
+	}
+
+	private final File outputDir;
+
+	public CorpusGenerator(File outputDir) {
+		this.outputDir = outputDir;
+	}
+
+	/**
+	 * Generate the class for a shape and write it under the output directory.
+	 *
+	 * @return the class file written
+	 */
+	public File generate(Shape shape) throws IOException {
+		String className = shape.getClassName();
+		ClassGen classGen = new ClassGen(className, "java.lang.Object",
+				"<generated>", Constants.ACC_PUBLIC | Constants.ACC_SUPER,
+				null);
+		classGen.addEmptyConstructor(Constants.ACC_PUBLIC);
+		addFactoryMethod(classGen);
+		for (int i = 0; i < shape.methods; ++i)
+			addMethod(classGen, shape, "m" + i);
+
+		File classFile = new File(outputDir, className.replace('.',
+				File.separatorChar) + ".class");
+		File dir = classFile.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create " + dir);
+		classGen.getJavaClass().dump(classFile);
+		return classFile;
+	}
+
+	/**
+	 * Add static InputStream open(String), which returns a new
+	 * FileInputStream.
+	 */
+	private static void addFactoryMethod(ClassGen classGen) {
+		ConstantPoolGen cpg = classGen.getConstantPool();
+		InstructionFactory factory = new InstructionFactory(classGen);
+		InstructionList il = new InstructionList();
+		il.append(factory.createNew(FILE_INPUT_STREAM));
+		il.append(InstructionConstants.DUP);
+		il.append(InstructionFactory.createLoad(Type.STRING, 0));
+		il.append(factory.createInvoke(FILE_INPUT_STREAM.getClassName(),
+				Constants.CONSTRUCTOR_NAME, Type.VOID,
+				new Type[] { Type.STRING }, Constants.INVOKESPECIAL));
+		il.append(InstructionConstants.ARETURN);
+
+		MethodGen methodGen = new MethodGen(Constants.ACC_STATIC, INPUT_STREAM,
+				new Type[] { Type.STRING }, new String[] { "name" }, "open",
+				classGen.getClassName(), il, cpg);
+		methodGen.addException(IO_EXCEPTION.getClassName());
+		addMethod(classGen, methodGen, il);
+	}
+
+	/**
+	 * Add static void name(int x) opening, wrapping, reading and closing
+	 * streams as the shape says.
+	 */
+	private static void addMethod(ClassGen classGen, Shape shape, String name) {
+		ConstantPoolGen cpg = classGen.getConstantPool();
+		InstructionFactory factory = new InstructionFactory(classGen);
+		InstructionList il = new InstructionList();
+		MethodGen methodGen = new MethodGen(Constants.ACC_PUBLIC
+				| Constants.ACC_STATIC, Type.VOID, new Type[] { Type.INT },
+				new String[] { "x" }, name, classGen.getClassName(), il, cpg);
+		methodGen.addException(IO_EXCEPTION.getClassName());
+
+		int firstStreamLocal = 1;
+		int throwableLocal = firstStreamLocal + shape.resources;
+		appendBranches(il, cpg, shape.prologue);
+		for (int i = 0; i < shape.resources; ++i) {
+			int local = firstStreamLocal + i;
+			if (isSpread(shape.finallyPercent, i)) {
+				appendTryFinally(methodGen, il, factory, shape, i, local,
+						throwableLocal);
+			} else if (isSpread(shape.handlerPercent, i)) {
+				il.append(new ACONST_NULL());
+				il.append(new ASTORE(local));
+				InstructionHandle start = appendOpen(il, factory, shape, i,
+						local);
+				InstructionHandle end = il.getEnd();
+				BranchInstruction skipHandler = new GOTO(null);
+				il.append(skipHandler);
+				InstructionHandle handler = il.append(InstructionConstants.POP);
+				skipHandler.setTarget(il.append(InstructionConstants.NOP));
+				methodGen.addExceptionHandler(start, end, handler,
+						IO_EXCEPTION);
+			} else {
+				appendOpen(il, factory, shape, i, local);
+			}
+			appendBranches(il, cpg, shape.branches / shape.resources
+					+ (i < shape.branches % shape.resources ? 1 : 0));
+		}
+		if (shape.resources == 0)
+			appendBranches(il, cpg, shape.branches);
+
+		boolean close = true;
+		for (int i = 0; i < shape.resources; ++i) {
+			if (isSpread(shape.finallyPercent, i))
+				continue;
+			// Every other stream left open leaks
+			close = !close;
+			if (close)
+				continue;
+			int local = firstStreamLocal + i;
+			il.append(InstructionFactory.createLoad(INPUT_STREAM, local));
+			BranchInstruction ifNull = new IFNULL(null);
+			il.append(ifNull);
+			appendClose(il, factory, local);
+			ifNull.setTarget(il.append(InstructionConstants.NOP));
+		}
+		il.append(InstructionConstants.RETURN);
+
+		addMethod(classGen, methodGen, il);
+	}
+
+	/**
+	 * Spread a percentage of the streams of a method evenly over them.
+	 */
+	private static boolean isSpread(int percent, int i) {
+		return (i + 1) * percent / 100 > i * percent / 100;
+	}
+
+	/**
+	 * Append s = open("r" + i), the wrappers, and s.read().
+	 *
+	 * @return the first instruction appended
+	 */
+	private static InstructionHandle appendOpen(InstructionList il,
+			InstructionFactory factory, Shape shape, int i, int local) {
+		InstructionHandle start = appendCreate(il, factory, shape, i, local);
+		for (int j = 0; j < shape.wrapDepth; ++j) {
+			il.append(factory.createNew(BUFFERED_INPUT_STREAM));
+			il.append(InstructionConstants.DUP);
+			il.append(InstructionFactory.createLoad(INPUT_STREAM, local));
+			il.append(factory.createInvoke(
+					BUFFERED_INPUT_STREAM.getClassName(),
+					Constants.CONSTRUCTOR_NAME, Type.VOID,
+					new Type[] { INPUT_STREAM }, Constants.INVOKESPECIAL));
+			il.append(new ASTORE(local));
+		}
+		appendRead(il, factory, local);
+		return start;
+	}
+
+	/**
+	 * Append s = open("r" + i); try { s.read(); } finally { s.close(); }
+	 */
+	private static void appendTryFinally(MethodGen methodGen,
+			InstructionList il, InstructionFactory factory, Shape shape,
+			int i, int local, int throwableLocal) {
+		appendCreate(il, factory, shape, i, local);
+		InstructionHandle start = appendRead(il, factory, local);
+		InstructionHandle end = il.getEnd();
+		appendClose(il, factory, local);
+		BranchInstruction skipHandler = new GOTO(null);
+		il.append(skipHandler);
+		InstructionHandle handler = il.append(new ASTORE(throwableLocal));
+		appendClose(il, factory, local);
+		il.append(new ALOAD(throwableLocal));
+		il.append(InstructionConstants.ATHROW);
+		skipHandler.setTarget(il.append(InstructionConstants.NOP));
+		methodGen.addExceptionHandler(start, end, handler, null);
+	}
+
+	/**
+	 * Append s = open("r" + i).
+	 *
+	 * @return the first instruction appended
+	 */
+	private static InstructionHandle appendCreate(InstructionList il,
+			InstructionFactory factory, Shape shape, int i, int local) {
+		ConstantPoolGen cpg = factory.getConstantPool();
+		InstructionHandle start = il.append(new PUSH(cpg, "r" + i));
+		il.append(factory.createInvoke(shape.getClassName(), "open",
+				INPUT_STREAM, new Type[] { Type.STRING },
+				Constants.INVOKESTATIC));
+		il.append(new ASTORE(local));
+		return start;
+	}
+
+	/**
+	 * Append s.read(), discarding the result.
+	 *
+	 * @return the first instruction appended
+	 */
+	private static InstructionHandle appendRead(InstructionList il,
+			InstructionFactory factory, int local) {
+		InstructionHandle start = il.append(InstructionFactory.createLoad(
+				INPUT_STREAM, local));
+		il.append(factory.createInvoke(INPUT_STREAM.getClassName(), "read",
+				Type.INT, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+		il.append(InstructionConstants.POP);
+		return start;
+	}
+
+	/**
+	 * Append s.close().
+	 */
+	private static void appendClose(InstructionList il,
+			InstructionFactory factory, int local) {
+		il.append(InstructionFactory.createLoad(INPUT_STREAM, local));
+		il.append(factory.createInvoke(INPUT_STREAM.getClassName(), "close",
+				Type.VOID, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+	}
+
+	/**
+	 * Append count diamonds of the form: if (x > k) ++x; else --x;
+	 */
+	private static void appendBranches(InstructionList il,
+			ConstantPoolGen cpg, int count) {
+		for (int k = 0; k < count; ++k) {
+			il.append(new ILOAD(0));
+			il.append(new PUSH(cpg, k));
+			BranchInstruction toElse = new IF_ICMPLE(null);
+			il.append(toElse);
+			il.append(new IINC(0, 1));
+			BranchInstruction toJoin = new GOTO(null);
+			il.append(toJoin);
+			toElse.setTarget(il.append(new IINC(0, -1)));
+			toJoin.setTarget(il.append(InstructionConstants.NOP));
+		}
+	}
+
+	private static void addMethod(ClassGen classGen, MethodGen methodGen,
+			InstructionList il) {
+		methodGen.setMaxStack();
+		methodGen.setMaxLocals();
+		classGen.addMethod(methodGen.getMethod());
+		il.dispose();
+	}
+}
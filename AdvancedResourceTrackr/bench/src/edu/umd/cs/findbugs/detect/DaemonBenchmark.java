@@ -0,0 +1,195 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cold versus warm latency of analyzing a corpus generated by
+ * CorpusGenerator:
+ * <ul>
+ * <li>cold: a new JVM running ResourceLeakDaemon -once on the corpus, timed
+ * from start to exit, as a CI job or IDE save running FindBugs would;</li>
+ * <li>first: the first ANALYZE request to a daemon in this JVM;</li>
+ * <li>warm: the requests after it, with the JVM, the JIT and the caches of
+ * the detector warm.</li>
+ * </ul>
+ * The client side of each request is ResourceLeakDaemon.request(), as the
+ * -connect client uses it. Results are written as one JSON object.
+ *
+ * Usage, with the detector, FindBugs and this harness on the classpath:
+ *
+ * <pre>
+ * java edu.umd.cs.findbugs.detect.DaemonBenchmark [-corpus dir]
+ *     [-cold n] [-warm n] [-classes n] [-methods n] [-resources n]
+ * </pre>
+ */
+public class DaemonBenchmark {
+	private File corpusDir;
+
+	private int coldRuns = 3;
+
+	private int warmRequests = 20;
+
+	private int classes = 8;
+
+	private int methods = 10;
+
+	private int resources = 4;
+
+	public static void main(String[] args) throws Exception {
+		DaemonBenchmark benchmark = new DaemonBenchmark();
+		benchmark.parseArguments(args);
+		benchmark.run();
+	}
+
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for "
+						+ args[i]);
+			String option = args[i];
+			String value = args[i + 1];
+			if (option.equals("-corpus"))
+				corpusDir = new File(value);
+			else if (option.equals("-cold"))
+				coldRuns = Integer.parseInt(value);
+			else if (option.equals("-warm"))
+				warmRequests = Integer.parseInt(value);
+			else if (option.equals("-classes"))
+				classes = Integer.parseInt(value);
+			else if (option.equals("-methods"))
+				methods = Integer.parseInt(value);
+			else if (option.equals("-resources"))
+				resources = Integer.parseInt(value);
+			else
+				throw new IllegalArgumentException("Unknown option " + option);
+		}
+	}
+
+	private void run() throws Exception {
+		if (corpusDir == null) {
+			corpusDir = File.createTempFile("corpus", "");
+			if (!corpusDir.delete() || !corpusDir.mkdir())
+				throw new IOException("Can't create " + corpusDir);
+		}
+		// Classes differing in their number of branches, so each has its own
+		// name
+		CorpusGenerator generator = new CorpusGenerator(corpusDir);
+		for (int i = 0; i < classes; ++i)
+			generator.generate(new CorpusGenerator.Shape(methods, resources,
+					1, 50, i, 50, 0));
+		List<String> pathList = Collections.singletonList(corpusDir
+				.getPath());
+
+		long[] coldMillis = new long[coldRuns];
+		for (int i = 0; i < coldRuns; ++i)
+			coldMillis[i] = runColdJVM(pathList);
+
+		final ResourceLeakDaemon daemon = new ResourceLeakDaemon(
+				new ArrayList<String>());
+		final ServerSocket serverSocket = new ServerSocket(0, 50,
+				InetAddress.getByName(null));
+		// A failure of the server, rethrown once its thread has ended
+		final Exception[] serveFailure = new Exception[1];
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					daemon.serve(serverSocket);
+				} catch (Exception e) {
+					serveFailure[0] = e;
+				}
+			}
+		}, "ResourceLeakDaemon");
+		serverThread.start();
+		int port = serverSocket.getLocalPort();
+		String token = daemon.getToken();
+
+		long firstMillis = timeRequest(port, token, pathList);
+		long[] warmMillis = new long[warmRequests];
+		for (int i = 0; i < warmRequests; ++i)
+			warmMillis[i] = timeRequest(port, token, pathList);
+		StringWriter stats = new StringWriter();
+		ResourceLeakDaemon.request(port, token, ResourceLeakDaemon.STATS,
+				Collections.<String> emptyList(), stats);
+		ResourceLeakDaemon.request(port, token, ResourceLeakDaemon.SHUTDOWN,
+				Collections.<String> emptyList(), new StringWriter());
+		serverThread.join();
+		if (serveFailure[0] != null)
+			throw serveFailure[0];
+
+		Arrays.sort(coldMillis);
+		Arrays.sort(warmMillis);
+		System.out.println("{\"classes\":" + classes + ",\"methods\":"
+				+ methods + ",\"resources\":" + resources + ",\"coldRuns\":"
+				+ coldRuns + ",\"coldMedianMillis\":"
+				+ percentile(coldMillis, 50) + ",\"coldMaxMillis\":"
+				+ percentile(coldMillis, 100) + ",\"firstRequestMillis\":"
+				+ firstMillis + ",\"warmRequests\":" + warmRequests
+				+ ",\"warmMedianMillis\":" + percentile(warmMillis, 50)
+				+ ",\"warmP90Millis\":" + percentile(warmMillis, 90)
+				+ ",\"daemon\":" + stats.toString().trim() + "}");
+	}
+
+	/**
+	 * Analyze the corpus in a new JVM with the classpath and detector
+	 * options of this one.
+	 *
+	 * @return the time from starting the JVM to its exit, in milliseconds
+	 */
+	private static long runColdJVM(List<String> pathList) throws IOException,
+			InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"),
+				"java").getPath());
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith("fos."))
+				command.add("-D" + name + "=" + System.getProperty(name));
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ResourceLeakDaemon.class.getName());
+		command.add("-once");
+		command.addAll(pathList);
+
+		long start = System.nanoTime();
+		Process process = new ProcessBuilder(command).redirectErrorStream(
+				true).start();
+		InputStream in = process.getInputStream();
+		byte[] buf = new byte[8192];
+		while (in.read(buf) >= 0)
+			;
+		int status = process.waitFor();
+		long millis = (System.nanoTime() - start) / 1000000;
+		if (status != 0)
+			throw new IOException("Cold run exited with status " + status);
+		return millis;
+	}
+
+	private static long timeRequest(int port, String token,
+			List<String> pathList) throws IOException {
+		long start = System.nanoTime();
+		StringWriter reply = new StringWriter();
+		ResourceLeakDaemon.request(port, token, ResourceLeakDaemon.ANALYZE,
+				pathList, reply);
+		long millis = (System.nanoTime() - start) / 1000000;
+		if (!reply.toString().contains("\"done\":true"))
+			throw new IOException("Bad reply: " + reply);
+		return millis;
+	}
+
+	private static long percentile(long[] sorted, int percent) {
+		if (sorted.length == 0)
+			return 0L;
+		int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
@@ -0,0 +1,444 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+
+import edu.umd.cs.findbugs.BugReporter;
+import edu.umd.cs.findbugs.FindBugs2;
+import edu.umd.cs.findbugs.NoOpFindBugsProgress;
+import edu.umd.cs.findbugs.PrintingBugReporter;
+import edu.umd.cs.findbugs.Project;
+import edu.umd.cs.findbugs.ResourceCollection;
+import edu.umd.cs.findbugs.ba.ClassContext;
+import edu.umd.cs.findbugs.classfile.ClassDescriptor;
+import edu.umd.cs.findbugs.classfile.DescriptorFactory;
+import edu.umd.cs.findbugs.classfile.Global;
+import edu.umd.cs.findbugs.classfile.IAnalysisCache;
+import edu.umd.cs.findbugs.classfile.IClassFactory;
+import edu.umd.cs.findbugs.classfile.IClassPath;
+import edu.umd.cs.findbugs.classfile.IClassPathBuilder;
+import edu.umd.cs.findbugs.classfile.impl.ClassFactory;
+
+/**
+ * Benchmark of the phases of ResourceLeakDetector on a corpus generated by
+ * CorpusGenerator. For each class shape, each phase is timed separately:
+ * <ul>
+ * <li>prescreen: the class-name and method-level prescreens</li>
+ * <li>cfg: building the CFGs of the methods which pass the prescreen</li>
+ * <li>creation: finding the streams created in those methods</li>
+ * <li>dataflow: the dataflow analysis of the streams</li>
+ * <li>escapes: propagating escapes and selecting the leaked streams</li>
+ * </ul>
+ * Results are written as JSON, one object per shape and phase, in a fixed
+ * order, so the output of two versions of the detector can be diffed. Besides
+ * times, each phase reports the bytes it allocated per iteration, on JVMs
+ * with per-thread allocation counters (0 elsewhere), and each line carries
+ * the streams reported as leaked, the dataflow iterations, the exception
+ * edges pruned, the streams closed by the shape of their bytecode, the
+ * blocks left outside the slices of the streams and the methods whose
+ * MethodBudget ran out in one iteration, so changes to the analysis can be
+ * checked not to change its findings. The peak heap usage while measuring
+ * each shape is reported too, for comparing runs with and without
+ * -Dfos.lowMemory=true.
+ *
+ * Usage, with the detector and this harness compiled into the classpath, on
+ * the JDK FindBugs runs on:
+ *
+ * <pre>
+ * java edu.umd.cs.findbugs.detect.DetectorBenchmark [-corpus dir]
+ *     [-out file] [-warmup n] [-iterations n] [-methods n]
+ *     [-resources 1,4,16] [-wrapDepth 0,2] [-handlers 0,50] [-branches 0,32]
+ *     [-finally 0,50] [-prologue 0,256]
+ * </pre>
+ *
+ * Detector options (fos.singlePass, fos.threads, fos.maxMethodMillis, ...)
+ * are read from system properties as usual. Comparing runs with and without -Dfos.metrics=true
+ * gives the cost of the metrics instrumentation.
+ * Likewise, runs with -Dfos.resourceTypes naming a file of extra resource
+ * types show what registering them costs the prescreen phase.
+ */
+public class DetectorBenchmark {
+	static final String[] PHASES = { "prescreen", "cfg", "creation",
+			"dataflow", "escapes" };
+
+	private static final int PRESCREEN = 0;
+
+	private static final int CFG = 1;
+
+	private static final int CREATION = 2;
+
+	private static final int DATAFLOW = 3;
+
+	private static final int ESCAPES = 4;
+
+	private File corpusDir;
+
+	private File outputFile;
+
+	private int warmup = 5;
+
+	private int iterations = 20;
+
+	private int methods = 10;
+
+	private int[] resourceCounts = { 1, 4, 16 };
+
+	private int[] wrapDepths = { 0, 2 };
+
+	private int[] handlerPercents = { 0, 50 };
+
+	private int[] branchCounts = { 0, 32 };
+
+	private int[] finallyPercents = { 0, 50 };
+
+	private int[] prologues = { 0 };
+
+	private final BugReporter bugReporter = new PrintingBugReporter();
+
+	private IAnalysisCache analysisCache;
+
+	/**
+	 * Per-thread allocation counter of HotSpot JVMs, or null if not
+	 * available.
+	 */
+	private final com.sun.management.ThreadMXBean threadBean = getThreadBean();
+
+	/**
+	 * Bytes allocated by each phase over the measured iterations of the
+	 * current shape.
+	 */
+	private long[] allocatedBytes;
+
+	/**
+	 * Leaked streams, dataflow iterations, pruned exception edges, streams
+	 * closed by shape and blocks outside slices of the last iteration of the
+	 * current shape.
+	 */
+	private int leakedStreams;
+
+	private int dataflowIterations;
+
+	private int prunedEdges;
+
+	private int closedByShape;
+
+	private int slicedBlocks;
+
+	private int truncatedMethods;
+
+	/**
+	 * Peak heap usage while measuring the current shape.
+	 */
+	private long peakHeapBytes;
+
+	public static void main(String[] args) throws Exception {
+		DetectorBenchmark benchmark = new DetectorBenchmark();
+		benchmark.parseArguments(args);
+		benchmark.run();
+	}
+
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for "
+						+ args[i]);
+			String option = args[i];
+			String value = args[i + 1];
+			if (option.equals("-corpus"))
+				corpusDir = new File(value);
+			else if (option.equals("-out"))
+				outputFile = new File(value);
+			else if (option.equals("-warmup"))
+				warmup = Integer.parseInt(value);
+			else if (option.equals("-iterations"))
+				iterations = Integer.parseInt(value);
+			else if (option.equals("-methods"))
+				methods = Integer.parseInt(value);
+			else if (option.equals("-resources"))
+				resourceCounts = parseList(value);
+			else if (option.equals("-wrapDepth"))
+				wrapDepths = parseList(value);
+			else if (option.equals("-handlers"))
+				handlerPercents = parseList(value);
+			else if (option.equals("-branches"))
+				branchCounts = parseList(value);
+			else if (option.equals("-finally"))
+				finallyPercents = parseList(value);
+			else if (option.equals("-prologue"))
+				prologues = parseList(value);
+			else
+				throw new IllegalArgumentException("Unknown option " + option);
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean getThreadBean() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+			return null;
+		com.sun.management.ThreadMXBean hotSpotBean = (com.sun.management.ThreadMXBean) threadBean;
+		if (!hotSpotBean.isThreadAllocatedMemorySupported())
+			return null;
+		hotSpotBean.setThreadAllocatedMemoryEnabled(true);
+		return hotSpotBean;
+	}
+
+	private static int[] parseList(String value) {
+		String[] items = value.split(",");
+		int[] list = new int[items.length];
+		for (int i = 0; i < items.length; ++i)
+			list[i] = Integer.parseInt(items[i].trim());
+		return list;
+	}
+
+	private void run() throws Exception {
+		if (corpusDir == null) {
+			corpusDir = File.createTempFile("corpus", "");
+			if (!corpusDir.delete() || !corpusDir.mkdir())
+				throw new IOException("Can't create " + corpusDir);
+		}
+
+		List<CorpusGenerator.Shape> shapeList = new ArrayList<CorpusGenerator.Shape>();
+		CorpusGenerator generator = new CorpusGenerator(corpusDir);
+		for (int resources : resourceCounts)
+			for (int wrapDepth : wrapDepths)
+				for (int handlerPercent : handlerPercents)
+					for (int branches : branchCounts)
+						for (int finallyPercent : finallyPercents)
+							for (int prologue : prologues) {
+								CorpusGenerator.Shape shape = new CorpusGenerator.Shape(
+										methods, resources, wrapDepth,
+										handlerPercent, branches,
+										finallyPercent, prologue);
+								generator.generate(shape);
+								shapeList.add(shape);
+							}
+
+		setUpAnalysis();
+
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				outputFile != null ? new FileOutputStream(outputFile)
+						: System.out, "UTF-8"));
+		try {
+			out.println("{\"warmup\":" + warmup + ",\"iterations\":"
+					+ iterations + ",\"singlePass\":"
+					+ ResourceLeakDetector.SINGLE_PASS_DATAFLOW + ",\"metrics\":"
+					+ ResourceLeakDetector.METRICS + ",\"lowMemory\":"
+					+ ResourceLeakDetector.LOW_MEMORY + ",\"resourceTypes\":"
+					+ ResourceLeakDetector.resourceTypes.size()
+					+ ",\"results\":[");
+			for (int i = 0; i < shapeList.size(); ++i) {
+				CorpusGenerator.Shape shape = shapeList.get(i);
+				long[][] samples = measure(shape);
+				for (int phase = 0; phase < PHASES.length; ++phase) {
+					boolean last = i == shapeList.size() - 1
+							&& phase == PHASES.length - 1;
+					out.println("  " + toJSON(shape, PHASES[phase],
+							samples[phase], allocatedBytes[phase]
+									/ Math.max(1, iterations), leakedStreams,
+							dataflowIterations, prunedEdges, closedByShape,
+							slicedBlocks, truncatedMethods, peakHeapBytes)
+							+ (last ? "" : ","));
+				}
+				out.flush();
+			}
+			out.println("]}");
+		} finally {
+			if (outputFile != null)
+				out.close();
+			else
+				out.flush();
+		}
+	}
+
+	/**
+	 * Set up the analysis cache and AnalysisContext for the corpus, as
+	 * FindBugs2 does for a project.
+	 */
+	private void setUpAnalysis() throws Exception {
+		IClassFactory classFactory = ClassFactory.instance();
+		IClassPath classPath = classFactory.createClassPath();
+		IClassPathBuilder builder = classFactory
+				.createClassPathBuilder(bugReporter);
+		builder.addCodeBase(classFactory.createFilesystemCodeBaseLocator(corpusDir
+				.getPath()), true);
+		builder.scanNestedArchives(false);
+		builder.build(classPath, new NoOpFindBugsProgress());
+
+		analysisCache = classFactory.createAnalysisCache(classPath,
+				bugReporter);
+		Global.setAnalysisCacheForCurrentThread(analysisCache);
+		FindBugs2.registerBuiltInAnalysisEngines(analysisCache);
+		Project project = new Project();
+		project.addFile(corpusDir.getPath());
+		FindBugs2.createAnalysisContext(project, builder.getAppClassList(),
+				null);
+	}
+
+	/**
+	 * Run the phases on the class of a shape.
+	 *
+	 * @return the time taken by each iteration, by phase, in nanoseconds
+	 */
+	private long[][] measure(CorpusGenerator.Shape shape) throws Exception {
+		ClassDescriptor classDescriptor = DescriptorFactory.instance()
+				.getClassDescriptorForDottedClassName(shape.getClassName());
+		long[][] samples = new long[PHASES.length][iterations];
+		allocatedBytes = new long[PHASES.length];
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			pool.resetPeakUsage();
+		for (int i = -warmup; i < iterations; ++i) {
+			long[] times = new long[PHASES.length];
+			long[] bytes = new long[PHASES.length];
+			runOnce(classDescriptor, times, bytes);
+			if (i >= 0) {
+				for (int phase = 0; phase < PHASES.length; ++phase) {
+					samples[phase][i] = times[phase];
+					allocatedBytes[phase] += bytes[phase];
+				}
+			}
+		}
+		peakHeapBytes = ResourceLeakDetector.getPeakHeapBytes();
+		return samples;
+	}
+
+	private long getAllocatedBytes() {
+		return threadBean != null ? threadBean.getThreadAllocatedBytes(Thread
+				.currentThread().getId()) : 0L;
+	}
+
+	/**
+	 * Run the phases once.
+	 *
+	 * @param times
+	 *            array to add the time taken by each phase to
+	 * @param bytes
+	 *            array to add the bytes allocated by each phase to
+	 */
+	private void runOnce(ClassDescriptor classDescriptor, long[] times,
+			long[] bytes) throws Exception {
+		ClassContext classContext = analysisCache.getClassAnalysis(
+				ClassContext.class, classDescriptor);
+		JavaClass javaClass = classContext.getJavaClass();
+		// Build the CFGs again in each iteration
+		classContext.purgeAllMethodAnalyses();
+		leakedStreams = 0;
+		dataflowIterations = 0;
+		prunedEdges = 0;
+		closedByShape = 0;
+		slicedBlocks = 0;
+		truncatedMethods = 0;
+
+		long allocated = getAllocatedBytes();
+		long start = System.nanoTime();
+		List<Method> methodList = new ArrayList<Method>();
+		if (ResourceLeakDetector.referencesResourceClass(javaClass)) {
+			ResourceCallPrescreen callPrescreen = new ResourceCallPrescreen(
+					javaClass, ResourceLeakDetector.subtypeCache, bugReporter);
+			for (Method method : javaClass.getMethods()) {
+				if (callPrescreen.callsResourceMethod(method))
+					methodList.add(method);
+			}
+		}
+		times[PRESCREEN] += System.nanoTime() - start;
+		bytes[PRESCREEN] += getAllocatedBytes() - allocated;
+
+		allocated = getAllocatedBytes();
+		start = System.nanoTime();
+		for (Method method : methodList)
+			classContext.getCFG(method);
+		times[CFG] += System.nanoTime() - start;
+		bytes[CFG] += getAllocatedBytes() - allocated;
+
+		for (Method method : methodList) {
+			allocated = getAllocatedBytes();
+			start = System.nanoTime();
+			MethodBudget budget = new MethodBudget();
+			LeakResourceTracker resourceTracker = new LeakResourceTracker(
+					ResourceLeakDetector.subtypeCache,
+					ResourceLeakDetector.summaryDatabase, bugReporter);
+			ResourceCollection<Stream> resourceCollection = ResourceLeakDetector
+					.buildResourceCollection(classContext, method,
+							resourceTracker);
+			times[CREATION] += System.nanoTime() - start;
+			bytes[CREATION] += getAllocatedBytes() - allocated;
+			if (resourceCollection.isEmpty())
+				continue;
+			ResourceLeakDetector.checkSize(classContext, method,
+					resourceCollection, budget);
+
+			MethodLeakAnalysis analysis = new MethodLeakAnalysis(classContext,
+					method, resourceTracker, resourceCollection, budget);
+			analysis.addParameterStreams(ResourceLeakDetector.subtypeCache,
+					bugReporter);
+
+			allocated = getAllocatedBytes();
+			start = System.nanoTime();
+			analysis.runDataflow();
+			times[DATAFLOW] += System.nanoTime() - start;
+			bytes[DATAFLOW] += getAllocatedBytes() - allocated;
+
+			allocated = getAllocatedBytes();
+			start = System.nanoTime();
+			analysis.findLeakedStreams();
+			times[ESCAPES] += System.nanoTime() - start;
+			bytes[ESCAPES] += getAllocatedBytes() - allocated;
+
+			if (analysis.getDataflowFailure() != null)
+				throw analysis.getDataflowFailure();
+			leakedStreams += analysis.getLeakedStreamList().size();
+			dataflowIterations += analysis.getDataflowIterations();
+			prunedEdges += analysis.getPrunedEdgeCount();
+			closedByShape += analysis.getClosedByShapeCount();
+			slicedBlocks += analysis.getSlicedBlockCount();
+			if (budget.isExceeded())
+				++truncatedMethods;
+			if (ResourceLeakDetector.LOW_MEMORY)
+				ResourceLeakDetector.releaseMethod(classContext, method,
+						resourceTracker);
+		}
+	}
+
+	private static String toJSON(CorpusGenerator.Shape shape, String phase,
+			long[] samples, long meanAllocatedBytes, int leakedStreams,
+			int dataflowIterations, int prunedEdges, int closedByShape,
+			int slicedBlocks, int truncatedMethods, long peakHeapBytes) {
+		long[] sorted = samples.clone();
+		Arrays.sort(sorted);
+		long total = 0L;
+		for (long sample : sorted)
+			total += sample;
+		long mean = sorted.length > 0 ? total / sorted.length : 0L;
+		return "{\"shape\":" + shape.toJSON() + ",\"phase\":\"" + phase
+				+ "\",\"meanNanos\":" + mean + ",\"minNanos\":"
+				+ percentile(sorted, 0) + ",\"medianNanos\":"
+				+ percentile(sorted, 50) + ",\"p90Nanos\":"
+				+ percentile(sorted, 90) + ",\"maxNanos\":"
+				+ percentile(sorted, 100) + ",\"meanAllocatedBytes\":"
+				+ meanAllocatedBytes + ",\"leakedStreams\":" + leakedStreams
+				+ ",\"dataflowIterations\":" + dataflowIterations
+				+ ",\"prunedEdges\":" + prunedEdges + ",\"closedByShape\":"
+				+ closedByShape + ",\"slicedBlocks\":" + slicedBlocks
+				+ ",\"truncatedMethods\":" + truncatedMethods
+				+ ",\"peakHeapBytes\":" + peakHeapBytes + "}";
+	}
+
+	private static long percentile(long[] sorted, int percent) {
+		if (sorted.length == 0)
+			return 0L;
+		int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
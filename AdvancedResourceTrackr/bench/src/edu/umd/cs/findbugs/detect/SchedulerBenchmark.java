@@ -0,0 +1,217 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Makespan of the method analyses of a skewed corpus generated by
+ * CorpusGenerator, many small classes and a few with huge methods, under
+ * the schedules of ResourceLeakDetector:
+ * <ul>
+ * <li>barrier: each class on its own, its methods started in order
+ * (fos.noCostOrder);</li>
+ * <li>costOrder: each class on its own, its costliest methods first;</li>
+ * <li>scheduled: the methods of fos.scheduleWindow classes at a time, the
+ * costliest first.</li>
+ * </ul>
+ * Each run is a new JVM running ResourceLeakDaemon -once with fos.threads
+ * threads, and its time is the one the daemon reports, without JVM start
+ * up. The bugs of every run are checked to be the same, line for line. The
+ * scheduled runs log the predicted and actual cost of each method
+ * (fos.costLog), and the fit the detector prints is included in the
+ * results, written as one JSON object.
+ *
+ * Usage, with the detector, FindBugs and this harness on the classpath:
+ *
+ * <pre>
+ * java edu.umd.cs.findbugs.detect.SchedulerBenchmark [-corpus dir]
+ *     [-threads n] [-window n] [-runs n] [-small n] [-huge n]
+ *     [-hugeResources n] [-hugeBranches n]
+ * </pre>
+ */
+public class SchedulerBenchmark {
+	private static final String[] SCHEDULE_NAMES = { "barrier", "costOrder",
+			"scheduled" };
+
+	private File corpusDir;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private int window = 16;
+
+	private int runs = 3;
+
+	private int smallClasses = 60;
+
+	private int hugeClasses = 2;
+
+	private int hugeResources = 24;
+
+	private int hugeBranches = 200;
+
+	public static void main(String[] args) throws Exception {
+		SchedulerBenchmark benchmark = new SchedulerBenchmark();
+		benchmark.parseArguments(args);
+		benchmark.run();
+	}
+
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for "
+						+ args[i]);
+			String option = args[i];
+			String value = args[i + 1];
+			if (option.equals("-corpus"))
+				corpusDir = new File(value);
+			else if (option.equals("-threads"))
+				threads = Integer.parseInt(value);
+			else if (option.equals("-window"))
+				window = Integer.parseInt(value);
+			else if (option.equals("-runs"))
+				runs = Integer.parseInt(value);
+			else if (option.equals("-small"))
+				smallClasses = Integer.parseInt(value);
+			else if (option.equals("-huge"))
+				hugeClasses = Integer.parseInt(value);
+			else if (option.equals("-hugeResources"))
+				hugeResources = Integer.parseInt(value);
+			else if (option.equals("-hugeBranches"))
+				hugeBranches = Integer.parseInt(value);
+			else
+				throw new IllegalArgumentException("Unknown option " + option);
+		}
+	}
+
+	private void run() throws Exception {
+		if (corpusDir == null) {
+			corpusDir = File.createTempFile("corpus", "");
+			if (!corpusDir.delete() || !corpusDir.mkdir())
+				throw new IOException("Can't create " + corpusDir);
+		}
+		// Small classes of a few short methods, and huge ones of two long
+		// methods each; the number of branches gives each its own name.
+		// Without wrappers, whose streams escape, so that leaks are reported
+		CorpusGenerator generator = new CorpusGenerator(corpusDir);
+		for (int i = 0; i < smallClasses; ++i)
+			generator.generate(new CorpusGenerator.Shape(8, 2, 0, 50, i, 50,
+					0));
+		for (int i = 0; i < hugeClasses; ++i)
+			generator.generate(new CorpusGenerator.Shape(2, hugeResources, 0,
+					50, hugeBranches + i, 50, 0));
+
+		File costLog = File.createTempFile("costLog", ".csv");
+		List<String> referenceBugs = null;
+		boolean identical = true;
+		String fit = null;
+		long[] medianMillis = new long[SCHEDULE_NAMES.length];
+		for (int s = 0; s < SCHEDULE_NAMES.length; ++s) {
+			long[] millis = new long[runs];
+			for (int i = 0; i < runs; ++i) {
+				List<String> bugList = new ArrayList<String>();
+				List<String> command = getCommand(s, costLog);
+				String[] result = runOnce(command, bugList);
+				millis[i] = Long.parseLong(result[0]);
+				if (result[1] != null)
+					fit = result[1];
+				if (referenceBugs == null)
+					referenceBugs = bugList;
+				else if (!bugList.equals(referenceBugs))
+					identical = false;
+			}
+			Arrays.sort(millis);
+			medianMillis[s] = millis[(runs - 1) / 2];
+		}
+
+		StringBuilder results = new StringBuilder("{");
+		for (int s = 0; s < SCHEDULE_NAMES.length; ++s)
+			results.append(s > 0 ? "," : "").append('"')
+					.append(SCHEDULE_NAMES[s]).append("MedianMillis\":")
+					.append(medianMillis[s]);
+		results.append('}');
+		long last = medianMillis[SCHEDULE_NAMES.length - 1];
+		System.out.println("{\"smallClasses\":" + smallClasses
+				+ ",\"hugeClasses\":" + hugeClasses + ",\"hugeResources\":"
+				+ hugeResources + ",\"hugeBranches\":" + hugeBranches
+				+ ",\"threads\":" + threads + ",\"window\":" + window
+				+ ",\"runs\":" + runs + ",\"bugs\":"
+				+ (referenceBugs != null ? referenceBugs.size() : 0)
+				+ ",\"identical\":" + identical + ",\"results\":" + results
+				+ ",\"speedup\":"
+				+ (last > 0 ? Math.round(100.0 * medianMillis[0] / last) / 100.0
+						: 0.0) + ",\"costModel\":"
+				+ StreamingBugWriter.quote(fit != null ? fit : "")
+				+ ",\"costLog\":" + StreamingBugWriter.quote(costLog.getPath())
+				+ "}");
+		if (!identical)
+			System.exit(1);
+	}
+
+	/**
+	 * Get the command analyzing the corpus with a schedule, in a new JVM
+	 * with the classpath and detector options of this one.
+	 */
+	private List<String> getCommand(int schedule, File costLog) {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"),
+				"java").getPath());
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith("fos."))
+				command.add("-D" + name + "=" + System.getProperty(name));
+		}
+		command.add("-Dfos.threads=" + threads);
+		if (schedule == 0)
+			command.add("-Dfos.noCostOrder=true");
+		if (schedule == 2) {
+			command.add("-Dfos.scheduleWindow=" + window);
+			command.add("-Dfos.costLog=" + costLog.getPath());
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ResourceLeakDaemon.class.getName());
+		command.add("-once");
+		command.add(corpusDir.getPath());
+		return command;
+	}
+
+	/**
+	 * Run a command, collecting the bug records it writes.
+	 *
+	 * @return the analysis time the daemon reported, in milliseconds, and
+	 *         the cost model fit the detector printed, or null
+	 */
+	private static String[] runOnce(List<String> command, List<String> bugList)
+			throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(command).redirectErrorStream(
+				true).start();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				process.getInputStream(), "UTF-8"));
+		String line;
+		String millis = null;
+		String fit = null;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith("{\"done\":true")) {
+				int start = line.indexOf("\"millis\":") + 9;
+				int end = start;
+				while (end < line.length()
+						&& Character.isDigit(line.charAt(end)))
+					++end;
+				millis = line.substring(start, end);
+			} else if (line.startsWith("{")) {
+				bugList.add(line);
+			} else if (line.startsWith("ResourceLeakDetector: cost model")) {
+				fit = line.substring("ResourceLeakDetector: ".length());
+			}
+		}
+		int status = process.waitFor();
+		if (status != 0 || millis == null || millis.length() == 0)
+			throw new IOException("Run exited with status " + status);
+		return new String[] { millis, fit };
+	}
+}
@@ -0,0 +1,178 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scaling of ShardedScanRunner over a corpus generated by CorpusGenerator,
+ * with 1, 2, 4 and 8 worker processes by default. Each run is a new JVM
+ * running the runner, timed from start to exit, and its bugs are checked to
+ * be the same, line for line, as those of the run with the fewest workers.
+ * Results are written as one JSON object, with the median time of each
+ * worker count and its speedup over the first.
+ *
+ * Usage, with the detector, FindBugs and this harness on the classpath:
+ *
+ * <pre>
+ * java edu.umd.cs.findbugs.detect.ShardBenchmark [-corpus dir]
+ *     [-workers 1,2,4,8] [-runs n] [-partition cost|package]
+ *     [-classes n] [-methods n] [-resources n]
+ * </pre>
+ */
+public class ShardBenchmark {
+	private File corpusDir;
+
+	private int[] workerCounts = { 1, 2, 4, 8 };
+
+	private int runs = 3;
+
+	private String partition = "cost";
+
+	private int classes = 64;
+
+	private int methods = 20;
+
+	private int resources = 4;
+
+	public static void main(String[] args) throws Exception {
+		ShardBenchmark benchmark = new ShardBenchmark();
+		benchmark.parseArguments(args);
+		benchmark.run();
+	}
+
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for "
+						+ args[i]);
+			String option = args[i];
+			String value = args[i + 1];
+			if (option.equals("-corpus"))
+				corpusDir = new File(value);
+			else if (option.equals("-workers")) {
+				String[] counts = value.split(",");
+				workerCounts = new int[counts.length];
+				for (int j = 0; j < counts.length; ++j)
+					workerCounts[j] = Integer.parseInt(counts[j].trim());
+			} else if (option.equals("-runs"))
+				runs = Integer.parseInt(value);
+			else if (option.equals("-partition"))
+				partition = value;
+			else if (option.equals("-classes"))
+				classes = Integer.parseInt(value);
+			else if (option.equals("-methods"))
+				methods = Integer.parseInt(value);
+			else if (option.equals("-resources"))
+				resources = Integer.parseInt(value);
+			else
+				throw new IllegalArgumentException("Unknown option " + option);
+		}
+	}
+
+	private void run() throws Exception {
+		if (corpusDir == null) {
+			corpusDir = File.createTempFile("corpus", "");
+			if (!corpusDir.delete() || !corpusDir.mkdir())
+				throw new IOException("Can't create " + corpusDir);
+		}
+		// Classes differing in their number of branches, so each has its own
+		// name, and growing with it, so some cost more than others; without
+		// wrappers, whose streams escape, so that leaks are reported
+		CorpusGenerator generator = new CorpusGenerator(corpusDir);
+		for (int i = 0; i < classes; ++i)
+			generator.generate(new CorpusGenerator.Shape(methods, resources,
+					0, 50, i, 50, 0));
+
+		List<String> referenceBugs = null;
+		int bugCount = 0;
+		boolean identical = true;
+		StringBuilder results = new StringBuilder("[");
+		long firstMedian = 0;
+		for (int w = 0; w < workerCounts.length; ++w) {
+			long[] millis = new long[runs];
+			for (int i = 0; i < runs; ++i) {
+				List<String> bugList = new ArrayList<String>();
+				millis[i] = runSharded(workerCounts[w], bugList);
+				if (referenceBugs == null) {
+					referenceBugs = bugList;
+					bugCount = bugList.size();
+				} else if (!bugList.equals(referenceBugs)) {
+					identical = false;
+				}
+			}
+			Arrays.sort(millis);
+			long median = millis[(runs - 1) / 2];
+			if (w == 0)
+				firstMedian = median;
+			results.append(w > 0 ? "," : "").append("{\"workers\":")
+					.append(workerCounts[w]).append(",\"medianMillis\":")
+					.append(median).append(",\"minMillis\":")
+					.append(millis[0]).append(",\"speedup\":")
+					.append(median > 0 ? Math.round(100.0 * firstMedian
+							/ median) / 100.0 : 0.0).append('}');
+		}
+		results.append(']');
+
+		System.out.println("{\"classes\":" + classes + ",\"methods\":"
+				+ methods + ",\"resources\":" + resources + ",\"partition\":\""
+				+ partition + "\",\"processors\":"
+				+ Runtime.getRuntime().availableProcessors() + ",\"runs\":"
+				+ runs + ",\"bugs\":" + bugCount + ",\"identical\":"
+				+ identical + ",\"results\":" + results + "}");
+		if (!identical)
+			System.exit(1);
+	}
+
+	/**
+	 * Analyze the corpus with ShardedScanRunner in a new JVM with the
+	 * classpath and detector options of this one.
+	 *
+	 * @param bugList
+	 *            where to add the bug records written
+	 * @return the time from starting the JVM to its exit, in milliseconds
+	 */
+	private long runSharded(int workers, List<String> bugList)
+			throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"),
+				"java").getPath());
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith("fos."))
+				command.add("-D" + name + "=" + System.getProperty(name));
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ShardedScanRunner.class.getName());
+		command.add("-workers");
+		command.add(Integer.toString(workers));
+		command.add("-partition");
+		command.add(partition);
+		command.add(corpusDir.getPath());
+
+		long start = System.nanoTime();
+		Process process = new ProcessBuilder(command).redirectErrorStream(
+				true).start();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				process.getInputStream(), "UTF-8"));
+		String line;
+		String summary = null;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith("{\"done\":true"))
+				summary = line;
+			else if (line.startsWith("{"))
+				bugList.add(line);
+		}
+		int status = process.waitFor();
+		long millis = (System.nanoTime() - start) / 1000000;
+		if (status != 0 || summary == null)
+			throw new IOException("Run with " + workers
+					+ " workers exited with status " + status);
+		return millis;
+	}
+}
@@ -0,0 +1,191 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.CodeException;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+
+import edu.umd.cs.findbugs.SystemProperties;
+import edu.umd.cs.findbugs.ba.AnalysisContext;
+
+/**
+ * Estimated cost of analyzing each method of a class, from what the class
+ * prescreen reads anyway: the length of its bytecode, its exception
+ * handlers and the number of its calls to methods with a resource return
+ * type (found by ResourceCallPrescreen). A stream is analyzed over the whole
+ * CFG of its method, and each handler adds exception edges to it, so the
+ * cost of a method is taken to be
+ *
+ * <pre>
+ * (bytecode length + HANDLER_WEIGHT * handlers) * max(1, resource calls)
+ * </pre>
+ *
+ * in arbitrary units. A method with no resource calls still costs one pass
+ * over its CFG if it is analyzed, for the streams it is passed, so it isn't
+ * taken to be free. The scheduler of ResourceLeakDetector starts the
+ * costliest analyses first.
+ *
+ * If fos.costLog names a file, the predicted cost and the actual time of
+ * each method analyzed are written to it, as CSV, to tune the model; the
+ * fit over the run is printed at its end.
+ */
+public class ClassCostModel {
+	/**
+	 * Bytes of bytecode an exception handler is worth.
+	 */
+	static final int HANDLER_WEIGHT = SystemProperties.getInt(
+			"fos.costHandlerWeight", 32);
+
+	private static final PrintWriter costLog = openLog(SystemProperties
+			.getProperty("fos.costLog"));
+
+	private static long loggedCount;
+
+	private static double sumPredicted;
+
+	private static double sumActual;
+
+	private static double sumPredictedSquared;
+
+	private static double sumActualSquared;
+
+	private static double sumProduct;
+
+	private final int[] codeLength;
+
+	private final int[] handlerCount;
+
+	private final int[] resourceCallCount;
+
+	private final long[] methodCost;
+
+	private long totalCost;
+
+	/**
+	 * Estimate the costs of the methods of a class.
+	 *
+	 * @param callPrescreen
+	 *            the method-level prescreen of the class, or null if there
+	 *            is none, in which case each method is taken to make one
+	 *            resource call
+	 */
+	public ClassCostModel(JavaClass javaClass,
+			ResourceCallPrescreen callPrescreen) {
+		Method[] methodList = javaClass.getMethods();
+		codeLength = new int[methodList.length];
+		handlerCount = new int[methodList.length];
+		resourceCallCount = new int[methodList.length];
+		methodCost = new long[methodList.length];
+		for (int i = 0; i < methodList.length; ++i) {
+			Code code = methodList[i].getCode();
+			if (code == null)
+				continue;
+			codeLength[i] = code.getCode().length;
+			CodeException[] handlerList = code.getExceptionTable();
+			handlerCount[i] = handlerList != null ? handlerList.length : 0;
+			resourceCallCount[i] = callPrescreen != null ? callPrescreen
+					.countResourceCalls(methodList[i]) : 1;
+			methodCost[i] = estimate(codeLength[i], handlerCount[i],
+					resourceCallCount[i]);
+			totalCost += methodCost[i];
+		}
+	}
+
+	static long estimate(int codeLength, int handlerCount,
+			int resourceCallCount) {
+		return ((long) codeLength + (long) HANDLER_WEIGHT * handlerCount)
+				* Math.max(1, resourceCallCount);
+	}
+
+	/**
+	 * Get the estimated cost of a method.
+	 *
+	 * @param methodIndex
+	 *            the index of the method in JavaClass.getMethods()
+	 */
+	public long getMethodCost(int methodIndex) {
+		return methodCost[methodIndex];
+	}
+
+	/**
+	 * Get the estimated cost of all the methods of the class.
+	 */
+	public long getTotalCost() {
+		return totalCost;
+	}
+
+	/**
+	 * Determine if the predicted and actual costs of methods are logged.
+	 */
+	public static boolean isLogging() {
+		return costLog != null;
+	}
+
+	/**
+	 * Log the predicted cost and the actual time of the analysis of a
+	 * method.
+	 */
+	public void log(String className, int methodIndex, Method method,
+			long actualNanos) {
+		long predicted = methodCost[methodIndex];
+		synchronized (ClassCostModel.class) {
+			++loggedCount;
+			sumPredicted += predicted;
+			sumActual += actualNanos;
+			sumPredictedSquared += (double) predicted * predicted;
+			sumActualSquared += (double) actualNanos * actualNanos;
+			sumProduct += (double) predicted * actualNanos;
+			if (costLog != null)
+				costLog.println(className + "," + method.getName()
+						+ method.getSignature().replace(',', ';') + ","
+						+ codeLength[methodIndex] + ","
+						+ handlerCount[methodIndex] + ","
+						+ resourceCallCount[methodIndex] + "," + predicted
+						+ "," + actualNanos);
+		}
+	}
+
+	/**
+	 * Describe how well the predicted costs logged so far match the actual
+	 * times: the correlation of the two, and the nanoseconds a unit of cost
+	 * took on average. Flushes the log.
+	 */
+	public static synchronized String getFitSummary() {
+		if (costLog != null)
+			costLog.flush();
+		double n = loggedCount;
+		double covariance = n * sumProduct - sumPredicted * sumActual;
+		double predictedVariance = n * sumPredictedSquared - sumPredicted
+				* sumPredicted;
+		double actualVariance = n * sumActualSquared - sumActual * sumActual;
+		double correlation = predictedVariance > 0 && actualVariance > 0 ? covariance
+				/ Math.sqrt(predictedVariance * actualVariance)
+				: 0.0;
+		double nanosPerUnit = sumPredicted > 0 ? sumActual / sumPredicted
+				: 0.0;
+		return "cost model fit over " + loggedCount + " methods: correlation "
+				+ Math.round(correlation * 1000) / 1000.0 + ", "
+				+ Math.round(nanosPerUnit * 10) / 10.0 + " ns per unit";
+	}
+
+	private static PrintWriter openLog(String fileName) {
+		if (fileName == null)
+			return null;
+		try {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(fileName), "UTF-8"));
+			out.println("class,method,bytecodeLength,handlers,resourceCalls,"
+					+ "predictedCost,actualNanos");
+			return out;
+		} catch (IOException e) {
+			AnalysisContext.logError("Could not open cost log " + fileName, e);
+			return null;
+		}
+	}
+}
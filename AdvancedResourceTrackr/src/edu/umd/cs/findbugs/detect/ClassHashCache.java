@@ -0,0 +1,58 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.umd.cs.findbugs.classfile.CheckedAnalysisException;
+import edu.umd.cs.findbugs.classfile.DescriptorFactory;
+import edu.umd.cs.findbugs.classfile.Global;
+import edu.umd.cs.findbugs.classfile.analysis.ClassData;
+
+/**
+ * Hashes of the class files seen in this run, by class name. The bytes are
+ * fetched from the analysis cache, so hashing a class already loaded by the
+ * engine doesn't read it again.
+ */
+public class ClassHashCache {
+	private final Map<String, Long> hashMap = new HashMap<String, Long>();
+
+	/**
+	 * Get the hash of the class file of a class.
+	 *
+	 * @param className
+	 *            the class name, in dotted form
+	 * @return the hash, or null if the class file can't be read
+	 */
+	public Long getClassHash(String className) {
+		synchronized (ResourceSubtypeCache.HIERARCHY_LOCK) {
+			if (hashMap.containsKey(className))
+				return hashMap.get(className);
+			Long classHash = null;
+			try {
+				ClassData classData = Global.getAnalysisCache()
+						.getClassAnalysis(
+								ClassData.class,
+								DescriptorFactory.instance()
+										.getClassDescriptorForDottedClassName(
+												className));
+				classHash = Long.valueOf(HashedRecordFile.hashBytes(classData
+						.getData()));
+			} catch (CheckedAnalysisException e) {
+				// Not cacheable
+			}
+			hashMap.put(className, classHash);
+			return classHash;
+		}
+	}
+
+	/**
+	 * Forget the hashes, for a new run in the same JVM in which class files
+	 * may have changed.
+	 */
+	public void clear() {
+		synchronized (ResourceSubtypeCache.HIERARCHY_LOCK) {
+			hashMap.clear();
+		}
+	}
+}
@@ -0,0 +1,513 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantClass;
+import org.apache.bcel.classfile.ConstantNameAndType;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.ArrayType;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.Type;
+
+import edu.umd.cs.findbugs.BugInstance;
+import edu.umd.cs.findbugs.Detector;
+import edu.umd.cs.findbugs.MethodAnnotation;
+import edu.umd.cs.findbugs.SourceLineAnnotation;
+import edu.umd.cs.findbugs.TypeAnnotation;
+import edu.umd.cs.findbugs.ba.AnalysisContext;
+import edu.umd.cs.findbugs.bcel.BCELUtil;
+
+/**
+ * Findings of previous runs, by class, for incremental analysis. Each record
+ * is keyed by the hash of a class file and holds the bugs found in the class,
+ * along with what the findings depend on besides the class itself:
+ * <ul>
+ * <li>the ResourceSummaries of the methods it calls, as they were when the
+ * class was analyzed, so a changed callee invalidates the record;</li>
+ * <li>a hash over the class files of the application classes it refers to
+ * and all their application supertypes, so a changed supertype invalidates
+ * the record;</li>
+ * <li>the detector options affecting the findings.</li>
+ * </ul>
+ * Library classes are assumed not to change between runs.
+ */
+public class ClassResultCache {
+	private static final int MAGIC = 0x46535231;
+
+	private static final int VERSION = 2;
+
+	/**
+	 * A bug found in a class, with what is needed to report it again without
+	 * analyzing the class.
+	 */
+	public static class CachedBug {
+		final String bugType;
+
+		final int priority;
+
+		final String methodName;
+
+		final String methodSig;
+
+		final boolean isStatic;
+
+		final boolean isSynthetic;
+
+		final String leakClass;
+
+		/**
+		 * Start and end line, start and end bytecode offset of the method, or
+		 * null if unknown.
+		 */
+		final int[] methodLines;
+
+		/**
+		 * Start and end line, start and end bytecode offset of the bug.
+		 */
+		final int[] bugLines;
+
+		CachedBug(String bugType, int priority, String methodName,
+				String methodSig, boolean isStatic, boolean isSynthetic,
+				String leakClass, int[] methodLines, int[] bugLines) {
+			this.bugType = bugType;
+			this.priority = priority;
+			this.methodName = methodName;
+			this.methodSig = methodSig;
+			this.isStatic = isStatic;
+			this.isSynthetic = isSynthetic;
+			this.leakClass = leakClass;
+			this.methodLines = methodLines;
+			this.bugLines = bugLines;
+		}
+
+		String getMethodKey() {
+			return methodName + methodSig;
+		}
+
+		/**
+		 * Create the BugInstance ResourceLeakDetector reported for this bug.
+		 */
+		public BugInstance createBugInstance(Detector detector,
+				String className, String sourceFile) {
+			MethodAnnotation methodAnnotation = new MethodAnnotation(
+					className, methodName, methodSig, isStatic);
+			if (methodLines != null)
+				methodAnnotation.setSourceLines(createSourceLine(className,
+						sourceFile, methodLines));
+			BugInstance bugInstance = new BugInstance(detector, bugType,
+					priority).addClass(className, sourceFile).addMethod(
+					methodAnnotation);
+			if (isSynthetic)
+				bugInstance.foundInSyntheticMethod();
+			return bugInstance.addTypeOfNamedClass(leakClass).describe(
+					TypeAnnotation.CLOSEIT_ROLE);
+		}
+
+		/**
+		 * Create the source line annotation of the bug.
+		 */
+		public SourceLineAnnotation createSourceLine(String className,
+				String sourceFile) {
+			return createSourceLine(className, sourceFile, bugLines);
+		}
+
+		private static SourceLineAnnotation createSourceLine(
+				String className, String sourceFile, int[] lines) {
+			return new SourceLineAnnotation(className, sourceFile, lines[0],
+					lines[1], lines[2], lines[3]);
+		}
+	}
+
+	/**
+	 * Findings for one class: either read from the cache, or being recorded
+	 * while the class is analyzed.
+	 */
+	public static class ClassResult {
+		final long classHash;
+
+		final long hierarchyHash;
+
+		final boolean cached;
+
+		/**
+		 * Set if the analysis of a method was cut short by its MethodBudget.
+		 */
+		boolean incomplete;
+
+		long analysisNanos;
+
+		final Map<String, ResourceSummary> consultedSummaryMap = new TreeMap<String, ResourceSummary>();
+
+		final List<CachedBug> bugList = new ArrayList<CachedBug>();
+
+		ClassResult(long classHash, long hierarchyHash, boolean cached) {
+			this.classHash = classHash;
+			this.hierarchyHash = hierarchyHash;
+			this.cached = cached;
+		}
+
+		/**
+		 * Determine if this result was read from the cache, so the class
+		 * doesn't need to be analyzed.
+		 */
+		public boolean isCached() {
+			return cached;
+		}
+
+		/**
+		 * Record that the analysis of a method of the class was cut short,
+		 * so its findings shouldn't be stored.
+		 */
+		public void setIncomplete() {
+			incomplete = true;
+		}
+
+		public List<CachedBug> getBugList() {
+			return Collections.unmodifiableList(bugList);
+		}
+
+		/**
+		 * Record the callee summaries a LeakResourceTracker consulted.
+		 */
+		public void addConsultedSummaries(LeakResourceTracker resourceTracker) {
+			addConsultedSummaries(resourceTracker.getConsultedSummaryMap());
+		}
+
+		/**
+		 * Record summaries consulted for the class, keyed as
+		 * LeakResourceTracker.getConsultedSummaryMap() keys them.
+		 */
+		public void addConsultedSummaries(
+				Map<String, ResourceSummary> summaryMap) {
+			consultedSummaryMap.putAll(summaryMap);
+		}
+
+		/**
+		 * Record a bug reported for the class.
+		 */
+		public void addBug(String bugType, int priority, MethodGen methodGen,
+				String leakClass, SourceLineAnnotation methodLines,
+				SourceLineAnnotation bugLines) {
+			bugList.add(new CachedBug(bugType, priority, methodGen.getName(),
+					methodGen.getSignature(), methodGen.isStatic(), BCELUtil
+							.isSynthetic(methodGen), leakClass,
+					methodLines == null ? null : toArray(methodLines),
+					toArray(bugLines)));
+		}
+
+		private static int[] toArray(SourceLineAnnotation lines) {
+			return new int[] { lines.getStartLine(), lines.getEndLine(),
+					lines.getStartBytecode(), lines.getEndBytecode() };
+		}
+	}
+
+	private final HashedRecordFile recordFile;
+
+	private final ClassHashCache classHashCache;
+
+	/**
+	 * Detector options the findings depend on.
+	 */
+	private final int options;
+
+	private int lookupCount;
+
+	private int hitCount;
+
+	private long savedNanos;
+
+	public ClassResultCache(File file, ClassHashCache classHashCache,
+			int options) {
+		this.recordFile = new HashedRecordFile(file, MAGIC, VERSION);
+		this.classHashCache = classHashCache;
+		this.options = options;
+	}
+
+	/**
+	 * Open the cache in the given file.
+	 *
+	 * @param fileName
+	 *            the file, or null for no cache
+	 * @return the cache, or null if fileName is null
+	 */
+	public static ClassResultCache open(String fileName,
+			ClassHashCache classHashCache, int options) {
+		if (fileName == null)
+			return null;
+		return new ClassResultCache(new File(fileName), classHashCache,
+				options);
+	}
+
+	/**
+	 * Add the records of other cache files, such as those written by the
+	 * workers of ShardedScanRunner, to a cache file.
+	 */
+	static void merge(File file, List<File> partList) throws IOException {
+		HashedRecordFile.merge(file, partList, MAGIC, VERSION);
+	}
+
+	/**
+	 * Look up the findings for a class.
+	 *
+	 * @param javaClass
+	 *            the class
+	 * @param summaryDatabase
+	 *            the database to check consulted summaries against, or null
+	 *            if summaries are disabled
+	 * @return the cached result if it is still valid, otherwise an empty
+	 *         result to record the findings in; null if the class can't be
+	 *         cached
+	 */
+	public ClassResult lookup(JavaClass javaClass,
+			ResourceSummaryDatabase summaryDatabase) {
+		Long classHash = classHashCache.getClassHash(javaClass.getClassName());
+		if (classHash == null)
+			return null;
+		long hierarchyHash = computeHierarchyHash(javaClass);
+		++lookupCount;
+
+		byte[] payload = recordFile.get(classHash.longValue());
+		if (payload != null) {
+			try {
+				ClassResult result = decode(classHash.longValue(), payload);
+				if (result.hierarchyHash == hierarchyHash
+						&& summariesUnchanged(result, summaryDatabase)) {
+					++hitCount;
+					savedNanos += result.analysisNanos;
+					return result;
+				}
+			} catch (IOException e) {
+				// Fall through: analyze the class again
+			}
+		}
+		return new ClassResult(classHash.longValue(), hierarchyHash, false);
+	}
+
+	/**
+	 * Store the findings recorded for a class, unless they are incomplete.
+	 *
+	 * @param result
+	 *            the findings
+	 * @param analysisNanos
+	 *            how long the analysis of the class took
+	 */
+	public void store(ClassResult result, long analysisNanos) {
+		if (result.incomplete)
+			return;
+		result.analysisNanos = analysisNanos;
+		try {
+			recordFile.put(result.classHash, encode(result));
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Account for the time taken to replay the findings of a class.
+	 */
+	public void replayed(long replayNanos) {
+		savedNanos -= replayNanos;
+	}
+
+	public void save() throws IOException {
+		recordFile.save();
+	}
+
+	private boolean summariesUnchanged(ClassResult result,
+			ResourceSummaryDatabase summaryDatabase) {
+		for (Map.Entry<String, ResourceSummary> e : result.consultedSummaryMap
+				.entrySet()) {
+			String key = e.getKey();
+			int paren = key.indexOf('(');
+			int dot = key.lastIndexOf('.', paren);
+			ResourceSummary current = summaryDatabase == null ? ResourceSummary.UNKNOWN
+					: summaryDatabase.getSummary(key.substring(0, dot),
+							key.substring(dot + 1, paren),
+							key.substring(paren));
+			if (!current.equals(e.getValue()))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Hash the class files of the application classes a class refers to,
+	 * and of their application supertypes.
+	 */
+	private long computeHierarchyHash(JavaClass javaClass) {
+		SortedSet<String> classNameSet = new TreeSet<String>();
+		classNameSet.add(javaClass.getClassName());
+
+		ConstantPool cp = javaClass.getConstantPool();
+		for (int i = 1; i < cp.getLength(); ++i) {
+			Constant constant = cp.getConstant(i);
+			if (constant instanceof ConstantClass) {
+				String name = (String) ((ConstantClass) constant)
+						.getConstantValue(cp);
+				if (name.startsWith("["))
+					addType(Type.getType(name), classNameSet);
+				else
+					classNameSet.add(name.replace('/', '.'));
+			} else if (constant instanceof ConstantNameAndType) {
+				addSignature(((ConstantNameAndType) constant)
+						.getSignature(cp), classNameSet);
+			}
+		}
+		for (Method method : javaClass.getMethods())
+			addSignature(method.getSignature(), classNameSet);
+
+		AnalysisContext analysisContext = AnalysisContext
+				.currentAnalysisContext();
+		SortedSet<String> applicationClassSet = new TreeSet<String>();
+		LinkedList<String> worklist = new LinkedList<String>(classNameSet);
+		while (!worklist.isEmpty()) {
+			String className = worklist.removeFirst();
+			if (applicationClassSet.contains(className)
+					|| !analysisContext.isApplicationClass(className))
+				continue;
+			applicationClassSet.add(className);
+			try {
+				JavaClass referenced;
+				synchronized (ResourceSubtypeCache.HIERARCHY_LOCK) {
+					referenced = analysisContext.lookupClass(className);
+				}
+				if (referenced.getSuperclassName() != null)
+					worklist.add(referenced.getSuperclassName());
+				Collections.addAll(worklist, referenced.getInterfaceNames());
+			} catch (ClassNotFoundException e) {
+				// Hashed as missing below
+			}
+		}
+
+		StringBuilder buf = new StringBuilder();
+		for (String className : applicationClassSet)
+			buf.append(className).append('=')
+					.append(classHashCache.getClassHash(className))
+					.append(';');
+		try {
+			return HashedRecordFile.hashBytes(buf.toString().getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static void addSignature(String signature,
+			SortedSet<String> classNameSet) {
+		if (signature.startsWith("(")) {
+			for (Type type : Type.getArgumentTypes(signature))
+				addType(type, classNameSet);
+			addType(Type.getReturnType(signature), classNameSet);
+		} else {
+			addType(Type.getType(signature), classNameSet);
+		}
+	}
+
+	private static void addType(Type type, SortedSet<String> classNameSet) {
+		if (type instanceof ArrayType)
+			type = ((ArrayType) type).getBasicType();
+		if (type instanceof ObjectType)
+			classNameSet.add(((ObjectType) type).getClassName());
+	}
+
+	private byte[] encode(ClassResult result) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(options);
+		out.writeLong(result.hierarchyHash);
+		out.writeLong(result.analysisNanos);
+		out.writeInt(result.consultedSummaryMap.size());
+		for (Map.Entry<String, ResourceSummary> e : result.consultedSummaryMap
+				.entrySet()) {
+			out.writeUTF(e.getKey());
+			ResourceSummaryStore.writeSummary(out, e.getValue());
+		}
+		out.writeInt(result.bugList.size());
+		for (CachedBug bug : result.bugList) {
+			out.writeUTF(bug.bugType);
+			out.writeByte(bug.priority);
+			out.writeUTF(bug.methodName);
+			out.writeUTF(bug.methodSig);
+			out.writeBoolean(bug.isStatic);
+			out.writeBoolean(bug.isSynthetic);
+			out.writeUTF(bug.leakClass);
+			out.writeBoolean(bug.methodLines != null);
+			if (bug.methodLines != null)
+				writeLines(out, bug.methodLines);
+			writeLines(out, bug.bugLines);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private ClassResult decode(long classHash, byte[] payload)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				payload));
+		if (in.readInt() != options)
+			throw new IOException("Recorded with different options");
+		ClassResult result = new ClassResult(classHash, in.readLong(), true);
+		result.analysisNanos = in.readLong();
+		int summaryCount = in.readInt();
+		for (int i = 0; i < summaryCount; ++i) {
+			String key = in.readUTF();
+			result.consultedSummaryMap.put(key,
+					ResourceSummaryStore.readSummary(in));
+		}
+		int bugCount = in.readInt();
+		for (int i = 0; i < bugCount; ++i) {
+			String bugType = in.readUTF();
+			int priority = in.readByte();
+			String methodName = in.readUTF();
+			String methodSig = in.readUTF();
+			boolean isStatic = in.readBoolean();
+			boolean isSynthetic = in.readBoolean();
+			String leakClass = in.readUTF();
+			int[] methodLines = in.readBoolean() ? readLines(in) : null;
+			int[] bugLines = readLines(in);
+			result.bugList.add(new CachedBug(bugType, priority, methodName,
+					methodSig, isStatic, isSynthetic, leakClass, methodLines,
+					bugLines));
+		}
+		return result;
+	}
+
+	private static void writeLines(DataOutputStream out, int[] lines)
+			throws IOException {
+		for (int line : lines)
+			out.writeInt(line);
+	}
+
+	private static int[] readLines(DataInputStream in) throws IOException {
+		int[] lines = new int[4];
+		for (int i = 0; i < lines.length; ++i)
+			lines[i] = in.readInt();
+		return lines;
+	}
+
+	@Override
+	public String toString() {
+		int missCount = lookupCount - hitCount;
+		int hitPercent = lookupCount == 0 ? 0 : hitCount * 100 / lookupCount;
+		return "ClassResultCache[" + recordFile + ", hits=" + hitCount
+				+ ", misses=" + missCount + " (" + hitPercent
+				+ "% hit rate), saved ~" + (savedNanos / 1000000) + " ms]";
+	}
+}
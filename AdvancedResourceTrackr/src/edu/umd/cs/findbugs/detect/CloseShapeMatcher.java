@@ -0,0 +1,230 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.bcel.generic.ALOAD;
+import org.apache.bcel.generic.ASTORE;
+import org.apache.bcel.generic.BranchInstruction;
+import org.apache.bcel.generic.CodeExceptionGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.IFNONNULL;
+import org.apache.bcel.generic.IFNULL;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.InstructionTargeter;
+import org.apache.bcel.generic.InvokeInstruction;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.StoreInstruction;
+
+import edu.umd.cs.findbugs.ba.AnalysisContext;
+import edu.umd.cs.findbugs.ba.AnalysisFeatures;
+import edu.umd.cs.findbugs.ba.BasicBlock;
+import edu.umd.cs.findbugs.ba.CFG;
+import edu.umd.cs.findbugs.ba.Edge;
+import edu.umd.cs.findbugs.ba.EdgeTypes;
+import edu.umd.cs.findbugs.ba.Location;
+
+/**
+ * Recognizes streams which the shape of the bytecode shows to be closed on
+ * every path, so that their dataflow analysis can be skipped. This covers
+ * the code javac and ECJ generate for try-with-resources, with the close
+ * calls inlined or made through $closeResource(), and try/finally blocks
+ * closing a local.
+ *
+ * A stream matches if it is stored into a local right after its creation,
+ * and every path from the creation to the exit of the CFG which
+ * ResourceValueAnalysis follows goes through a close of the local before
+ * anything else is stored into it: a close() call Stream.isStreamClose()
+ * accepts, a call whose summary says it closes the local, or the branch of
+ * an ifnull or ifnonnull on which the local is null. The dataflow analysis
+ * then sees an instance of the stream in the local at each of these, as
+ * ResourceValue.merge() keeps an instance merged with anything else, and can
+ * find the stream closed, escaped or nonexistent at exit, but never open.
+ *
+ * The matcher only reads the instruction list and the CFG, and builds no
+ * frames.
+ */
+public class CloseShapeMatcher {
+	/**
+	 * What a block does to the local holding the stream.
+	 */
+	private static final int KEEPS = 0;
+
+	private static final int CLOSES = 1;
+
+	private static final int OVERWRITES = 2;
+
+	private final ConstantPoolGen cpg;
+
+	private final CFG cfg;
+
+	private final LeakResourceTracker resourceTracker;
+
+	private final MethodSiteIndex siteIndex;
+
+	public CloseShapeMatcher(MethodGen methodGen, CFG cfg,
+			LeakResourceTracker resourceTracker, MethodSiteIndex siteIndex) {
+		this.cpg = methodGen.getConstantPool();
+		this.cfg = cfg;
+		this.resourceTracker = resourceTracker;
+		this.siteIndex = siteIndex;
+	}
+
+	/**
+	 * Determine if a stream is closed on every path from its creation to the
+	 * exit of the method.
+	 */
+	public boolean isClosedOnAllPaths(Stream stream) {
+		if (!stream.isOpenOnCreation() || stream.isUninteresting()
+				|| siteIndex.hasInlinedSubroutines())
+			return false;
+
+		Location creation = stream.getLocation();
+		InstructionHandle handle = creation.getHandle();
+		BasicBlock creationBlock = creation.getBasicBlock();
+		if (handle.getPosition() < 0
+				|| creationBlock.getLastInstruction() == handle
+				|| !(handle.getNext().getInstruction() instanceof ASTORE))
+			return false;
+		int local = ((ASTORE) handle.getNext().getInstruction()).getIndex();
+
+		boolean ignoreImplicitExceptions = stream.ignoreImplicitExceptions()
+				&& AnalysisContext.currentAnalysisContext().getBoolProperty(
+						AnalysisFeatures.ACCURATE_EXCEPTIONS);
+		BitSet visited = new BitSet();
+		visited.set(creationBlock.getLabel());
+		LinkedList<BasicBlock> worklist = new LinkedList<BasicBlock>();
+		worklist.add(creationBlock);
+		while (!worklist.isEmpty()) {
+			BasicBlock block = worklist.removeFirst();
+			int effect = getEffect(block, block == creationBlock ? handle
+					.getNext() : null, local, stream);
+			if (effect == OVERWRITES)
+				return false;
+			if (effect == CLOSES)
+				continue;
+
+			for (Iterator<Edge> i = cfg.outgoingEdgeIterator(block); i
+					.hasNext();) {
+				Edge edge = i.next();
+				if (edge.isExceptionEdge() && ignoreImplicitExceptions
+						&& !edge.isFlagSet(EdgeTypes.EXPLICIT_EXCEPTIONS_FLAG))
+					continue;
+				if (isNullBranch(edge, local))
+					continue;
+				BasicBlock target = edge.getTarget();
+				if (target == cfg.getExit())
+					return false;
+				if (!visited.get(target.getLabel())) {
+					visited.set(target.getLabel());
+					worklist.add(target);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Work out whether a block closes the local or stores into it first. The
+	 * close() call an exception thrower block stands for counts as made, as
+	 * in ResourceValueAnalysis.
+	 *
+	 * @param after
+	 *            the instruction after which to look, or null to look at the
+	 *            whole block
+	 * @return KEEPS, CLOSES or OVERWRITES
+	 */
+	private int getEffect(BasicBlock block, InstructionHandle after,
+			int local, Stream stream) {
+		if (block.isExceptionThrower())
+			return isClose(block.getExceptionThrower(), local, stream) ? CLOSES
+					: KEEPS;
+
+		boolean started = after == null;
+		for (Iterator<InstructionHandle> i = block.instructionIterator(); i
+				.hasNext();) {
+			InstructionHandle handle = i.next();
+			if (started) {
+				if (isClose(handle, local, stream))
+					return CLOSES;
+				if (stores(handle, local))
+					return OVERWRITES;
+			}
+			if (handle == after)
+				started = true;
+		}
+		return KEEPS;
+	}
+
+	/**
+	 * Determine if an instruction closes the local, loaded by the
+	 * instruction before it.
+	 */
+	private boolean isClose(InstructionHandle handle, int local, Stream stream) {
+		if (!(handle.getInstruction() instanceof InvokeInstruction)
+				|| !loads(handle.getPrev(), local) || isJumpTarget(handle))
+			return false;
+
+		int[] depths = siteIndex.getClosedArgumentDepths(handle);
+		if (depths != null) {
+			for (int depth : depths) {
+				if (depth == 0)
+					return true;
+			}
+		}
+		return siteIndex.is(handle, MethodSiteIndex.CLOSE_CANDIDATE)
+				&& resourceTracker.isStreamBaseClose(
+						(InvokeInstruction) handle.getInstruction(), cpg,
+						stream);
+	}
+
+	/**
+	 * Determine if an edge is the branch of a null check of the local on
+	 * which the local is null.
+	 */
+	private boolean isNullBranch(Edge edge, int local) {
+		BasicBlock source = edge.getSource();
+		InstructionHandle last = source.getLastInstruction();
+		if (last == null || last == source.getFirstInstruction()
+				|| !loads(last.getPrev(), local))
+			return false;
+		Instruction ins = last.getInstruction();
+		return ins instanceof IFNULL && edge.getType() == EdgeTypes.IFCMP_EDGE
+				|| ins instanceof IFNONNULL
+				&& edge.getType() == EdgeTypes.FALL_THROUGH_EDGE;
+	}
+
+	private boolean stores(InstructionHandle handle, int local) {
+		if (!(handle.getInstruction() instanceof StoreInstruction))
+			return false;
+		StoreInstruction store = (StoreInstruction) handle.getInstruction();
+		return store.getIndex() <= local
+				&& local < store.getIndex() + store.getType(cpg).getSize();
+	}
+
+	private static boolean loads(InstructionHandle handle, int local) {
+		return handle != null && handle.getInstruction() instanceof ALOAD
+				&& ((ALOAD) handle.getInstruction()).getIndex() == local;
+	}
+
+	/**
+	 * Determine if an instruction can be reached other than from the one
+	 * before it.
+	 */
+	private static boolean isJumpTarget(InstructionHandle handle) {
+		InstructionTargeter[] targeters = handle.getTargeters();
+		if (targeters == null)
+			return false;
+		for (InstructionTargeter targeter : targeters) {
+			if (targeter instanceof BranchInstruction)
+				return true;
+			if (targeter instanceof CodeExceptionGen
+					&& ((CodeExceptionGen) targeter).getHandlerPC() == handle)
+				return true;
+		}
+		return false;
+	}
+}
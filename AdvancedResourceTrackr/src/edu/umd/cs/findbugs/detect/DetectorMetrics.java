@@ -0,0 +1,303 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of what the detector did during a run, exported as
+ * JSON or Prometheus text at the end of the run.
+ *
+ * Recording is thread-safe and allocation-free. Callers check
+ * ResourceLeakDetector.METRICS before recording, or before calling
+ * System.nanoTime(), so that with metrics disabled the instrumentation
+ * compiles away.
+ */
+public class DetectorMetrics {
+	/**
+	 * Histogram with power-of-two buckets: bucket i counts the values v with
+	 * 2^(i-1) &lt;= v &lt; 2^i, bucket 0 the values below 1.
+	 */
+	public static class Histogram {
+		private static final int BUCKETS = 64;
+
+		final String name;
+
+		final String help;
+
+		/**
+		 * Factor converting recorded values to exported values, e.g.
+		 * nanoseconds to seconds.
+		 */
+		final double scale;
+
+		private final AtomicLongArray bucketCounts = new AtomicLongArray(
+				BUCKETS);
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong sum = new AtomicLong();
+
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram(String name, String help, double scale) {
+			this.name = name;
+			this.help = help;
+			this.scale = scale;
+		}
+
+		public void record(long value) {
+			if (value < 0)
+				value = 0;
+			bucketCounts.incrementAndGet(Math.min(BUCKETS - 1,
+					64 - Long.numberOfLeadingZeros(value)));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long m;
+			while (value > (m = max.get()) && !max.compareAndSet(m, value))
+				;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * Get the largest value counted in a bucket, in recorded units.
+		 */
+		static double getUpperBound(int bucket) {
+			return Math.pow(2, bucket) - 1;
+		}
+
+		/**
+		 * Get an approximation of a quantile: the upper bound of the bucket
+		 * containing it, capped by the maximum.
+		 */
+		long getQuantile(double q) {
+			long total = count.get();
+			if (total == 0)
+				return 0L;
+			long rank = (long) Math.ceil(q * total);
+			long seen = 0L;
+			for (int i = 0; i < BUCKETS; ++i) {
+				seen += bucketCounts.get(i);
+				if (seen >= rank)
+					return Math.min(max.get(), (long) getUpperBound(i));
+			}
+			return max.get();
+		}
+
+		int getHighestBucket() {
+			for (int i = BUCKETS - 1; i >= 0; --i)
+				if (bucketCounts.get(i) != 0)
+					return i;
+			return -1;
+		}
+	}
+
+	/**
+	 * A monotonic counter.
+	 */
+	public static class Counter {
+		final String name;
+
+		final String help;
+
+		private final AtomicLong value = new AtomicLong();
+
+		Counter(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public void add(long delta) {
+			value.addAndGet(delta);
+		}
+
+		public long get() {
+			return value.get();
+		}
+	}
+
+	private static final double NANOS = 1e-9;
+
+	private final List<Counter> counterList = new ArrayList<Counter>();
+
+	private final List<Histogram> histogramList = new ArrayList<Histogram>();
+
+	final Counter classesScreened = counter("classes_screened",
+			"Classes seen by the detector");
+
+	final Counter classesSkipped = counter("classes_skipped",
+			"Classes rejected by the class-name prescreen");
+
+	final Counter classesReplayed = counter("classes_replayed",
+			"Classes whose findings were replayed from the result cache");
+
+	final Counter methodsScreened = counter("methods_screened",
+			"Methods seen by the method-level prescreen");
+
+	final Counter methodsAnalyzed = counter("methods_analyzed",
+			"Methods whose streams were analyzed");
+
+	final Counter methodsDeduplicated = counter("methods_deduplicated",
+			"Methods whose outcome was reused from an earlier method with the same bytecode");
+
+	final Counter exceptionEdgesPruned = counter("exception_edges_pruned",
+			"Exception edges ignored by the dataflow analysis of a stream, "
+					+ "summed over streams");
+
+	final Counter streamsClosedByShape = counter("streams_closed_by_shape",
+			"Streams found closed on all paths by the shape of their bytecode, "
+					+ "without a dataflow analysis");
+
+	final Counter blocksOutsideSlices = counter("blocks_outside_slices",
+			"Blocks a dataflow analysis skipped as outside the slice of the CFG, "
+					+ "summed over streams");
+
+	/**
+	 * Methods whose MethodBudget ran out, indexed by the budget which did.
+	 */
+	final Counter[] budgetTrips = {
+			counter("budget_trips_cfg_blocks",
+					"Methods whose CFG had more blocks than fos.maxCfgBlocks"),
+			counter("budget_trips_resources",
+					"Methods creating more streams than fos.maxResources"),
+			counter("budget_trips_dataflow_iterations",
+					"Methods whose dataflow analyses ran more iterations than "
+							+ "fos.maxDataflowIterations"),
+			counter("budget_trips_time",
+					"Methods whose analysis took longer than fos.maxMethodMillis") };
+
+	final Counter methodsReleased = counter("methods_released",
+			"Methods whose analyses were dropped from the ClassContext as soon "
+					+ "as they were reported");
+
+	final Counter retainedBudgetFlushes = counter("retained_budget_flushes",
+			"Times the analyses of a class prepared so far were run early to "
+					+ "stay within fos.maxRetainedMB");
+
+	final Counter streamedBugs = counter("streamed_bugs",
+			"Bugs written to fos.streamFile");
+
+	final Histogram resourcesPerMethod = histogram("resources_per_method",
+			"Streams created in each method with a CFG", 1.0);
+
+	final Histogram dataflowIterations = histogram("dataflow_iterations",
+			"Iterations of each dataflow analysis run", 1.0);
+
+	final Histogram cfgBuildTime = histogram("cfg_build_seconds",
+			"Time to build the CFG of a method", NANOS);
+
+	final Histogram dataflowTime = histogram("dataflow_seconds",
+			"Time in the dataflow analyses of a method", NANOS);
+
+	final Histogram escapeTime = histogram("escape_seconds",
+			"Time in markTransitiveUninterestingStreamEscapes for a method",
+			NANOS);
+
+	final Histogram bugAccumulationTime = histogram(
+			"bug_accumulation_seconds",
+			"Time to accumulate and report the bugs of a method", NANOS);
+
+	final Histogram timeToFirstBug = histogram("time_to_first_bug_seconds",
+			"Time from the start of the run to the first bug streamed", NANOS);
+
+	final Histogram bugStreamQueuedChars = histogram(
+			"bug_stream_queued_chars",
+			"Characters of the records waiting for the bug stream writer, "
+					+ "as each record is queued", 1.0);
+
+	private Counter counter(String name, String help) {
+		Counter counter = new Counter(name, help);
+		counterList.add(counter);
+		return counter;
+	}
+
+	private Histogram histogram(String name, String help, double scale) {
+		Histogram histogram = new Histogram(name, help, scale);
+		histogramList.add(histogram);
+		return histogram;
+	}
+
+	/**
+	 * Write the metrics as a JSON object. Histograms give count, sum, max,
+	 * approximate quantiles and the non-empty buckets, in exported units.
+	 */
+	public void writeJSON(Writer out) throws IOException {
+		out.write("{\n  \"counters\": {");
+		for (int i = 0; i < counterList.size(); ++i) {
+			Counter counter = counterList.get(i);
+			out.write((i > 0 ? ",\n" : "\n") + "    \"" + counter.name + "\": "
+					+ counter.get());
+		}
+		out.write("\n  },\n  \"histograms\": {");
+		for (int i = 0; i < histogramList.size(); ++i) {
+			Histogram h = histogramList.get(i);
+			out.write((i > 0 ? ",\n" : "\n") + "    \"" + h.name + "\": {");
+			out.write("\"count\": " + h.getCount());
+			out.write(", \"sum\": " + format(h.sum.get() * h.scale));
+			out.write(", \"max\": " + format(h.max.get() * h.scale));
+			out.write(", \"p50\": " + format(h.getQuantile(0.5) * h.scale));
+			out.write(", \"p90\": " + format(h.getQuantile(0.9) * h.scale));
+			out.write(", \"p99\": " + format(h.getQuantile(0.99) * h.scale));
+			out.write(", \"buckets\": {");
+			boolean first = true;
+			for (int b = 0; b <= h.getHighestBucket(); ++b) {
+				long n = h.bucketCounts.get(b);
+				if (n == 0)
+					continue;
+				out.write((first ? "" : ", ") + "\"<="
+						+ format(Histogram.getUpperBound(b) * h.scale)
+						+ "\": " + n);
+				first = false;
+			}
+			out.write("}}");
+		}
+		out.write("\n  }\n}\n");
+		out.flush();
+	}
+
+	/**
+	 * Write the metrics in the Prometheus text exposition format, with the
+	 * prefix fos_.
+	 */
+	public void writePrometheus(Writer out) throws IOException {
+		for (Counter counter : counterList) {
+			String name = "fos_" + counter.name + "_total";
+			out.write("# HELP " + name + " " + counter.help + "\n");
+			out.write("# TYPE " + name + " counter\n");
+			out.write(name + " " + counter.get() + "\n");
+		}
+		for (Histogram h : histogramList) {
+			String name = "fos_" + h.name;
+			out.write("# HELP " + name + " " + h.help + "\n");
+			out.write("# TYPE " + name + " histogram\n");
+			long cumulative = 0L;
+			for (int b = 0; b <= h.getHighestBucket(); ++b) {
+				cumulative += h.bucketCounts.get(b);
+				out.write(name + "_bucket{le=\""
+						+ format(Histogram.getUpperBound(b) * h.scale)
+						+ "\"} " + cumulative + "\n");
+			}
+			out.write(name + "_bucket{le=\"+Inf\"} " + h.getCount() + "\n");
+			out.write(name + "_sum " + format(h.sum.get() * h.scale) + "\n");
+			out.write(name + "_count " + h.getCount() + "\n");
+		}
+		out.flush();
+	}
+
+	private static String format(double value) {
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+}
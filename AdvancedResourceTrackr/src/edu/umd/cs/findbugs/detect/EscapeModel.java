@@ -0,0 +1,421 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.InvokeInstruction;
+import org.apache.bcel.generic.ReferenceType;
+import org.apache.bcel.generic.Type;
+
+import edu.umd.cs.findbugs.ba.AnalysisContext;
+
+/**
+ * What library methods do with the resources passed to them, as receiver or
+ * as argument. Each rule gives a method, by class name, method name and
+ * signature (either may be "*" for any), the disposition of the receiver and
+ * that of the arguments:
+ * <ul>
+ * <li>borrow: the method uses the resource and leaves it to the caller, so
+ * it doesn't escape;</li>
+ * <li>consume: the method takes over the resource;</li>
+ * <li>close: the method closes the resource; an argument it closes is
+ * closed in the caller as by close(), while a receiver only escapes;</li>
+ * <li>escape: the method keeps the resource, or lets something else keep
+ * it;</li>
+ * <li>default: no rule; arguments, and the receiver of nothing, escape.</li>
+ * </ul>
+ * A resource which is consumed, closed or escapes is no longer the caller's
+ * to close. A rule naming the class is preferred over one for any class,
+ * and one with the signature over one for any signature.
+ *
+ * The rules are compiled to a binary file, escapeModel.bin next to
+ * findbugs.xml in the plugin, built from escapeModel.txt with
+ *
+ * <pre>
+ * java edu.umd.cs.findbugs.detect.EscapeModel escapeModel.txt escapeModel.bin
+ * </pre>
+ *
+ * Users can add rules, without rebuilding the plugin, in text or compiled
+ * files named by fos.escapeModel (separated by the path separator). In text
+ * form each line is a rule: class, method, signature, receiver and argument
+ * dispositions, separated by white space, with # starting a comment.
+ *
+ * The calls of a class are resolved against the rules once per
+ * constant-pool index (see Resolution), so checking a call needs no strings.
+ */
+public class EscapeModel {
+	public static final int DEFAULT = 0;
+
+	public static final int BORROW = 1;
+
+	public static final int CONSUME = 2;
+
+	public static final int CLOSE = 3;
+
+	public static final int ESCAPE = 4;
+
+	static final String[] DISPOSITION_NAMES = { "default", "borrow",
+			"consume", "close", "escape" };
+
+	/**
+	 * The plugin resource holding the compiled rules shipped with the
+	 * detector.
+	 */
+	static final String RESOURCE_NAME = "escapeModel.bin";
+
+	private static final int MAGIC = 0x4653454d;
+
+	private static final int VERSION = 1;
+
+	static final String ANY = "*";
+
+	/**
+	 * The rules used if the plugin resource can't be found: the special
+	 * cases the detector had before it had a model.
+	 */
+	private static final String DEFAULT_RULES = "java.util.Properties load * default borrow\n"
+			+ "java.util.Properties loadFromXml * default borrow\n"
+			+ "java.util.Properties store * default borrow\n"
+			+ "java.util.Properties save * default borrow\n"
+			+ "java.security.KeyStore load * default borrow\n"
+			+ "java.security.KeyStore store * default borrow\n"
+			+ "* getChannel ()Ljava/nio/channels/FileChannel; escape default\n";
+
+	/**
+	 * Set in a resolved entry of a Resolution.
+	 */
+	private static final int RESOLVED = 0x80;
+
+	/**
+	 * The calls of one constant pool, resolved against the rules.
+	 */
+	public final class Resolution {
+		/**
+		 * The rule of each constant-pool index, packed as by
+		 * lookup(), with RESOLVED set once it has been looked up.
+		 * Entries are written by whichever thread resolves them first;
+		 * a racing thread writes the same value.
+		 */
+		private final byte[] ruleByIndex;
+
+		Resolution(int size) {
+			ruleByIndex = new byte[size];
+		}
+
+		/**
+		 * Determine whether a resource passed to a call as the given
+		 * argument escapes the caller.
+		 *
+		 * @param instanceArgNum
+		 *            the argument holding the resource (0 is the receiver
+		 *            of an instance call)
+		 */
+		public boolean escapes(InvokeInstruction inv, int instanceArgNum,
+				ConstantPoolGen cpg) {
+			boolean isStatic = inv.getOpcode() == Constants.INVOKESTATIC;
+			int rule = getRule(inv, cpg);
+			int disposition = instanceArgNum == 0 && !isStatic ? rule & 0xf
+					: rule >>> 4 & 0x7;
+			if (disposition == DEFAULT)
+				return isStatic || instanceArgNum != 0;
+			return disposition != BORROW;
+		}
+
+		/**
+		 * Get the arguments of a call the rules say the called method
+		 * closes.
+		 *
+		 * @return a mask of argument numbers, not counting the receiver, as
+		 *         ResourceSummary.getClosedParameterMask()
+		 */
+		public long getClosedArgumentMask(InvokeInstruction inv,
+				ConstantPoolGen cpg) {
+			if ((getRule(inv, cpg) >>> 4 & 0x7) != CLOSE)
+				return 0L;
+			Type[] argumentTypes = inv.getArgumentTypes(cpg);
+			long closedMask = 0L;
+			for (int i = 0; i < argumentTypes.length && i < 64; ++i) {
+				if (argumentTypes[i] instanceof ReferenceType)
+					closedMask |= 1L << i;
+			}
+			return closedMask;
+		}
+
+		private int getRule(InvokeInstruction inv, ConstantPoolGen cpg) {
+			int index = inv.getIndex();
+			if (index >= ruleByIndex.length)
+				return lookup(inv.getClassName(cpg), inv.getMethodName(cpg),
+						inv.getSignature(cpg));
+			int rule = ruleByIndex[index];
+			if (rule == 0) {
+				rule = lookup(inv.getClassName(cpg), inv.getMethodName(cpg),
+						inv.getSignature(cpg))
+						| RESOLVED;
+				ruleByIndex[index] = (byte) rule;
+			}
+			return rule;
+		}
+	}
+
+	/**
+	 * Rules, packed as receiver | arguments << 4, by class name, method name
+	 * and signature, separated by spaces.
+	 */
+	private final Map<String, Integer> ruleMap = new HashMap<String, Integer>();
+
+	private final Map<ConstantPoolGen, Resolution> resolutionMap = new WeakHashMap<ConstantPoolGen, Resolution>();
+
+	/**
+	 * Load the rules shipped with the plugin, then those of the user files.
+	 *
+	 * @param fileNames
+	 *            the user files, separated by the path separator, or null for
+	 *            none
+	 */
+	public static EscapeModel load(String fileNames) {
+		EscapeModel model = new EscapeModel();
+		InputStream in = EscapeModel.class.getClassLoader()
+				.getResourceAsStream(RESOURCE_NAME);
+		try {
+			if (in != null)
+				model.read(in);
+		} catch (IOException e) {
+			AnalysisContext.logError("Could not read " + RESOURCE_NAME, e);
+		}
+		if (model.size() == 0) {
+			try {
+				model.readText(new BufferedReader(new StringReader(
+						DEFAULT_RULES)));
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+		}
+		if (fileNames != null) {
+			for (String fileName : fileNames.split(File.pathSeparator)) {
+				if (fileName.length() == 0)
+					continue;
+				try {
+					model.read(new FileInputStream(fileName));
+				} catch (IOException e) {
+					AnalysisContext.logError(
+							"Could not read escape model from " + fileName, e);
+				}
+			}
+		}
+		return model;
+	}
+
+	/**
+	 * Read rules, compiled or as text, and close the stream. Rules replace
+	 * earlier rules for the same method.
+	 */
+	public void read(InputStream in) throws IOException {
+		in = new BufferedInputStream(in);
+		try {
+			in.mark(4);
+			int magic = 0;
+			for (int i = 0; i < 4; ++i)
+				magic = magic << 8 | (in.read() & 0xff);
+			in.reset();
+			if (magic == MAGIC)
+				readCompiled(new DataInputStream(in));
+			else
+				readText(new BufferedReader(new InputStreamReader(in, "UTF-8")));
+		} finally {
+			in.close();
+		}
+	}
+
+	private void readCompiled(DataInputStream in) throws IOException {
+		in.readInt();
+		int version = in.readUnsignedShort();
+		if (version != VERSION)
+			throw new IOException("Unknown escape model version " + version);
+		String[] strings = new String[in.readUnsignedShort()];
+		for (int i = 0; i < strings.length; ++i)
+			strings[i] = in.readUTF();
+		int ruleCount = in.readInt();
+		for (int i = 0; i < ruleCount; ++i) {
+			String className = strings[in.readUnsignedShort()];
+			String methodName = strings[in.readUnsignedShort()];
+			String signature = strings[in.readUnsignedShort()];
+			int rule = in.readUnsignedByte();
+			if ((rule & 0xf) >= DISPOSITION_NAMES.length
+					|| rule >>> 4 >= DISPOSITION_NAMES.length)
+				throw new IOException("Bad rule for " + className + "."
+						+ methodName);
+			put(className, methodName, signature, rule);
+		}
+	}
+
+	private void readText(BufferedReader in) throws IOException {
+		String line;
+		int lineNumber = 0;
+		while ((line = in.readLine()) != null) {
+			++lineNumber;
+			int comment = line.indexOf('#');
+			if (comment >= 0)
+				line = line.substring(0, comment);
+			line = line.trim();
+			if (line.length() == 0)
+				continue;
+			String[] fields = line.split("\\s+");
+			if (fields.length != 5)
+				throw new IOException("Line " + lineNumber
+						+ ": expected class, method, signature, receiver and "
+						+ "arguments");
+			put(fields[0].replace('/', '.'), fields[1], fields[2],
+					parseDisposition(fields[3], lineNumber)
+							| parseDisposition(fields[4], lineNumber) << 4);
+		}
+	}
+
+	private static int parseDisposition(String name, int lineNumber)
+			throws IOException {
+		for (int i = 0; i < DISPOSITION_NAMES.length; ++i) {
+			if (DISPOSITION_NAMES[i].equals(name))
+				return i;
+		}
+		throw new IOException("Line " + lineNumber + ": unknown disposition "
+				+ name);
+	}
+
+	private synchronized void put(String className, String methodName,
+			String signature, int rule) {
+		ruleMap.put(className + " " + methodName + " " + signature,
+				Integer.valueOf(rule));
+		// Calls already resolved may have a different rule now
+		resolutionMap.clear();
+	}
+
+	/**
+	 * Write the rules in compiled form.
+	 */
+	public synchronized void write(DataOutputStream out) throws IOException {
+		Map<String, Integer> sortedMap = new TreeMap<String, Integer>(ruleMap);
+		Map<String, Integer> stringIndexMap = new HashMap<String, Integer>();
+		List<String> stringList = new ArrayList<String>();
+		for (String key : sortedMap.keySet()) {
+			for (String s : key.split(" ")) {
+				if (!stringIndexMap.containsKey(s)) {
+					stringIndexMap.put(s, Integer.valueOf(stringList.size()));
+					stringList.add(s);
+				}
+			}
+		}
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeShort(stringList.size());
+		for (String s : stringList)
+			out.writeUTF(s);
+		out.writeInt(sortedMap.size());
+		for (Map.Entry<String, Integer> e : sortedMap.entrySet()) {
+			for (String s : e.getKey().split(" "))
+				out.writeShort(stringIndexMap.get(s).intValue());
+			out.writeByte(e.getValue().intValue());
+		}
+		out.flush();
+	}
+
+	/**
+	 * Get the rule for a method, packed as receiver | arguments << 4, or 0 if
+	 * there is none.
+	 *
+	 * @param className
+	 *            the class name, in dotted form
+	 */
+	public synchronized int lookup(String className, String methodName,
+			String signature) {
+		Integer rule = ruleMap.get(className + " " + methodName + " "
+				+ signature);
+		if (rule == null)
+			rule = ruleMap.get(className + " " + methodName + " " + ANY);
+		if (rule == null)
+			rule = ruleMap.get(ANY + " " + methodName + " " + signature);
+		if (rule == null)
+			rule = ruleMap.get(ANY + " " + methodName + " " + ANY);
+		return rule != null ? rule.intValue() : 0;
+	}
+
+	/**
+	 * Get the resolution of the calls of a constant pool, shared by all
+	 * methods using it.
+	 */
+	public synchronized Resolution resolve(ConstantPoolGen cpg) {
+		Resolution resolution = resolutionMap.get(cpg);
+		if (resolution == null) {
+			resolution = new Resolution(cpg.getSize());
+			resolutionMap.put(cpg, resolution);
+		}
+		return resolution;
+	}
+
+	public synchronized int size() {
+		return ruleMap.size();
+	}
+
+	/**
+	 * Get a hash of the rules, for the caches whose contents depend on them.
+	 */
+	public synchronized long getFingerprint() {
+		long hash = 1125899906842597L;
+		for (Map.Entry<String, Integer> e : new TreeMap<String, Integer>(
+				ruleMap).entrySet()) {
+			String key = e.getKey();
+			for (int i = 0; i < key.length(); ++i)
+				hash = 31 * hash + key.charAt(i);
+			hash = 31 * hash + e.getValue().intValue();
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return "EscapeModel[" + size() + " rules]";
+	}
+
+	/**
+	 * Compile text rule files into one binary file.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: " + EscapeModel.class.getName()
+					+ " source... output");
+			System.exit(1);
+		}
+		EscapeModel model = new EscapeModel();
+		for (int i = 0; i < args.length - 1; ++i)
+			model.read(new FileInputStream(args[i]));
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(
+				args[args.length - 1]));
+		try {
+			model.write(out);
+		} finally {
+			out.close();
+		}
+		EscapeModel check = new EscapeModel();
+		check.read(new FileInputStream(args[args.length - 1]));
+		if (check.getFingerprint() != model.getFingerprint())
+			throw new IOException("Compiled rules don't read back the same");
+		System.out.println("Compiled " + model.size() + " rules to "
+				+ args[args.length - 1]);
+	}
+}
@@ -0,0 +1,283 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.bcel.Constants;
+
+/**
+ * Runs ResourceLeakDetector on its own, without the rest of FindBugs, for
+ * quick checks of class files, directories and jars. A FindBugs run parses
+ * every application class before any detector sees one; this runner instead
+ * reads the class files through memory-mapped buffers (MappedClassFiles)
+ * and scans the bytes of their constant pools, on several threads, for
+ * calls to classes named like resources, as the class prescreen of the
+ * detector does. Only the classes which pass are parsed and analyzed, with
+ * the dataflow analyses of their methods spread over the same number of
+ * threads (fos.threads).
+ *
+ * Bugs are written as one JSON record per line, as StreamingBugWriter
+ * writes them, in the order of their classes in the input, as
+ * ShardedScanRunner writes them. A summary record follows, with the number
+ * of classes and bytes scanned per second. Its "threads" are those the
+ * analysis ran on, which fos.threads sets if given, and "scanThreads"
+ * those of the scan.
+ *
+ * Usage, with FindBugs and the detector on the classpath:
+ *
+ * <pre>
+ * java edu.umd.cs.findbugs.detect.FastScanRunner [-threads n]
+ *     [-auxclasspath path] [-out file] path...
+ * </pre>
+ */
+public class FastScanRunner {
+	/**
+	 * The outcome of scanning some of the class files.
+	 */
+	private static class ScanResult {
+		final List<String> candidateList = new ArrayList<String>();
+
+		final List<String> errorList = new ArrayList<String>();
+
+		long byteCount;
+	}
+
+	private final List<String> pathList;
+
+	private final List<String> auxClasspath;
+
+	private final int threads;
+
+	private int classCount;
+
+	private long byteCount;
+
+	private long findNanos;
+
+	private long scanNanos;
+
+	private long analysisNanos;
+
+	public FastScanRunner(List<String> pathList, List<String> auxClasspath,
+			int threads) {
+		this.pathList = pathList;
+		this.auxClasspath = auxClasspath;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Scan and analyze the classes.
+	 *
+	 * @param out
+	 *            where to write one JSON record per bug, then a summary
+	 *            record
+	 * @return the number of bugs
+	 */
+	public int run(Writer out) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		List<MappedClassFiles.Entry> entryList = new ArrayList<MappedClassFiles.Entry>();
+		for (String path : pathList)
+			MappedClassFiles.find(new File(path), entryList);
+		classCount = entryList.size();
+		findNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		ScanResult scanResult = scan(entryList);
+		byteCount = scanResult.byteCount;
+		scanNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		ResourceLeakDaemon.ResultReporter reporter = new ResourceLeakDaemon.ResultReporter();
+		reporter.errorList.addAll(scanResult.errorList);
+		int analyzedCount = 0;
+		if (!scanResult.candidateList.isEmpty())
+			analyzedCount = ResourceLeakDaemon.analyzeClasses(pathList,
+					auxClasspath,
+					new HashSet<String>(scanResult.candidateList), false,
+					reporter);
+		analysisNanos = System.nanoTime() - start;
+
+		// In the order of the classes in the input, as ShardedScanRunner
+		// writes them
+		Map<String, Integer> indexMap = new HashMap<String, Integer>();
+		for (String className : scanResult.candidateList)
+			indexMap.put(className, Integer.valueOf(indexMap.size()));
+		ShardedScanRunner.sortByClassIndex(reporter.bugList, indexMap);
+		ResourceLeakDaemon.writeBugs(reporter, out);
+		long nanos = findNanos + scanNanos + analysisNanos;
+		out.write("{\"done\":true,\"classes\":" + classCount + ",\"bytes\":"
+				+ byteCount + ",\"candidates\":"
+				+ scanResult.candidateList.size() + ",\"analyzed\":"
+				+ analyzedCount + ",\"bugs\":" + reporter.bugList.size()
+				+ ",\"threads\":" + ResourceLeakDetector.ANALYSIS_THREADS
+				+ ",\"scanThreads\":" + threads + ",\"findMillis\":"
+				+ findNanos / 1000000 + ",\"scanMillis\":" + scanNanos
+				/ 1000000 + ",\"analysisMillis\":" + analysisNanos / 1000000
+				+ ",\"classesPerSecond\":"
+				+ Math.round(perSecond(classCount, nanos) * 10) / 10.0
+				+ ",\"bytesPerSecond\":" + (long) perSecond(byteCount, nanos)
+				+ ",\"scanBytesPerSecond\":"
+				+ (long) perSecond(byteCount, scanNanos)
+				+ ",\"missingClasses\":" + reporter.missingClassSet.size()
+				+ ",\"errors\":" + ResourceLeakDaemon.toJSON(reporter.errorList)
+				+ "}\n");
+		out.flush();
+		return reporter.bugList.size();
+	}
+
+	/**
+	 * Scan the constant pools of the class files on the threads of the
+	 * runner, each taking a contiguous run of them.
+	 */
+	private ScanResult scan(final List<MappedClassFiles.Entry> entryList)
+			throws InterruptedException {
+		ScanResult result = new ScanResult();
+		if (entryList.isEmpty())
+			return result;
+		int chunkCount = Math.min(entryList.size(), threads * 4);
+		List<Callable<ScanResult>> taskList = new ArrayList<Callable<ScanResult>>();
+		for (int i = 0; i < chunkCount; ++i) {
+			final int from = (int) ((long) entryList.size() * i / chunkCount);
+			final int to = (int) ((long) entryList.size() * (i + 1) / chunkCount);
+			taskList.add(new Callable<ScanResult>() {
+				public ScanResult call() {
+					return scanEntries(entryList.subList(from, to));
+				}
+			});
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			// Merged in order, so the candidates are in the order of the
+			// class files
+			for (Future<ScanResult> future : pool.invokeAll(taskList)) {
+				ScanResult chunkResult;
+				try {
+					chunkResult = future.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					throw new IllegalStateException(cause);
+				}
+				result.candidateList.addAll(chunkResult.candidateList);
+				result.errorList.addAll(chunkResult.errorList);
+				result.byteCount += chunkResult.byteCount;
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return result;
+	}
+
+	private static ScanResult scanEntries(
+			List<MappedClassFiles.Entry> entryList) {
+		ScanResult result = new ScanResult();
+		for (MappedClassFiles.Entry entry : entryList) {
+			try {
+				ByteBuffer buf = entry.getBytes();
+				result.byteCount += entry.getSize();
+				if (!ResourceLeakDetector.referencesResourceClass(buf))
+					continue;
+				String className = entry.resourceName != null ? entry.resourceName
+						.substring(0, entry.resourceName.length() - 6)
+						: getClassName(buf);
+				if (className != null)
+					result.candidateList.add(className.replace('/', '.'));
+				else
+					result.errorList.add("Not a class file: " + entry);
+			} catch (IOException e) {
+				result.errorList.add("Could not read " + entry + ": " + e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the name of the class of a class file, with slashes, or null if it
+	 * can't be decoded.
+	 */
+	static String getClassName(ByteBuffer classFile) throws IOException {
+		ByteBuffer buf = classFile.duplicate().order(ByteOrder.BIG_ENDIAN);
+		try {
+			int[] offset = ResourceLeakDetector.findConstants(buf);
+			if (offset == null)
+				return null;
+			int count = offset.length - 1;
+			int classIndex = buf.getShort(offset[count] + 2) & 0xffff;
+			if (classIndex >= count
+					|| buf.get(offset[classIndex]) != Constants.CONSTANT_Class)
+				return null;
+			int nameIndex = buf.getShort(offset[classIndex] + 1) & 0xffff;
+			if (nameIndex >= count
+					|| buf.get(offset[nameIndex]) != Constants.CONSTANT_Utf8)
+				return null;
+			byte[] name = new byte[buf.getShort(offset[nameIndex] + 1) & 0xffff];
+			buf.position(offset[nameIndex] + 3);
+			buf.get(name);
+			return new String(name, "UTF-8");
+		} catch (IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+	private static double perSecond(long count, long nanos) {
+		return nanos > 0 ? count * 1e9 / nanos : 0.0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		String outFile = null;
+		List<String> auxClasspath = new ArrayList<String>();
+		List<String> pathList = new ArrayList<String>();
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.equals("-threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (arg.equals("-auxclasspath"))
+				auxClasspath.addAll(Arrays.asList(args[++i]
+						.split(File.pathSeparator)));
+			else if (arg.equals("-out"))
+				outFile = args[++i];
+			else if (arg.startsWith("-"))
+				throw new IllegalArgumentException("Unknown option " + arg);
+			else
+				pathList.add(arg);
+		}
+
+		// Before ResourceLeakDetector is loaded, as it reads fos.threads once
+		if (System.getProperty("fos.threads") == null)
+			System.setProperty("fos.threads", Integer.toString(threads));
+
+		Writer out = new OutputStreamWriter(outFile != null ? new FileOutputStream(
+				outFile) : System.out, "UTF-8");
+		try {
+			new FastScanRunner(pathList, auxClasspath, threads).run(out);
+		} finally {
+			if (outFile != null)
+				out.close();
+		}
+		// Save the caches of the detector and print its statistics, as at
+		// the end of a FindBugs run
+		ResourceLeakDetector.reportRun();
+	}
+}
@@ -0,0 +1,213 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * File of opaque records keyed by a 64-bit hash, typically of a class file.
+ *
+ * The file is memory-mapped when opened and only the index (hash to record
+ * offset) is read up front; record payloads are copied out when asked for.
+ * Records added during the run are kept in memory until save() writes old and
+ * new records to a new file, which is then moved into place.
+ *
+ * File layout: magic, version and record count (ints), then per record the
+ * key (long), the payload length (int) and the payload.
+ */
+public class HashedRecordFile {
+	private final File file;
+
+	private final int magic;
+
+	private final int version;
+
+	private MappedByteBuffer buffer;
+
+	/**
+	 * Payload offset and length of each record in the mapped file.
+	 */
+	private final Map<Long, int[]> recordIndex = new HashMap<Long, int[]>();
+
+	/**
+	 * Records added during this run.
+	 */
+	private final Map<Long, byte[]> addedMap = new LinkedHashMap<Long, byte[]>();
+
+	/**
+	 * Open a record file. If the file doesn't exist, or isn't a record file
+	 * with the given magic number and version, it starts out empty.
+	 */
+	public HashedRecordFile(File file, int magic, int version) {
+		this.file = file;
+		this.magic = magic;
+		this.version = version;
+		try {
+			load();
+		} catch (IOException e) {
+			if (ResourceLeakDetector.DEBUG)
+				System.out.println("Can't read " + file + ": " + e);
+			buffer = null;
+			recordIndex.clear();
+		}
+	}
+
+	private void load() throws IOException {
+		if (!file.isFile())
+			return;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			raf.close();
+		}
+
+		if (buffer.remaining() < 12 || buffer.getInt() != magic
+				|| buffer.getInt() != version)
+			throw new IOException("Wrong file type or version");
+		int count = buffer.getInt();
+		for (int i = 0; i < count; ++i) {
+			long key = buffer.getLong();
+			int length = buffer.getInt();
+			if (length < 0 || length > buffer.remaining())
+				throw new IOException("Truncated file");
+			recordIndex.put(Long.valueOf(key), new int[] { buffer.position(),
+					length });
+			buffer.position(buffer.position() + length);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the payload of the record with given key.
+	 *
+	 * @return the payload, or null if there is no such record
+	 */
+	public synchronized byte[] get(long key) {
+		Long k = Long.valueOf(key);
+		byte[] payload = addedMap.get(k);
+		if (payload != null)
+			return payload;
+		int[] location = recordIndex.get(k);
+		if (location == null)
+			return null;
+		return readPayload(location);
+	}
+
+	/**
+	 * Add or replace the record with given key.
+	 */
+	public synchronized void put(long key, byte[] payload) {
+		addedMap.put(Long.valueOf(key), payload);
+	}
+
+	public synchronized int size() {
+		int size = recordIndex.size();
+		for (Long key : addedMap.keySet())
+			if (!recordIndex.containsKey(key))
+				++size;
+		return size;
+	}
+
+	/**
+	 * Write all records, old and new, back to the file, if any were added.
+	 */
+	public synchronized void save() throws IOException {
+		if (addedMap.isEmpty())
+			return;
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+		try {
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.writeInt(size());
+			for (Map.Entry<Long, int[]> e : recordIndex.entrySet()) {
+				if (!addedMap.containsKey(e.getKey()))
+					writeRecord(out, e.getKey(), readPayload(e.getValue()));
+			}
+			for (Map.Entry<Long, byte[]> e : addedMap.entrySet())
+				writeRecord(out, e.getKey(), e.getValue());
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Add the records of other record files of the same kind to a record
+	 * file, replacing those with the same keys, and save it. Files which
+	 * don't exist or are of another kind add nothing.
+	 */
+	static void merge(File file, List<File> partList, int magic, int version)
+			throws IOException {
+		HashedRecordFile target = new HashedRecordFile(file, magic, version);
+		for (File partFile : partList) {
+			HashedRecordFile part = new HashedRecordFile(partFile, magic,
+					version);
+			for (Long key : part.recordIndex.keySet()) {
+				byte[] payload = part.get(key.longValue());
+				if (!Arrays.equals(payload, target.get(key.longValue())))
+					target.put(key.longValue(), payload);
+			}
+		}
+		target.save();
+	}
+
+	private static void writeRecord(DataOutputStream out, Long key,
+			byte[] payload) throws IOException {
+		out.writeLong(key.longValue());
+		out.writeInt(payload.length);
+		out.write(payload);
+	}
+
+	private byte[] readPayload(int[] location) {
+		ByteBuffer record = buffer.duplicate();
+		record.position(location[0]);
+		byte[] payload = new byte[location[1]];
+		record.get(payload);
+		return payload;
+	}
+
+	/**
+	 * Hash the bytes of a class file.
+	 */
+	public static long hashBytes(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+			long hash = 0L;
+			for (int i = 0; i < 8; ++i)
+				hash = (hash << 8) | (digest[i] & 0xff);
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return file + " (" + size() + " records)";
+	}
+}
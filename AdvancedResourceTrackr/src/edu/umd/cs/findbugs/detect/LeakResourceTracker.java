@@ -1,9 +1,13 @@
 package edu.umd.cs.findbugs.detect;
 
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
@@ -29,7 +33,8 @@ import edu.umd.cs.findbugs.ba.ResourceValueFrameModelingVisitor;
 
 public class LeakResourceTracker implements ResourceTracker<Stream> {
 	private ResourceCollection<Stream> resourceCollection;
-	private ObjectType[] resourceObjectTypes;
+	private ResourceSubtypeCache subtypeCache;
+	private ResourceSummaryDatabase summaryDatabase;
 	private RepositoryLookupFailureCallback lookupFailureCallback;
 	static final boolean DEBUG = SystemProperties.getBoolean("fos.debug");
 
@@ -51,6 +56,12 @@ public class LeakResourceTracker implements ResourceTracker<Stream> {
 	 */
 	private TreeSet<StreamEscape> streamEscapeSet;
 
+	/**
+	 * The stream escapes of streamEscapeSet, by source stream, so that
+	 * propagation only looks at the escapes of the streams it reaches.
+	 */
+	private Map<Stream, List<StreamEscape>> escapesBySource;
+
 	/**
 	 * Map of individual streams to equivalence classes. Any time a stream "A"
 	 * is wrapped with a stream "B", "A" and "B" belong to the same equivalence
@@ -59,6 +70,28 @@ public class LeakResourceTracker implements ResourceTracker<Stream> {
 	 */
 	private Map<Stream, StreamEquivalenceClass> streamEquivalenceMap;
 
+	/**
+	 * Summaries of called methods, by constant pool index of the method
+	 * reference.
+	 */
+	private Map<Integer, ResourceSummary> calleeSummaryMap;
+
+	/**
+	 * Summaries of called methods, by class name, method name and signature.
+	 */
+	private Map<String, ResourceSummary> consultedSummaryMap;
+
+	/**
+	 * Classification of the instructions of the method, once its streams are
+	 * known.
+	 */
+	private MethodSiteIndex siteIndex;
+
+	/**
+	 * Keys (MethodSiteIndex.getEscapeKey()) of the stream escapes recorded.
+	 */
+	private final BitSet escapeKeySet = new BitSet();
+
 	public void addStreamOpenLocation(Location streamOpenLocation, Stream stream) {
 		if (LeakResourceTracker.DEBUG)
 			System.out.println("Stream open location at " + streamOpenLocation);
@@ -76,21 +109,120 @@ public class LeakResourceTracker implements ResourceTracker<Stream> {
 	 *            the target Location (where the stream escapes)
 	 */
 	public void addStreamEscape(Stream source, Location target) {
+		if (siteIndex != null) {
+			// Escapes to anything but a stream open location are thrown away
+			// by markTransitiveUninterestingStreamEscapes(), and each escape
+			// is seen again on every dataflow iteration: only record the
+			// first sighting of escapes which might be kept.
+			if (!siteIndex.is(target.getHandle(), MethodSiteIndex.CREATION
+					| MethodSiteIndex.OPEN_CANDIDATE))
+				return;
+			int key = siteIndex.getEscapeKey(source, target);
+			if (key >= 0) {
+				if (escapeKeySet.get(key))
+					return;
+				escapeKeySet.set(key);
+			}
+		}
+
 		StreamEscape streamEscape = new StreamEscape(source, target);
-		streamEscapeSet.add(streamEscape);
+		if (streamEscapeSet.add(streamEscape))
+			addToEscapesBySource(streamEscape);
 		if (LeakResourceTracker.DEBUG)
 			System.out
 					.println("Adding potential stream escape " + streamEscape);
 	}
 
-	public LeakResourceTracker(ObjectType[] resourceObjectTypes,
+	/**
+	 * Get the Locations into which uninteresting streams escape, following
+	 * the escapes recorded so far from the uninteresting stream open
+	 * locations, as markTransitiveUninterestingStreamEscapes() does.
+	 */
+	public Set<Location> getUninterestingEscapeTargets() {
+		Set<Location> targetSet = new HashSet<Location>();
+		Set<Stream> seenSet = new HashSet<Stream>(uninterestingStreamEscapeSet);
+		LinkedList<Stream> worklist = new LinkedList<Stream>(seenSet);
+		while (!worklist.isEmpty()) {
+			List<StreamEscape> escapeList = escapesBySource.get(worklist
+					.removeFirst());
+			if (escapeList == null)
+				continue;
+			for (StreamEscape streamEscape : escapeList) {
+				if (!targetSet.add(streamEscape.target))
+					continue;
+				Stream target = streamOpenLocationMap.get(streamEscape.target);
+				if (target != null && seenSet.add(target))
+					worklist.addLast(target);
+			}
+		}
+		return targetSet;
+	}
+
+	private void addToEscapesBySource(StreamEscape streamEscape) {
+		List<StreamEscape> escapeList = escapesBySource
+				.get(streamEscape.source);
+		if (escapeList == null) {
+			escapeList = new ArrayList<StreamEscape>();
+			escapesBySource.put(streamEscape.source, escapeList);
+		}
+		escapeList.add(streamEscape);
+	}
+
+	public LeakResourceTracker(ResourceSubtypeCache subtypeCache,
+			ResourceSummaryDatabase summaryDatabase,
 			RepositoryLookupFailureCallback lookupFailureCallback) {
-		this.resourceObjectTypes = resourceObjectTypes;
+		this.subtypeCache = subtypeCache;
+		this.summaryDatabase = summaryDatabase;
 		this.lookupFailureCallback = lookupFailureCallback;
 		this.streamOpenLocationMap = new HashMap<Location, Stream>();
 		this.uninterestingStreamEscapeSet = new HashSet<Stream>();
 		this.streamEscapeSet = new TreeSet<StreamEscape>();
+		this.escapesBySource = new HashMap<Stream, List<StreamEscape>>();
 		this.streamEquivalenceMap = new HashMap<Stream, StreamEquivalenceClass>();
+		this.calleeSummaryMap = new HashMap<Integer, ResourceSummary>();
+		this.consultedSummaryMap = new HashMap<String, ResourceSummary>();
+	}
+
+	/**
+	 * Get the summary of the method called by an invoke instruction.
+	 * 
+	 * @return the summary, or ResourceSummary.UNKNOWN
+	 */
+	public ResourceSummary getCalleeSummary(InvokeInstruction inv,
+			ConstantPoolGen cpg) {
+		if (summaryDatabase == null)
+			return ResourceSummary.UNKNOWN;
+		Integer index = Integer.valueOf(inv.getIndex());
+		ResourceSummary summary = calleeSummaryMap.get(index);
+		if (summary == null) {
+			summary = summaryDatabase.getSummary(inv, cpg);
+			calleeSummaryMap.put(index, summary);
+			consultedSummaryMap.put(inv.getClassName(cpg) + "."
+					+ inv.getMethodName(cpg) + inv.getSignature(cpg), summary);
+		}
+		return summary;
+	}
+
+	/**
+	 * Get the arguments the method called by an invoke instruction closes,
+	 * according to its summary or to the escape model.
+	 * 
+	 * @return a mask of argument numbers, as
+	 *         ResourceSummary.getClosedParameterMask()
+	 */
+	public long getClosedParameterMask(InvokeInstruction inv,
+			ConstantPoolGen cpg) {
+		return getCalleeSummary(inv, cpg).getClosedParameterMask()
+				| ResourceLeakDetector.escapeModel.resolve(cpg)
+						.getClosedArgumentMask(inv, cpg);
+	}
+
+	/**
+	 * Get the summaries of all methods getCalleeSummary() was asked about,
+	 * keyed by class name, "." and method name and signature.
+	 */
+	public Map<String, ResourceSummary> getConsultedSummaryMap() {
+		return consultedSummaryMap;
 	}
 
 	@Override
@@ -98,9 +230,14 @@ public class LeakResourceTracker implements ResourceTracker<Stream> {
 			InstructionHandle paramInstructionHandle,
 			ConstantPoolGen paramConstantPoolGen)
 			throws DataflowAnalysisException {
-		if (resourceCollection != null)
-			return resourceCollection.getCreatedResource(new Location(
+		if (resourceCollection != null) {
+			if (siteIndex != null
+					&& !siteIndex.is(paramInstructionHandle,
+							MethodSiteIndex.CREATION))
+				return null;
+			return resourceCollection.getCreatedResource(getLocation(
 					paramInstructionHandle, paramBasicBlock));
+		}
 		
 
 		Instruction ins = paramInstructionHandle.getInstruction();
@@ -108,34 +245,36 @@ public class LeakResourceTracker implements ResourceTracker<Stream> {
 		if (!(ins instanceof InvokeInstruction))
 			return null;
 
-		Type returnType = ((InvokeInstruction) ins)
-				.getReturnType(paramConstantPoolGen);
+		InvokeInstruction inv = (InvokeInstruction) ins;
+		Type returnType = inv.getReturnType(paramConstantPoolGen);
 		
 		if (!(returnType instanceof ObjectType))
 			return null;
 
-		Location location = new Location(paramInstructionHandle,
-				paramBasicBlock);
+		ObjectType resourceType = subtypeCache.getResourceBase(
+				(ObjectType) returnType, lookupFailureCallback);
+		if (resourceType == null)
+			return null;
 
-		for (ObjectType resourceType : resourceObjectTypes) {
-			try {
-				if (Hierarchy.isSubtype((ObjectType) returnType, resourceType)) {
-					return new Stream(location, resourceType.getClassName(),
-							resourceType.getClassName())
-							.setIgnoreImplicitExceptions(true)
-							.setIsOpenOnCreation(true).setInteresting("RESOURCE_LEAK");
-				}
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
-			}
-		}
+		// If we know the callee never returns a new resource, believe it
+		// rather than the declared return type
+		ResourceSummary summary = getCalleeSummary(inv, paramConstantPoolGen);
+		if (summary.isKnown() && !summary.mayReturnNewResource())
+			return null;
 
-		return null;
+		Location location = new Location(paramInstructionHandle,
+				paramBasicBlock);
+		return new Stream(location, resourceType.getClassName(),
+				resourceType.getClassName()).setIgnoreImplicitExceptions(true)
+				.setIsOpenOnCreation(true).setInteresting("RESOURCE_LEAK");
 	}
 
 	public boolean isResourceOpen(BasicBlock basicBlock,
 			InstructionHandle handle, ConstantPoolGen cpg, Stream resource,
 			ResourceValueFrame frame) {
+		if (siteIndex != null
+				&& !siteIndex.is(handle, MethodSiteIndex.OPEN_CANDIDATE))
+			return false;
 		return resource.isStreamOpen(basicBlock, handle, cpg, frame);
 	}
 
@@ -145,9 +284,92 @@ public class LeakResourceTracker implements ResourceTracker<Stream> {
 			ConstantPoolGen paramConstantPoolGen, Stream paramResource,
 			ResourceValueFrame paramResourceValueFrame)
 			throws DataflowAnalysisException {
-		return paramResource.isStreamClose(paramBasicBlock,
-				paramInstructionHandle, paramConstantPoolGen,
-				paramResourceValueFrame, lookupFailureCallback);
+		if (closesInstanceArgument(paramInstructionHandle,
+				paramConstantPoolGen, paramResourceValueFrame))
+			return true;
+		if (!isCloseCandidate(paramBasicBlock, paramInstructionHandle,
+				paramConstantPoolGen))
+			return false;
+		synchronized (ResourceSubtypeCache.HIERARCHY_LOCK) {
+			return paramResource.isStreamClose(paramBasicBlock,
+					paramInstructionHandle, paramConstantPoolGen,
+					paramResourceValueFrame, lookupFailureCallback);
+		}
+	}
+
+	/**
+	 * Determine if an instruction is a call to a method which closes one of
+	 * its parameters, passing an instance of the resource as that parameter.
+	 */
+	private boolean closesInstanceArgument(InstructionHandle handle,
+			ConstantPoolGen cpg, ResourceValueFrame frame) {
+		if (siteIndex != null) {
+			int[] depths = siteIndex.getClosedArgumentDepths(handle);
+			if (depths == null || !frame.isValid())
+				return false;
+			for (int depth : depths) {
+				if (frame.getValue(frame.getNumSlots() - 1 - depth)
+						.isInstance())
+					return true;
+			}
+			return false;
+		}
+
+		Instruction ins = handle.getInstruction();
+		if (!(ins instanceof InvokeInstruction) || !frame.isValid())
+			return false;
+		InvokeInstruction inv = (InvokeInstruction) ins;
+		long closedMask = getClosedParameterMask(inv, cpg);
+		if (closedMask == 0L)
+			return false;
+
+		Type[] argumentTypes = inv.getArgumentTypes(cpg);
+		for (long m = closedMask; m != 0L; m &= m - 1) {
+			int argument = Long.numberOfTrailingZeros(m);
+			if (argument >= argumentTypes.length)
+				continue;
+			int slot = frame.getNumSlots() - 1
+					- ResourceSummary.getArgumentDepth(argumentTypes, argument);
+			if (frame.getValue(slot).isInstance())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine if a close() call, already known to be made on an instance of
+	 * the given stream, closes that stream. This is the part of
+	 * Stream.isStreamClose() which does not need a ResourceValueFrame.
+	 * 
+	 * @param inv
+	 *            the close() call
+	 * @param cpg
+	 *            the ConstantPoolGen of the method
+	 * @param stream
+	 *            the stream
+	 */
+	public boolean isStreamBaseClose(InvokeInstruction inv,
+			ConstantPoolGen cpg, Stream stream) {
+		try {
+			String classClosed = inv.getClassName(cpg);
+			// The base of a stream is normally a registered resource base, so
+			// the first test is a bit test of the bitmask of classClosed
+			int baseId = subtypeCache.getRegistry().getId(
+					stream.getStreamBase());
+			if (baseId >= 0
+					&& subtypeCache.isSubtype(classClosed, baseId,
+							lookupFailureCallback))
+				return true;
+			synchronized (ResourceSubtypeCache.HIERARCHY_LOCK) {
+				return (baseId < 0 && Hierarchy.isSubtype(classClosed,
+						stream.getStreamBase()))
+						|| Hierarchy.isSubtype(stream.getStreamBase(),
+								classClosed);
+			}
+		} catch (ClassNotFoundException e) {
+			lookupFailureCallback.reportMissingClass(e);
+			return false;
+		}
 	}
 
 	@Override
@@ -155,10 +377,20 @@ public class LeakResourceTracker implements ResourceTracker<Stream> {
 			InstructionHandle paramInstructionHandle,
 			ConstantPoolGen paramConstantPoolGen)
 			throws DataflowAnalysisException {
-		return Stream.mightCloseStream(paramBasicBlock, paramInstructionHandle,
+		return isCloseCandidate(paramBasicBlock, paramInstructionHandle,
 				paramConstantPoolGen);
 	}
 
+	/**
+	 * Same as mightCloseResource(), using the site index if built.
+	 */
+	public boolean isCloseCandidate(BasicBlock basicBlock,
+			InstructionHandle handle, ConstantPoolGen cpg) {
+		if (siteIndex != null)
+			return siteIndex.is(handle, MethodSiteIndex.CLOSE_CANDIDATE);
+		return Stream.mightCloseStream(basicBlock, handle, cpg);
+	}
+
 	@Override
 	public ResourceValueFrameModelingVisitor createVisitor(
 			Stream paramResource, ConstantPoolGen paramConstantPoolGen) {
@@ -171,10 +403,17 @@ public class LeakResourceTracker implements ResourceTracker<Stream> {
 		return paramResource.ignoreImplicitExceptions();
 	}
 
+	/**
+	 * Ignore exception edges leaving blocks which the creation of the stream
+	 * can't reach (see MethodSiteIndex.isReachable()), such as the edges of
+	 * calls made in a try block before the stream is opened. The stream's
+	 * status at exit is the same with or without them.
+	 */
 	@Override
 	public boolean ignoreExceptionEdge(Edge paramEdge, Stream paramResource,
 			ConstantPoolGen paramConstantPoolGen) {
-		return false;
+		return ResourceLeakDetector.PRUNE_EXCEPTION_EDGES && siteIndex != null
+				&& !siteIndex.isReachable(paramResource, paramEdge.getSource());
 	}
 
 	@Override
@@ -190,6 +429,50 @@ public class LeakResourceTracker implements ResourceTracker<Stream> {
 		this.resourceCollection = resourceCollection;
 	}
 
+	/**
+	 * Set the classification of the instructions of the method, built after
+	 * setResourceCollection().
+	 */
+	public void setSiteIndex(MethodSiteIndex siteIndex) {
+		this.siteIndex = siteIndex;
+	}
+
+	/**
+	 * Get the Location of an instruction, shared with the other users of the
+	 * site index once it is built.
+	 */
+	public Location getLocation(InstructionHandle handle, BasicBlock basicBlock) {
+		if (siteIndex != null)
+			return siteIndex.getLocation(handle, basicBlock);
+		return new Location(handle, basicBlock);
+	}
+
+	/**
+	 * Get the classification of the instructions of the method, or null if
+	 * it hasn't been built yet.
+	 */
+	public MethodSiteIndex getSiteIndex() {
+		return siteIndex;
+	}
+
+	/**
+	 * Drop everything the tracker holds for the method once its bugs are
+	 * reported: its streams, their escapes and equivalence classes, and the
+	 * site index with the CFG it refers to. Only the summaries consulted
+	 * are kept, for getConsultedSummaryMap().
+	 */
+	public void releaseMethodState() {
+		resourceCollection = null;
+		siteIndex = null;
+		streamOpenLocationMap.clear();
+		uninterestingStreamEscapeSet.clear();
+		streamEscapeSet.clear();
+		escapesBySource.clear();
+		streamEquivalenceMap.clear();
+		calleeSummaryMap.clear();
+		escapeKeySet.clear();
+	}
+
 	/**
 	 * Transitively mark all streams into which uninteresting streams (such as
 	 * System.out) escape. This handles the rule that wrapping an uninteresting
@@ -208,52 +491,50 @@ public class LeakResourceTracker implements ResourceTracker<Stream> {
 			}
 		}
 
+		// Index the remaining escapes again, so that propagation only looks
+		// at escapes of streams which have just become uninteresting.
+		escapesBySource.clear();
+		for (StreamEscape streamEscape : streamEscapeSet)
+			addToEscapesBySource(streamEscape);
+
 		// Build initial stream equivalence classes.
 		// Each stream starts out in its own separate
 		// equivalence class.
+		StreamUnionFind equivalenceSets = new StreamUnionFind();
 		for (Iterator<Stream> i = resourceCollection.resourceIterator(); i
 				.hasNext();) {
-			Stream stream = i.next();
-			StreamEquivalenceClass equivalenceClass = new StreamEquivalenceClass();
-			equivalenceClass.addMember(stream);
-			streamEquivalenceMap.put(stream, equivalenceClass);
+			equivalenceSets.add(i.next());
 		}
 
 		// Starting with the set of uninteresting stream open location points,
-		// propagate all uninteresting stream escapes. Iterate until there
-		// is no change. This also builds the map of stream equivalence classes.
-		Set<Stream> orig = new HashSet<Stream>();
-		do {
-			orig.clear();
-			orig.addAll(uninterestingStreamEscapeSet);
-
-			for (StreamEscape streamEscape : streamEscapeSet) {
-				if (isUninterestingStreamEscape(streamEscape.source)) {
-					if (LeakResourceTracker.DEBUG)
-						System.out.println("Propagating stream escape "
-								+ streamEscape);
-					Stream target = streamOpenLocationMap
-							.get(streamEscape.target);
-					if (target == null)
-						throw new IllegalStateException();
-					uninterestingStreamEscapeSet.add(target);
-
-					// Combine equivalence classes for source and target
-					StreamEquivalenceClass sourceClass = streamEquivalenceMap
-							.get(streamEscape.source);
-					StreamEquivalenceClass targetClass = streamEquivalenceMap
-							.get(target);
-					if (sourceClass != targetClass) {
-						sourceClass.addAll(targetClass);
-						for (Iterator<Stream> j = targetClass.memberIterator(); j
-								.hasNext();) {
-							Stream stream = j.next();
-							streamEquivalenceMap.put(stream, sourceClass);
-						}
-					}
-				}
+		// propagate all uninteresting stream escapes. Each stream is taken
+		// off the worklist once, when it first becomes uninteresting. This
+		// also merges the equivalence classes of the source and target of
+		// each propagated escape.
+		LinkedList<Stream> worklist = new LinkedList<Stream>(
+				uninterestingStreamEscapeSet);
+		while (!worklist.isEmpty()) {
+			Stream source = worklist.removeFirst();
+			List<StreamEscape> escapeList = escapesBySource.get(source);
+			if (escapeList == null)
+				continue;
+
+			for (StreamEscape streamEscape : escapeList) {
+				if (LeakResourceTracker.DEBUG)
+					System.out.println("Propagating stream escape "
+							+ streamEscape);
+				Stream target = streamOpenLocationMap.get(streamEscape.target);
+				if (target == null)
+					throw new IllegalStateException();
+				if (uninterestingStreamEscapeSet.add(target))
+					worklist.addLast(target);
+
+				// Combine equivalence classes for source and target
+				equivalenceSets.union(source, target);
 			}
-		} while (!orig.equals(uninterestingStreamEscapeSet));
+		}
+
+		streamEquivalenceMap = equivalenceSets.toEquivalenceClasses();
 	}
 
 	/**
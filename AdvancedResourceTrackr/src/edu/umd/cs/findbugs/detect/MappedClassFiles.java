@@ -0,0 +1,240 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Finds the class files of class files, directories and jars, and reads them
+ * through memory-mapped buffers rather than streams. The central directory
+ * of a jar is read from the mapped file directly, without java.util.zip, and
+ * a stored class file is a slice of the mapping, so nothing is copied until
+ * it is used; a deflated one is inflated only when its bytes are asked for,
+ * by the thread which scans it.
+ */
+public class MappedClassFiles {
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+	private static final int CENTRAL_DIRECTORY_ENTRY = 0x02014b50;
+
+	private static final int LOCAL_HEADER = 0x04034b50;
+
+	private static final int STORED = 0;
+
+	private static final int DEFLATED = 8;
+
+	/**
+	 * A class file of a directory or jar, or a class file on its own.
+	 */
+	public static class Entry {
+		/**
+		 * The resource name of the class file in its directory or jar, such
+		 * as "java/io/File.class", or null for a class file on its own.
+		 */
+		public final String resourceName;
+
+		private final ByteBuffer source;
+
+		private final int offset;
+
+		private final int storedSize;
+
+		private final int size;
+
+		private final boolean deflated;
+
+		Entry(String resourceName, ByteBuffer source, int offset,
+				int storedSize, int size, boolean deflated) {
+			this.resourceName = resourceName;
+			this.source = source;
+			this.offset = offset;
+			this.storedSize = storedSize;
+			this.size = size;
+			this.deflated = deflated;
+		}
+
+		/**
+		 * Get the size of the class file, once inflated.
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * Get the bytes of the class file, starting at index 0: a slice of
+		 * the mapped file if it was stored, or a new buffer if it was
+		 * deflated.
+		 */
+		public ByteBuffer getBytes() throws IOException {
+			if (!deflated) {
+				ByteBuffer buf = source.duplicate();
+				buf.limit(offset + size).position(offset);
+				return buf.slice();
+			}
+
+			// The inflater needs an extra byte after the data when there is
+			// no zlib header
+			byte[] input = new byte[storedSize + 1];
+			ByteBuffer buf = source.duplicate();
+			buf.position(offset);
+			buf.get(input, 0, storedSize);
+			byte[] output = new byte[size];
+			Inflater inflater = new Inflater(true);
+			try {
+				inflater.setInput(input);
+				int n = 0;
+				while (n < size) {
+					int k = inflater.inflate(output, n, size - n);
+					if (k == 0 && (inflater.finished() || inflater.needsInput()))
+						break;
+					n += k;
+				}
+				if (n != size)
+					throw new IOException("Truncated entry " + resourceName);
+			} catch (DataFormatException e) {
+				throw new IOException("Bad entry " + resourceName, e);
+			} finally {
+				inflater.end();
+			}
+			return ByteBuffer.wrap(output);
+		}
+
+		@Override
+		public String toString() {
+			return resourceName != null ? resourceName : "class file";
+		}
+	}
+
+	/**
+	 * Find the class files of a class file, a directory (including its
+	 * subdirectories) or a jar.
+	 *
+	 * @param entryList
+	 *            where to add the class files found
+	 */
+	public static void find(File file, List<Entry> entryList)
+			throws IOException {
+		if (file.isDirectory()) {
+			findInDirectory(file, "", entryList);
+		} else if (file.getName().endsWith(".class")) {
+			ByteBuffer buf = map(file);
+			entryList.add(new Entry(null, buf, 0, buf.capacity(), buf
+					.capacity(), false));
+		} else {
+			findInArchive(file, entryList);
+		}
+	}
+
+	private static void findInDirectory(File dir, String prefix,
+			List<Entry> entryList) throws IOException {
+		File[] fileList = dir.listFiles();
+		if (fileList == null)
+			throw new IOException("Can't list " + dir);
+		// Sorted, so the order of the classes doesn't depend on the file
+		// system
+		Arrays.sort(fileList);
+		for (File file : fileList) {
+			String name = prefix + file.getName();
+			if (file.isDirectory()) {
+				findInDirectory(file, name + "/", entryList);
+			} else if (name.endsWith(".class")) {
+				ByteBuffer buf = map(file);
+				entryList.add(new Entry(name, buf, 0, buf.capacity(), buf
+						.capacity(), false));
+			}
+		}
+	}
+
+	/**
+	 * Find the class files of a jar from its central directory.
+	 */
+	private static void findInArchive(File file, List<Entry> entryList)
+			throws IOException {
+		ByteBuffer buf = map(file).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			int end = findEndOfCentralDirectory(buf);
+			if (end < 0)
+				throw new IOException("Not a jar: " + file);
+			int count = buf.getShort(end + 10) & 0xffff;
+			long directoryOffset = buf.getInt(end + 16) & 0xffffffffL;
+			if (count == 0xffff || directoryOffset == 0xffffffffL)
+				throw new IOException("Zip64 jars aren't supported: " + file);
+
+			int pos = (int) directoryOffset;
+			for (int i = 0; i < count; ++i) {
+				if (buf.getInt(pos) != CENTRAL_DIRECTORY_ENTRY)
+					throw new IOException("Bad central directory in " + file);
+				int method = buf.getShort(pos + 10) & 0xffff;
+				int storedSize = buf.getInt(pos + 20);
+				int size = buf.getInt(pos + 24);
+				int nameLength = buf.getShort(pos + 28) & 0xffff;
+				int extraLength = buf.getShort(pos + 30) & 0xffff;
+				int commentLength = buf.getShort(pos + 32) & 0xffff;
+				int localOffset = buf.getInt(pos + 42);
+				byte[] nameBytes = new byte[nameLength];
+				ByteBuffer nameBuf = buf.duplicate();
+				nameBuf.position(pos + 46);
+				nameBuf.get(nameBytes);
+				String name = new String(nameBytes, "UTF-8");
+				pos += 46 + nameLength + extraLength + commentLength;
+
+				if (!name.endsWith(".class"))
+					continue;
+				if ((method != STORED && method != DEFLATED) || storedSize < 0
+						|| size < 0)
+					throw new IOException("Unsupported entry " + name + " in "
+							+ file);
+				if (buf.getInt(localOffset) != LOCAL_HEADER)
+					throw new IOException("Bad local header of " + name
+							+ " in " + file);
+				int dataOffset = localOffset + 30
+						+ (buf.getShort(localOffset + 26) & 0xffff)
+						+ (buf.getShort(localOffset + 28) & 0xffff);
+				entryList.add(new Entry(name, buf, dataOffset, storedSize,
+						size, method == DEFLATED));
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Truncated jar: " + file, e);
+		}
+	}
+
+	/**
+	 * Find the end of central directory record, searching back from the end
+	 * of the file past a comment of up to 64K.
+	 *
+	 * @return its offset, or -1 if there is none
+	 */
+	private static int findEndOfCentralDirectory(ByteBuffer buf) {
+		int last = buf.capacity() - 22;
+		int first = Math.max(0, last - 0xffff);
+		for (int pos = last; pos >= first; --pos) {
+			if (buf.getInt(pos) == END_OF_CENTRAL_DIRECTORY
+					&& pos + 22 + (buf.getShort(pos + 20) & 0xffff) == buf
+							.capacity())
+				return pos;
+		}
+		return -1;
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Too large to map: " + file);
+			// The mapping stays valid once the file is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0L,
+					channel.size());
+		} finally {
+			in.close();
+		}
+	}
+}
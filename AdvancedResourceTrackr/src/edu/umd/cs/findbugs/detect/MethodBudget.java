@@ -0,0 +1,181 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import edu.umd.cs.findbugs.SystemProperties;
+import edu.umd.cs.findbugs.ba.CFG;
+
+/**
+ * Limits on the work done analyzing one method: the size of its CFG, the
+ * number of streams it creates, the dataflow iterations run and the time
+ * taken. The limits are set by fos.maxCfgBlocks, fos.maxResources,
+ * fos.maxDataflowIterations and fos.maxMethodMillis; zero, the default,
+ * means no limit.
+ *
+ * The clock only runs between resumeClock() and pauseClock(), so time a
+ * method spends waiting for a worker thread doesn't count. A budget is used
+ * by one thread at a time.
+ */
+public class MethodBudget {
+	/**
+	 * Thrown by the dataflow analyses of a method when its budget runs out.
+	 */
+	static class ExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		ExceededException(String message) {
+			super(message);
+		}
+	}
+
+	static final int CFG_BLOCKS = 0;
+
+	static final int RESOURCES = 1;
+
+	static final int DATAFLOW_ITERATIONS = 2;
+
+	static final int TIME = 3;
+
+	static final int KIND_COUNT = 4;
+
+	static final String[] KIND_NAMES = { "cfg blocks", "resources",
+			"dataflow iterations", "time" };
+
+	static final int MAX_CFG_BLOCKS = SystemProperties.getInt(
+			"fos.maxCfgBlocks", 0);
+
+	static final int MAX_RESOURCES = SystemProperties.getInt(
+			"fos.maxResources", 0);
+
+	static final int MAX_DATAFLOW_ITERATIONS = SystemProperties.getInt(
+			"fos.maxDataflowIterations", 0);
+
+	static final long MAX_NANOS = SystemProperties.getInt(
+			"fos.maxMethodMillis", 0) * 1000000L;
+
+	private int iterations;
+
+	private long usedNanos;
+
+	private long resumedAt;
+
+	private boolean running;
+
+	/**
+	 * The budget which ran out, or -1.
+	 */
+	private int exceededKind = -1;
+
+	private String reason;
+
+	/**
+	 * Create a budget with its clock running.
+	 */
+	public MethodBudget() {
+		resumeClock();
+	}
+
+	public void resumeClock() {
+		if (!running) {
+			resumedAt = System.nanoTime();
+			running = true;
+		}
+	}
+
+	public void pauseClock() {
+		if (running) {
+			usedNanos += System.nanoTime() - resumedAt;
+			running = false;
+		}
+	}
+
+	/**
+	 * Determine if a budget of the method has run out.
+	 */
+	public boolean isExceeded() {
+		return exceededKind >= 0;
+	}
+
+	/**
+	 * Get the budget which ran out: CFG_BLOCKS, RESOURCES,
+	 * DATAFLOW_ITERATIONS or TIME, or -1 if none did.
+	 */
+	public int getExceededKind() {
+		return exceededKind;
+	}
+
+	/**
+	 * Get a description of the budget which ran out, or null if none did.
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * Check the size of the CFG of the method, the number of streams it
+	 * creates and the time taken to find them against their limits.
+	 *
+	 * @return false if any is over its limit
+	 */
+	public boolean checkSize(CFG cfg, int resourceCount) {
+		if (isExceeded())
+			return false;
+		if (MAX_CFG_BLOCKS > 0 && cfg.getNumBasicBlocks() > MAX_CFG_BLOCKS)
+			exceed(CFG_BLOCKS, "the CFG has " + cfg.getNumBasicBlocks()
+					+ " blocks, over the limit of " + MAX_CFG_BLOCKS);
+		else if (MAX_RESOURCES > 0 && resourceCount > MAX_RESOURCES)
+			exceed(RESOURCES, "the method creates " + resourceCount
+					+ " streams, over the limit of " + MAX_RESOURCES);
+		else if (isOverTime())
+			exceedTime();
+		return !isExceeded();
+	}
+
+	/**
+	 * Check that the budget hasn't run out before starting a dataflow
+	 * analysis.
+	 *
+	 * @throws ExceededException
+	 *             if it has
+	 */
+	public void check() {
+		if (isExceeded())
+			throw new ExceededException(reason);
+		if (isOverTime())
+			throw exceedTime();
+	}
+
+	/**
+	 * Account for an iteration of a dataflow analysis of the method.
+	 *
+	 * @throws ExceededException
+	 *             if the budget has run out
+	 */
+	public void startIteration() {
+		++iterations;
+		if (MAX_DATAFLOW_ITERATIONS > 0 && iterations > MAX_DATAFLOW_ITERATIONS)
+			throw exceed(DATAFLOW_ITERATIONS, "the dataflow analyses ran "
+					+ iterations + " iterations, over the limit of "
+					+ MAX_DATAFLOW_ITERATIONS);
+		if (isOverTime())
+			throw exceedTime();
+	}
+
+	private long getElapsedNanos() {
+		return usedNanos + (running ? System.nanoTime() - resumedAt : 0L);
+	}
+
+	private boolean isOverTime() {
+		return MAX_NANOS > 0 && getElapsedNanos() > MAX_NANOS;
+	}
+
+	private ExceededException exceedTime() {
+		return exceed(TIME, "the analysis took " + getElapsedNanos() / 1000000
+				+ " ms, over the limit of " + MAX_NANOS / 1000000 + " ms");
+	}
+
+	private ExceededException exceed(int kind, String reason) {
+		this.exceededKind = kind;
+		this.reason = reason;
+		return new ExceededException(reason);
+	}
+}
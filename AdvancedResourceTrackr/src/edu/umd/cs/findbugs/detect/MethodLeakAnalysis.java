@@ -0,0 +1,687 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.Type;
+
+import edu.umd.cs.findbugs.ResourceCollection;
+import edu.umd.cs.findbugs.ba.CFG;
+import edu.umd.cs.findbugs.ba.CFGBuilderException;
+import edu.umd.cs.findbugs.ba.ClassContext;
+import edu.umd.cs.findbugs.ba.Dataflow;
+import edu.umd.cs.findbugs.ba.DataflowAnalysisException;
+import edu.umd.cs.findbugs.ba.DepthFirstSearch;
+import edu.umd.cs.findbugs.ba.Location;
+import edu.umd.cs.findbugs.ba.RepositoryLookupFailureCallback;
+import edu.umd.cs.findbugs.ba.ResourceValueAnalysis;
+import edu.umd.cs.findbugs.ba.ResourceValueFrame;
+
+/**
+ * Resource leak analysis of a single method. All mutable state of the
+ * analysis lives here rather than in the detector, so analyses of different
+ * methods may run concurrently.
+ *
+ * The constructor and addParameterStreams() use the ClassContext and the class
+ * hierarchy, and must be called from the thread that owns the ClassContext.
+ * execute() only uses the CFG and the streams found by then, and may be called
+ * from any thread.
+ */
+public class MethodLeakAnalysis {
+	static class PotentialOpenStream {
+		public final String bugType;
+
+		public final int priority;
+
+		public final Stream stream;
+
+		@Override
+		public String toString() {
+			return stream.toString();
+		}
+
+		public PotentialOpenStream(String bugType, int priority, Stream stream) {
+			this.bugType = bugType;
+			this.priority = priority;
+			this.stream = stream;
+		}
+	}
+
+	/**
+	 * Rough sizes of what an analysis holds, for getRetainedBytes(): a
+	 * Stream with its Locations, an instruction with its handle, a basic
+	 * block with its edges, a frame and each of its slots.
+	 */
+	private static final long STREAM_BYTES = 160;
+
+	private static final long INSTRUCTION_BYTES = 64;
+
+	private static final long BLOCK_BYTES = 256;
+
+	private static final long FRAME_BYTES = 48;
+
+	private static final long SLOT_BYTES = 8;
+
+	private final Method method;
+
+	private final MethodGen methodGen;
+
+	private final CFG cfg;
+
+	private final DepthFirstSearch dfs;
+
+	private final LeakResourceTracker resourceTracker;
+
+	private final ResourceCollection<Stream> resourceCollection;
+
+	private final List<PotentialOpenStream> potentialOpenStreamList;
+
+	private final MethodBudget budget;
+
+	/**
+	 * Streams whose dataflow analysis has run.
+	 */
+	private final Set<Stream> analyzedStreamSet;
+
+	private List<PotentialOpenStream> leakedStreamList;
+
+	private RuntimeException dataflowFailure;
+
+	private int dataflowIterations;
+
+	private int prunedEdgeCount;
+
+	private int closedByShapeCount;
+
+	private int slicedBlockCount;
+
+	private int unresolvedStreamCount;
+
+	private long executeNanos;
+
+	private long prepareNanos;
+
+	private Long fingerprint;
+
+	/**
+	 * @param budget
+	 *            the budget of the method, which may already have run out
+	 */
+	public MethodLeakAnalysis(ClassContext classContext, Method method,
+			LeakResourceTracker resourceTracker,
+			ResourceCollection<Stream> resourceCollection, MethodBudget budget)
+			throws CFGBuilderException {
+		this.method = method;
+		this.methodGen = classContext.getMethodGen(method);
+		this.cfg = classContext.getCFG(method);
+		this.dfs = classContext.getDepthFirstSearch(method);
+		this.resourceTracker = resourceTracker;
+		this.resourceCollection = resourceCollection;
+		this.potentialOpenStreamList = new ArrayList<PotentialOpenStream>();
+		this.budget = budget;
+		this.analyzedStreamSet = new HashSet<Stream>();
+		this.leakedStreamList = Collections.emptyList();
+	}
+
+	public Method getMethod() {
+		return method;
+	}
+
+	public MethodGen getMethodGen() {
+		return methodGen;
+	}
+
+	/**
+	 * Get the first exception thrown by the dataflow analysis of a stream, if
+	 * any. As in ResourceTrackingDetector, a failure only loses the streams
+	 * whose analysis threw it; the other streams are still analyzed and
+	 * reported.
+	 */
+	public RuntimeException getDataflowFailure() {
+		return dataflowFailure;
+	}
+
+	/**
+	 * Get the number of iterations of the dataflow analyses, summed over the
+	 * analyses run. Only valid after execute().
+	 */
+	public int getDataflowIterations() {
+		return dataflowIterations;
+	}
+
+	/**
+	 * Get the number of exception edges ignored by the dataflow analyses,
+	 * summed over the streams. Only valid after execute().
+	 */
+	public int getPrunedEdgeCount() {
+		return prunedEdgeCount;
+	}
+
+	/**
+	 * Get the number of streams found closed by CloseShapeMatcher, whose
+	 * dataflow analysis was skipped. Only valid after execute().
+	 */
+	public int getClosedByShapeCount() {
+		return closedByShapeCount;
+	}
+
+	/**
+	 * Get the number of blocks the dataflow analyses didn't visit, as they
+	 * lie outside the slice of the CFG reachable from the creation of the
+	 * streams analyzed, summed over the streams. Only valid after execute().
+	 */
+	public int getSlicedBlockCount() {
+		return slicedBlockCount;
+	}
+
+	/**
+	 * Get the time execute() took, as measured by the detector.
+	 */
+	public long getExecuteNanos() {
+		return executeNanos;
+	}
+
+	void setExecuteNanos(long executeNanos) {
+		this.executeNanos = executeNanos;
+	}
+
+	/**
+	 * Get the time the detector took to find the streams of the method and
+	 * get this analysis ready.
+	 */
+	public long getPrepareNanos() {
+		return prepareNanos;
+	}
+
+	void setPrepareNanos(long prepareNanos) {
+		this.prepareNanos = prepareNanos;
+	}
+
+	/**
+	 * Get the MethodOutcomeCache fingerprint of the method, or null if its
+	 * outcome is not to be kept.
+	 */
+	public Long getFingerprint() {
+		return fingerprint;
+	}
+
+	void setFingerprint(Long fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+
+	public MethodBudget getBudget() {
+		return budget;
+	}
+
+	public LeakResourceTracker getResourceTracker() {
+		return resourceTracker;
+	}
+
+	/**
+	 * Estimate the heap held by the analysis from its preparation until its
+	 * bugs are reported: its streams, the CFG and instructions of the
+	 * method, and the start and result frames its dataflow analyses keep for
+	 * each block while they run. Only the order of magnitude matters, for
+	 * fos.maxRetainedMB.
+	 */
+	public long getRetainedBytes() {
+		int streamCount = 0;
+		for (Iterator<Stream> i = resourceCollection.resourceIterator(); i
+				.hasNext(); i.next())
+			++streamCount;
+		long frameBytes = FRAME_BYTES + SLOT_BYTES
+				* (methodGen.getMaxLocals() + methodGen.getMaxStack());
+		return streamCount * STREAM_BYTES
+				+ methodGen.getInstructionList().getLength()
+				* INSTRUCTION_BYTES + cfg.getNumBasicBlocks()
+				* (BLOCK_BYTES + 2 * frameBytes);
+	}
+
+	/**
+	 * Get the number of streams the budget of the method left unresolved:
+	 * those neither analyzed before it ran out nor found closed by
+	 * CloseShapeMatcher. If there are any, no leaks are reported for the
+	 * method, as these streams could close the streams found open, or make
+	 * them uninteresting. Only valid after execute().
+	 */
+	public int getUnresolvedStreamCount() {
+		return unresolvedStreamCount;
+	}
+
+	/**
+	 * Get the streams which should be reported as leaked, in the order they
+	 * were found. Only valid after execute().
+	 */
+	public List<PotentialOpenStream> getLeakedStreamList() {
+		return leakedStreamList;
+	}
+
+	/**
+	 * Add Streams passed into the method as parameters. These are
+	 * uninteresting, and should poison any streams which wrap them.
+	 */
+	public void addParameterStreams(ResourceSubtypeCache subtypeCache,
+			RepositoryLookupFailureCallback lookupFailureCallback) {
+		Type[] parameterTypeList = Type.getArgumentTypes(methodGen
+				.getSignature());
+		Location firstLocation = new Location(cfg.getEntry()
+				.getFirstInstruction(), cfg.getEntry());
+
+		int local = methodGen.isStatic() ? 0 : 1;
+
+		for (Type type : parameterTypeList) {
+			if (type instanceof ObjectType) {
+				ObjectType objectType = (ObjectType) type;
+				ObjectType streamBase = subtypeCache.getResourceBase(
+						objectType, lookupFailureCallback);
+
+				if (streamBase != null) {
+					// OK, found a parameter that is a resource.
+					// Create a Stream object to represent it.
+					// The Stream will be uninteresting, so it will
+					// inhibit reporting for any stream that wraps it.
+					Stream paramStream = new Stream(firstLocation,
+							objectType.getClassName(),
+							streamBase.getClassName());
+					paramStream.setIsOpenOnCreation(true);
+					paramStream.setOpenLocation(firstLocation);
+					paramStream.setInstanceParam(local);
+					resourceCollection.addPreexistingResource(paramStream);
+				}
+			}
+
+			switch (type.getType()) {
+			case Constants.T_LONG:
+			case Constants.T_DOUBLE:
+				local += 2;
+				break;
+			default:
+				local += 1;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Run the dataflow analysis for the streams of the method and work out
+	 * which of them leak.
+	 */
+	public void execute() throws DataflowAnalysisException {
+		runDataflow();
+		findLeakedStreams();
+	}
+
+	/**
+	 * Run the dataflow analysis for the streams of the method, recording the
+	 * streams open at exit and marking those closed on all paths.
+	 */
+	void runDataflow() throws DataflowAnalysisException {
+		// Set precomputed map of Locations to Stream creation points.
+		// That way, the StreamResourceTracker won't have to
+		// repeatedly try to figure out where Streams are created.
+		resourceTracker.setResourceCollection(resourceCollection);
+		MethodSiteIndex siteIndex = new MethodSiteIndex(methodGen, cfg,
+				resourceTracker, resourceCollection);
+		resourceTracker.setSiteIndex(siteIndex);
+
+		long start = ResourceLeakDetector.METRICS ? System.nanoTime() : 0L;
+		List<Stream> streamList = new ArrayList<Stream>();
+		List<Stream> closedStreamList = new ArrayList<Stream>();
+		CloseShapeMatcher matcher = ResourceLeakDetector.MATCH_CLOSE_SHAPES ? new CloseShapeMatcher(
+				methodGen, cfg, resourceTracker, siteIndex) : null;
+		for (Iterator<Stream> i = resourceCollection.resourceIterator(); i
+				.hasNext();) {
+			Stream stream = i.next();
+			if (matcher != null && matcher.isClosedOnAllPaths(stream))
+				closedStreamList.add(stream);
+			else
+				streamList.add(stream);
+		}
+		int streamCount = streamList.size() + closedStreamList.size();
+		if (ResourceLeakDetector.SLICE_CFG && !budget.isExceeded())
+			siteIndex.computeReachableBlocks(streamList);
+		boolean exceeded = false;
+		try {
+			analyzeStreams(streamList);
+			// The escapes of a stream are only recorded by its own analysis,
+			// and matter if an uninteresting stream escapes into it: analyze
+			// such streams after all
+			while (!(streamList = takeEscapeTargets(closedStreamList))
+					.isEmpty())
+				analyzeStreams(streamList);
+		} catch (MethodBudget.ExceededException e) {
+			fallBackToShapes(closedStreamList, siteIndex);
+			exceeded = true;
+		}
+		// Streams proven closed by their shape are closed even if the
+		// analysis of another stream failed
+		if (!exceeded) {
+			for (Stream stream : closedStreamList)
+				setClosedByShape(stream);
+		}
+		if (ResourceLeakDetector.METRICS)
+			ResourceLeakDetector.metrics.dataflowTime.record(System.nanoTime()
+					- start);
+
+		closedByShapeCount = closedStreamList.size();
+		ResourceLeakDetector.closedByShapeCount.addAndGet(closedByShapeCount);
+		ResourceLeakDetector.streamCount.addAndGet(streamCount);
+		if (ResourceLeakDetector.METRICS)
+			ResourceLeakDetector.metrics.streamsClosedByShape
+					.add(closedByShapeCount);
+
+		slicedBlockCount = siteIndex.getSlicedBlockCount();
+		ResourceLeakDetector.slicedBlockCount.addAndGet(slicedBlockCount);
+		if (ResourceLeakDetector.METRICS)
+			ResourceLeakDetector.metrics.blocksOutsideSlices
+					.add(slicedBlockCount);
+
+		prunedEdgeCount = siteIndex.getPrunedEdgeCount();
+		ResourceLeakDetector.prunedEdgeCount.addAndGet(prunedEdgeCount);
+		if (ResourceLeakDetector.METRICS)
+			ResourceLeakDetector.metrics.exceptionEdgesPruned
+					.add(prunedEdgeCount);
+	}
+
+	/**
+	 * Work out which of the streams open at exit leak, taking wrapper streams
+	 * into account.
+	 */
+	void findLeakedStreams() {
+		if (unresolvedStreamCount > 0)
+			return;
+
+		// Compute streams that escape into other streams:
+		// this takes wrapper streams into account.
+		// This will also compute equivalence classes of streams,
+		// so that if one stream in a class is closed,
+		// they are all considered closed.
+		// (FIXME: this is too simplistic, especially if buffering
+		// is involved. Sometime we should really think harder
+		// about how this should work.)
+		long start = ResourceLeakDetector.METRICS ? System.nanoTime() : 0L;
+		resourceTracker.markTransitiveUninterestingStreamEscapes();
+		if (ResourceLeakDetector.METRICS)
+			ResourceLeakDetector.metrics.escapeTime.record(System.nanoTime()
+					- start);
+
+		// For each stream closed on all paths, mark its equivalence
+		// class as being closed.
+		for (Iterator<Stream> i = resourceCollection.resourceIterator(); i
+				.hasNext();) {
+			Stream stream = i.next();
+			StreamEquivalenceClass equivalenceClass = resourceTracker
+					.getStreamEquivalenceClass(stream);
+			if (stream.isClosed())
+				equivalenceClass.setClosed();
+		}
+
+		// Select the "interesting" potential open streams that haven't
+		// been closed (and aren't in an equivalence class with another
+		// stream that was closed).
+		List<PotentialOpenStream> leaked = new ArrayList<PotentialOpenStream>();
+		for (PotentialOpenStream pos : potentialOpenStreamList) {
+			Stream stream = pos.stream;
+			if (stream.isClosed())
+			{
+				continue;
+			}
+
+			if (stream.isUninteresting()){
+				continue;
+			}
+
+			Location openLocation = stream.getOpenLocation();
+
+			if (openLocation == null){
+				continue;
+			}
+
+			if (ResourceLeakDetector.IGNORE_WRAPPED_UNINTERESTING_STREAMS
+					&& resourceTracker.isUninterestingStreamEscape(stream)){
+				continue;
+			}
+
+			leaked.add(pos);
+		}
+		leakedStreamList = leaked;
+	}
+
+	/**
+	 * Once the budget of the method has run out, settle the streams not
+	 * analyzed yet with CloseShapeMatcher alone: those it finds closed are
+	 * closed, the others, including uninteresting ones whose escapes are
+	 * unknown, are left unresolved.
+	 *
+	 * @param closedStreamList
+	 *            list to fill with the streams found closed
+	 */
+	private void fallBackToShapes(List<Stream> closedStreamList,
+			MethodSiteIndex siteIndex) {
+		CloseShapeMatcher matcher = new CloseShapeMatcher(methodGen, cfg,
+				resourceTracker, siteIndex);
+		closedStreamList.clear();
+		for (Iterator<Stream> i = resourceCollection.resourceIterator(); i
+				.hasNext();) {
+			Stream stream = i.next();
+			if (analyzedStreamSet.contains(stream))
+				continue;
+			if (matcher.isClosedOnAllPaths(stream))
+				closedStreamList.add(stream);
+			else
+				++unresolvedStreamCount;
+		}
+		for (Stream stream : closedStreamList)
+			setClosedByShape(stream);
+	}
+
+	/**
+	 * Run the dataflow analysis for some of the streams of the method.
+	 */
+	private void analyzeStreams(List<Stream> streamList)
+			throws DataflowAnalysisException {
+		if (ResourceLeakDetector.SINGLE_PASS_DATAFLOW
+				&& allOpenOnCreation(streamList))
+			analyzeStreamsTogether(streamList);
+		else
+			analyzeStreamsSeparately(streamList);
+	}
+
+	/**
+	 * Remove from a list of streams found closed by CloseShapeMatcher those
+	 * into which an uninteresting stream analyzed so far escapes.
+	 *
+	 * @return the streams removed
+	 */
+	private List<Stream> takeEscapeTargets(List<Stream> closedStreamList) {
+		List<Stream> targetList = new ArrayList<Stream>();
+		if (closedStreamList.isEmpty())
+			return targetList;
+		Set<Location> escapeTargetSet = resourceTracker
+				.getUninterestingEscapeTargets();
+		for (Iterator<Stream> i = closedStreamList.iterator(); i.hasNext();) {
+			Stream stream = i.next();
+			if (escapeTargetSet.contains(stream.getLocation())) {
+				targetList.add(stream);
+				i.remove();
+			}
+		}
+		return targetList;
+	}
+
+	/**
+	 * Record what the dataflow analysis of a stream found closed by
+	 * CloseShapeMatcher would have: where it is opened, and that it is
+	 * closed. Its exit status could also be ESCAPED or NONEXISTENT, which
+	 * leaves the stream unclosed; this makes no difference, as no
+	 * uninteresting stream escapes into it, so it stays interesting and its
+	 * equivalence class holds just the stream.
+	 */
+	private void setClosedByShape(Stream stream) {
+		Location creation = stream.getLocation();
+		Location location = resourceTracker.getLocation(creation.getHandle(),
+				creation.getBasicBlock());
+		stream.setOpenLocation(location);
+		resourceTracker.addStreamOpenLocation(location, stream);
+		stream.setClosed();
+	}
+
+	/**
+	 * Run one ResourceValueAnalysis per stream, restricted to the slice of
+	 * the CFG reachable from the creation of the stream.
+	 */
+	private void analyzeStreamsSeparately(List<Stream> streamList)
+			throws DataflowAnalysisException {
+		for (Stream stream : streamList) {
+			budget.check();
+			try {
+				ResourceValueAnalysis<Stream> analysis = new SlicedResourceValueAnalysis(
+						methodGen, cfg, dfs, resourceTracker, stream,
+						getSlice(new Stream[] { stream }), budget);
+				Dataflow<ResourceValueFrame, ResourceValueAnalysis<Stream>> dataflow = new Dataflow<ResourceValueFrame, ResourceValueAnalysis<Stream>>(
+						cfg, analysis);
+				dataflow.execute();
+				dataflowIterations += dataflow.getNumIterations();
+				if (ResourceLeakDetector.METRICS)
+					ResourceLeakDetector.metrics.dataflowIterations
+							.record(dataflow.getNumIterations());
+
+				ResourceValueFrame exitFrame = dataflow.getResultFact(cfg
+						.getExit());
+				inspectExitStatus(exitFrame.getStatus(), stream,
+						potentialOpenStreamList);
+			} catch (MethodBudget.ExceededException e) {
+				throw e;
+			} catch (RuntimeException e) {
+				recordFailure(e);
+			}
+			analyzedStreamSet.add(stream);
+		}
+	}
+
+	/**
+	 * Run the dataflow analysis for all streams of the method in one pass
+	 * (up to MultiResourceValueFrame.MAX_RESOURCES streams at a time), and
+	 * inspect the exit status of each stream.
+	 */
+	private void analyzeStreamsTogether(List<Stream> streamList)
+			throws DataflowAnalysisException {
+		for (int start = 0; start < streamList.size(); start += MultiResourceValueFrame.MAX_RESOURCES) {
+			int end = Math.min(streamList.size(), start
+					+ MultiResourceValueFrame.MAX_RESOURCES);
+			Stream[] streams = streamList.subList(start, end).toArray(
+					new Stream[end - start]);
+
+			budget.check();
+			try {
+				MultiResourceValueAnalysis analysis = new MultiResourceValueAnalysis(
+						methodGen, cfg, dfs, resourceTracker, streams,
+						getSlice(streams), budget);
+				Dataflow<MultiResourceValueFrame, MultiResourceValueAnalysis> dataflow = new Dataflow<MultiResourceValueFrame, MultiResourceValueAnalysis>(
+						cfg, analysis);
+				dataflow.execute();
+				dataflowIterations += dataflow.getNumIterations();
+				if (ResourceLeakDetector.METRICS)
+					ResourceLeakDetector.metrics.dataflowIterations
+							.record(dataflow.getNumIterations());
+
+				MultiResourceValueFrame exitFrame = dataflow.getResultFact(cfg
+						.getExit());
+				for (int i = 0; i < streams.length; ++i)
+					inspectExitStatus(exitFrame.getStatus(i), streams[i],
+							potentialOpenStreamList);
+			} catch (MethodBudget.ExceededException e) {
+				throw e;
+			} catch (RuntimeException e) {
+				// Only the streams of this pass are lost
+				recordFailure(e);
+			}
+			for (Stream stream : streams)
+				analyzedStreamSet.add(stream);
+		}
+	}
+
+	/**
+	 * Get the slice of the CFG the analysis of some streams has to visit.
+	 * Slicing relies on the exception edges leaving the blocks outside the
+	 * slice being ignored, so it is off with fos.noEdgePruning.
+	 *
+	 * @return the labels of the blocks of the slice, or null to visit every
+	 *         block
+	 */
+	private BitSet getSlice(Stream[] streams) {
+		if (!ResourceLeakDetector.SLICE_CFG
+				|| !ResourceLeakDetector.PRUNE_EXCEPTION_EDGES)
+			return null;
+		return resourceTracker.getSiteIndex().getSlice(streams);
+	}
+
+	/**
+	 * Determine if every stream in a list can be handled by
+	 * MultiResourceValueAnalysis.
+	 */
+	private static boolean allOpenOnCreation(List<Stream> streamList) {
+		for (Stream stream : streamList) {
+			if (!stream.isOpenOnCreation())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Remember the first exception thrown by the dataflow analysis of a
+	 * stream, for the detector to log; the streams it was thrown for are left
+	 * unreported, like those ResourceTrackingDetector gives up on.
+	 */
+	private void recordFailure(RuntimeException e) {
+		if (dataflowFailure == null)
+			dataflowFailure = e;
+	}
+
+	/**
+	 * Record the outcome of the dataflow analysis for a stream. Also used by
+	 * ResourceLeakDetector.inspectResult().
+	 *
+	 * @param exitStatus
+	 *            the ResourceValueFrame status of the stream at method exit
+	 * @param stream
+	 *            the stream
+	 * @param potentialOpenStreamList
+	 *            list to add the stream to if it is open at exit
+	 */
+	static void inspectExitStatus(int exitStatus, Stream stream,
+			List<PotentialOpenStream> potentialOpenStreamList) {
+		if (exitStatus == ResourceValueFrame.OPEN
+				|| exitStatus == ResourceValueFrame.OPEN_ON_EXCEPTION_PATH) {
+
+			// FIXME: Stream object should be queried for the
+			// priority.
+
+			String bugType = stream.getBugType();
+			int priority = ResourceLeakDetector.NORMAL_PRIORITY;
+			if (exitStatus == ResourceValueFrame.OPEN_ON_EXCEPTION_PATH) {
+				bugType += "_EXCEPTION_PATH";
+				priority = ResourceLeakDetector.LOW_PRIORITY;
+			}
+
+			potentialOpenStreamList.add(new PotentialOpenStream(bugType,
+					priority, stream));
+		} else if (exitStatus == ResourceValueFrame.CLOSED) {
+			// Remember that this stream was closed on all paths.
+			// Later, we will mark all of the streams in its equivalence class
+			// as having been closed.
+			stream.setClosed();
+		}
+
+	}
+}
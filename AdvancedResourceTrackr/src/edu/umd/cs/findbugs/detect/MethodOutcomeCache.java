@@ -0,0 +1,308 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.ClassFormatException;
+import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.CodeException;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.classfile.Method;
+
+/**
+ * Outcomes of the analyses of methods, by the content of the methods, for
+ * the rest of the run. Fat jars shading the same libraries, and generated
+ * code (bridges, DTO boilerplate, JDBC templates), hold many methods with
+ * the same bytecode; the analysis of such a method finds the same leaks at
+ * the same bytecode offsets as that of the first, so its outcome is reused,
+ * and only the source lines of the leaks are found again, from the line
+ * numbers of the method itself.
+ *
+ * The fingerprint of a method (see fingerprint()) hashes its bytecode with
+ * every constant-pool operand replaced by the constant it refers to, so the
+ * same code in classes with different constant pools has the same
+ * fingerprint, together with whether each call returns a resource, the
+ * exception handlers and what else the analysis depends on. Within a run a
+ * class name always resolves to the same class, so the hierarchy, summary
+ * and escape-model facts about the classes and methods the code names are
+ * the same for both methods. The name of the method and of its class are
+ * left out, as the analysis doesn't depend on them.
+ *
+ * Only complete outcomes are kept: not those of methods whose budget ran
+ * out, or whose analysis failed. The cache is bounded and evicts the least
+ * recently used outcomes. It is safe to share between detector instances and
+ * threads.
+ */
+public class MethodOutcomeCache {
+	/**
+	 * A leak found by an analysis: the offset of the instruction creating
+	 * the stream, and how it is reported.
+	 */
+	static class Leak {
+		final int pc;
+
+		final String bugType;
+
+		final int priority;
+
+		final String leakClass;
+
+		Leak(int pc, String bugType, int priority, String leakClass) {
+			this.pc = pc;
+			this.bugType = bugType;
+			this.priority = priority;
+			this.leakClass = leakClass;
+		}
+	}
+
+	/**
+	 * What the analysis of a method found.
+	 */
+	static class Outcome {
+		/**
+		 * The leaks, in the order they are reported.
+		 */
+		final List<Leak> leakList;
+
+		/**
+		 * The summaries the analysis consulted, as
+		 * LeakResourceTracker.getConsultedSummaryMap() gives them, for the
+		 * result cache.
+		 */
+		final Map<String, ResourceSummary> consultedSummaryMap;
+
+		/**
+		 * The time the analysis took, from finding its streams to the end of
+		 * its dataflow analysis.
+		 */
+		final long nanos;
+
+		Outcome(List<Leak> leakList,
+				Map<String, ResourceSummary> consultedSummaryMap, long nanos) {
+			this.leakList = leakList;
+			this.consultedSummaryMap = consultedSummaryMap;
+			this.nanos = nanos;
+		}
+	}
+
+	private final Map<Long, Outcome> outcomeMap;
+
+	private long lookupCount;
+
+	private long hitCount;
+
+	private long savedNanos;
+
+	public MethodOutcomeCache(final int maxSize) {
+		this.outcomeMap = new LinkedHashMap<Long, Outcome>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Outcome> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the outcome of an earlier method with the given fingerprint, and
+	 * count the time reusing it saves.
+	 *
+	 * @return the outcome, or null if there is none
+	 */
+	public synchronized Outcome lookup(long fingerprint) {
+		++lookupCount;
+		Outcome outcome = outcomeMap.get(Long.valueOf(fingerprint));
+		if (outcome != null) {
+			++hitCount;
+			savedNanos += outcome.nanos;
+		}
+		return outcome;
+	}
+
+	/**
+	 * Record the outcome of the analysis of a method.
+	 */
+	public synchronized void store(long fingerprint, List<Leak> leakList,
+			Map<String, ResourceSummary> consultedSummaryMap, long nanos) {
+		outcomeMap.put(Long.valueOf(fingerprint), new Outcome(
+				Collections.unmodifiableList(leakList),
+				Collections.unmodifiableMap(new HashMap<String, ResourceSummary>(
+						consultedSummaryMap)), nanos));
+	}
+
+	/**
+	 * Forget all outcomes, for a new run in the same JVM in which class files
+	 * may have changed.
+	 */
+	public synchronized void clear() {
+		outcomeMap.clear();
+	}
+
+	public synchronized int size() {
+		return outcomeMap.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getSavedNanos() {
+		return savedNanos;
+	}
+
+	/**
+	 * Compute the fingerprint of a method.
+	 *
+	 * @param callPrescreen
+	 *            the method-level prescreen of its class, telling which
+	 *            calls return resources, or null if there is none
+	 * @return the fingerprint, or null if the bytecode can't be decoded
+	 */
+	public static Long fingerprint(ConstantPool cp, Method method,
+			ResourceCallPrescreen callPrescreen) {
+		Code code = method.getCode();
+		if (code == null)
+			return null;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeUTF(method.getSignature());
+			out.writeBoolean(method.isStatic());
+			out.writeShort(code.getMaxLocals());
+			out.writeShort(code.getMaxStack());
+			if (!writeCode(code.getCode(), cp, callPrescreen, out))
+				return null;
+			CodeException[] handlerList = code.getExceptionTable();
+			out.writeShort(handlerList != null ? handlerList.length : 0);
+			if (handlerList != null) {
+				for (CodeException handler : handlerList) {
+					out.writeShort(handler.getStartPC());
+					out.writeShort(handler.getEndPC());
+					out.writeShort(handler.getHandlerPC());
+					out.writeUTF(handler.getCatchType() != 0 ? cp
+							.constantToString(handler.getCatchType(),
+									Constants.CONSTANT_Class) : "");
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		} catch (ClassFormatException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// A constant of a kind this BCEL doesn't know, or a bad index
+			return null;
+		}
+		return Long.valueOf(HashedRecordFile.hashBytes(bytes.toByteArray()));
+	}
+
+	/**
+	 * Write bytecode with its constant-pool operands replaced by the
+	 * constants, and a flag after each call telling whether it returns a
+	 * resource.
+	 *
+	 * @return false if the bytecode can't be decoded
+	 */
+	private static boolean writeCode(byte[] code, ConstantPool cp,
+			ResourceCallPrescreen callPrescreen, DataOutputStream out)
+			throws IOException {
+		int pc = 0;
+		while (pc < code.length) {
+			int opcode = code[pc] & 0xff;
+			int length;
+			int indexLength = 0;
+			switch (opcode) {
+			case Constants.TABLESWITCH: {
+				int base = (pc + 4) & ~3;
+				if (base + 12 > code.length)
+					return false;
+				long entries = (long) readInt(code, base + 8)
+						- readInt(code, base + 4) + 1;
+				length = (int) (base + 12 + entries * 4 - pc);
+				break;
+			}
+			case Constants.LOOKUPSWITCH: {
+				int base = (pc + 4) & ~3;
+				if (base + 8 > code.length)
+					return false;
+				long entries = readInt(code, base + 4);
+				length = (int) (base + 8 + entries * 8 - pc);
+				break;
+			}
+			case Constants.WIDE:
+				if (pc + 1 >= code.length)
+					return false;
+				length = (code[pc + 1] & 0xff) == Constants.IINC ? 6 : 4;
+				break;
+			case Constants.LDC:
+				length = 2;
+				indexLength = 1;
+				break;
+			case Constants.LDC_W:
+			case Constants.LDC2_W:
+			case Constants.GETSTATIC:
+			case Constants.PUTSTATIC:
+			case Constants.GETFIELD:
+			case Constants.PUTFIELD:
+			case Constants.INVOKEVIRTUAL:
+			case Constants.INVOKESPECIAL:
+			case Constants.INVOKESTATIC:
+			case Constants.INVOKEINTERFACE:
+			case Constants.NEW:
+			case Constants.ANEWARRAY:
+			case Constants.CHECKCAST:
+			case Constants.INSTANCEOF:
+			case Constants.MULTIANEWARRAY:
+				length = ResourceCallPrescreen.INSTRUCTION_LENGTH[opcode];
+				indexLength = 2;
+				break;
+			default:
+				length = ResourceCallPrescreen.INSTRUCTION_LENGTH[opcode];
+				break;
+			}
+			if (length <= 0 || pc + length > code.length)
+				return false;
+
+			out.writeByte(opcode);
+			if (indexLength == 0) {
+				out.write(code, pc + 1, length - 1);
+			} else {
+				int index = indexLength == 1 ? code[pc + 1] & 0xff
+						: ((code[pc + 1] & 0xff) << 8) | (code[pc + 2] & 0xff);
+				Constant constant = cp.getConstant(index);
+				if (constant == null)
+					return false;
+				out.writeByte(constant.getTag());
+				out.writeUTF(cp.constantToString(constant));
+				out.write(code, pc + 1 + indexLength, length - 1 - indexLength);
+				if (opcode >= Constants.INVOKEVIRTUAL
+						&& opcode <= Constants.INVOKEINTERFACE)
+					out.writeBoolean(callPrescreen == null
+							|| callPrescreen.isResourceMethod(index));
+			}
+			pc += length;
+		}
+		return true;
+	}
+
+	private static int readInt(byte[] code, int offset) {
+		return ((code[offset] & 0xff) << 24) | ((code[offset + 1] & 0xff) << 16)
+				| ((code[offset + 2] & 0xff) << 8) | (code[offset + 3] & 0xff);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "MethodOutcomeCache[" + outcomeMap.size() + " outcomes, "
+				+ hitCount + "/" + lookupCount + " hits]";
+	}
+}
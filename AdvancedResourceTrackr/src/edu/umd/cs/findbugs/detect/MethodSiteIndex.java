@@ -0,0 +1,637 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.INVOKEINTERFACE;
+import org.apache.bcel.generic.INVOKESPECIAL;
+import org.apache.bcel.generic.INVOKEVIRTUAL;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.InvokeInstruction;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.Type;
+
+import edu.umd.cs.findbugs.ResourceCollection;
+import edu.umd.cs.findbugs.ba.AnalysisContext;
+import edu.umd.cs.findbugs.ba.AnalysisFeatures;
+import edu.umd.cs.findbugs.ba.BasicBlock;
+import edu.umd.cs.findbugs.ba.BlockOrder;
+import edu.umd.cs.findbugs.ba.CFG;
+import edu.umd.cs.findbugs.ba.DepthFirstSearch;
+import edu.umd.cs.findbugs.ba.Edge;
+import edu.umd.cs.findbugs.ba.EdgeTypes;
+import edu.umd.cs.findbugs.ba.Frame;
+import edu.umd.cs.findbugs.ba.Location;
+import edu.umd.cs.findbugs.ba.ReversePostOrder;
+
+/**
+ * What each instruction of a method might do to a stream, worked out once per
+ * method by a linear pass over its instructions and shared by the analyses of
+ * all its streams. The dataflow analyses consult the index, by bytecode
+ * position, instead of looking up names and signatures in the constant pool
+ * for every stream on every iteration. Lookups don't allocate.
+ *
+ * The index also holds one Location per instruction of the CFG, so the
+ * transfer functions don't create a Location per instruction per pass, and
+ * numbers the streams of the method so stream escapes can be deduplicated
+ * without building StreamEscape objects, and works out which blocks and
+ * exception edges each stream can reach.
+ *
+ * The index only rules instructions out: an instruction marked as a candidate
+ * still gets the full check against the stream and frame.
+ */
+public class MethodSiteIndex {
+	/**
+	 * The blocks of a slice, in the order they have in a block order of the
+	 * whole CFG.
+	 */
+	private static class SliceBlockOrder implements BlockOrder {
+		private final BlockOrder order;
+
+		private final List<BasicBlock> blockList = new ArrayList<BasicBlock>();
+
+		SliceBlockOrder(BlockOrder order, BitSet slice) {
+			this.order = order;
+			for (Iterator<BasicBlock> i = order.blockIterator(); i.hasNext();) {
+				BasicBlock block = i.next();
+				if (slice.get(block.getLabel()))
+					blockList.add(block);
+			}
+		}
+
+		public Iterator<BasicBlock> blockIterator() {
+			return blockList.iterator();
+		}
+
+		public int compare(BasicBlock b1, BasicBlock b2) {
+			return order.compare(b1, b2);
+		}
+	}
+
+	/**
+	 * A stream of the method is created by the instruction.
+	 */
+	public static final int CREATION = 1;
+
+	/**
+	 * The instruction is a constructor call, which might open a stream not
+	 * open on creation.
+	 */
+	public static final int OPEN_CANDIDATE = 2;
+
+	/**
+	 * The instruction is a close() call.
+	 */
+	public static final int CLOSE_CANDIDATE = 4;
+
+	/**
+	 * The instruction calls a method whose summary, or the escape model,
+	 * says it closes some of its arguments.
+	 */
+	public static final int CLOSES_ARGUMENT = 8;
+
+	/**
+	 * The instruction is a call into which a stream escapes if passed as the
+	 * receiver.
+	 */
+	public static final int RECEIVER_ESCAPES = 16;
+
+	/**
+	 * The instruction is a call into which a stream escapes if passed as an
+	 * argument other than the receiver.
+	 */
+	public static final int ARGUMENT_ESCAPES = 32;
+
+	private static final int NO_DEPTH = -1;
+
+	private static final int CONFLICTING_DEPTH = -2;
+
+	private static final int UNPREDICTABLE = Integer.MIN_VALUE;
+
+	/**
+	 * Flags of each instruction, by bytecode position.
+	 */
+	private final byte[] siteKind;
+
+	/**
+	 * For calls marked CLOSES_ARGUMENT, the depths in the operand stack,
+	 * before the call, of the arguments the called method closes.
+	 */
+	private final Map<InstructionHandle, int[]> closedArgumentDepthMap = new IdentityHashMap<InstructionHandle, int[]>();
+
+	/**
+	 * Location of each instruction of the CFG, by bytecode position.
+	 */
+	private final Location[] locationByPosition;
+
+	/**
+	 * Locations of instructions which appear in more than one basic block
+	 * (inlined subroutines), other than the one in locationByPosition; null
+	 * if there are none.
+	 */
+	private Map<BasicBlock, Map<InstructionHandle, Location>> otherLocationMap;
+
+	/**
+	 * Locations of instructions the CFG builder added, which aren't in the
+	 * instruction list and have no bytecode position, such as the nop of the
+	 * entry block of a method starting with a try block.
+	 */
+	private final Map<InstructionHandle, Location> syntheticLocationMap = new IdentityHashMap<InstructionHandle, Location>();
+
+	private final Map<Stream, Integer> streamOrdinalMap = new IdentityHashMap<Stream, Integer>();
+
+	private final CFG cfg;
+
+	private final ConstantPoolGen cpg;
+
+	/**
+	 * Labels of the blocks reachable from each stream's creation block,
+	 * computed on first use.
+	 */
+	private final Map<Stream, BitSet> reachableBlockMap = new IdentityHashMap<Stream, BitSet>();
+
+	/**
+	 * Reachable block sets by start block, shared by streams created in the
+	 * same block.
+	 */
+	private final Map<BasicBlock, BitSet> reachableFromBlockMap = new IdentityHashMap<BasicBlock, BitSet>();
+
+	private int prunedEdgeCount;
+
+	/**
+	 * Operand stack depth at the end of each block along the edges other
+	 * than exception edges, by label, computed on first use.
+	 */
+	private int[] baselineDepths;
+
+	private boolean unpredictableStack;
+
+	private ReversePostOrder reversePostOrder;
+
+	/**
+	 * Block orders by slice, shared by the analyses using the same slice.
+	 */
+	private final Map<BitSet, BlockOrder> sliceBlockOrderMap = new IdentityHashMap<BitSet, BlockOrder>();
+
+	private int slicedBlockCount;
+
+	/**
+	 * Build the index of a method.
+	 *
+	 * @param methodGen
+	 *            the method
+	 * @param cfg
+	 *            the CFG of the method
+	 * @param resourceTracker
+	 *            the tracker of the method, for callee summaries
+	 * @param resourceCollection
+	 *            the streams of the method
+	 */
+	public MethodSiteIndex(MethodGen methodGen, CFG cfg,
+			LeakResourceTracker resourceTracker,
+			ResourceCollection<Stream> resourceCollection) {
+		this.cfg = cfg;
+		this.cpg = methodGen.getConstantPool();
+		InstructionList il = methodGen.getInstructionList();
+		siteKind = new byte[il.getEnd().getPosition() + 1];
+		EscapeModel.Resolution escapeResolution = ResourceLeakDetector.escapeModel
+				.resolve(cpg);
+
+		for (InstructionHandle handle = il.getStart(); handle != null; handle = handle
+				.getNext()) {
+			Instruction ins = handle.getInstruction();
+			if (!(ins instanceof InvokeInstruction))
+				continue;
+			InvokeInstruction inv = (InvokeInstruction) ins;
+			int kind = 0;
+
+			String methodName = inv.getMethodName(cpg);
+			if (ins instanceof INVOKESPECIAL
+					&& methodName.equals(Constants.CONSTRUCTOR_NAME))
+				kind |= OPEN_CANDIDATE;
+			if ((ins instanceof INVOKEVIRTUAL || ins instanceof INVOKEINTERFACE)
+					&& methodName.equals("close")
+					&& inv.getSignature(cpg).equals("()V"))
+				kind |= CLOSE_CANDIDATE;
+
+			if (escapeResolution.escapes(inv, 0, cpg))
+				kind |= RECEIVER_ESCAPES;
+			if (escapeResolution.escapes(inv, 1, cpg))
+				kind |= ARGUMENT_ESCAPES;
+
+			int[] closedArgumentDepths = getClosedArgumentDepths(inv, cpg,
+					resourceTracker);
+			if (closedArgumentDepths != null) {
+				kind |= CLOSES_ARGUMENT;
+				closedArgumentDepthMap.put(handle, closedArgumentDepths);
+			}
+
+			siteKind[handle.getPosition()] = (byte) kind;
+		}
+
+		for (Iterator<Stream> i = resourceCollection.resourceIterator(); i
+				.hasNext();) {
+			Stream stream = i.next();
+			// Parameter streams are located at the first instruction of the
+			// entry block, which may be a synthetic one
+			InstructionHandle handle = stream.getLocation().getHandle();
+			if (handle.getPosition() >= 0)
+				siteKind[handle.getPosition()] |= CREATION;
+			streamOrdinalMap.put(stream,
+					Integer.valueOf(streamOrdinalMap.size()));
+		}
+
+		locationByPosition = new Location[siteKind.length];
+		for (Iterator<Location> i = cfg.locationIterator(); i.hasNext();) {
+			Location location = i.next();
+			int position = location.getHandle().getPosition();
+			if (position < 0) {
+				syntheticLocationMap.put(location.getHandle(), location);
+				continue;
+			}
+			if (locationByPosition[position] == null) {
+				locationByPosition[position] = location;
+				continue;
+			}
+			if (otherLocationMap == null)
+				otherLocationMap = new IdentityHashMap<BasicBlock, Map<InstructionHandle, Location>>();
+			Map<InstructionHandle, Location> blockMap = otherLocationMap
+					.get(location.getBasicBlock());
+			if (blockMap == null) {
+				blockMap = new IdentityHashMap<InstructionHandle, Location>();
+				otherLocationMap.put(location.getBasicBlock(), blockMap);
+			}
+			blockMap.put(location.getHandle(), location);
+		}
+	}
+
+	private static int[] getClosedArgumentDepths(InvokeInstruction inv,
+			ConstantPoolGen cpg, LeakResourceTracker resourceTracker) {
+		long closedMask = resourceTracker.getClosedParameterMask(inv, cpg);
+		if (closedMask == 0L)
+			return null;
+		Type[] argumentTypes = inv.getArgumentTypes(cpg);
+		int[] depths = new int[Long.bitCount(closedMask)];
+		int count = 0;
+		for (long m = closedMask; m != 0L; m &= m - 1) {
+			int argument = Long.numberOfTrailingZeros(m);
+			if (argument < argumentTypes.length)
+				depths[count++] = ResourceSummary.getArgumentDepth(
+						argumentTypes, argument);
+		}
+		if (count == 0)
+			return null;
+		if (count < depths.length) {
+			int[] trimmed = new int[count];
+			System.arraycopy(depths, 0, trimmed, 0, count);
+			depths = trimmed;
+		}
+		return depths;
+	}
+
+	/**
+	 * Determine if an instruction has any of the given flags.
+	 */
+	public boolean is(InstructionHandle handle, int flags) {
+		int position = handle.getPosition();
+		return position >= 0 && (siteKind[position] & flags) != 0;
+	}
+
+	/**
+	 * Determine if a stream passed to a call as the given argument escapes.
+	 * Same as ResourceLeavModelingVisitor.isEscapingCall().
+	 *
+	 * @param handle
+	 *            the call
+	 * @param instanceArgNum
+	 *            the argument (0 is the receiver of an instance call)
+	 */
+	public boolean escapes(InstructionHandle handle, int instanceArgNum) {
+		return is(handle, instanceArgNum == 0 ? RECEIVER_ESCAPES
+				: ARGUMENT_ESCAPES);
+	}
+
+	/**
+	 * Get the Location of an instruction of the CFG. The same Location object
+	 * is returned each time.
+	 */
+	public Location getLocation(InstructionHandle handle, BasicBlock basicBlock) {
+		if (handle.getPosition() < 0) {
+			Location location = syntheticLocationMap.get(handle);
+			return location != null && location.getBasicBlock() == basicBlock ? location
+					: new Location(handle, basicBlock);
+		}
+		Location location = locationByPosition[handle.getPosition()];
+		if (location != null && location.getBasicBlock() == basicBlock)
+			return location;
+		if (otherLocationMap != null) {
+			Map<InstructionHandle, Location> blockMap = otherLocationMap
+					.get(basicBlock);
+			if (blockMap != null && (location = blockMap.get(handle)) != null)
+				return location;
+		}
+		return new Location(handle, basicBlock);
+	}
+
+	/**
+	 * Determine if some instructions appear in more than one basic block, as
+	 * they do when the CFG builder inlines jsr subroutines.
+	 */
+	public boolean hasInlinedSubroutines() {
+		return otherLocationMap != null;
+	}
+
+	/**
+	 * Get a number identifying an escape of a stream at a Location, unique
+	 * among the escapes of the method.
+	 *
+	 * @return the number, or -1 if escapes at the Location can't be numbered
+	 */
+	public int getEscapeKey(Stream source, Location target) {
+		Integer ordinal = streamOrdinalMap.get(source);
+		if (ordinal == null || otherLocationMap != null)
+			return -1;
+		return ordinal.intValue() * siteKind.length
+				+ target.getHandle().getPosition();
+	}
+
+	/**
+	 * Determine if a block can be reached from the block where a stream is
+	 * created. The stream doesn't exist in a block it can't reach, so the
+	 * frame on an exception edge leaving such a block holds no instance of
+	 * it and has status NONEXISTENT: merging it into the handler changes
+	 * nothing the stream's analysis reports, and the edge may be ignored.
+	 *
+	 * Parameter streams are created in the entry block, which reaches every
+	 * block.
+	 */
+	public boolean isReachable(Stream stream, BasicBlock block) {
+		BitSet reachable = reachableBlockMap.get(stream);
+		if (reachable == null) {
+			reachable = getReachableBlocks(stream.getLocation().getBasicBlock());
+			reachableBlockMap.put(stream, reachable);
+			prunedEdgeCount += countPrunableEdges(stream, reachable);
+		}
+		return reachable.get(block.getLabel());
+	}
+
+	/**
+	 * Get the labels of the blocks reachable from a block. The search stops
+	 * at blocks whose reachable set is already known and takes that set
+	 * over, so streams created one after the other share most of the work.
+	 */
+	private BitSet getReachableBlocks(BasicBlock start) {
+		BitSet reachable = reachableFromBlockMap.get(start);
+		if (reachable != null)
+			return reachable;
+		reachable = new BitSet();
+		reachable.set(start.getLabel());
+		LinkedList<BasicBlock> worklist = new LinkedList<BasicBlock>();
+		worklist.add(start);
+		while (!worklist.isEmpty()) {
+			BasicBlock block = worklist.removeFirst();
+			for (Iterator<Edge> i = cfg.outgoingEdgeIterator(block); i
+					.hasNext();) {
+				BasicBlock target = i.next().getTarget();
+				if (reachable.get(target.getLabel()))
+					continue;
+				BitSet known = reachableFromBlockMap.get(target);
+				if (known != null) {
+					reachable.or(known);
+				} else {
+					reachable.set(target.getLabel());
+					worklist.add(target);
+				}
+			}
+		}
+		reachableFromBlockMap.put(start, reachable);
+		return reachable;
+	}
+
+	/**
+	 * Work out the reachable blocks of the creation blocks of some streams,
+	 * last created first, so that each search can stop where the stream
+	 * created after it was.
+	 */
+	public void computeReachableBlocks(List<Stream> streamList) {
+		List<Stream> sorted = new ArrayList<Stream>(streamList);
+		Collections.sort(sorted, new Comparator<Stream>() {
+			public int compare(Stream a, Stream b) {
+				int pa = a.getLocation().getHandle().getPosition();
+				int pb = b.getLocation().getHandle().getPosition();
+				return pa > pb ? -1 : pa < pb ? 1 : 0;
+			}
+		});
+		for (Stream stream : sorted)
+			getReachableBlocks(stream.getLocation().getBasicBlock());
+	}
+
+	/**
+	 * Get the slice of the CFG the dataflow analysis of some streams has to
+	 * model: the blocks reachable from the blocks where they are created.
+	 * None of the streams exists outside the slice, and the exception edges
+	 * leaving it are ignored (see isReachable()), so the fact at the end of
+	 * a block outside the slice is that of getBaselineFact() for every
+	 * stream, and the analysis only needs to visit the blocks of the slice.
+	 *
+	 * @return the labels of the blocks of the slice, or null if the slice
+	 *         is the whole CFG or the method can't be sliced
+	 */
+	public BitSet getSlice(Stream[] streams) {
+		if (otherLocationMap != null || getBaselineDepths() == null)
+			return null;
+		BitSet slice;
+		if (streams.length == 1) {
+			slice = getReachableBlocks(streams[0].getLocation()
+					.getBasicBlock());
+		} else {
+			slice = new BitSet();
+			for (Stream stream : streams)
+				slice.or(getReachableBlocks(stream.getLocation()
+						.getBasicBlock()));
+		}
+		int outside = cfg.getNumBasicBlocks() - slice.cardinality();
+		if (outside == 0)
+			return null;
+		slicedBlockCount += outside * streams.length;
+		return slice;
+	}
+
+	/**
+	 * Get the blocks of a slice in reverse postorder. The order is shared by
+	 * all analyses using the same slice.
+	 */
+	public BlockOrder getSliceBlockOrder(BitSet slice, DepthFirstSearch dfs) {
+		if (reversePostOrder == null)
+			reversePostOrder = new ReversePostOrder(cfg, dfs);
+		BlockOrder order = sliceBlockOrderMap.get(slice);
+		if (order == null) {
+			order = new SliceBlockOrder(reversePostOrder, slice);
+			sliceBlockOrderMap.put(slice, order);
+		}
+		return order;
+	}
+
+	/**
+	 * Set a fact to what a dataflow analysis for streams which don't exist
+	 * in a block finds at the end of the block, following the edges other
+	 * than exception edges from the entry of the method: top if the block
+	 * can't be reached that way, else a frame with empty values in all
+	 * slots, as deep as the operand stack, or bottom where paths of
+	 * different stack depth meet. Setting the status of the streams is up
+	 * to the caller.
+	 *
+	 * @return false if the fact is top
+	 */
+	public <ValueType> boolean getBaselineFact(BasicBlock block,
+			Frame<ValueType> fact, ValueType empty) {
+		int depth = getBaselineDepths()[block.getLabel()];
+		if (depth == NO_DEPTH) {
+			fact.setTop();
+			return false;
+		}
+		if (depth == CONFLICTING_DEPTH) {
+			fact.setBottom();
+			return true;
+		}
+		fact.setValid();
+		fact.clearStack();
+		for (int i = 0; i < fact.getNumLocals(); ++i)
+			fact.setValue(i, empty);
+		for (int i = 0; i < depth; ++i)
+			fact.pushValue(empty);
+		return true;
+	}
+
+	/**
+	 * Get the operand stack depth at the end of each block, by label, along
+	 * the edges other than exception edges from the entry of the method.
+	 *
+	 * @return the depths, or null if the stack effect of an instruction
+	 *         can't be worked out
+	 */
+	private int[] getBaselineDepths() {
+		if (baselineDepths != null || unpredictableStack)
+			return baselineDepths;
+		int maxLabel = 0;
+		for (Iterator<BasicBlock> i = cfg.blockIterator(); i.hasNext();)
+			maxLabel = Math.max(maxLabel, i.next().getLabel());
+		int[] startDepths = new int[maxLabel + 1];
+		int[] depths = new int[maxLabel + 1];
+		Arrays.fill(startDepths, NO_DEPTH);
+		Arrays.fill(depths, NO_DEPTH);
+
+		LinkedList<BasicBlock> worklist = new LinkedList<BasicBlock>();
+		startDepths[cfg.getEntry().getLabel()] = 0;
+		worklist.add(cfg.getEntry());
+		while (!worklist.isEmpty()) {
+			BasicBlock block = worklist.removeFirst();
+			int depth = startDepths[block.getLabel()];
+			if (depth != CONFLICTING_DEPTH) {
+				int delta = getStackDelta(block);
+				if (delta == UNPREDICTABLE) {
+					unpredictableStack = true;
+					return null;
+				}
+				depth += delta;
+			}
+			depths[block.getLabel()] = depth;
+			for (Iterator<Edge> i = cfg.outgoingEdgeIterator(block); i
+					.hasNext();) {
+				Edge edge = i.next();
+				if (edge.isExceptionEdge())
+					continue;
+				int target = edge.getTarget().getLabel();
+				int merged = startDepths[target] == NO_DEPTH
+						|| startDepths[target] == depth ? depth
+						: CONFLICTING_DEPTH;
+				if (merged != startDepths[target]) {
+					startDepths[target] = merged;
+					worklist.add(edge.getTarget());
+				}
+			}
+		}
+		baselineDepths = depths;
+		return depths;
+	}
+
+	/**
+	 * Get the net change in operand stack depth of the instructions of a
+	 * block.
+	 */
+	private int getStackDelta(BasicBlock block) {
+		int delta = 0;
+		for (Iterator<InstructionHandle> i = block.instructionIterator(); i
+				.hasNext();) {
+			Instruction ins = i.next().getInstruction();
+			int consumed = ins.consumeStack(cpg);
+			int produced = ins.produceStack(cpg);
+			if (consumed == Constants.UNPREDICTABLE
+					|| produced == Constants.UNPREDICTABLE)
+				return UNPREDICTABLE;
+			delta += produced - consumed;
+		}
+		return delta;
+	}
+
+	/**
+	 * Get the number of blocks outside the slices returned by getSlice(),
+	 * summed over the streams.
+	 */
+	public int getSlicedBlockCount() {
+		return slicedBlockCount;
+	}
+
+	/**
+	 * Count the exception edges the analysis of a stream would merge, were
+	 * they not leaving blocks the stream can't reach.
+	 */
+	private int countPrunableEdges(Stream stream, BitSet reachable) {
+		boolean ignoreImplicitExceptions = stream.ignoreImplicitExceptions()
+				&& AnalysisContext.currentAnalysisContext().getBoolProperty(
+						AnalysisFeatures.ACCURATE_EXCEPTIONS);
+		int count = 0;
+		for (Iterator<Edge> i = cfg.edgeIterator(); i.hasNext();) {
+			Edge edge = i.next();
+			if (edge.isExceptionEdge()
+					&& !reachable.get(edge.getSource().getLabel())
+					&& (!ignoreImplicitExceptions || edge
+							.isFlagSet(EdgeTypes.EXPLICIT_EXCEPTIONS_FLAG)))
+				++count;
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of exception edges ignored because of isReachable(),
+	 * summed over the streams for which it was asked.
+	 */
+	public int getPrunedEdgeCount() {
+		return prunedEdgeCount;
+	}
+
+	/**
+	 * Get the depths in the operand stack, before a call, of the arguments
+	 * the called method closes.
+	 *
+	 * @return the depths, or null if the call isn't marked CLOSES_ARGUMENT
+	 */
+	public int[] getClosedArgumentDepths(InstructionHandle handle) {
+		if (!is(handle, CLOSES_ARGUMENT))
+			return null;
+		return closedArgumentDepthMap.get(handle);
+	}
+}
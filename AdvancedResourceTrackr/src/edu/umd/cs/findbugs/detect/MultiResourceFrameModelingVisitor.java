@@ -0,0 +1,271 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.AASTORE;
+import org.apache.bcel.generic.ARETURN;
+import org.apache.bcel.generic.CHECKCAST;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.INVOKEINTERFACE;
+import org.apache.bcel.generic.INVOKESPECIAL;
+import org.apache.bcel.generic.INVOKESTATIC;
+import org.apache.bcel.generic.INVOKEVIRTUAL;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.InvokeInstruction;
+import org.apache.bcel.generic.PUTFIELD;
+import org.apache.bcel.generic.PUTSTATIC;
+import org.apache.bcel.generic.Type;
+
+import edu.umd.cs.findbugs.ba.AbstractFrameModelingVisitor;
+import edu.umd.cs.findbugs.ba.AnalysisContext;
+import edu.umd.cs.findbugs.ba.BasicBlock;
+import edu.umd.cs.findbugs.ba.DataflowAnalysisException;
+import edu.umd.cs.findbugs.ba.InvalidBytecodeException;
+import edu.umd.cs.findbugs.ba.Location;
+import edu.umd.cs.findbugs.ba.ResourceValueFrame;
+
+/**
+ * Frame modeling visitor for MultiResourceValueAnalysis. For every tracked
+ * resource it models exactly what ResourceLeavModelingVisitor (and its
+ * ResourceValueFrameModelingVisitor superclass) do for a single resource, but
+ * the stack and local slots are modeled only once per instruction.
+ */
+public class MultiResourceFrameModelingVisitor extends
+		AbstractFrameModelingVisitor<MultiResourceValue, MultiResourceValueFrame> {
+	private final LeakResourceTracker resourceTracker;
+
+	private final Stream[] streams;
+
+	public MultiResourceFrameModelingVisitor(ConstantPoolGen cpg,
+			LeakResourceTracker resourceTracker, Stream[] streams) {
+		super(cpg);
+		this.resourceTracker = resourceTracker;
+		this.streams = streams;
+	}
+
+	@Override
+	public MultiResourceValue getDefaultValue() {
+		return MultiResourceValue.empty();
+	}
+
+	public void transferInstruction(InstructionHandle handle,
+			BasicBlock basicBlock) throws DataflowAnalysisException {
+		final Location location = getLocation();
+		final MultiResourceValueFrame frame = getFrame();
+		final long validMask = frame.getValidMask();
+
+		// Resources created by this instruction
+		long createdMask = 0L;
+		for (int i = 0; i < streams.length; ++i) {
+			Location creationPoint = streams[i].getLocation();
+			if (handle == creationPoint.getHandle()
+					&& basicBlock == creationPoint.getBasicBlock()
+					&& (validMask & (1L << i)) != 0L) {
+				createdMask |= 1L << i;
+			}
+		}
+
+		// Resources closed by this instruction
+		long closedMask = getClosedMask(basicBlock, handle, frame)
+				& ~createdMask;
+
+		// Model use of instance values in frame slots
+		analyzeInstruction(handle.getInstruction());
+
+		// Update status of created and closed resources
+		for (long m = createdMask; m != 0L; m &= m - 1) {
+			Stream stream = streams[Long.numberOfTrailingZeros(m)];
+			stream.setOpenLocation(location);
+			resourceTracker.addStreamOpenLocation(location, stream);
+		}
+		if (createdMask != 0L) {
+			frame.setStatus(createdMask, ResourceValueFrame.OPEN);
+			int top = frame.getNumSlots() - 1;
+			frame.setValue(top, MultiResourceValue.valueOf(frame.getValue(top)
+					.getMask() | createdMask));
+		}
+		frame.setStatus(closedMask, ResourceValueFrame.CLOSED);
+	}
+
+	/**
+	 * Get the set of resources closed by given instruction, as
+	 * Stream.isStreamClose() would decide for each of them.
+	 *
+	 * @param basicBlock
+	 *            the basic block containing the instruction
+	 * @param handle
+	 *            the instruction
+	 * @param frame
+	 *            the frame before the instruction
+	 */
+	public long getClosedMask(BasicBlock basicBlock, InstructionHandle handle,
+			MultiResourceValueFrame frame) {
+		if (!frame.isValid())
+			return 0L;
+		long closedMask = getClosedArgumentMask(handle, frame);
+		if (!resourceTracker.isCloseCandidate(basicBlock, handle, cpg))
+			return closedMask;
+
+		InvokeInstruction inv = (InvokeInstruction) handle.getInstruction();
+		int numConsumed = inv.consumeStack(cpg);
+		if (numConsumed == Constants.UNPREDICTABLE)
+			throw new IllegalStateException();
+		long instanceMask = frame.getValue(frame.getNumSlots() - numConsumed)
+				.getMask() & frame.getValidMask();
+
+		for (long m = instanceMask; m != 0L; m &= m - 1) {
+			int resource = Long.numberOfTrailingZeros(m);
+			if (resourceTracker.isStreamBaseClose(inv, cpg, streams[resource]))
+				closedMask |= 1L << resource;
+		}
+		return closedMask;
+	}
+
+	/**
+	 * Get the set of resources passed as arguments the called method closes,
+	 * according to its ResourceSummary or the escape model.
+	 */
+	private long getClosedArgumentMask(InstructionHandle handle,
+			MultiResourceValueFrame frame) {
+		MethodSiteIndex siteIndex = resourceTracker.getSiteIndex();
+		if (siteIndex != null) {
+			int[] depths = siteIndex.getClosedArgumentDepths(handle);
+			if (depths == null)
+				return 0L;
+			long closedMask = 0L;
+			for (int depth : depths)
+				closedMask |= frame.getValue(frame.getNumSlots() - 1 - depth)
+						.getMask();
+			return closedMask & frame.getValidMask();
+		}
+
+		Instruction ins = handle.getInstruction();
+		if (!(ins instanceof InvokeInstruction))
+			return 0L;
+		InvokeInstruction inv = (InvokeInstruction) ins;
+		long closedParameterMask = resourceTracker.getClosedParameterMask(inv,
+				cpg);
+		if (closedParameterMask == 0L)
+			return 0L;
+
+		Type[] argumentTypes = inv.getArgumentTypes(cpg);
+		long closedMask = 0L;
+		for (long m = closedParameterMask; m != 0L; m &= m - 1) {
+			int argument = Long.numberOfTrailingZeros(m);
+			if (argument >= argumentTypes.length)
+				continue;
+			int slot = frame.getNumSlots() - 1
+					- ResourceSummary.getArgumentDepth(argumentTypes, argument);
+			closedMask |= frame.getValue(slot).getMask();
+		}
+		return closedMask & frame.getValidMask();
+	}
+
+	/**
+	 * Mark all reached resources the given value may be an instance of as
+	 * escaped.
+	 */
+	private void escape(MultiResourceValue value) {
+		MultiResourceValueFrame frame = getFrame();
+		frame.setStatus(value.getMask() & frame.getValidMask(),
+				ResourceValueFrame.ESCAPED);
+	}
+
+	private void handleStore(Instruction ins) {
+		try {
+			// If the resource instance is stored in a field or array,
+			// then it escapes
+			escape(getFrame().getTopValue());
+		} catch (DataflowAnalysisException e) {
+			throw new InvalidBytecodeException("Stack underflow", e);
+		}
+		handleNormalInstruction(ins);
+	}
+
+	@Override
+	public void visitPUTFIELD(PUTFIELD putfield) {
+		handleStore(putfield);
+	}
+
+	@Override
+	public void visitPUTSTATIC(PUTSTATIC putstatic) {
+		handleStore(putstatic);
+	}
+
+	@Override
+	public void visitAASTORE(AASTORE aastore) {
+		handleStore(aastore);
+	}
+
+	@Override
+	public void visitARETURN(ARETURN areturn) {
+		handleStore(areturn);
+	}
+
+	@Override
+	public void visitCHECKCAST(CHECKCAST obj) {
+		try {
+			escape(getFrame().getTopValue());
+		} catch (DataflowAnalysisException e) {
+			AnalysisContext.logError("Analysis error", e);
+		}
+	}
+
+	private void handleInvoke(InvokeInstruction inv) {
+		MultiResourceValueFrame frame = getFrame();
+		int numSlots = frame.getNumSlots();
+		int numConsumed = getNumWordsConsumed(inv);
+
+		// Each resource passed as an argument is checked against the first
+		// argument it is passed as, like ResourceValueFrameModelingVisitor
+		// does for a single resource.
+		long seenMask = 0L;
+		long escapedMask = 0L;
+		for (int i = numSlots - numConsumed, argCount = 0; i < numSlots; ++i, ++argCount) {
+			long argMask = frame.getValue(i).getMask() & frame.getValidMask()
+					& ~seenMask;
+			if (argMask == 0L)
+				continue;
+			seenMask |= argMask;
+
+			MethodSiteIndex siteIndex = resourceTracker.getSiteIndex();
+			boolean escapes = siteIndex != null ? siteIndex.escapes(
+					getLocation().getHandle(), argCount)
+					: ResourceLeavModelingVisitor.isEscapingCall(inv,
+							argCount, cpg, getLocation());
+			if (escapes)
+				escapedMask |= argMask;
+
+			// Record the fact that this might be a stream escape
+			for (long m = argMask; m != 0L; m &= m - 1) {
+				Stream stream = streams[Long.numberOfTrailingZeros(m)];
+				if (stream.getOpenLocation() != null)
+					resourceTracker.addStreamEscape(stream, getLocation());
+			}
+		}
+		frame.setStatus(escapedMask, ResourceValueFrame.ESCAPED);
+
+		handleNormalInstruction(inv);
+	}
+
+	@Override
+	public void visitINVOKEVIRTUAL(INVOKEVIRTUAL obj) {
+		handleInvoke(obj);
+	}
+
+	@Override
+	public void visitINVOKEINTERFACE(INVOKEINTERFACE obj) {
+		handleInvoke(obj);
+	}
+
+	@Override
+	public void visitINVOKESPECIAL(INVOKESPECIAL obj) {
+		handleInvoke(obj);
+	}
+
+	@Override
+	public void visitINVOKESTATIC(INVOKESTATIC obj) {
+		handleInvoke(obj);
+	}
+}
@@ -0,0 +1,74 @@
+package edu.umd.cs.findbugs.detect;
+
+
+/**
+ * Value stored in a MultiResourceValueFrame slot: the set of tracked
+ * resources (by index) whose instance the slot may hold. This is the
+ * multi-resource counterpart of ResourceValue, where "instance" for resource
+ * N is bit N being set, and merging two values is their union.
+ *
+ * Instances are immutable; the empty value and all single-resource values are
+ * shared.
+ */
+public final class MultiResourceValue {
+	private static final MultiResourceValue EMPTY = new MultiResourceValue(0L);
+
+	private static final MultiResourceValue[] SINGLETONS = new MultiResourceValue[MultiResourceValueFrame.MAX_RESOURCES];
+	static {
+		for (int i = 0; i < SINGLETONS.length; ++i)
+			SINGLETONS[i] = new MultiResourceValue(1L << i);
+	}
+
+	private final long mask;
+
+	private MultiResourceValue(long mask) {
+		this.mask = mask;
+	}
+
+	public static MultiResourceValue empty() {
+		return EMPTY;
+	}
+
+	public static MultiResourceValue valueOf(long mask) {
+		if (mask == 0L)
+			return EMPTY;
+		if ((mask & (mask - 1)) == 0L)
+			return SINGLETONS[Long.numberOfTrailingZeros(mask)];
+		return new MultiResourceValue(mask);
+	}
+
+	public static MultiResourceValue merge(MultiResourceValue a,
+			MultiResourceValue b) {
+		if (a.mask == (a.mask | b.mask))
+			return a;
+		return valueOf(a.mask | b.mask);
+	}
+
+	/**
+	 * Get the set of resources this value may be an instance of.
+	 */
+	public long getMask() {
+		return mask;
+	}
+
+	public boolean isInstance(int resource) {
+		return (mask & (1L << resource)) != 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (mask ^ (mask >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof MultiResourceValue))
+			return false;
+		return mask == ((MultiResourceValue) o).mask;
+	}
+
+	@Override
+	public String toString() {
+		return mask == 0L ? "-" : Long.toHexString(mask);
+	}
+}
@@ -0,0 +1,332 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.util.BitSet;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.IFNONNULL;
+import org.apache.bcel.generic.IFNULL;
+import org.apache.bcel.generic.IF_ACMPEQ;
+import org.apache.bcel.generic.IF_ACMPNE;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.MethodGen;
+
+import edu.umd.cs.findbugs.ba.AnalysisContext;
+import edu.umd.cs.findbugs.ba.AnalysisFeatures;
+import edu.umd.cs.findbugs.ba.BasicBlock;
+import edu.umd.cs.findbugs.ba.BlockOrder;
+import edu.umd.cs.findbugs.ba.CFG;
+import edu.umd.cs.findbugs.ba.DataflowAnalysisException;
+import edu.umd.cs.findbugs.ba.DepthFirstSearch;
+import edu.umd.cs.findbugs.ba.Edge;
+import edu.umd.cs.findbugs.ba.EdgeTypes;
+import edu.umd.cs.findbugs.ba.FrameDataflowAnalysis;
+import edu.umd.cs.findbugs.ba.ResourceValueAnalysis;
+import edu.umd.cs.findbugs.ba.ResourceValueFrame;
+
+/**
+ * Dataflow analysis tracking the status of all resources of a method in one
+ * fixed-point computation. For each resource the result is the same as that
+ * of a separate ResourceValueAnalysis run with a LeakResourceTracker, but the
+ * CFG is walked once rather than once per resource.
+ *
+ * Only resources which are open on creation are supported, which is what
+ * LeakResourceTracker and ResourceLeakDetector create.
+ *
+ * @see ResourceValueAnalysis
+ */
+public class MultiResourceValueAnalysis extends
+		FrameDataflowAnalysis<MultiResourceValue, MultiResourceValueFrame>
+		implements EdgeTypes {
+	private final MethodGen methodGen;
+
+	private final CFG cfg;
+
+	private final LeakResourceTracker resourceTracker;
+
+	private final Stream[] streams;
+
+	private final MultiResourceFrameModelingVisitor visitor;
+
+	/**
+	 * Resources for which implicit exception edges are ignored.
+	 */
+	private final long ignoreImplicitExceptionsMask;
+
+	/**
+	 * Labels of the blocks visited, or null for all blocks.
+	 */
+	private final BitSet slice;
+
+	private final MultiResourceValueFrame baselineFact;
+
+	private final MethodBudget budget;
+
+	/**
+	 * @param slice
+	 *            the labels of the blocks reachable from the creation of one
+	 *            of the resources, from MethodSiteIndex.getSlice(), or null
+	 *            to visit every block
+	 * @param budget
+	 *            the budget of the method, charged for each iteration, or
+	 *            null for no limit
+	 */
+	public MultiResourceValueAnalysis(MethodGen methodGen, CFG cfg,
+			DepthFirstSearch dfs, LeakResourceTracker resourceTracker,
+			Stream[] streams, BitSet slice, MethodBudget budget) {
+		super(dfs);
+		this.methodGen = methodGen;
+		this.cfg = cfg;
+		this.resourceTracker = resourceTracker;
+		this.streams = streams;
+		this.slice = slice;
+		this.baselineFact = slice != null ? createFact() : null;
+		this.budget = budget;
+		this.visitor = new MultiResourceFrameModelingVisitor(
+				methodGen.getConstantPool(), resourceTracker, streams);
+
+		long mask = 0L;
+		for (int i = 0; i < streams.length; ++i) {
+			if (resourceTracker.ignoreImplicitExceptions(streams[i]))
+				mask |= 1L << i;
+		}
+		this.ignoreImplicitExceptionsMask = mask;
+	}
+
+	public Stream[] getStreams() {
+		return streams;
+	}
+
+	public MultiResourceValueFrame createFact() {
+		MultiResourceValueFrame fact = new MultiResourceValueFrame(
+				methodGen.getMaxLocals(), streams.length);
+		fact.setTop();
+		return fact;
+	}
+
+	public void initEntryFact(MultiResourceValueFrame result) {
+		result.setValid();
+		result.clearStack();
+		result.setValidMask(result.getAllResourcesMask());
+		final int numSlots = result.getNumSlots();
+		for (int i = 0; i < numSlots; ++i) {
+			long mask = 0L;
+			for (int j = 0; j < streams.length; ++j) {
+				if (resourceTracker.isParamInstance(streams[j], i))
+					mask |= 1L << j;
+			}
+			result.setValue(i, MultiResourceValue.valueOf(mask));
+		}
+	}
+
+	@Override
+	public void startIteration() {
+		if (budget != null)
+			budget.startIteration();
+	}
+
+	/**
+	 * With a slice, only the blocks of the slice are visited, as in
+	 * SlicedResourceValueAnalysis.
+	 */
+	@Override
+	public BlockOrder getBlockOrder(CFG cfg) {
+		if (slice == null)
+			return super.getBlockOrder(cfg);
+		return resourceTracker.getSiteIndex().getSliceBlockOrder(slice,
+				getDepthFirstSearch());
+	}
+
+	public void meetInto(MultiResourceValueFrame fact, Edge edge,
+			MultiResourceValueFrame result) throws DataflowAnalysisException {
+		BasicBlock source = edge.getSource();
+		BasicBlock dest = edge.getTarget();
+
+		if (slice != null && !slice.get(source.getLabel())) {
+			// The source is outside the slice, where none of the resources
+			// exists: its fact is the baseline one
+			if (!resourceTracker.getSiteIndex().getBaselineFact(source,
+					baselineFact, MultiResourceValue.empty()))
+				return;
+			baselineFact.setValidMask(baselineFact.getAllResourcesMask());
+			baselineFact.setStatus(baselineFact.getAllResourcesMask(),
+					ResourceValueFrame.NONEXISTENT);
+			fact = baselineFact;
+		}
+		ConstantPoolGen cpg = methodGen.getConstantPool();
+
+		MultiResourceValueFrame tmpFact = null;
+
+		if (edge.isExceptionEdge()) {
+			// Resources for which this edge is ignored don't see it at all.
+			long ignoredMask = 0L;
+			if (AnalysisContext.currentAnalysisContext().getBoolProperty(
+					AnalysisFeatures.ACCURATE_EXCEPTIONS)
+					&& !edge.isFlagSet(EXPLICIT_EXCEPTIONS_FLAG))
+				ignoredMask |= ignoreImplicitExceptionsMask;
+			for (int i = 0; i < streams.length; ++i) {
+				if ((ignoredMask & (1L << i)) == 0L
+						&& resourceTracker.ignoreExceptionEdge(edge,
+								streams[i], cpg))
+					ignoredMask |= 1L << i;
+			}
+			if (fact.isValid() && (fact.getValidMask() & ~ignoredMask) == 0L)
+				return;
+			if ((fact.getValidMask() & ignoredMask) != 0L) {
+				tmpFact = modifyFrame(fact, tmpFact);
+				tmpFact.invalidateResources(ignoredMask);
+			}
+
+			// If status is OPEN, downgrade to OPEN_ON_EXCEPTION_PATH
+			long openMask = fact.getResourcesWithStatus(ResourceValueFrame.OPEN)
+					& ~ignoredMask;
+			if (openMask != 0L) {
+				tmpFact = modifyFrame(fact, tmpFact);
+				tmpFact.setStatus(openMask,
+						ResourceValueFrame.OPEN_ON_EXCEPTION_PATH);
+			}
+
+			if (fact.isValid()) {
+				// Special case: if the instruction that closes the resource
+				// throws an exception, we consider the resource to be
+				// successfully closed anyway.
+				InstructionHandle exceptionThrower = source
+						.getExceptionThrower();
+				BasicBlock fallThroughSuccessor = cfg.getSuccessorWithEdgeType(
+						source, FALL_THROUGH_EDGE);
+				if (fallThroughSuccessor != null) {
+					long closedMask = visitor.getClosedMask(
+							fallThroughSuccessor, exceptionThrower, fact)
+							& ~ignoredMask;
+					if (closedMask != 0L) {
+						tmpFact = modifyFrame(fact, tmpFact);
+						tmpFact.setStatus(closedMask, ResourceValueFrame.CLOSED);
+					}
+				}
+			}
+
+			if (dest.isExceptionHandler()) {
+				// Clear stack, push value for exception
+				if (fact.isValid()) {
+					tmpFact = modifyFrame(fact, tmpFact);
+					tmpFact.clearStack();
+					tmpFact.pushValue(MultiResourceValue.empty());
+				}
+			}
+		}
+
+		// Make the resource nonexistent if it is compared against null
+		int edgeType = edge.getType();
+		if (edgeType == IFCMP_EDGE || edgeType == FALL_THROUGH_EDGE) {
+			long nonexistentMask = getNullCheckedMask(source, edgeType);
+			if (nonexistentMask != 0L) {
+				tmpFact = modifyFrame(fact, tmpFact);
+				tmpFact.setStatus(nonexistentMask & tmpFact.getValidMask(),
+						ResourceValueFrame.NONEXISTENT);
+			}
+		}
+
+		if (tmpFact != null)
+			fact = tmpFact;
+
+		mergeInto(fact, result);
+	}
+
+	/**
+	 * Get the set of resources which are known to be null along an edge
+	 * leaving the given block, because the block ends in a null check of the
+	 * resource instance.
+	 */
+	private long getNullCheckedMask(BasicBlock source, int edgeType)
+			throws DataflowAnalysisException {
+		InstructionHandle lastInSourceHandle = source.getLastInstruction();
+		if (lastInSourceHandle == null)
+			return 0L;
+
+		Instruction lastInSource = lastInSourceHandle.getInstruction();
+		boolean isNullCheck = false;
+		boolean isNonNullCheck = false;
+		if (lastInSource instanceof IF_ACMPEQ
+				|| lastInSource instanceof IF_ACMPNE) {
+			ConstantPoolGen cpg = methodGen.getConstantPool();
+			// Get instructions that pushed the two compared values
+			InstructionHandle ihPrev = lastInSourceHandle.getPrev();
+			InstructionHandle ihPrevPrev = ihPrev == null ? null : ihPrev
+					.getPrev();
+			// If instructions that pushed both are exactly one instruction,
+			// and one is ACONST_NULL
+			if (ihPrev != null
+					&& ihPrevPrev != null
+					&& ihPrev.getInstruction().produceStack(cpg) == 1
+					&& ihPrevPrev.getInstruction().produceStack(cpg) == 1
+					&& ihPrev.getInstruction().getOpcode() == Constants.ACONST_NULL) {
+				isNullCheck = lastInSource instanceof IF_ACMPEQ;
+				isNonNullCheck = lastInSource instanceof IF_ACMPNE;
+			}
+		} else if (lastInSource instanceof IFNULL
+				|| lastInSource instanceof IFNONNULL) {
+			isNullCheck = lastInSource instanceof IFNULL;
+			isNonNullCheck = lastInSource instanceof IFNONNULL;
+		}
+
+		if (!((isNullCheck && edgeType == IFCMP_EDGE) || (isNonNullCheck && edgeType == FALL_THROUGH_EDGE)))
+			return 0L;
+
+		// Get the frame at the if statement
+		MultiResourceValueFrame startFrame = getStartFact(source);
+		if (!startFrame.isValid())
+			return 0L;
+		MultiResourceValueFrame frameAtIf = getFactAtLocation(resourceTracker
+				.getLocation(lastInSourceHandle, source));
+		return frameAtIf.getValue(frameAtIf.getNumSlots() - 1).getMask()
+				& startFrame.getValidMask();
+	}
+
+	@Override
+	protected void mergeInto(MultiResourceValueFrame frame,
+			MultiResourceValueFrame result) throws DataflowAnalysisException {
+		boolean resultWasTop = result.isTop();
+		long resultValidMask = result.getValidMask();
+
+		// Merge slot values
+		super.mergeInto(frame, result);
+
+		if (resultWasTop || frame.isTop())
+			return;
+
+		// Merge status: resources reached for the first time take the
+		// incoming status, others take the minimum of the two. As in
+		// ResourceValueAnalysis, this is done even if the slots merged to
+		// bottom, as they do at the exit block when exception edges leave
+		// with different stack depths.
+		long frameValidMask = frame.getValidMask();
+		for (long m = frameValidMask; m != 0L; m &= m - 1) {
+			int resource = Long.numberOfTrailingZeros(m);
+			int status = frame.getStatus(resource);
+			if ((resultValidMask & (1L << resource)) != 0L)
+				status = Math.min(result.getStatus(resource), status);
+			result.setStatus(resource, status);
+		}
+		result.setValidMask(resultValidMask | frameValidMask);
+	}
+
+	@Override
+	protected void mergeValues(MultiResourceValueFrame otherFrame,
+			MultiResourceValueFrame resultFrame, int slot)
+			throws DataflowAnalysisException {
+		MultiResourceValue value = MultiResourceValue.merge(
+				resultFrame.getValue(slot), otherFrame.getValue(slot));
+		resultFrame.setValue(slot, value);
+	}
+
+	@Override
+	public void transferInstruction(InstructionHandle handle,
+			BasicBlock basicBlock, MultiResourceValueFrame fact)
+			throws DataflowAnalysisException {
+		visitor.setFrameAndLocation(fact, resourceTracker.getLocation(handle,
+				basicBlock));
+		visitor.transferInstruction(handle, basicBlock);
+	}
+}
@@ -0,0 +1,170 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.util.Arrays;
+
+import edu.umd.cs.findbugs.ba.Frame;
+import edu.umd.cs.findbugs.ba.ResourceValueFrame;
+
+/**
+ * Dataflow fact tracking several resources at once. Slots hold
+ * MultiResourceValues (bitmasks of resource indices), and the per-resource
+ * ResourceValueFrame status of each resource is packed four bits per resource
+ * into a small long array.
+ *
+ * Because a single frame stands in for one ResourceValueFrame per resource, a
+ * resource can be "top" (not yet reached) while the frame as a whole is valid.
+ * The valid mask records which resources have been reached; the status of an
+ * unreached resource is always NONEXISTENT and its bit is clear in every slot.
+ */
+public class MultiResourceValueFrame extends Frame<MultiResourceValue> {
+	/**
+	 * Maximum number of resources tracked by one frame.
+	 */
+	public static final int MAX_RESOURCES = 64;
+
+	private static final int BITS_PER_STATUS = 4;
+
+	private static final int STATUS_PER_WORD = 64 / BITS_PER_STATUS;
+
+	private static final long STATUS_MASK = (1L << BITS_PER_STATUS) - 1;
+
+	/**
+	 * Every status nibble set to NONEXISTENT.
+	 */
+	private static final long ALL_NONEXISTENT;
+	static {
+		long word = 0L;
+		for (int i = 0; i < STATUS_PER_WORD; ++i)
+			word |= ((long) ResourceValueFrame.NONEXISTENT) << (i * BITS_PER_STATUS);
+		ALL_NONEXISTENT = word;
+	}
+
+	private final int numResources;
+
+	private final long[] statusWords;
+
+	private long validMask;
+
+	public MultiResourceValueFrame(int numLocals, int numResources) {
+		super(numLocals);
+		if (numResources > MAX_RESOURCES)
+			throw new IllegalArgumentException("Too many resources: "
+					+ numResources);
+		this.numResources = numResources;
+		this.statusWords = new long[(numResources + STATUS_PER_WORD - 1)
+				/ STATUS_PER_WORD];
+		Arrays.fill(statusWords, ALL_NONEXISTENT);
+	}
+
+	public int getNumResources() {
+		return numResources;
+	}
+
+	/**
+	 * Get a mask with a bit set for every resource tracked by this frame.
+	 */
+	public long getAllResourcesMask() {
+		return numResources == MAX_RESOURCES ? -1L : (1L << numResources) - 1;
+	}
+
+	public int getStatus(int resource) {
+		int shift = (resource % STATUS_PER_WORD) * BITS_PER_STATUS;
+		return (int) ((statusWords[resource / STATUS_PER_WORD] >>> shift) & STATUS_MASK);
+	}
+
+	public void setStatus(int resource, int status) {
+		int word = resource / STATUS_PER_WORD;
+		int shift = (resource % STATUS_PER_WORD) * BITS_PER_STATUS;
+		statusWords[word] = (statusWords[word] & ~(STATUS_MASK << shift))
+				| (((long) status) << shift);
+	}
+
+	/**
+	 * Set the status of every resource in the given mask.
+	 */
+	public void setStatus(long resourceMask, int status) {
+		for (long m = resourceMask; m != 0L; m &= m - 1)
+			setStatus(Long.numberOfTrailingZeros(m), status);
+	}
+
+	/**
+	 * Get the set of resources which have been reached by the analysis.
+	 */
+	public long getValidMask() {
+		return validMask;
+	}
+
+	public void setValidMask(long validMask) {
+		this.validMask = validMask;
+	}
+
+	public boolean isResourceValid(int resource) {
+		return (validMask & (1L << resource)) != 0;
+	}
+
+	/**
+	 * Get the set of resources which are in the given status.
+	 */
+	public long getResourcesWithStatus(int status) {
+		long result = 0L;
+		for (long m = validMask; m != 0L; m &= m - 1) {
+			int resource = Long.numberOfTrailingZeros(m);
+			if (getStatus(resource) == status)
+				result |= 1L << resource;
+		}
+		return result;
+	}
+
+	/**
+	 * Make the given resources unreached: their status becomes NONEXISTENT and
+	 * no slot refers to them any more.
+	 */
+	public void invalidateResources(long resourceMask) {
+		resourceMask &= validMask;
+		if (resourceMask == 0L)
+			return;
+		validMask &= ~resourceMask;
+		setStatus(resourceMask, ResourceValueFrame.NONEXISTENT);
+		if (!isValid())
+			return;
+		for (int i = 0; i < getNumSlots(); ++i) {
+			MultiResourceValue value = getValue(i);
+			if ((value.getMask() & resourceMask) != 0L)
+				setValue(i, MultiResourceValue.valueOf(value.getMask()
+						& ~resourceMask));
+		}
+	}
+
+	@Override
+	public boolean sameAs(Frame<MultiResourceValue> other) {
+		if (!super.sameAs(other))
+			return false;
+
+		MultiResourceValueFrame otherFrame = (MultiResourceValueFrame) other;
+		return validMask == otherFrame.validMask
+				&& Arrays.equals(statusWords, otherFrame.statusWords);
+	}
+
+	@Override
+	public void copyFrom(Frame<MultiResourceValue> other) {
+		super.copyFrom(other);
+		MultiResourceValueFrame otherFrame = (MultiResourceValueFrame) other;
+		System.arraycopy(otherFrame.statusWords, 0, statusWords, 0,
+				statusWords.length);
+		validMask = otherFrame.validMask;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder(super.toString());
+		buf.append(" status=[");
+		for (int i = 0; i < numResources; ++i) {
+			if (i > 0)
+				buf.append(',');
+			buf.append(isResourceValid(i) ? String.valueOf(getStatus(i)) : "T");
+		}
+		buf.append(']');
+		return buf.toString();
+	}
+}
@@ -0,0 +1,201 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.util.BitSet;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantCP;
+import org.apache.bcel.classfile.ConstantInterfaceMethodref;
+import org.apache.bcel.classfile.ConstantMethodref;
+import org.apache.bcel.classfile.ConstantNameAndType;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.Type;
+
+import edu.umd.cs.findbugs.ba.RepositoryLookupFailureCallback;
+
+/**
+ * Method-level prescreen. Streams are only created by calls to methods with a
+ * resource return type, so a method which calls none of them has nothing to
+ * track. The constant-pool entries of such methods are found once per class,
+ * and each method is then checked by a linear scan of its bytecode, before any
+ * MethodGen or CFG is built for it.
+ */
+public class ResourceCallPrescreen {
+	/**
+	 * Length of each instruction, by opcode, or 0 if the length isn't fixed
+	 * (switches and wide) or the opcode is unknown.
+	 */
+	static final int[] INSTRUCTION_LENGTH = new int[256];
+
+	static {
+		for (int opcode = 0; opcode < INSTRUCTION_LENGTH.length; ++opcode) {
+			if (opcode >= Constants.NO_OF_OPERANDS.length
+					|| Constants.NO_OF_OPERANDS[opcode] < 0)
+				continue;
+			int length = 1;
+			for (short operandType : Constants.TYPE_OF_OPERANDS[opcode]) {
+				switch (operandType) {
+				case Constants.T_BYTE:
+					length += 1;
+					break;
+				case Constants.T_SHORT:
+					length += 2;
+					break;
+				case Constants.T_INT:
+					length += 4;
+					break;
+				default:
+					throw new IllegalStateException("Unknown operand type "
+							+ operandType);
+				}
+			}
+			INSTRUCTION_LENGTH[opcode] = length;
+		}
+		// Not in BCEL's tables: invokedynamic, index and two zero bytes
+		INSTRUCTION_LENGTH[186] = 5;
+	}
+
+	private final BitSet resourceMethodSet = new BitSet();
+
+	/**
+	 * Find the methods with a resource return type named in the constant pool
+	 * of a class.
+	 */
+	public ResourceCallPrescreen(JavaClass javaClass,
+			ResourceSubtypeCache subtypeCache,
+			RepositoryLookupFailureCallback lookupFailureCallback) {
+		ConstantPool cp = javaClass.getConstantPool();
+		for (int i = 1; i < cp.getLength(); ++i) {
+			Constant constant = cp.getConstant(i);
+			if (!(constant instanceof ConstantMethodref)
+					&& !(constant instanceof ConstantInterfaceMethodref))
+				continue;
+			ConstantNameAndType nameAndType = (ConstantNameAndType) cp
+					.getConstant(((ConstantCP) constant).getNameAndTypeIndex(),
+							Constants.CONSTANT_NameAndType);
+			Type returnType = Type.getReturnType(nameAndType.getSignature(cp));
+			if (returnType instanceof ObjectType
+					&& subtypeCache.getResourceBase((ObjectType) returnType,
+							lookupFailureCallback) != null)
+				resourceMethodSet.set(i);
+		}
+	}
+
+	/**
+	 * Determine if no method of the class can create a stream.
+	 */
+	public boolean isEmpty() {
+		return resourceMethodSet.isEmpty();
+	}
+
+	/**
+	 * Determine if the method named by a constant-pool entry has a resource
+	 * return type.
+	 */
+	public boolean isResourceMethod(int constantIndex) {
+		return resourceMethodSet.get(constantIndex);
+	}
+
+	/**
+	 * Determine if a method calls any method with a resource return type.
+	 */
+	public boolean callsResourceMethod(Method method) {
+		Code code = method.getCode();
+		if (code == null || resourceMethodSet.isEmpty())
+			return false;
+		return callsAny(code.getCode(), resourceMethodSet);
+	}
+
+	/**
+	 * Count the calls a method makes to methods with a resource return type,
+	 * for ClassCostModel.
+	 */
+	public int countResourceCalls(Method method) {
+		Code code = method.getCode();
+		if (code == null || resourceMethodSet.isEmpty())
+			return 0;
+		return countCalls(code.getCode(), resourceMethodSet, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Scan bytecode for invoke instructions whose constant-pool index is in a
+	 * set. Returns true if the bytecode can't be decoded, so the method still
+	 * gets the full analysis.
+	 */
+	static boolean callsAny(byte[] code, BitSet methodIndexSet) {
+		return countCalls(code, methodIndexSet, 1) > 0;
+	}
+
+	/**
+	 * Count the invoke instructions whose constant-pool index is in a set,
+	 * stopping at the given number. If the bytecode can't be decoded, one
+	 * more call is counted than were found before the failure.
+	 */
+	static int countCalls(byte[] code, BitSet methodIndexSet, int limit) {
+		int count = 0;
+		int pc = 0;
+		while (pc < code.length) {
+			int opcode = code[pc] & 0xff;
+			switch (opcode) {
+			case Constants.INVOKEVIRTUAL:
+			case Constants.INVOKESPECIAL:
+			case Constants.INVOKESTATIC:
+			case Constants.INVOKEINTERFACE:
+				if (pc + 2 >= code.length)
+					return count + 1;
+				if (methodIndexSet.get(readUnsignedShort(code, pc + 1))
+						&& ++count >= limit)
+					return count;
+				pc += INSTRUCTION_LENGTH[opcode];
+				break;
+			case Constants.TABLESWITCH: {
+				int base = (pc + 4) & ~3;
+				if (base + 12 > code.length)
+					return count + 1;
+				long entries = (long) readInt(code, base + 8)
+						- readInt(code, base + 4) + 1;
+				pc = (int) Math.min(code.length, base + 12 + entries * 4);
+				break;
+			}
+			case Constants.LOOKUPSWITCH: {
+				int base = (pc + 4) & ~3;
+				if (base + 8 > code.length)
+					return count + 1;
+				long entries = readInt(code, base + 4);
+				pc = (int) Math.min(code.length, base + 8 + entries * 8);
+				break;
+			}
+			case Constants.WIDE:
+				if (pc + 1 >= code.length)
+					return count + 1;
+				pc += (code[pc + 1] & 0xff) == Constants.IINC ? 6 : 4;
+				break;
+			default:
+				if (INSTRUCTION_LENGTH[opcode] == 0)
+					return count + 1;
+				pc += INSTRUCTION_LENGTH[opcode];
+				break;
+			}
+		}
+		return count;
+	}
+
+	private static int readUnsignedShort(byte[] code, int offset) {
+		return ((code[offset] & 0xff) << 8) | (code[offset + 1] & 0xff);
+	}
+
+	private static int readInt(byte[] code, int offset) {
+		return (readUnsignedShort(code, offset) << 16)
+				| readUnsignedShort(code, offset + 2);
+	}
+
+	@Override
+	public String toString() {
+		return "ResourceCallPrescreen" + resourceMethodSet;
+	}
+}
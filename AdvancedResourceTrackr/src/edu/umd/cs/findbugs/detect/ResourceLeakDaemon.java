@@ -0,0 +1,645 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import edu.umd.cs.findbugs.BugAnnotation;
+import edu.umd.cs.findbugs.BugCollection;
+import edu.umd.cs.findbugs.BugInstance;
+import edu.umd.cs.findbugs.BugPattern;
+import edu.umd.cs.findbugs.BugReporter;
+import edu.umd.cs.findbugs.BugReporterObserver;
+import edu.umd.cs.findbugs.DetectorFactoryCollection;
+import edu.umd.cs.findbugs.FindBugs2;
+import edu.umd.cs.findbugs.NoOpFindBugsProgress;
+import edu.umd.cs.findbugs.Project;
+import edu.umd.cs.findbugs.ProjectStats;
+import edu.umd.cs.findbugs.SourceLineAnnotation;
+import edu.umd.cs.findbugs.ba.AnalysisContext;
+import edu.umd.cs.findbugs.ba.ClassContext;
+import edu.umd.cs.findbugs.ba.ClassNotFoundExceptionParser;
+import edu.umd.cs.findbugs.ba.XClass;
+import edu.umd.cs.findbugs.classfile.CheckedAnalysisException;
+import edu.umd.cs.findbugs.classfile.ClassDescriptor;
+import edu.umd.cs.findbugs.classfile.Global;
+import edu.umd.cs.findbugs.classfile.IAnalysisCache;
+import edu.umd.cs.findbugs.classfile.IClassFactory;
+import edu.umd.cs.findbugs.classfile.IClassPath;
+import edu.umd.cs.findbugs.classfile.IClassPathBuilder;
+import edu.umd.cs.findbugs.classfile.MethodDescriptor;
+import edu.umd.cs.findbugs.classfile.impl.ClassFactory;
+
+/**
+ * Long-running ResourceLeakDetector answering requests to analyze class
+ * files, directories and jars over a loopback socket. A FindBugs run starts
+ * a JVM, loads FindBugs and warms up the JIT before the detector sees a
+ * class; the daemon pays for that once, and keeps the caches of the
+ * detector between requests:
+ * <ul>
+ * <li>the ResourceSubtypeCache, less the entries for the classes of the
+ * request and for classes which could not be found;</li>
+ * <li>the summaries of the ResourceSummaryDatabase, while the class files
+ * they were derived from are unchanged;</li>
+ * <li>the ClassResultCache, with fos.resultCache.</li>
+ * </ul>
+ * The FindBugs class path and AnalysisContext are built for each request,
+ * from the files of the request and the auxiliary class path, so the bugs
+ * returned are those a FindBugs run on just those files would find.
+ * Requests are handled one at a time.
+ *
+ * Only the user running the daemon may send it requests: the daemon writes
+ * a random token to a file only its owner can read, next to the port file
+ * by default, and drops connections which don't send it.
+ *
+ * The protocol is line based, in UTF-8, with one request per connection.
+ * The first line is the token, the second the command:
+ * <ul>
+ * <li>ANALYZE, followed by one path per line and an empty line: the reply
+ * is one JSON record per bug, as StreamingBugWriter writes them, then a
+ * summary record with "done":true;</li>
+ * <li>STATS: the reply is one JSON record of the daemon's counters;</li>
+ * <li>SHUTDOWN: the daemon saves its caches, as at the end of a FindBugs
+ * run, replies and exits.</li>
+ * </ul>
+ *
+ * Usage, with FindBugs and the detector on the classpath:
+ *
+ * <pre>
+ * java edu.umd.cs.findbugs.detect.ResourceLeakDaemon [-port n]
+ *     [-portFile file] [-tokenFile file] [-auxclasspath path]
+ * java edu.umd.cs.findbugs.detect.ResourceLeakDaemon -connect port
+ *     -tokenFile file path...
+ * java edu.umd.cs.findbugs.detect.ResourceLeakDaemon -connect port
+ *     -tokenFile file -stats
+ * java edu.umd.cs.findbugs.detect.ResourceLeakDaemon -connect port
+ *     -tokenFile file -shutdown
+ * java edu.umd.cs.findbugs.detect.ResourceLeakDaemon -once
+ *     [-auxclasspath path] path...
+ * </pre>
+ *
+ * The first form serves requests, on the given port or, by default, any
+ * free one, which is printed and written to the port file if given. The
+ * token file defaults to the port file with ".token" appended, or else to a
+ * new temporary file, whose name is printed. The next three are a client,
+ * printing the reply; the token file defaults to the one next to the port
+ * file if -portFile is given instead. -once analyzes the paths in this JVM
+ * and exits, as a cold run would.
+ */
+public class ResourceLeakDaemon {
+	static final String ANALYZE = "ANALYZE";
+
+	static final String STATS = "STATS";
+
+	static final String SHUTDOWN = "SHUTDOWN";
+
+	/**
+	 * How long a client may take to send its request.
+	 */
+	private static final int READ_TIMEOUT_MILLIS = 60000;
+
+	/**
+	 * The types and short descriptions of the bugs the detector reports, as
+	 * in findbugs.xml and messages.xml.
+	 */
+	private static final String[][] BUG_PATTERNS = {
+			{ "RESOURCE_LEAK", "Method may not have closed the resource" },
+			{ "RESOURCE_LEAK_EXCEPTION_PATH",
+					"Method may not have closed the resource on an exception path" },
+			{ ResourceLeakDetector.TRUNCATED_BUG_TYPE,
+					"Resource leak analysis of method truncated" } };
+
+	/**
+	 * Collects the bugs and errors of a request.
+	 */
+	static class ResultReporter implements BugReporter {
+		final List<BugInstance> bugList = new ArrayList<BugInstance>();
+
+		final List<String> errorList = new ArrayList<String>();
+
+		final Set<String> missingClassSet = new TreeSet<String>();
+
+		private final ProjectStats projectStats = new ProjectStats();
+
+		public void setErrorVerbosity(int level) {
+		}
+
+		public void setPriorityThreshold(int threshold) {
+		}
+
+		public void reportBug(BugInstance bugInstance) {
+			bugList.add(bugInstance);
+		}
+
+		public void finish() {
+		}
+
+		public void reportQueuedErrors() {
+		}
+
+		public void addObserver(BugReporterObserver observer) {
+		}
+
+		public ProjectStats getProjectStats() {
+			return projectStats;
+		}
+
+		public BugCollection getBugCollection() {
+			return null;
+		}
+
+		public void observeClass(ClassDescriptor classDescriptor) {
+		}
+
+		public void reportMissingClass(ClassNotFoundException ex) {
+			String className = ClassNotFoundExceptionParser
+					.getMissingClassName(ex);
+			missingClassSet.add(className != null ? className : String
+					.valueOf(ex));
+		}
+
+		public void reportMissingClass(ClassDescriptor classDescriptor) {
+			missingClassSet.add(classDescriptor.toDottedClassName());
+		}
+
+		public void logError(String message) {
+			errorList.add(message);
+		}
+
+		public void logError(String message, Throwable e) {
+			errorList.add(message + ": " + e);
+		}
+
+		public void reportSkippedAnalysis(MethodDescriptor method) {
+		}
+	}
+
+	private final List<String> auxClasspath;
+
+	private final String token;
+
+	private int requestCount;
+
+	private int classCount;
+
+	private int bugCount;
+
+	private long busyNanos;
+
+	/**
+	 * @param auxClasspath
+	 *            the class path entries the classes of the requests may refer
+	 *            to
+	 */
+	public ResourceLeakDaemon(List<String> auxClasspath) {
+		this.auxClasspath = auxClasspath;
+		byte[] secret = new byte[16];
+		new SecureRandom().nextBytes(secret);
+		StringBuilder buf = new StringBuilder();
+		for (byte b : secret)
+			buf.append(String.format("%02x", b & 0xff));
+		this.token = buf.toString();
+	}
+
+	/**
+	 * Get the token requests must start with.
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * Analyze the classes of some class files, directories and jars.
+	 *
+	 * @param out
+	 *            where to write one JSON record per bug, then a summary
+	 *            record
+	 * @return the number of bugs
+	 */
+	public synchronized int analyze(List<String> pathList, Writer out)
+			throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		ResultReporter reporter = new ResultReporter();
+		int analyzedCount = analyzeClasses(pathList, auxClasspath, null,
+				true, reporter);
+
+		writeBugs(reporter, out);
+		long nanos = System.nanoTime() - start;
+		out.write("{\"done\":true,\"classes\":" + analyzedCount
+				+ ",\"bugs\":" + reporter.bugList.size() + ",\"millis\":"
+				+ nanos / 1000000 + ",\"missingClasses\":"
+				+ reporter.missingClassSet.size() + ",\"errors\":"
+				+ toJSON(reporter.errorList) + "}\n");
+		out.flush();
+
+		++requestCount;
+		classCount += analyzedCount;
+		bugCount += reporter.bugList.size();
+		busyNanos += nanos;
+		return reporter.bugList.size();
+	}
+
+	/**
+	 * Run a new ResourceLeakDetector over application classes, with a
+	 * FindBugs class path and AnalysisContext built for them.
+	 *
+	 * @param pathList
+	 *            the class files, directories and jars of the application
+	 * @param auxClasspath
+	 *            the class path entries the application may refer to
+	 * @param classNameSet
+	 *            the dotted names of the application classes to analyze, or
+	 *            null for all of them
+	 * @param invalidateCaches
+	 *            whether to drop only what the caches of the detector hold
+	 *            about the application classes from an earlier run in the
+	 *            JVM, rather than all of it
+	 * @return the number of classes analyzed
+	 */
+	static int analyzeClasses(List<String> pathList, List<String> auxClasspath,
+			Set<String> classNameSet, boolean invalidateCaches,
+			ResultReporter reporter) throws IOException, InterruptedException {
+		int analyzedCount = 0;
+		registerBugPatterns();
+		IClassFactory classFactory = ClassFactory.instance();
+		IClassPath classPath = classFactory.createClassPath();
+		try {
+			// As in FindBugs2, the analysis cache comes first: opening an
+			// archive code base reports to its profiler
+			IAnalysisCache analysisCache = classFactory.createAnalysisCache(
+					classPath, reporter);
+			Global.setAnalysisCacheForCurrentThread(analysisCache);
+			FindBugs2.registerBuiltInAnalysisEngines(analysisCache);
+
+			IClassPathBuilder builder = classFactory
+					.createClassPathBuilder(reporter);
+			for (String path : pathList)
+				builder.addCodeBase(
+						classFactory.createFilesystemCodeBaseLocator(path),
+						true);
+			for (String path : auxClasspath)
+				builder.addCodeBase(
+						classFactory.createFilesystemCodeBaseLocator(path),
+						false);
+			builder.scanNestedArchives(false);
+			builder.build(classPath, new NoOpFindBugsProgress());
+
+			Project project = new Project();
+			for (String path : pathList)
+				project.addFile(path);
+			for (String path : auxClasspath)
+				project.addAuxClasspathEntry(path);
+			List<ClassDescriptor> appClassList = builder.getAppClassList();
+			FindBugs2.createAnalysisContext(project, appClassList, null);
+			// The analysis context only takes classes already loaded as
+			// application classes, and only those get summaries: load them,
+			// as FindBugs2 does before creating the context, and set them
+			// again
+			for (ClassDescriptor classDescriptor : appClassList) {
+				try {
+					analysisCache.getClassAnalysis(XClass.class,
+							classDescriptor);
+				} catch (CheckedAnalysisException e) {
+					reporter.logError("Could not load " + classDescriptor, e);
+				}
+			}
+			AnalysisContext.currentAnalysisContext().setAppClassList(
+					appClassList);
+
+			if (invalidateCaches)
+				invalidateCaches(appClassList);
+
+			ResourceLeakDetector detector = new ResourceLeakDetector(reporter);
+			for (ClassDescriptor classDescriptor : appClassList) {
+				if (classNameSet != null
+						&& !classNameSet.contains(classDescriptor
+								.toDottedClassName()))
+					continue;
+				try {
+					detector.visitClassContext(analysisCache.getClassAnalysis(
+							ClassContext.class, classDescriptor));
+					++analyzedCount;
+				} catch (CheckedAnalysisException e) {
+					reporter.logError("Could not analyze " + classDescriptor,
+							e);
+				}
+			}
+			detector.finishPendingClasses();
+		} catch (CheckedAnalysisException e) {
+			reporter.logError("Could not build the class path", e);
+		} finally {
+			FindBugs2.clearAnalysisContext();
+			Global.removeAnalysisCacheForCurrentThread();
+			classPath.close();
+		}
+		return analyzedCount;
+	}
+
+	/**
+	 * Write the bugs of a ResultReporter, one JSON record per line.
+	 */
+	/**
+	 * Register the bug patterns of the detector, unless FindBugs loaded the
+	 * plugin already. The runners load no plugins, and a BugInstance can't be
+	 * created for a type with no pattern.
+	 */
+	private static synchronized void registerBugPatterns() {
+		DetectorFactoryCollection factoryCollection = DetectorFactoryCollection
+				.instance();
+		for (String[] pattern : BUG_PATTERNS) {
+			if (factoryCollection.lookupBugPattern(pattern[0]) == null)
+				factoryCollection.registerBugPattern(new BugPattern(pattern[0],
+						"UNCLOSED_RESOURCE", "CORRECTNESS", false, pattern[1],
+						pattern[1], ""));
+		}
+	}
+
+	static void writeBugs(ResultReporter reporter, Writer out)
+			throws IOException {
+		for (BugInstance bug : reporter.bugList)
+			out.write(StreamingBugWriter.toJSON(bug, getSourceLines(bug))
+					+ "\n");
+	}
+
+	static String toJSON(List<String> stringList) {
+		StringBuilder buf = new StringBuilder("[");
+		for (int i = 0; i < stringList.size(); ++i)
+			buf.append(i > 0 ? "," : "").append(
+					StreamingBugWriter.quote(stringList.get(i)));
+		return buf.append(']').toString();
+	}
+
+	/**
+	 * Drop what the detector's caches hold about classes which may have
+	 * changed since the last request. Only the subtype results of the
+	 * application classes are dropped, as library classes don't extend
+	 * them.
+	 */
+	private static void invalidateCaches(List<ClassDescriptor> appClassList) {
+		Set<String> classNameSet = new HashSet<String>();
+		for (ClassDescriptor classDescriptor : appClassList)
+			classNameSet.add(classDescriptor.toDottedClassName());
+		ResourceLeakDetector.beginRun(classNameSet);
+	}
+
+	static List<SourceLineAnnotation> getSourceLines(BugInstance bug) {
+		List<SourceLineAnnotation> lineList = new ArrayList<SourceLineAnnotation>();
+		for (BugAnnotation annotation : bug.getAnnotations()) {
+			if (annotation instanceof SourceLineAnnotation)
+				lineList.add((SourceLineAnnotation) annotation);
+		}
+		return lineList;
+	}
+
+	/**
+	 * Get the counters of the daemon, as a JSON record.
+	 */
+	public synchronized String getStats() {
+		return "{\"requests\":" + requestCount + ",\"classes\":" + classCount
+				+ ",\"bugs\":" + bugCount + ",\"busyMillis\":" + busyNanos
+				/ 1000000 + ",\"subtypeCacheSize\":"
+				+ ResourceLeakDetector.subtypeCache.size()
+				+ ",\"subtypeCacheHits\":"
+				+ ResourceLeakDetector.subtypeCache.getHitCount() + "}";
+	}
+
+	/**
+	 * Save the caches of the detector and print its statistics, as at the
+	 * end of a FindBugs run.
+	 */
+	public synchronized void shutdown() {
+		ResourceLeakDetector.reportRun();
+	}
+
+	/**
+	 * Serve requests until one asks the daemon to shut down.
+	 */
+	public void serve(ServerSocket serverSocket) throws IOException,
+			InterruptedException {
+		try {
+			while (true) {
+				Socket socket = serverSocket.accept();
+				try {
+					if (!handle(socket))
+						break;
+				} catch (IOException e) {
+					System.err.println("ResourceLeakDaemon: request failed: "
+							+ e);
+				} finally {
+					socket.close();
+				}
+			}
+		} finally {
+			serverSocket.close();
+		}
+	}
+
+	/**
+	 * Handle the request of a connection.
+	 *
+	 * @return false if the daemon should shut down
+	 */
+	private boolean handle(Socket socket) throws IOException,
+			InterruptedException {
+		socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), "UTF-8"));
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				socket.getOutputStream(), "UTF-8"));
+		String requestToken = in.readLine();
+		if (requestToken == null
+				|| !MessageDigest.isEqual(token.getBytes("UTF-8"),
+						requestToken.getBytes("UTF-8"))) {
+			out.write("{\"error\":\"Bad token\"}\n");
+			out.flush();
+			return true;
+		}
+		String command = in.readLine();
+		if (ANALYZE.equals(command)) {
+			List<String> pathList = new ArrayList<String>();
+			String line;
+			while ((line = in.readLine()) != null && line.length() > 0)
+				pathList.add(line);
+			analyze(pathList, out);
+		} else if (STATS.equals(command)) {
+			out.write(getStats() + "\n");
+		} else if (SHUTDOWN.equals(command)) {
+			shutdown();
+			out.write("{\"shutdown\":true}\n");
+			out.flush();
+			return false;
+		} else {
+			out.write("{\"error\":"
+					+ StreamingBugWriter.quote("Unknown command " + command)
+					+ "}\n");
+		}
+		out.flush();
+		return true;
+	}
+
+	/**
+	 * Write the token to a new file only its owner can read, replacing any
+	 * file of that name.
+	 */
+	static void writeToken(String token, File file) throws IOException {
+		Path path = file.toPath();
+		Files.deleteIfExists(path);
+		try {
+			Files.createFile(path, PosixFilePermissions
+					.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			Files.createFile(path);
+			if (!file.setReadable(false, false) || !file.setReadable(true, true)
+					|| !file.setWritable(false, false)
+					|| !file.setWritable(true, true))
+				throw new IOException("Can't restrict access to " + file);
+		}
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(token + "\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Read the token a daemon wrote to a file.
+	 */
+	static String readToken(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			String token = in.readLine();
+			if (token == null)
+				throw new IOException("No token in " + file);
+			return token.trim();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Send a request to a daemon on this host and copy its reply.
+	 *
+	 * @param token
+	 *            the token of the daemon
+	 * @param pathList
+	 *            the paths to analyze, for ANALYZE
+	 */
+	public static void request(int port, String token, String command,
+			List<String> pathList, Writer out) throws IOException {
+		Socket socket = new Socket(InetAddress.getByName(null), port);
+		try {
+			Writer requestOut = new BufferedWriter(new OutputStreamWriter(
+					socket.getOutputStream(), "UTF-8"));
+			requestOut.write(token + "\n");
+			requestOut.write(command + "\n");
+			for (String path : pathList)
+				requestOut.write(path + "\n");
+			requestOut.write("\n");
+			requestOut.flush();
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "UTF-8"));
+			String line;
+			while ((line = in.readLine()) != null)
+				out.write(line + "\n");
+			out.flush();
+		} finally {
+			socket.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = 0;
+		int connectPort = -1;
+		String portFile = null;
+		String tokenFile = null;
+		String command = ANALYZE;
+		boolean once = false;
+		List<String> auxClasspath = new ArrayList<String>();
+		List<String> pathList = new ArrayList<String>();
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.equals("-port"))
+				port = Integer.parseInt(args[++i]);
+			else if (arg.equals("-portFile"))
+				portFile = args[++i];
+			else if (arg.equals("-tokenFile"))
+				tokenFile = args[++i];
+			else if (arg.equals("-auxclasspath"))
+				auxClasspath.addAll(Arrays.asList(args[++i]
+						.split(File.pathSeparator)));
+			else if (arg.equals("-connect"))
+				connectPort = Integer.parseInt(args[++i]);
+			else if (arg.equals("-stats"))
+				command = STATS;
+			else if (arg.equals("-shutdown"))
+				command = SHUTDOWN;
+			else if (arg.equals("-once"))
+				once = true;
+			else if (arg.startsWith("-"))
+				throw new IllegalArgumentException("Unknown option " + arg);
+			else
+				pathList.add(arg);
+		}
+
+		if (tokenFile == null && portFile != null)
+			tokenFile = portFile + ".token";
+		Writer out = new OutputStreamWriter(System.out, "UTF-8");
+		if (connectPort >= 0) {
+			if (tokenFile == null)
+				throw new IllegalArgumentException(
+						"-connect needs -tokenFile or -portFile");
+			request(connectPort, readToken(new File(tokenFile)), command,
+					pathList, out);
+			return;
+		}
+		ResourceLeakDaemon daemon = new ResourceLeakDaemon(auxClasspath);
+		if (once) {
+			daemon.analyze(pathList, out);
+			daemon.shutdown();
+			return;
+		}
+
+		ServerSocket serverSocket = new ServerSocket(port, 50,
+				InetAddress.getByName(null));
+		File tokenPath = tokenFile != null ? new File(tokenFile) : File
+				.createTempFile("resourceLeakDaemon", ".token");
+		writeToken(daemon.getToken(), tokenPath);
+		tokenPath.deleteOnExit();
+		System.out.println("ResourceLeakDaemon: listening on port "
+				+ serverSocket.getLocalPort() + ", token in " + tokenPath);
+		if (portFile != null) {
+			Writer portOut = new OutputStreamWriter(new FileOutputStream(
+					portFile), "UTF-8");
+			try {
+				portOut.write(serverSocket.getLocalPort() + "\n");
+			} finally {
+				portOut.close();
+			}
+		}
+		daemon.serve(serverSocket);
+	}
+}
@@ -1,21 +1,41 @@
 package edu.umd.cs.findbugs.detect;
 
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.bcel.Constants;
 import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantCP;
 import org.apache.bcel.classfile.ConstantInterfaceMethodref;
 import org.apache.bcel.classfile.ConstantMethodref;
+import org.apache.bcel.classfile.ConstantPool;
 import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.classfile.Method;
 import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.InstructionHandle;
 import org.apache.bcel.generic.MethodGen;
-import org.apache.bcel.generic.ObjectType;
-import org.apache.bcel.generic.Type;
 
 import edu.umd.cs.findbugs.BugInstance;
 import edu.umd.cs.findbugs.BugReporter;
@@ -25,16 +45,18 @@ import edu.umd.cs.findbugs.SourceLineAnnotation;
 import edu.umd.cs.findbugs.StatelessDetector;
 import edu.umd.cs.findbugs.SystemProperties;
 import edu.umd.cs.findbugs.TypeAnnotation;
+import edu.umd.cs.findbugs.bcel.BCELUtil;
+import edu.umd.cs.findbugs.ba.AnalysisContext;
 import edu.umd.cs.findbugs.ba.CFG;
 import edu.umd.cs.findbugs.ba.CFGBuilderException;
 import edu.umd.cs.findbugs.ba.ClassContext;
 import edu.umd.cs.findbugs.ba.Dataflow;
 import edu.umd.cs.findbugs.ba.DataflowAnalysisException;
-import edu.umd.cs.findbugs.ba.Hierarchy;
 import edu.umd.cs.findbugs.ba.Location;
-import edu.umd.cs.findbugs.ba.ObjectTypeFactory;
 import edu.umd.cs.findbugs.ba.ResourceValueAnalysis;
 import edu.umd.cs.findbugs.ba.ResourceValueFrame;
+import edu.umd.cs.findbugs.classfile.Global;
+import edu.umd.cs.findbugs.classfile.IAnalysisCache;
 
 /**
  * This Detector to looks for resource(stream or jdbc object) that is
@@ -52,15 +74,205 @@ public class ResourceLeakDetector extends
 	static final boolean DEBUG = SystemProperties.getBoolean("fos.debug");
 	static final boolean IGNORE_WRAPPED_UNINTERESTING_STREAMS = !SystemProperties
 			.getBoolean("fos.allowWUS");
-	static final ObjectType[] streamBaseList = {
-			ObjectTypeFactory.getInstance("java.io.InputStream"),
-			ObjectTypeFactory.getInstance("java.io.OutputStream"),
-			ObjectTypeFactory.getInstance("java.util.zip.ZipFile"),
-			ObjectTypeFactory.getInstance("java.io.Reader"),
-			ObjectTypeFactory.getInstance("java.io.Writer"),
-			ObjectTypeFactory.getInstance("java.sql.Connection"),
-			ObjectTypeFactory.getInstance("java.sql.Statement"),
-			ObjectTypeFactory.getInstance("java.sql.ResultSet") };
+
+	/**
+	 * Track all resources of a method in a single dataflow pass rather than
+	 * running one ResourceValueAnalysis per resource.
+	 */
+	static final boolean SINGLE_PASS_DATAFLOW = SystemProperties
+			.getBoolean("fos.singlePass");
+
+	/**
+	 * Number of threads analyzing the methods of a class. With a single
+	 * thread, methods are analyzed in the engine thread.
+	 */
+	static final int ANALYSIS_THREADS = Math.max(1,
+			SystemProperties.getInt("fos.threads", 1));
+
+	private static ForkJoinPool analysisPool;
+
+	private static final AtomicLong methodCount = new AtomicLong();
+
+	private static final AtomicLong wallNanos = new AtomicLong();
+
+	private static final AtomicLong busyNanos = new AtomicLong();
+
+	/**
+	 * Number of classes whose method analyses are pooled before they run,
+	 * with fos.threads more than one. The analyses of the classes run
+	 * together, so the threads a class with a few huge methods leaves idle
+	 * go to the methods of the other classes; the classes are still reported
+	 * in the order they were visited. The default, 1, runs each class on its
+	 * own.
+	 */
+	static final int SCHEDULE_WINDOW = Math.max(1,
+			SystemProperties.getInt("fos.scheduleWindow", 1));
+
+	/**
+	 * Start the analyses run together costliest first, by ClassCostModel,
+	 * so the longest are not left to run alone at the end.
+	 * fos.noCostOrder starts them in method order, for comparison.
+	 */
+	static final boolean COST_ORDER = !SystemProperties
+			.getBoolean("fos.noCostOrder");
+
+	private static final AtomicLong scheduledBatchCount = new AtomicLong();
+
+	/**
+	 * Skip methods which call no method with a resource return type before
+	 * building their CFG. fos.noMethodPrescreen falls back to the opcode
+	 * check of prescreen(), for comparison.
+	 */
+	static final boolean METHOD_PRESCREEN = !SystemProperties
+			.getBoolean("fos.noMethodPrescreen");
+
+	private static final AtomicLong screenedMethodCount = new AtomicLong();
+
+	private static final AtomicLong cfgBuildCount = new AtomicLong();
+
+	/**
+	 * Ignore exception edges a stream can't reach in its dataflow analysis.
+	 * fos.noEdgePruning merges all of them, for comparison.
+	 */
+	static final boolean PRUNE_EXCEPTION_EDGES = !SystemProperties
+			.getBoolean("fos.noEdgePruning");
+
+	static final AtomicLong prunedEdgeCount = new AtomicLong();
+
+	/**
+	 * Skip the dataflow analysis of streams CloseShapeMatcher finds closed
+	 * on all paths. fos.noCloseShapes analyzes all streams, for comparison.
+	 */
+	static final boolean MATCH_CLOSE_SHAPES = !SystemProperties
+			.getBoolean("fos.noCloseShapes");
+
+	static final AtomicLong closedByShapeCount = new AtomicLong();
+
+	static final AtomicLong streamCount = new AtomicLong();
+
+	/**
+	 * Only visit the blocks reachable from the creation of a stream in its
+	 * dataflow analysis. fos.noSlicing visits every block, for comparison.
+	 */
+	static final boolean SLICE_CFG = !SystemProperties
+			.getBoolean("fos.noSlicing");
+
+	static final AtomicLong slicedBlockCount = new AtomicLong();
+
+	/**
+	 * Methods whose analysis was cut short by their MethodBudget, by the
+	 * budget which ran out.
+	 */
+	static final AtomicLongArray budgetTripCounts = new AtomicLongArray(
+			MethodBudget.KIND_COUNT);
+
+	/**
+	 * Bug type of the low priority warning reported for a method whose
+	 * budget ran out before all of its streams were resolved.
+	 */
+	static final String TRUNCATED_BUG_TYPE = "RESOURCE_LEAK_ANALYSIS_TRUNCATED";
+
+	/**
+	 * Upper bound, set by fos.maxRetainedMB, on the estimated heap
+	 * (MethodLeakAnalysis.getRetainedBytes()) held by the analyses of a
+	 * class prepared but not yet reported. With fos.threads more than one,
+	 * the analyses prepared so far are run and reported before preparing one
+	 * which would go over it. Zero, the default, means no limit.
+	 */
+	static final long MAX_RETAINED_BYTES = SystemProperties.getInt(
+			"fos.maxRetainedMB", 0) * 1048576L;
+
+	/**
+	 * Drop the analyses of each method from the ClassContext, and the
+	 * per-method state of its LeakResourceTracker, as soon as its bugs are
+	 * reported, rather than keeping them until the end of the class. Set by
+	 * fos.lowMemory, or by fos.maxRetainedMB.
+	 */
+	static final boolean LOW_MEMORY = SystemProperties
+			.getBoolean("fos.lowMemory") || MAX_RETAINED_BYTES > 0;
+
+	/**
+	 * Bugs written to the file named by fos.streamFile, if set, as each
+	 * method is reported: JSON records, or SARIF results if fos.streamFormat
+	 * is "sarif". At most fos.streamQueue records wait for the writer. The
+	 * stream is opened by the first detector of a run and closed by
+	 * reportRun(), so each run in the JVM gets its own.
+	 */
+	private static volatile StreamingBugWriter bugStream;
+
+	/**
+	 * Collect DetectorMetrics, written at the end of the run to the file
+	 * named by fos.metricsFile (standard output if not set), as JSON or, if
+	 * fos.metricsFormat is "prometheus", as Prometheus text.
+	 */
+	static final boolean METRICS = SystemProperties.getBoolean("fos.metrics");
+
+	static final DetectorMetrics metrics = new DetectorMetrics();
+
+	/**
+	 * The resource base types tracked: those of the plugin's
+	 * resourceTypes.txt, then those of the file named by fos.resourceTypes,
+	 * if set.
+	 */
+	static final ResourceTypeRegistry resourceTypes = ResourceTypeRegistry
+			.load(SystemProperties.getProperty("fos.resourceTypes"));
+
+	/**
+	 * What library methods do with the resources passed to them: the rules
+	 * of the plugin's escapeModel.bin, then those of the files named by
+	 * fos.escapeModel, if set.
+	 */
+	static final EscapeModel escapeModel = EscapeModel.load(SystemProperties
+			.getProperty("fos.escapeModel"));
+
+	/**
+	 * Subtype results for resourceTypes, shared by all methods and classes
+	 * analyzed in this run.
+	 */
+	static final ResourceSubtypeCache subtypeCache = new ResourceSubtypeCache(
+			resourceTypes, SystemProperties.getInt("fos.subtypeCacheSize",
+					8192));
+
+	/**
+	 * Summaries of the methods called by the methods analyzed, used to tell
+	 * factory methods from other methods with a resource return type.
+	 * Summaries are kept across runs in the file named by fos.summaryCache,
+	 * if set.
+	 */
+	static final ClassHashCache classHashCache = new ClassHashCache();
+
+	static final ResourceSummaryDatabase summaryDatabase = SystemProperties
+			.getBoolean("fos.noSummaries") ? null
+			: new ResourceSummaryDatabase(subtypeCache, classHashCache,
+					ResourceSummaryStore.open(SystemProperties
+							.getProperty("fos.summaryCache"), resourceTypes
+							.getFingerprint()));
+
+	/**
+	 * Outcomes of the methods analyzed so far in the run, reused for later
+	 * methods with the same bytecode; null if fos.noDedup is set. At most
+	 * fos.methodOutcomeCacheSize outcomes are kept.
+	 */
+	static final MethodOutcomeCache methodOutcomeCache = SystemProperties
+			.getBoolean("fos.noDedup") ? null : new MethodOutcomeCache(
+			SystemProperties.getInt("fos.methodOutcomeCacheSize", 16384));
+
+	/**
+	 * Findings of previous runs, kept in the file named by fos.resultCache,
+	 * if set. Classes whose findings are still valid are not analyzed again.
+	 */
+	static final ClassResultCache resultCache = ClassResultCache.open(
+			SystemProperties.getProperty("fos.resultCache"), classHashCache,
+			(IGNORE_WRAPPED_UNINTERESTING_STREAMS ? 1 : 0)
+					| (summaryDatabase != null ? 2 : 0)
+					| (int) (resourceTypes.getFingerprint() ^ escapeModel
+							.getFingerprint()) << 2);
+
+	/**
+	 * The analysis context of the run whose results the caches above hold,
+	 * or null before the first run.
+	 */
+	private static WeakReference<AnalysisContext> runContext;
 
 	// List of words that must appear in names of classes which
 	// create possible resources to be tracked. If we don't see a
@@ -70,87 +282,874 @@ public class ResourceLeakDetector extends
 			"Writer", "ZipFile", "JarFile", "DriverManager", "Connection",
 			"Statement" };
 
-	/*
-	 * ----------------------------------------------------------------------
-	 * Helper classes
-	 * ----------------------------------------------------------------------
+	/**
+	 * Matcher for the prescreen words: PRESCREEN_CLASS_LIST, or the
+	 * comma-separated list in fos.prescreenWords if set.
+	 */
+	private static final WordMatcher PRESCREEN_CLASS_MATCHER = new WordMatcher(
+			SystemProperties.getProperty("fos.prescreenWords") != null ? WordMatcher
+					.parseWords(SystemProperties
+							.getProperty("fos.prescreenWords"))
+					: PRESCREEN_CLASS_LIST);
+
+	/**
+	 * A method with something to report: its analysis, ready to execute, or
+	 * the outcome of an identical method analyzed earlier in the run.
 	 */
+	private static class PendingMethod {
+		final Method method;
 
-	private static class PotentialOpenStream {
-		public final String bugType;
+		/**
+		 * The index of the method in JavaClass.getMethods().
+		 */
+		final int methodIndex;
 
-		public final int priority;
+		final MethodLeakAnalysis analysis;
 
-		public final Stream stream;
+		final MethodOutcomeCache.Outcome reusedOutcome;
 
-		@Override
-		public String toString() {
-			return stream.toString();
+		PendingMethod(Method method, int methodIndex,
+				MethodLeakAnalysis analysis,
+				MethodOutcomeCache.Outcome reusedOutcome) {
+			this.method = method;
+			this.methodIndex = methodIndex;
+			this.analysis = analysis;
+			this.reusedOutcome = reusedOutcome;
 		}
+	}
+
+	/**
+	 * A class whose methods are prepared, or being prepared, but not yet all
+	 * reported.
+	 */
+	private static class PendingClass {
+		final ClassContext classContext;
+
+		final ClassCostModel costModel;
+
+		final ClassResultCache.ClassResult result;
+
+		final long start;
 
-		public PotentialOpenStream(String bugType, int priority, Stream stream) {
-			this.bugType = bugType;
-			this.priority = priority;
-			this.stream = stream;
+		final List<PendingMethod> methodList = new ArrayList<PendingMethod>();
+
+		final List<LeakResourceTracker> trackerList = new ArrayList<LeakResourceTracker>();
+
+		/**
+		 * Whether all the methods of the class have been prepared.
+		 */
+		boolean prepared;
+
+		PendingClass(ClassContext classContext, ClassCostModel costModel,
+				ClassResultCache.ClassResult result, long start) {
+			this.classContext = classContext;
+			this.costModel = costModel;
+			this.result = result;
+			this.start = start;
+		}
+
+		long getCost(PendingMethod pendingMethod) {
+			return costModel != null ? costModel
+					.getMethodCost(pendingMethod.methodIndex) : 0L;
 		}
 	}
 
-	private List<PotentialOpenStream> potentialOpenStreamList;
+	/**
+	 * Classes whose analyses wait to be run together, in the order they were
+	 * visited, with fos.threads more than one.
+	 */
+	private final List<PendingClass> pendingClassList = new ArrayList<PendingClass>();
+
+	/**
+	 * Estimated heap held by the analyses of pendingClassList.
+	 */
+	private long pendingRetainedBytes;
+
+	/**
+	 * Streams open at exit, as inspectResult() finds them for a caller
+	 * running the dataflow analysis of a method itself, the way
+	 * ResourceTrackingDetector.analyzeMethod() does. Cleared by
+	 * analyzeMethod().
+	 */
+	private List<MethodLeakAnalysis.PotentialOpenStream> potentialOpenStreamList;
 
 	public ResourceLeakDetector(BugReporter bugReporter) {
 		super(bugReporter);
-		this.potentialOpenStreamList = new LinkedList<PotentialOpenStream>();
+		this.potentialOpenStreamList = new ArrayList<MethodLeakAnalysis.PotentialOpenStream>();
+		beginRun(null);
+		openBugStream();
+	}
+
+	/**
+	 * Start a run in the analysis context of the current thread. If the
+	 * caches hold the results of a run in another context, drop what may
+	 * have changed since: the class hashes, the summaries of classes whose
+	 * class files changed, and the outcomes of methods. Subtype results are
+	 * dropped for the application classes if they are given, or else for
+	 * all classes. Does nothing if the run has already begun, so a caller
+	 * which knows the application classes can begin it before creating the
+	 * detector.
+	 *
+	 * @param classNames
+	 *            the dotted names of all the application classes of the
+	 *            run, or null if they aren't known
+	 */
+	static synchronized void beginRun(Collection<String> classNames) {
+		AnalysisContext context = AnalysisContext.currentAnalysisContext();
+		if (context == null
+				|| (runContext != null && runContext.get() == context))
+			return;
+		if (runContext != null) {
+			classHashCache.clear();
+			if (classNames != null)
+				subtypeCache.invalidate(classNames);
+			else
+				subtypeCache.clear();
+			if (summaryDatabase != null)
+				summaryDatabase.revalidate();
+			if (methodOutcomeCache != null)
+				methodOutcomeCache.clear();
+		}
+		runContext = new WeakReference<AnalysisContext>(context);
+	}
+
+	/**
+	 * Open the bug stream for a run, if fos.streamFile is set and it isn't
+	 * open already.
+	 */
+	private static synchronized void openBugStream() {
+		if (bugStream == null)
+			bugStream = StreamingBugWriter.open(
+					SystemProperties.getProperty("fos.streamFile"),
+					SystemProperties.getProperty("fos.streamFormat"),
+					SystemProperties.getInt("fos.streamQueue", 256));
+	}
+
+	/**
+	 * Take the bug stream of the run, leaving none open.
+	 *
+	 * @return the stream, or null if there is none
+	 */
+	private static synchronized StreamingBugWriter takeBugStream() {
+		StreamingBugWriter stream = bugStream;
+		bugStream = null;
+		return stream;
 	}
 
 	@Override
 	public LeakResourceTracker getResourceTracker(ClassContext arg0, Method arg1)
 			throws DataflowAnalysisException, CFGBuilderException {
-		return new LeakResourceTracker(streamBaseList, bugReporter);
+		return new LeakResourceTracker(subtypeCache, summaryDatabase,
+				bugReporter);
 	}
 
 	 @Override
 	    public void visitClassContext(ClassContext classContext) {
 	        JavaClass jclass = classContext.getJavaClass();
+	        if (METRICS)
+	            metrics.classesScreened.increment();
+
+	        // In incremental mode, replay the findings of an unchanged class
+	        ClassResultCache.ClassResult result = null;
+	        long start = System.nanoTime();
+	        if (resultCache != null) {
+	            result = resultCache.lookup(jclass, summaryDatabase);
+	            if (result != null && result.isCached()) {
+	                // Report the classes visited before it first
+	                finishPendingClasses();
+	                replayBugs(classContext, result);
+	                resultCache.replayed(System.nanoTime() - start);
+	                if (METRICS)
+	                    metrics.classesReplayed.increment();
+	                return;
+	            }
+	        }
 
 	        // Check to see if the class references any other classes
 	        // which could be resources we want to track.
 	        // If we don't find any such classes, we skip analyzing
-	        // the class. (Note: could do this by method.)
-	        boolean sawResourceClass = false;
-	        for (int i = 0; i < jclass.getConstantPool().getLength(); ++i) {
-	            Constant constant = jclass.getConstantPool().getConstant(i);
-	            String className = null;
-	            if (constant instanceof ConstantMethodref) {
-	                ConstantMethodref cmr = (ConstantMethodref) constant;
-
-	                int classIndex = cmr.getClassIndex();
-	                className = jclass.getConstantPool().getConstantString(classIndex, Constants.CONSTANT_Class);
-	            } else if (constant instanceof ConstantInterfaceMethodref) {
-	                ConstantInterfaceMethodref cmr = (ConstantInterfaceMethodref) constant;
-
-	                int classIndex = cmr.getClassIndex();
-	                className = jclass.getConstantPool().getConstantString(classIndex, Constants.CONSTANT_Class);
-	            }
-
-	            if (className != null) {
-	                if (DEBUG)
-	                    System.out.println("FindOpenStream: saw class " + className);
-
-	                for (String aPRESCREEN_CLASS_LIST : PRESCREEN_CLASS_LIST) {
-	                    if (className.indexOf(aPRESCREEN_CLASS_LIST) >= 0) {
-	                        sawResourceClass = true;
-	                        break;
-	                    }
-	                }
-	            }
-
+	        // the class.
+	        if (referencesResourceClass(jclass)) {
+	            ResourceCallPrescreen callPrescreen = null;
+	            if (METHOD_PRESCREEN)
+	                callPrescreen = new ResourceCallPrescreen(jclass, subtypeCache, bugReporter);
+	            ClassCostModel costModel = null;
+	            if (ANALYSIS_THREADS > 1 || ClassCostModel.isLogging())
+	                costModel = new ClassCostModel(jclass, callPrescreen);
+	            analyzeClass(new PendingClass(classContext, costModel, result, start),
+	                    callPrescreen);
+	            return;
 	        }
 
-	        if (sawResourceClass) {
-	            super.visitClassContext(classContext);
+	        if (METRICS)
+	            metrics.classesSkipped.increment();
+	        if (result != null) {
+	            resultCache.store(result, System.nanoTime() - start);
 	        }
 	    }
-	 
+
+	/**
+	 * Determine if a class calls methods of any class whose name contains one
+	 * of the prescreen words. Each class constant is matched once, however
+	 * many methods of the class are called, and the scan stops at the first
+	 * match.
+	 */
+	static boolean referencesResourceClass(JavaClass jclass) {
+		ConstantPool cp = jclass.getConstantPool();
+		BitSet checkedClassSet = new BitSet();
+		for (int i = 0; i < cp.getLength(); ++i) {
+			Constant constant = cp.getConstant(i);
+			if (!(constant instanceof ConstantMethodref)
+					&& !(constant instanceof ConstantInterfaceMethodref))
+				continue;
+
+			int classIndex = ((ConstantCP) constant).getClassIndex();
+			if (checkedClassSet.get(classIndex))
+				continue;
+			checkedClassSet.set(classIndex);
+			String className = cp.getConstantString(classIndex,
+					Constants.CONSTANT_Class);
+
+			if (DEBUG)
+				System.out.println("FindOpenStream: saw class " + className);
+
+			if (PRESCREEN_CLASS_MATCHER.matches(className))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine if a class file calls methods of any class whose name contains
+	 * one of the prescreen words, as referencesResourceClass(JavaClass) does,
+	 * by scanning the bytes of its constant pool instead of parsing it.
+	 * Returns true if the constant pool can't be decoded, so the class is
+	 * still parsed and analyzed.
+	 *
+	 * @param classFile
+	 *            the bytes of the class file, starting at index 0
+	 */
+	static boolean referencesResourceClass(ByteBuffer classFile) {
+		ByteBuffer buf = classFile.duplicate().order(ByteOrder.BIG_ENDIAN);
+		try {
+			int[] offset = findConstants(buf);
+			if (offset == null)
+				return true;
+			int count = offset.length - 1;
+			BitSet checkedClassSet = new BitSet();
+			for (int i = 1; i < count; ++i) {
+				int tag = offset[i] > 0 ? buf.get(offset[i]) : 0;
+				if (tag != Constants.CONSTANT_Methodref
+						&& tag != Constants.CONSTANT_InterfaceMethodref)
+					continue;
+
+				int classIndex = buf.getShort(offset[i] + 1) & 0xffff;
+				if (checkedClassSet.get(classIndex))
+					continue;
+				checkedClassSet.set(classIndex);
+				if (classIndex >= count
+						|| buf.get(offset[classIndex]) != Constants.CONSTANT_Class)
+					return true;
+				int nameIndex = buf.getShort(offset[classIndex] + 1) & 0xffff;
+				if (nameIndex >= count
+						|| buf.get(offset[nameIndex]) != Constants.CONSTANT_Utf8)
+					return true;
+				int nameOffset = offset[nameIndex];
+				if (PRESCREEN_CLASS_MATCHER.matches(buf, nameOffset + 3,
+						buf.getShort(nameOffset + 1) & 0xffff))
+					return true;
+			}
+			return false;
+		} catch (IndexOutOfBoundsException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Find the constant-pool entries of a class file.
+	 *
+	 * @param buf
+	 *            the bytes of the class file, starting at index 0, big-endian
+	 * @return the offset of each entry, by index, with 0 for the unused
+	 *         index 0 and the second index of long and double entries, and
+	 *         the offset of the access flags after the constant pool as
+	 *         the last element; or null if buf isn't a class file or has a
+	 *         constant of unknown kind
+	 * @throws IndexOutOfBoundsException
+	 *             if the class file is truncated
+	 */
+	static int[] findConstants(ByteBuffer buf) {
+		if (buf.getInt(0) != 0xCAFEBABE)
+			return null;
+		int count = buf.getShort(8) & 0xffff;
+		int[] offset = new int[count + 1];
+		int pos = 10;
+		for (int i = 1; i < count; ++i) {
+			offset[i] = pos;
+			switch (buf.get(pos)) {
+			case Constants.CONSTANT_Utf8:
+				pos += 3 + (buf.getShort(pos + 1) & 0xffff);
+				break;
+			case Constants.CONSTANT_Integer:
+			case Constants.CONSTANT_Float:
+			case Constants.CONSTANT_Fieldref:
+			case Constants.CONSTANT_Methodref:
+			case Constants.CONSTANT_InterfaceMethodref:
+			case Constants.CONSTANT_NameAndType:
+			case 17: // Dynamic
+			case 18: // InvokeDynamic
+				pos += 5;
+				break;
+			case Constants.CONSTANT_Long:
+			case Constants.CONSTANT_Double:
+				pos += 9;
+				++i;
+				break;
+			case Constants.CONSTANT_Class:
+			case Constants.CONSTANT_String:
+			case 16: // MethodType
+			case 19: // Module
+			case 20: // Package
+				pos += 3;
+				break;
+			case 15: // MethodHandle
+				pos += 4;
+				break;
+			default:
+				return null;
+			}
+		}
+		offset[count] = pos;
+		return offset;
+	}
+
+	/**
+	 * Report the bugs found in a class by a previous run.
+	 */
+	private void replayBugs(ClassContext classContext,
+			ClassResultCache.ClassResult result) {
+		JavaClass javaClass = classContext.getJavaClass();
+		String className = javaClass.getClassName();
+		String sourceFile = javaClass.getSourceFileName();
+
+		// Bugs were recorded method by method; flush the accumulator between
+		// methods, as the analysis does
+		String lastMethodKey = null;
+		for (ClassResultCache.CachedBug bug : result.getBugList()) {
+			if (lastMethodKey != null
+					&& !lastMethodKey.equals(bug.getMethodKey()))
+				reportAccumulatedBugs();
+			lastMethodKey = bug.getMethodKey();
+			bugAccumulator.accumulateBug(
+					bug.createBugInstance(this, className, sourceFile),
+					bug.createSourceLine(className, sourceFile));
+		}
+		reportAccumulatedBugs();
+	}
+
+	/**
+	 * Report the bugs accumulated for a method, writing them to the bug
+	 * stream first, if there is one.
+	 */
+	private void reportAccumulatedBugs() {
+		StreamingBugWriter stream = bugStream;
+		if (stream != null) {
+			for (BugInstance bug : bugAccumulator.uniqueBugs()) {
+				List<SourceLineAnnotation> lineList = new ArrayList<SourceLineAnnotation>();
+				for (SourceLineAnnotation sourceLine : bugAccumulator
+						.locations(bug))
+					lineList.add(sourceLine);
+				stream.write(bug, lineList);
+			}
+		}
+		bugAccumulator.reportAccumulatedBugs();
+	}
+
+	/**
+	 * Analyze the methods of a class. This replaces the method loop of
+	 * ResourceTrackingDetector so that, if fos.threads is more than one, the
+	 * dataflow analyses of the methods run concurrently, with those of up to
+	 * fos.scheduleWindow classes. Everything which uses the ClassContext, and
+	 * all bug reporting, stays in the calling thread, and bugs are reported in
+	 * class and method order whatever the number of threads.
+	 *
+	 * @param callPrescreen
+	 *            the method-level prescreen of the class, or null to use
+	 *            prescreen()
+	 */
+	private void analyzeClass(PendingClass pending,
+			ResourceCallPrescreen callPrescreen) {
+		ClassContext classContext = pending.classContext;
+		if (ANALYSIS_THREADS > 1)
+			pendingClassList.add(pending);
+		Method[] methodList = classContext.getJavaClass().getMethods();
+		for (int i = 0; i < methodList.length; ++i) {
+			Method method = methodList[i];
+			if (method.isAbstract() || method.isNative())
+				continue;
+
+			PendingMethod pendingMethod = prepareMethod(classContext, method,
+					i, callPrescreen, pending.trackerList);
+			if (pendingMethod == null)
+				continue;
+			MethodLeakAnalysis analysis = pendingMethod.analysis;
+
+			if (ANALYSIS_THREADS > 1) {
+				long bytes = MAX_RETAINED_BYTES > 0 && analysis != null ? analysis
+						.getRetainedBytes() : 0L;
+				if (MAX_RETAINED_BYTES > 0
+						&& pendingRetainedBytes + bytes > MAX_RETAINED_BYTES
+						&& hasPendingAnalyses()) {
+					runPendingClasses();
+					if (METRICS)
+						metrics.retainedBudgetFlushes.increment();
+				}
+				pending.methodList.add(pendingMethod);
+				pendingRetainedBytes += bytes;
+			} else if (analysis == null) {
+				reportReusedOutcome(classContext, pendingMethod, pending.result);
+			} else {
+				long start = System.nanoTime();
+				DataflowAnalysisException failure = execute(analysis);
+				wallNanos.addAndGet(System.nanoTime() - start);
+				reportMethod(classContext, analysis, failure, pending.result);
+				if (pending.costModel != null && ClassCostModel.isLogging())
+					pending.costModel.log(classContext.getJavaClass()
+							.getClassName(), i, method, analysis
+							.getExecuteNanos());
+			}
+		}
+
+		pending.prepared = true;
+		if (ANALYSIS_THREADS == 1)
+			finishClass(pending);
+		else if (pendingClassList.size() >= SCHEDULE_WINDOW)
+			runPendingClasses();
+	}
+
+	private boolean hasPendingAnalyses() {
+		for (PendingClass pending : pendingClassList) {
+			if (!pending.methodList.isEmpty())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Execute the analyses of the pending classes concurrently, report them
+	 * in order, and finish the classes all of whose methods are prepared.
+	 * The last class may still be being prepared, if the analyses held too
+	 * much of the heap; the rest of its methods are reported with the next
+	 * classes.
+	 */
+	private void runPendingClasses() {
+		List<MethodLeakAnalysis> batch = new ArrayList<MethodLeakAnalysis>();
+		List<Long> costList = new ArrayList<Long>();
+		for (PendingClass pending : pendingClassList) {
+			for (PendingMethod pendingMethod : pending.methodList) {
+				if (pendingMethod.analysis == null)
+					continue;
+				batch.add(pendingMethod.analysis);
+				costList.add(Long.valueOf(pending.getCost(pendingMethod)));
+			}
+		}
+		List<DataflowAnalysisException> failureList = executeConcurrently(
+				batch, costList);
+		scheduledBatchCount.incrementAndGet();
+		batch.clear();
+
+		int next = 0;
+		for (Iterator<PendingClass> i = pendingClassList.iterator(); i
+				.hasNext();) {
+			PendingClass pending = i.next();
+			String className = pending.classContext.getJavaClass()
+					.getClassName();
+			for (int j = 0; j < pending.methodList.size(); ++j) {
+				PendingMethod pendingMethod = pending.methodList.get(j);
+				MethodLeakAnalysis analysis = pendingMethod.analysis;
+				if (analysis == null) {
+					reportReusedOutcome(pending.classContext, pendingMethod,
+							pending.result);
+					continue;
+				}
+				reportMethod(pending.classContext, analysis,
+						failureList.get(next++), pending.result);
+				if (pending.costModel != null && ClassCostModel.isLogging())
+					pending.costModel.log(className, pendingMethod.methodIndex,
+							pendingMethod.method, analysis.getExecuteNanos());
+				// Let the analysis go as soon as it is reported
+				pending.methodList.set(j, null);
+			}
+			pending.methodList.clear();
+			if (pending.prepared) {
+				finishClass(pending);
+				i.remove();
+			}
+		}
+		pendingRetainedBytes = 0L;
+	}
+
+	/**
+	 * Record what the analysis of a class found in the result cache, once
+	 * all its methods are reported.
+	 */
+	private void finishClass(PendingClass pending) {
+		if (pending.result == null)
+			return;
+		for (LeakResourceTracker resourceTracker : pending.trackerList)
+			pending.result.addConsultedSummaries(resourceTracker);
+		resultCache.store(pending.result, System.nanoTime() - pending.start);
+	}
+
+	/**
+	 * Run and report the analyses of the classes still waiting for others
+	 * to be run with. Called at the end of the run, by report(), and by
+	 * runners which visit classes themselves, before the AnalysisContext of
+	 * the classes goes away.
+	 */
+	void finishPendingClasses() {
+		if (!pendingClassList.isEmpty())
+			runPendingClasses();
+	}
+
+	/**
+	 * Find the streams of a method and get its analysis ready to execute,
+	 * unless a method with the same bytecode was analyzed earlier in the
+	 * run, in which case its outcome is reused.
+	 *
+	 * @param methodIndex
+	 *            the index of the method in JavaClass.getMethods()
+	 * @param callPrescreen
+	 *            the method-level prescreen of the class, or null to use
+	 *            prescreen()
+	 * @param trackerList
+	 *            list to add the LeakResourceTracker of the method to
+	 * @return the analysis or reused outcome, or null if the method has
+	 *         nothing to analyze
+	 */
+	private PendingMethod prepareMethod(ClassContext classContext,
+			Method method, int methodIndex,
+			ResourceCallPrescreen callPrescreen,
+			List<LeakResourceTracker> trackerList) {
+		screenedMethodCount.incrementAndGet();
+		if (METRICS)
+			metrics.methodsScreened.increment();
+		if (callPrescreen != null && !callPrescreen.callsResourceMethod(method))
+			return null;
+		if (classContext.getMethodGen(method) == null)
+			return null;
+		if (callPrescreen == null && !prescreen(classContext, method, true))
+			return null;
+
+		Long fingerprint = null;
+		if (methodOutcomeCache != null) {
+			fingerprint = MethodOutcomeCache.fingerprint(classContext
+					.getJavaClass().getConstantPool(), method, callPrescreen);
+			MethodOutcomeCache.Outcome outcome = fingerprint != null ? methodOutcomeCache
+					.lookup(fingerprint.longValue()) : null;
+			if (outcome != null)
+				return new PendingMethod(method, methodIndex, null, outcome);
+		}
+
+		long start = System.nanoTime();
+		try {
+			MethodBudget budget = new MethodBudget();
+			LeakResourceTracker resourceTracker = getResourceTracker(
+					classContext, method);
+			trackerList.add(resourceTracker);
+			ResourceCollection<Stream> resourceCollection = buildResourceCollection(
+					classContext, method, resourceTracker);
+			if (resourceCollection.isEmpty()) {
+				if (fingerprint != null)
+					methodOutcomeCache.store(fingerprint.longValue(),
+							Collections.<MethodOutcomeCache.Leak> emptyList(),
+							resourceTracker.getConsultedSummaryMap(),
+							System.nanoTime() - start);
+				if (LOW_MEMORY)
+					releaseMethod(classContext, method, resourceTracker);
+				return null;
+			}
+			checkSize(classContext, method, resourceCollection, budget);
+
+			MethodLeakAnalysis analysis = new MethodLeakAnalysis(classContext,
+					method, resourceTracker, resourceCollection, budget);
+			analysis.addParameterStreams(subtypeCache, bugReporter);
+			budget.pauseClock();
+			analysis.setFingerprint(fingerprint);
+			analysis.setPrepareNanos(System.nanoTime() - start);
+			return new PendingMethod(method, methodIndex, analysis, null);
+		} catch (CFGBuilderException e) {
+			bugReporter.logError("Error analyzing method " + method.toString(),
+					e);
+		} catch (DataflowAnalysisException e) {
+			bugReporter.logError("Error analyzing method " + method.toString(),
+					e);
+		}
+		return null;
+	}
+
+	/**
+	 * Check the size of a method against its budget. If it is over, the CFG
+	 * and other analyses of the method are dropped from the ClassContext
+	 * once it is reported, rather than kept for the rest of the class.
+	 */
+	static void checkSize(ClassContext classContext, Method method,
+			ResourceCollection<Stream> resourceCollection, MethodBudget budget)
+			throws CFGBuilderException {
+		int resourceCount = 0;
+		for (Iterator<Stream> i = resourceCollection.resourceIterator(); i
+				.hasNext(); i.next())
+			++resourceCount;
+		budget.checkSize(classContext.getCFG(method), resourceCount);
+	}
+
+	/**
+	 * Drop the analyses of a method from the ClassContext, and the
+	 * per-method state of its LeakResourceTracker. The summaries the tracker
+	 * consulted are kept for the result cache.
+	 */
+	static void releaseMethod(ClassContext classContext, Method method,
+			LeakResourceTracker resourceTracker) {
+		classContext.purgeMethodAnalyses(BCELUtil.getMethodDescriptor(
+				classContext.getJavaClass(), method));
+		resourceTracker.releaseMethodState();
+		if (METRICS)
+			metrics.methodsReleased.increment();
+	}
+
+	/**
+	 * Find the streams created in a method.
+	 */
+	static ResourceCollection<Stream> buildResourceCollection(
+			ClassContext classContext, Method method,
+			LeakResourceTracker resourceTracker) throws CFGBuilderException,
+			DataflowAnalysisException {
+		ResourceCollection<Stream> resourceCollection = new ResourceCollection<Stream>();
+
+		long start = METRICS ? System.nanoTime() : 0L;
+		CFG cfg = classContext.getCFG(method);
+		cfgBuildCount.incrementAndGet();
+		if (METRICS)
+			metrics.cfgBuildTime.record(System.nanoTime() - start);
+		ConstantPoolGen cpg = classContext.getConstantPoolGen();
+
+		int createdCount = 0;
+		for (Iterator<Location> i = cfg.locationIterator(); i.hasNext();) {
+			Location location = i.next();
+			Stream resource = resourceTracker.isResourceCreation(
+					location.getBasicBlock(), location.getHandle(), cpg);
+			if (resource != null) {
+				resourceCollection.addCreatedResource(location, resource);
+				++createdCount;
+			}
+		}
+		if (METRICS)
+			metrics.resourcesPerMethod.record(createdCount);
+
+		return resourceCollection;
+	}
+
+	/**
+	 * Execute the analysis of a method, measuring the time taken. May be
+	 * called from any thread.
+	 *
+	 * @return the exception thrown by the analysis, or null if there was none
+	 */
+	private static DataflowAnalysisException execute(MethodLeakAnalysis analysis) {
+		long start = System.nanoTime();
+		analysis.getBudget().resumeClock();
+		try {
+			analysis.execute();
+			return null;
+		} catch (DataflowAnalysisException e) {
+			return e;
+		} finally {
+			analysis.getBudget().pauseClock();
+			long nanos = System.nanoTime() - start;
+			analysis.setExecuteNanos(nanos);
+			busyNanos.addAndGet(nanos);
+			methodCount.incrementAndGet();
+			if (METRICS)
+				metrics.methodsAnalyzed.increment();
+		}
+	}
+
+	/**
+	 * Execute analyses on the analysis pool, the costliest first unless
+	 * fos.noCostOrder is set. The worker threads see the AnalysisContext and
+	 * analysis cache of the calling thread.
+	 *
+	 * @param costList
+	 *            the estimated cost of each analysis
+	 * @return the exception thrown by each analysis, or null if there was
+	 *         none, in the same order as the analyses
+	 */
+	private List<DataflowAnalysisException> executeConcurrently(
+			List<MethodLeakAnalysis> analysisList, final List<Long> costList) {
+		final AnalysisContext analysisContext = AnalysisContext
+				.currentAnalysisContext();
+		final IAnalysisCache analysisCache = Global.getAnalysisCache();
+
+		// The pool starts submitted tasks in order; ties keep method order
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < analysisList.size(); ++i)
+			order.add(Integer.valueOf(i));
+		if (COST_ORDER) {
+			Collections.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return costList.get(b.intValue()).compareTo(
+							costList.get(a.intValue()));
+				}
+			});
+		}
+
+		List<Callable<DataflowAnalysisException>> taskList = new ArrayList<Callable<DataflowAnalysisException>>();
+		for (Integer index : order) {
+			final MethodLeakAnalysis analysis = analysisList.get(index
+					.intValue());
+			taskList.add(new Callable<DataflowAnalysisException>() {
+				public DataflowAnalysisException call() {
+					AnalysisContext.setCurrentAnalysisContext(analysisContext);
+					Global.setAnalysisCacheForCurrentThread(analysisCache);
+					return execute(analysis);
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		List<Future<DataflowAnalysisException>> futureList = getAnalysisPool()
+				.invokeAll(taskList);
+		wallNanos.addAndGet(System.nanoTime() - start);
+
+		List<DataflowAnalysisException> failureList = new ArrayList<DataflowAnalysisException>(
+				Collections.<DataflowAnalysisException> nCopies(
+						analysisList.size(), null));
+		for (int i = 0; i < futureList.size(); ++i) {
+			try {
+				failureList.set(order.get(i).intValue(), futureList.get(i)
+						.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(
+						"Interrupted while analyzing methods", e);
+			} catch (ExecutionException e) {
+				// Anything other than a DataflowAnalysisException would have
+				// escaped from the method loop in the engine thread; do the
+				// same here.
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new IllegalStateException(cause);
+			}
+		}
+		return failureList;
+	}
+
+	private static synchronized ForkJoinPool getAnalysisPool() {
+		if (analysisPool == null)
+			analysisPool = new ForkJoinPool(ANALYSIS_THREADS);
+		return analysisPool;
+	}
+
+	/**
+	 * Report the outcome of the analysis of a method.
+	 */
+	private void reportMethod(ClassContext classContext,
+			MethodLeakAnalysis analysis, DataflowAnalysisException failure,
+			ClassResultCache.ClassResult result) {
+		long start = METRICS ? System.nanoTime() : 0L;
+		if (failure != null) {
+			bugReporter.logError("Error analyzing method "
+					+ analysis.getMethod().toString(), failure);
+		} else {
+			logDataflowFailure(analysis);
+			List<MethodOutcomeCache.Leak> leakList = reportLeakedStreams(
+					classContext, analysis, result);
+			reportTruncation(classContext, analysis, result);
+			// Only complete outcomes are reused
+			if (analysis.getFingerprint() != null
+					&& analysis.getDataflowFailure() == null
+					&& !analysis.getBudget().isExceeded())
+				methodOutcomeCache.store(analysis.getFingerprint().longValue(),
+						leakList, analysis.getResourceTracker()
+								.getConsultedSummaryMap(), analysis
+								.getPrepareNanos()
+								+ analysis.getExecuteNanos());
+		}
+		reportAccumulatedBugs();
+		if (LOW_MEMORY || analysis.getBudget().isExceeded())
+			releaseMethod(classContext, analysis.getMethod(),
+					analysis.getResourceTracker());
+		if (METRICS)
+			metrics.bugAccumulationTime.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Report the leaks of a method with the bytecode of a method analyzed
+	 * earlier, at the source lines of its own instructions.
+	 */
+	private void reportReusedOutcome(ClassContext classContext,
+			PendingMethod pendingMethod, ClassResultCache.ClassResult result) {
+		MethodOutcomeCache.Outcome outcome = pendingMethod.reusedOutcome;
+		reportLeaks(classContext, pendingMethod.method,
+				classContext.getMethodGen(pendingMethod.method),
+				outcome.leakList, result);
+		reportAccumulatedBugs();
+		if (result != null)
+			result.addConsultedSummaries(outcome.consultedSummaryMap);
+		if (METRICS)
+			metrics.methodsDeduplicated.increment();
+	}
+
+	private static void logDataflowFailure(MethodLeakAnalysis analysis) {
+		RuntimeException e = analysis.getDataflowFailure();
+		if (e == null)
+			return;
+		MethodGen methodGen = analysis.getMethodGen();
+		AnalysisContext.logError("Exception while analyzing "
+				+ methodGen.getClassName() + "." + methodGen.getName() + ":"
+				+ methodGen.getSignature(), e);
+	}
+
+	/**
+	 * Count the method if its budget ran out, and report a low priority
+	 * warning if that left some of its streams unresolved. As the findings
+	 * of such a method depend on the limits, and on timing, the findings of
+	 * its class are not cached.
+	 *
+	 * @param result
+	 *            where the findings of the class are recorded, or null
+	 */
+	private void reportTruncation(ClassContext classContext,
+			MethodLeakAnalysis analysis, ClassResultCache.ClassResult result) {
+		MethodBudget budget = analysis.getBudget();
+		if (!budget.isExceeded())
+			return;
+		budgetTripCounts.incrementAndGet(budget.getExceededKind());
+		if (METRICS)
+			metrics.budgetTrips[budget.getExceededKind()].increment();
+		if (result != null)
+			result.setIncomplete();
+		if (DEBUG)
+			System.out.println("ResourceLeakDetector: truncated "
+					+ analysis.getMethodGen().getClassName() + "."
+					+ analysis.getMethodGen().getName() + ": "
+					+ budget.getReason());
+		if (analysis.getUnresolvedStreamCount() == 0)
+			return;
+
+		MethodGen methodGen = analysis.getMethodGen();
+		String sourceFile = classContext.getJavaClass().getSourceFileName();
+		bugAccumulator.accumulateBug(
+				new BugInstance(this, TRUNCATED_BUG_TYPE, LOW_PRIORITY)
+						.addClassAndMethod(methodGen, sourceFile)
+						.addString(budget.getReason())
+						.addInt(analysis.getUnresolvedStreamCount()),
+				SourceLineAnnotation.fromVisitedMethod(methodGen, sourceFile));
+	}
+
 	@Override
 	public void inspectResult(
 			ClassContext arg0,
@@ -158,31 +1157,19 @@ public class ResourceLeakDetector extends
 			CFG cfg,
 			Dataflow<ResourceValueFrame, ResourceValueAnalysis<Stream>> dataflow,
 			Stream stream) {
+		// MethodLeakAnalysis inspects the results of its own dataflow
+		// analyses the same way
 		ResourceValueFrame exitFrame = dataflow.getResultFact(cfg.getExit());
+		MethodLeakAnalysis.inspectExitStatus(exitFrame.getStatus(), stream,
+				potentialOpenStreamList);
+	}
 
-		int exitStatus = exitFrame.getStatus();
-		if (exitStatus == ResourceValueFrame.OPEN
-				|| exitStatus == ResourceValueFrame.OPEN_ON_EXCEPTION_PATH) {
-
-			// FIXME: Stream object should be queried for the
-			// priority.
-
-			String bugType = stream.getBugType();
-			int priority = NORMAL_PRIORITY;
-			if (exitStatus == ResourceValueFrame.OPEN_ON_EXCEPTION_PATH) {
-				bugType += "_EXCEPTION_PATH";
-				priority = LOW_PRIORITY;
-			}
-
-			potentialOpenStreamList.add(new PotentialOpenStream(bugType,
-					priority, stream));
-		} else if (exitStatus == ResourceValueFrame.CLOSED) {
-			// Remember that this stream was closed on all paths.
-			// Later, we will mark all of the streams in its equivalence class
-			// as having been closed.
-			stream.setClosed();
-		}
-
+	/**
+	 * Get the streams inspectResult() found open at exit since the last call
+	 * to analyzeMethod().
+	 */
+	List<MethodLeakAnalysis.PotentialOpenStream> getPotentialOpenStreams() {
+		return potentialOpenStreamList;
 	}
 
 	@Override
@@ -201,7 +1188,9 @@ public class ResourceLeakDetector extends
 	@Override
 	public Object clone() {
 		try {
-			return super.clone();
+			ResourceLeakDetector copy = (ResourceLeakDetector) super.clone();
+			copy.potentialOpenStreamList = new ArrayList<MethodLeakAnalysis.PotentialOpenStream>();
+			return copy;
 		} catch (CloneNotSupportedException e) {
 			throw new AssertionError(e);
 		}
@@ -212,134 +1201,219 @@ public class ResourceLeakDetector extends
 			LeakResourceTracker resourceTracker,
 			ResourceCollection<Stream> resourceCollection)
 			throws CFGBuilderException, DataflowAnalysisException {
-
 		potentialOpenStreamList.clear();
-
-		JavaClass javaClass = classContext.getJavaClass();
-		MethodGen methodGen = classContext.getMethodGen(method);
-		if (methodGen == null)
+		if (classContext.getMethodGen(method) == null)
 			return;
-		CFG cfg = classContext.getCFG(method);
-
-		// Add Streams passed into the method as parameters.
-		// These are uninteresting, and should poison
-		// any streams which wrap them.
-		try {
-			Type[] parameterTypeList = Type.getArgumentTypes(methodGen
-					.getSignature());
-			Location firstLocation = new Location(cfg.getEntry()
-					.getFirstInstruction(), cfg.getEntry());
-
-			int local = methodGen.isStatic() ? 0 : 1;
-
-			for (Type type : parameterTypeList) {
-				if (type instanceof ObjectType) {
-					ObjectType objectType = (ObjectType) type;
-
-					for (ObjectType streamBase : streamBaseList) {
-						if (Hierarchy.isSubtype(objectType, streamBase)) {
-							// OK, found a parameter that is a resource.
-							// Create a Stream object to represent it.
-							// The Stream will be uninteresting, so it will
-							// inhibit reporting for any stream that wraps it.
-							Stream paramStream = new Stream(firstLocation,
-									objectType.getClassName(),
-									streamBase.getClassName());
-							paramStream.setIsOpenOnCreation(true);
-							paramStream.setOpenLocation(firstLocation);
-							paramStream.setInstanceParam(local);
-							resourceCollection
-									.addPreexistingResource(paramStream);
-
-							break;
-						}
-					}
-				}
-
-				switch (type.getType()) {
-				case Constants.T_LONG:
-				case Constants.T_DOUBLE:
-					local += 2;
-					break;
-				default:
-					local += 1;
-					break;
-				}
-			}
-		} catch (ClassNotFoundException e) {
-			bugReporter.reportMissingClass(e);
-		}
-
-		// Set precomputed map of Locations to Stream creation points.
-		// That way, the StreamResourceTracker won't have to
-		// repeatedly try to figure out where Streams are created.
-		resourceTracker.setResourceCollection(resourceCollection);
-
-		super.analyzeMethod(classContext, method, resourceTracker,
-				resourceCollection);
-
-		// Compute streams that escape into other streams:
-		// this takes wrapper streams into account.
-		// This will also compute equivalence classes of streams,
-		// so that if one stream in a class is closed,
-		// they are all considered closed.
-		// (FIXME: this is too simplistic, especially if buffering
-		// is involved. Sometime we should really think harder
-		// about how this should work.)
-		resourceTracker.markTransitiveUninterestingStreamEscapes();
-
-		// For each stream closed on all paths, mark its equivalence
-		// class as being closed.
-		for (Iterator<Stream> i = resourceCollection.resourceIterator(); i
-				.hasNext();) {
-			Stream stream = i.next();
-			StreamEquivalenceClass equivalenceClass = resourceTracker
-					.getStreamEquivalenceClass(stream);
-			if (stream.isClosed())
-				equivalenceClass.setClosed();
-		}
-
-		// Iterate through potential open streams, reporting warnings
-		// for the "interesting" streams that haven't been closed
-		// (and aren't in an equivalence class with another stream
-		// that was closed).
-		for (PotentialOpenStream pos : potentialOpenStreamList) {
-			Stream stream = pos.stream;
-			if (stream.isClosed())
-			{
-				continue;
-			}
 
-			if (stream.isUninteresting()){
-				continue;
-			}
+		MethodBudget budget = new MethodBudget();
+		checkSize(classContext, method, resourceCollection, budget);
+		MethodLeakAnalysis analysis = new MethodLeakAnalysis(classContext,
+				method, resourceTracker, resourceCollection, budget);
+		analysis.addParameterStreams(subtypeCache, bugReporter);
+		analysis.execute();
+		logDataflowFailure(analysis);
+		reportLeakedStreams(classContext, analysis, null);
+		reportTruncation(classContext, analysis, null);
+		reportAccumulatedBugs();
+		if (LOW_MEMORY || budget.isExceeded())
+			releaseMethod(classContext, method, resourceTracker);
+	}
 
-			Location openLocation = stream.getOpenLocation();
-			
-			if (openLocation == null){
-				continue;
-			}
+	/**
+	 * Report warnings for the streams a method leaks.
+	 *
+	 * @param result
+	 *            where to record the warnings for incremental analysis, or
+	 *            null
+	 * @return the leaks, as the outcome of the method
+	 */
+	private List<MethodOutcomeCache.Leak> reportLeakedStreams(
+			ClassContext classContext, MethodLeakAnalysis analysis,
+			ClassResultCache.ClassResult result) {
+		List<MethodOutcomeCache.Leak> leakList = new ArrayList<MethodOutcomeCache.Leak>();
+		for (MethodLeakAnalysis.PotentialOpenStream pos : analysis
+				.getLeakedStreamList())
+			leakList.add(new MethodOutcomeCache.Leak(pos.stream.getLocation()
+					.getHandle().getPosition(), pos.bugType, pos.priority,
+					pos.stream.getStreamBase()));
+		reportLeaks(classContext, analysis.getMethod(),
+				analysis.getMethodGen(), leakList, result);
+		return leakList;
+	}
 
-			if (IGNORE_WRAPPED_UNINTERESTING_STREAMS
-					&& resourceTracker.isUninterestingStreamEscape(stream)){
-				continue;
-			}
+	/**
+	 * Report warnings for leaks of a method, at the source lines of the
+	 * instructions creating the streams.
+	 *
+	 * @param result
+	 *            where to record the warnings for incremental analysis, or
+	 *            null
+	 */
+	private void reportLeaks(ClassContext classContext, Method method,
+			MethodGen methodGen, List<MethodOutcomeCache.Leak> leakList,
+			ClassResultCache.ClassResult result) {
+		String sourceFile = classContext.getJavaClass().getSourceFileName();
 
-			String sourceFile = javaClass.getSourceFileName();
-			String leakClass = stream.getStreamBase();
+		for (MethodOutcomeCache.Leak leak : leakList) {
+			String leakClass = leak.leakClass;
 			if (isMainMethod(method)
 					&& (leakClass.contains("InputStream") || leakClass
 							.contains("Reader"))){
 				return;
 			}
+			InstructionHandle handle = methodGen.getInstructionList()
+					.findHandle(leak.pc);
+			SourceLineAnnotation sourceLine = handle != null ? SourceLineAnnotation
+					.fromVisitedInstruction(classContext, methodGen,
+							sourceFile, handle)
+					: SourceLineAnnotation.fromVisitedMethod(methodGen,
+							sourceFile);
 			bugAccumulator.accumulateBug(
-					new BugInstance(this, pos.bugType, pos.priority)
+					new BugInstance(this, leak.bugType, leak.priority)
 							.addClassAndMethod(methodGen, sourceFile)
 							.addTypeOfNamedClass(leakClass)
 							.describe(TypeAnnotation.CLOSEIT_ROLE),
-					SourceLineAnnotation.fromVisitedInstruction(classContext,
-							methodGen, sourceFile, stream.getLocation()
-									.getHandle()));
+					sourceLine);
+			if (result != null)
+				result.addBug(leak.bugType, leak.priority, methodGen,
+						leakClass, SourceLineAnnotation.fromVisitedMethod(
+								methodGen, sourceFile), sourceLine);
+		}
+	}
+
+	@Override
+	public void report() {
+		finishPendingClasses();
+		reportRun();
+	}
+
+	/**
+	 * Print a line of the statistics of a run. They go to standard error, so
+	 * they don't mix with the reports FindBugs and the runners write to
+	 * standard output.
+	 */
+	private static void printStatistic(String line) {
+		System.err.println("ResourceLeakDetector: " + line);
+	}
+
+	/**
+	 * Save the caches shared by all instances of the detector and print the
+	 * statistics of the run. Needs no analysis context, so the runners call
+	 * it once the last class is done.
+	 */
+	static void reportRun() {
+		if (DEBUG)
+			printStatistic(subtypeCache.toString());
+		StreamingBugWriter stream = takeBugStream();
+		if (stream != null) {
+			stream.close();
+			printStatistic(stream.toString());
+			if (METRICS && stream.getFirstRecordNanos() >= 0)
+				metrics.timeToFirstBug.record(stream.getFirstRecordNanos());
+		}
+		if (resultCache != null) {
+			printStatistic(resultCache.toString());
+			try {
+				resultCache.save();
+			} catch (IOException e) {
+				AnalysisContext.logError("Could not save analysis results", e);
+			}
+		}
+		if (summaryDatabase != null) {
+			if (DEBUG)
+				printStatistic(summaryDatabase.toString());
+			try {
+				summaryDatabase.save();
+			} catch (IOException e) {
+				AnalysisContext.logError("Could not save resource summaries", e);
+			}
+		}
+		if (DEBUG || ANALYSIS_THREADS > 1) {
+			long wallMillis = wallNanos.get() / 1000000;
+			long busyMillis = busyNanos.get() / 1000000;
+			printStatistic("analyzed " + methodCount.get() + " methods on "
+					+ ANALYSIS_THREADS + " thread(s), wall " + wallMillis
+					+ " ms, busy " + busyMillis + " ms");
+		}
+		if (DEBUG || SCHEDULE_WINDOW > 1)
+			printStatistic("ran " + scheduledBatchCount.get()
+					+ " batches of up to " + SCHEDULE_WINDOW + " classes"
+					+ (COST_ORDER ? ", costliest first" : ""));
+		if (methodOutcomeCache != null
+				&& (DEBUG || methodOutcomeCache.getHitCount() > 0))
+			printStatistic("reused the analyses of "
+					+ methodOutcomeCache.getHitCount()
+					+ " methods with the bytecode of a method analyzed before,"
+					+ " saving about " + methodOutcomeCache.getSavedNanos()
+					/ 1000000 + " ms (" + methodOutcomeCache + ")");
+		if (DEBUG || ClassCostModel.isLogging())
+			printStatistic(ClassCostModel.getFitSummary());
+		if (DEBUG)
+			printStatistic("built CFGs for " + cfgBuildCount.get() + " of "
+					+ screenedMethodCount.get() + " methods"
+					+ (METHOD_PRESCREEN ? "" : " (no method prescreen)"));
+		if (DEBUG)
+			printStatistic("pruned " + prunedEdgeCount.get()
+					+ " exception edges"
+					+ (PRUNE_EXCEPTION_EDGES ? "" : " (edge pruning disabled)"));
+		if (DEBUG)
+			printStatistic("closed " + closedByShapeCount.get() + " of "
+					+ streamCount.get()
+					+ " streams by the shape of their bytecode"
+					+ (MATCH_CLOSE_SHAPES ? "" : " (close shapes disabled)"));
+		if (DEBUG)
+			printStatistic("skipped " + slicedBlockCount.get()
+					+ " blocks outside the slices of streams"
+					+ (SLICE_CFG ? "" : " (slicing disabled)"));
+		long truncatedCount = 0L;
+		StringBuilder trips = new StringBuilder();
+		for (int i = 0; i < MethodBudget.KIND_COUNT; ++i) {
+			long n = budgetTripCounts.get(i);
+			truncatedCount += n;
+			trips.append(i > 0 ? ", " : "").append(MethodBudget.KIND_NAMES[i])
+					.append(' ').append(n);
+		}
+		if (truncatedCount > 0)
+			printStatistic("truncated the analysis of " + truncatedCount
+					+ " methods over budget (" + trips + ")");
+		if (DEBUG || LOW_MEMORY)
+			printStatistic("peak heap " + getPeakHeapBytes() / 1048576 + " MB"
+					+ (LOW_MEMORY ? " (low memory mode)" : ""));
+		if (METRICS)
+			writeMetrics();
+	}
+
+	/**
+	 * Get the peak heap usage of the JVM, summed over the heap memory pools,
+	 * since it started or the peaks were last reset.
+	 */
+	static long getPeakHeapBytes() {
+		long peak = 0L;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	private static void writeMetrics() {
+		String fileName = SystemProperties.getProperty("fos.metricsFile");
+		boolean prometheus = "prometheus".equals(SystemProperties
+				.getProperty("fos.metricsFormat"));
+		try {
+			Writer out = new OutputStreamWriter(fileName != null ? new FileOutputStream(
+					fileName) : System.out, "UTF-8");
+			try {
+				if (prometheus)
+					metrics.writePrometheus(out);
+				else
+					metrics.writeJSON(out);
+			} finally {
+				if (fileName != null)
+					out.close();
+			}
+		} catch (IOException e) {
+			AnalysisContext.logError("Could not write detector metrics", e);
 		}
 	}
 
@@ -1,7 +1,6 @@
 package edu.umd.cs.findbugs.detect;
 
 
-import org.apache.bcel.Constants;
 import org.apache.bcel.generic.ConstantPoolGen;
 import org.apache.bcel.generic.Instruction;
 import org.apache.bcel.generic.InstructionHandle;
@@ -33,7 +32,7 @@ public class ResourceLeavModelingVisitor extends
 	public void transferInstruction(InstructionHandle handle,
 			BasicBlock basicBlock) throws DataflowAnalysisException {
 		// Record what Location we are analyzing
-		this.location = new Location(handle, basicBlock);
+		this.location = resourceTracker.getLocation(handle, basicBlock);
 
 		final Instruction ins = handle.getInstruction();
 		final ResourceValueFrame frame = getFrame();
@@ -81,34 +80,14 @@ public class ResourceLeavModelingVisitor extends
 
 	@Override
 	protected boolean instanceEscapes(InvokeInstruction inv, int instanceArgNum) {
-		ConstantPoolGen cpg = getCPG();
-		String className = inv.getClassName(cpg);
-
-		// System.out.print("[Passed as arg="+instanceArgNum+" at " + inv +
-		// "]");
-
-		boolean escapes = (inv.getOpcode() == Constants.INVOKESTATIC || instanceArgNum != 0);
-		String methodName = inv.getMethodName(cpg);
-		String methodSig = inv.getSignature(cpg);
-		if (inv.getOpcode() == Constants.INVOKEVIRTUAL
-				&& (methodName.equals("load")
-						|| methodName.equals("loadFromXml")
-						|| methodName.equals("store") || methodName
-							.equals("save"))
-				&& className.equals("java.util.Properties"))
-			escapes = false;
-		if (inv.getOpcode() == Constants.INVOKEVIRTUAL
-				&& (methodName.equals("load") || methodName.equals("store"))
-				&& className.equals("java.security.KeyStore"))
-			escapes = false;
-		if (inv.getOpcode() == Constants.INVOKEVIRTUAL
-				&& "getChannel".equals(methodName)
-				&& "()Ljava/nio/channels/FileChannel;".equals(methodSig))
-			escapes = true;
-
-		if (ResourceLeakDetector.DEBUG && escapes) {
-			System.out.println("ESCAPE at " + location + " at call to "
-					+ className + "." + methodName + ":" + methodSig);
+		MethodSiteIndex siteIndex = resourceTracker.getSiteIndex();
+		boolean escapes;
+		if (siteIndex != null) {
+			escapes = siteIndex.escapes(location.getHandle(), instanceArgNum);
+			if (ResourceLeakDetector.DEBUG && escapes)
+				System.out.println("ESCAPE at " + location);
+		} else {
+			escapes = isEscapingCall(inv, instanceArgNum, getCPG(), location);
 		}
 
 		// Record the fact that this might be a stream escape
@@ -117,4 +96,42 @@ public class ResourceLeavModelingVisitor extends
 
 		return escapes;
 	}
+
+	/**
+	 * Determine whether a resource instance passed as the given argument of a
+	 * call escapes the method.
+	 * 
+	 * @param inv
+	 *            the call
+	 * @param instanceArgNum
+	 *            the argument holding the instance (0 is the receiver of an
+	 *            instance call)
+	 * @param cpg
+	 *            the ConstantPoolGen of the method
+	 * @param location
+	 *            the Location of the call, used for debug output
+	 */
+	static boolean isEscapingCall(InvokeInstruction inv, int instanceArgNum,
+			ConstantPoolGen cpg, Location location) {
+		boolean escapes = isEscapingCall(inv, instanceArgNum, cpg);
+
+		if (ResourceLeakDetector.DEBUG && escapes) {
+			System.out.println("ESCAPE at " + location + " at call to "
+					+ inv.getClassName(cpg) + "." + inv.getMethodName(cpg)
+					+ ":" + inv.getSignature(cpg));
+		}
+
+		return escapes;
+	}
+
+	/**
+	 * Determine whether a resource instance passed as the given argument of a
+	 * call escapes the method, by the rules of the EscapeModel. The result is
+	 * the same for all arguments other than the receiver.
+	 */
+	static boolean isEscapingCall(InvokeInstruction inv, int instanceArgNum,
+			ConstantPoolGen cpg) {
+		return ResourceLeakDetector.escapeModel.resolve(cpg).escapes(inv,
+				instanceArgNum, cpg);
+	}
 }
@@ -0,0 +1,301 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.bcel.generic.ObjectType;
+
+import edu.umd.cs.findbugs.ba.RepositoryLookupFailureCallback;
+import edu.umd.cs.findbugs.ba.XClass;
+import edu.umd.cs.findbugs.classfile.CheckedAnalysisException;
+import edu.umd.cs.findbugs.classfile.ClassDescriptor;
+import edu.umd.cs.findbugs.classfile.DescriptorFactory;
+import edu.umd.cs.findbugs.classfile.Global;
+
+/**
+ * Memoizes which of the tracked resource base types a given class is a
+ * subtype of. Every invoke instruction returning an object is checked against
+ * the bases, so without the cache the same hierarchy walks are repeated for
+ * every call site of every method in the application.
+ *
+ * The answer for a class is its resource-base bitmask: the bits of the
+ * ResourceTypeRegistry IDs of the bases it is a subtype of. It is the union
+ * of its own bit, if it is a base, and the bitmasks of its superclass and
+ * interfaces, which are cached in turn, so each class of a hierarchy is
+ * looked up once however many bases are registered, and matching a class
+ * against a base is a bit test.
+ *
+ * Negative results and classes that could not be found are cached as well, so
+ * a missing class is reported only once rather than once per call site. The
+ * cache is bounded and evicts the least recently used entries; it is safe to
+ * share between detector instances and threads.
+ */
+public class ResourceSubtypeCache {
+	/**
+	 * Result for a class which is not a subtype of any resource base.
+	 */
+	public static final int NOT_RESOURCE = -1;
+
+	/**
+	 * Result for a class whose hierarchy could not be resolved.
+	 */
+	public static final int MISSING_CLASS = -2;
+
+	/**
+	 * Lock held for class hierarchy queries. The analysis cache behind
+	 * Hierarchy is not thread-safe, so any query which might be made while
+	 * methods are analyzed concurrently must hold it.
+	 */
+	static final Object HIERARCHY_LOCK = new Object();
+
+	/**
+	 * The resource-base bitmask of a class.
+	 */
+	private static final class TypeMask {
+		/**
+		 * The bits, in words of 64, or null if there are none.
+		 */
+		final long[] bits;
+
+		/**
+		 * Whether some class of the hierarchy could not be found.
+		 */
+		final boolean missing;
+
+		/**
+		 * The lowest ID in the bitmask, or NOT_RESOURCE or MISSING_CLASS if
+		 * it is empty.
+		 */
+		final int result;
+
+		TypeMask(long[] bits, boolean missing) {
+			int first = NOT_RESOURCE;
+			if (bits != null) {
+				for (int i = 0; i < bits.length && first < 0; ++i) {
+					if (bits[i] != 0L)
+						first = i * 64 + Long.numberOfTrailingZeros(bits[i]);
+				}
+			}
+			this.bits = first >= 0 ? bits : null;
+			this.missing = missing;
+			this.result = first >= 0 ? first : missing ? MISSING_CLASS
+					: NOT_RESOURCE;
+		}
+
+		boolean get(int id) {
+			return bits != null && (bits[id >>> 6] & (1L << id)) != 0L;
+		}
+	}
+
+	private static final TypeMask NO_BASES = new TypeMask(null, false);
+
+	private final ResourceTypeRegistry registry;
+
+	private final ObjectType[] resourceBaseList;
+
+	private final Map<String, TypeMask> resultMap;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	public ResourceSubtypeCache(ResourceTypeRegistry registry,
+			final int maxSize) {
+		this.registry = registry;
+		this.resourceBaseList = registry.getTypeList();
+		this.resultMap = new LinkedHashMap<String, TypeMask>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, TypeMask> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the registry of the resource bases this cache answers queries for.
+	 */
+	public ResourceTypeRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Get the resource bases this cache answers queries for, by ID.
+	 */
+	public ObjectType[] getResourceBaseList() {
+		return resourceBaseList;
+	}
+
+	/**
+	 * Find the resource base the given type is a subtype of.
+	 *
+	 * @param type
+	 *            the type to check
+	 * @param lookupFailureCallback
+	 *            callback notified (once) if the class hierarchy of the type
+	 *            can't be resolved
+	 * @return the matched resource base, or null if the type is not a resource
+	 */
+	public ObjectType getResourceBase(ObjectType type,
+			RepositoryLookupFailureCallback lookupFailureCallback) {
+		int index = lookup(type, lookupFailureCallback);
+		return index >= 0 ? resourceBaseList[index] : null;
+	}
+
+	/**
+	 * Find the ID of the resource base the given type is a subtype of.
+	 *
+	 * @return the ID, NOT_RESOURCE or MISSING_CLASS
+	 */
+	public int lookup(ObjectType type,
+			RepositoryLookupFailureCallback lookupFailureCallback) {
+		return getTypeMask(type.getClassName(), lookupFailureCallback).result;
+	}
+
+	/**
+	 * Determine if a class is a subtype of the resource base with the given
+	 * ID. A class whose hierarchy can't be resolved is a subtype only of the
+	 * bases found in the part which can.
+	 *
+	 * @param className
+	 *            the class name, in dotted form
+	 */
+	public boolean isSubtype(String className, int id,
+			RepositoryLookupFailureCallback lookupFailureCallback) {
+		return getTypeMask(className, lookupFailureCallback).get(id);
+	}
+
+	private TypeMask getTypeMask(String className,
+			RepositoryLookupFailureCallback lookupFailureCallback) {
+		TypeMask cached;
+		synchronized (resultMap) {
+			cached = resultMap.get(className);
+		}
+		if (cached != null) {
+			hitCount.incrementAndGet();
+			return cached;
+		}
+		missCount.incrementAndGet();
+
+		// Walk the hierarchy outside of the cache lock; two threads racing on
+		// the same class compute the same answer.
+		synchronized (HIERARCHY_LOCK) {
+			return computeTypeMask(className, lookupFailureCallback);
+		}
+	}
+
+	/**
+	 * Compute the bitmask of a class from those of its supertypes, caching
+	 * it and theirs. Called with HIERARCHY_LOCK held.
+	 */
+	private TypeMask computeTypeMask(String className,
+			RepositoryLookupFailureCallback lookupFailureCallback) {
+		TypeMask cached;
+		synchronized (resultMap) {
+			cached = resultMap.get(className);
+		}
+		if (cached != null)
+			return cached;
+
+		long[] bits = null;
+		boolean missing = false;
+		int id = registry.getId(className);
+		if (id >= 0) {
+			bits = new long[(registry.size() + 63) >>> 6];
+			bits[id >>> 6] |= 1L << id;
+		}
+		ClassDescriptor classDescriptor = DescriptorFactory
+				.createClassDescriptorFromDottedClassName(className);
+		try {
+			XClass xclass = Global.getAnalysisCache().getClassAnalysis(
+					XClass.class, classDescriptor);
+			List<ClassDescriptor> supertypeList = new ArrayList<ClassDescriptor>();
+			if (xclass.getSuperclassDescriptor() != null)
+				supertypeList.add(xclass.getSuperclassDescriptor());
+			supertypeList.addAll(Arrays.asList(xclass
+					.getInterfaceDescriptorList()));
+			for (ClassDescriptor supertype : supertypeList) {
+				TypeMask mask = computeTypeMask(
+						supertype.toDottedClassName(), lookupFailureCallback);
+				missing |= mask.missing;
+				if (mask.bits == null)
+					continue;
+				if (bits == null)
+					bits = new long[mask.bits.length];
+				for (int i = 0; i < bits.length; ++i)
+					bits[i] |= mask.bits[i];
+			}
+		} catch (CheckedAnalysisException e) {
+			missing = true;
+			if (lookupFailureCallback != null)
+				lookupFailureCallback.reportMissingClass(classDescriptor);
+		}
+
+		TypeMask result = bits == null && !missing ? NO_BASES : new TypeMask(
+				bits, missing);
+		synchronized (resultMap) {
+			resultMap.put(className, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Forget the results for some classes, whose hierarchy may have changed,
+	 * and for the classes part of whose hierarchy could not be found, for a
+	 * new run in the same JVM. Results for other classes stay valid as long as the classes
+	 * given include all application classes, since library classes don't
+	 * extend them.
+	 *
+	 * @param classNames
+	 *            the class names, in dotted form
+	 */
+	public void invalidate(Collection<String> classNames) {
+		synchronized (resultMap) {
+			resultMap.keySet().removeAll(classNames);
+			for (Iterator<TypeMask> i = resultMap.values().iterator(); i
+					.hasNext();) {
+				if (i.next().missing)
+					i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forget the results for all classes, for a new run in the same JVM
+	 * whose application classes aren't known.
+	 */
+	public void clear() {
+		synchronized (resultMap) {
+			resultMap.clear();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public int size() {
+		synchronized (resultMap) {
+			return resultMap.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ResourceSubtypeCache[size=" + size() + ", hits="
+				+ getHitCount() + ", misses=" + getMissCount() + "]";
+	}
+}
@@ -0,0 +1,484 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.ALOAD;
+import org.apache.bcel.generic.ASTORE;
+import org.apache.bcel.generic.BranchInstruction;
+import org.apache.bcel.generic.CodeExceptionGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.IfInstruction;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.InvokeInstruction;
+import org.apache.bcel.generic.LoadInstruction;
+import org.apache.bcel.generic.LocalVariableInstruction;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.NEW;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.ReturnInstruction;
+import org.apache.bcel.generic.Select;
+import org.apache.bcel.generic.StoreInstruction;
+import org.apache.bcel.generic.Type;
+
+import edu.umd.cs.findbugs.ba.RepositoryLookupFailureCallback;
+
+/**
+ * Computes the ResourceSummary of a method from its bytecode. This is a small
+ * dataflow analysis over the instruction list which tracks, for every local
+ * and stack slot, where the value came from: null, a new resource, one of the
+ * method's parameters, or somewhere else. It needs no CFG, so summarizing a
+ * callee is much cheaper than analyzing it.
+ *
+ * Calls are modeled with the summaries of the callees where known, which is
+ * what makes the summaries interprocedural. Methods using JSR/RET, or too big
+ * to converge quickly, get ResourceSummary.UNKNOWN.
+ */
+public class ResourceSummarizer {
+	private static final int OTHER = -1;
+
+	private static final int NULL_VALUE = -2;
+
+	private static final int NEW_RESOURCE = -3;
+
+	/**
+	 * A new resource on some paths, something else on others.
+	 */
+	private static final int MAYBE_NEW_RESOURCE = -4;
+
+	/**
+	 * Maximum number of instruction visits, per instruction of the method.
+	 */
+	private static final int MAX_VISITS_PER_INSTRUCTION = 20;
+
+	private final ResourceSubtypeCache subtypeCache;
+
+	private final ResourceSummaryDatabase summaryDatabase;
+
+	private final RepositoryLookupFailureCallback lookupFailureCallback;
+
+	/**
+	 * Dataflow fact: the origin of each local and stack slot, and the
+	 * parameters closed on every path so far.
+	 */
+	private static final class State {
+		final int[] locals;
+
+		final int[] stack;
+
+		int depth;
+
+		long closedMask;
+
+		State(int maxLocals, int maxStack) {
+			this.locals = new int[maxLocals];
+			this.stack = new int[maxStack];
+			Arrays.fill(locals, OTHER);
+		}
+
+		State(State other) {
+			this.locals = other.locals.clone();
+			this.stack = other.stack.clone();
+			this.depth = other.depth;
+			this.closedMask = other.closedMask;
+		}
+
+		void push(int origin) {
+			stack[depth++] = origin;
+		}
+
+		int pop() {
+			return stack[--depth];
+		}
+
+		int peek(int n) {
+			return stack[depth - 1 - n];
+		}
+
+		/**
+		 * Merge another state into this one.
+		 *
+		 * @return true if this state changed
+		 */
+		boolean mergeWith(State other) {
+			if (depth != other.depth)
+				throw new IllegalStateException("Stack depth mismatch");
+			boolean changed = false;
+			for (int i = 0; i < locals.length; ++i) {
+				int merged = mergeOrigins(locals[i], other.locals[i]);
+				if (merged != locals[i]) {
+					locals[i] = merged;
+					changed = true;
+				}
+			}
+			for (int i = 0; i < depth; ++i) {
+				int merged = mergeOrigins(stack[i], other.stack[i]);
+				if (merged != stack[i]) {
+					stack[i] = merged;
+					changed = true;
+				}
+			}
+			long mergedMask = closedMask & other.closedMask;
+			if (mergedMask != closedMask) {
+				closedMask = mergedMask;
+				changed = true;
+			}
+			return changed;
+		}
+	}
+
+	public ResourceSummarizer(ResourceSubtypeCache subtypeCache,
+			ResourceSummaryDatabase summaryDatabase,
+			RepositoryLookupFailureCallback lookupFailureCallback) {
+		this.subtypeCache = subtypeCache;
+		this.summaryDatabase = summaryDatabase;
+		this.lookupFailureCallback = lookupFailureCallback;
+	}
+
+	static int mergeOrigins(int a, int b) {
+		if (a == b)
+			return a;
+		if (a == NULL_VALUE)
+			return b;
+		if (b == NULL_VALUE)
+			return a;
+		// A resource that is new on some paths only must not be taken for a
+		// value that is never one
+		if (a == NEW_RESOURCE || a == MAYBE_NEW_RESOURCE
+				|| b == NEW_RESOURCE || b == MAYBE_NEW_RESOURCE)
+			return MAYBE_NEW_RESOURCE;
+		return OTHER;
+	}
+
+	/**
+	 * Summarize a method.
+	 *
+	 * @param methodGen
+	 *            the method, which must have code
+	 * @return the summary, or ResourceSummary.UNKNOWN if the method can't be
+	 *         summarized
+	 */
+	public ResourceSummary summarize(MethodGen methodGen) {
+		try {
+			return analyze(methodGen);
+		} catch (RuntimeException e) {
+			if (ResourceLeakDetector.DEBUG)
+				System.out.println("Can't summarize " + methodGen + ": "
+						+ e.getMessage());
+			return ResourceSummary.UNKNOWN;
+		}
+	}
+
+	private ResourceSummary analyze(MethodGen methodGen) {
+		ConstantPoolGen cpg = methodGen.getConstantPool();
+		InstructionHandle[] handles = methodGen.getInstructionList()
+				.getInstructionHandles();
+		CodeExceptionGen[] handlers = methodGen.getExceptionHandlers();
+
+		Map<InstructionHandle, State> stateMap = new IdentityHashMap<InstructionHandle, State>();
+		LinkedList<InstructionHandle> worklist = new LinkedList<InstructionHandle>();
+
+		State entry = new State(methodGen.getMaxLocals(),
+				methodGen.getMaxStack());
+		Type[] argumentTypes = methodGen.getArgumentTypes();
+		int local = methodGen.isStatic() ? 0 : 1;
+		for (int i = 0; i < argumentTypes.length; ++i) {
+			if (argumentTypes[i] instanceof ObjectType)
+				entry.locals[local] = i;
+			local += argumentTypes[i].getSize();
+		}
+		stateMap.put(handles[0], entry);
+		worklist.add(handles[0]);
+
+		boolean sawReturn = false;
+		int returnOrigin = NULL_VALUE;
+		long exitClosedMask = -1L;
+
+		int budget = handles.length * MAX_VISITS_PER_INSTRUCTION;
+		while (!worklist.isEmpty()) {
+			if (--budget < 0)
+				throw new IllegalStateException("Too many iterations");
+
+			InstructionHandle handle = worklist.removeFirst();
+			State in = stateMap.get(handle);
+
+			// Exception handlers see the state before the instruction
+			int position = handle.getPosition();
+			for (CodeExceptionGen handler : handlers) {
+				if (position >= handler.getStartPC().getPosition()
+						&& position <= handler.getEndPC().getPosition()) {
+					State handlerState = new State(in);
+					handlerState.depth = 0;
+					handlerState.push(OTHER);
+					propagate(handler.getHandlerPC(), handlerState, stateMap,
+							worklist);
+				}
+			}
+
+			Instruction ins = handle.getInstruction();
+			State out = new State(in);
+			transfer(ins, out, cpg);
+
+			if (ins instanceof ReturnInstruction) {
+				sawReturn = true;
+				exitClosedMask &= out.closedMask;
+				if (ins.getOpcode() == Constants.ARETURN)
+					returnOrigin = mergeOrigins(returnOrigin, in.peek(0));
+				continue;
+			}
+
+			switch (ins.getOpcode()) {
+			case Constants.ATHROW:
+				continue;
+			case Constants.JSR:
+			case Constants.JSR_W:
+			case Constants.RET:
+				throw new IllegalStateException("JSR/RET not supported");
+			default:
+				break;
+			}
+
+			if (ins instanceof Select) {
+				Select select = (Select) ins;
+				for (InstructionHandle target : select.getTargets())
+					propagate(target, out, stateMap, worklist);
+				propagate(select.getTarget(), out, stateMap, worklist);
+				continue;
+			}
+			if (ins instanceof BranchInstruction) {
+				propagate(((BranchInstruction) ins).getTarget(), out,
+						stateMap, worklist);
+				if (!(ins instanceof IfInstruction))
+					continue;
+			}
+			if (handle.getNext() != null)
+				propagate(handle.getNext(), out, stateMap, worklist);
+		}
+
+		long closedMask = sawReturn ? exitClosedMask : 0L;
+		if (returnOrigin == NEW_RESOURCE)
+			return new ResourceSummary(ResourceSummary.RETURNS_NEW_RESOURCE,
+					-1, closedMask);
+		if (returnOrigin == MAYBE_NEW_RESOURCE)
+			return new ResourceSummary(
+					ResourceSummary.MAY_RETURN_NEW_RESOURCE, -1, closedMask);
+		if (returnOrigin >= 0)
+			return new ResourceSummary(ResourceSummary.RETURNS_PARAMETER,
+					returnOrigin, closedMask);
+		return new ResourceSummary(ResourceSummary.RETURNS_OTHER, -1,
+				closedMask);
+	}
+
+	private static void propagate(InstructionHandle target, State state,
+			Map<InstructionHandle, State> stateMap,
+			LinkedList<InstructionHandle> worklist) {
+		State existing = stateMap.get(target);
+		if (existing == null) {
+			stateMap.put(target, new State(state));
+			worklist.add(target);
+		} else if (existing.mergeWith(state) && !worklist.contains(target)) {
+			worklist.add(target);
+		}
+	}
+
+	/**
+	 * Model the effect of an instruction on the origins of the slots.
+	 */
+	private void transfer(Instruction ins, State state, ConstantPoolGen cpg) {
+		int opcode = ins.getOpcode();
+		switch (opcode) {
+		case Constants.ACONST_NULL:
+			state.push(NULL_VALUE);
+			return;
+		case Constants.CHECKCAST:
+		case Constants.NOP:
+		case Constants.GOTO:
+		case Constants.GOTO_W:
+		case Constants.IINC:
+			return;
+		case Constants.POP:
+			state.pop();
+			return;
+		case Constants.POP2:
+			state.pop();
+			state.pop();
+			return;
+		case Constants.DUP:
+			state.push(state.peek(0));
+			return;
+		case Constants.DUP_X1: {
+			int v1 = state.pop(), v2 = state.pop();
+			state.push(v1);
+			state.push(v2);
+			state.push(v1);
+			return;
+		}
+		case Constants.DUP_X2: {
+			int v1 = state.pop(), v2 = state.pop(), v3 = state.pop();
+			state.push(v1);
+			state.push(v3);
+			state.push(v2);
+			state.push(v1);
+			return;
+		}
+		case Constants.DUP2: {
+			int v1 = state.peek(0), v2 = state.peek(1);
+			state.push(v2);
+			state.push(v1);
+			return;
+		}
+		case Constants.DUP2_X1: {
+			int v1 = state.pop(), v2 = state.pop(), v3 = state.pop();
+			state.push(v2);
+			state.push(v1);
+			state.push(v3);
+			state.push(v2);
+			state.push(v1);
+			return;
+		}
+		case Constants.DUP2_X2: {
+			int v1 = state.pop(), v2 = state.pop(), v3 = state.pop(), v4 = state
+					.pop();
+			state.push(v2);
+			state.push(v1);
+			state.push(v4);
+			state.push(v3);
+			state.push(v2);
+			state.push(v1);
+			return;
+		}
+		case Constants.SWAP: {
+			int v1 = state.pop(), v2 = state.pop();
+			state.push(v1);
+			state.push(v2);
+			return;
+		}
+		default:
+			break;
+		}
+
+		if (ins instanceof ALOAD) {
+			state.push(state.locals[((ALOAD) ins).getIndex()]);
+		} else if (ins instanceof ASTORE) {
+			state.locals[((ASTORE) ins).getIndex()] = state.pop();
+		} else if (ins instanceof LoadInstruction) {
+			int size = ((LoadInstruction) ins).getType(cpg).getSize();
+			for (int i = 0; i < size; ++i)
+				state.push(OTHER);
+		} else if (ins instanceof StoreInstruction) {
+			int index = ((LocalVariableInstruction) ins).getIndex();
+			int size = ((StoreInstruction) ins).getType(cpg).getSize();
+			for (int i = 0; i < size; ++i) {
+				state.pop();
+				state.locals[index + i] = OTHER;
+			}
+		} else if (ins instanceof NEW) {
+			ObjectType type = ((NEW) ins).getLoadClassType(cpg);
+			state.push(type != null ? getNewOrigin(type) : OTHER);
+		} else if (ins instanceof InvokeInstruction) {
+			transferInvoke((InvokeInstruction) ins, state, cpg);
+		} else {
+			int consumed = ins.consumeStack(cpg);
+			int produced = ins.produceStack(cpg);
+			if (consumed == Constants.UNPREDICTABLE
+					|| produced == Constants.UNPREDICTABLE)
+				throw new IllegalStateException("Unpredictable stack effect");
+			for (int i = 0; i < consumed; ++i)
+				state.pop();
+			for (int i = 0; i < produced; ++i)
+				state.push(OTHER);
+		}
+	}
+
+	private void transferInvoke(InvokeInstruction inv, State state,
+			ConstantPoolGen cpg) {
+		String className = inv.getClassName(cpg);
+		String methodName = inv.getMethodName(cpg);
+		String methodSig = inv.getSignature(cpg);
+		Type[] argumentTypes = inv.getArgumentTypes(cpg);
+		int opcode = inv.getOpcode();
+
+		int argumentWords = 0;
+		for (Type type : argumentTypes)
+			argumentWords += type.getSize();
+
+		// A parameter closed directly
+		if ((opcode == Constants.INVOKEVIRTUAL || opcode == Constants.INVOKEINTERFACE)
+				&& methodName.equals("close") && methodSig.equals("()V"))
+			markClosed(state, state.peek(0));
+
+		ResourceSummary summary = summaryDatabase.getSummary(className,
+				methodName, methodSig);
+
+		// Parameters passed to a method which closes them, by its summary or
+		// the escape model
+		long closedMask = summary.getClosedParameterMask()
+				| ResourceLeakDetector.escapeModel.resolve(cpg)
+						.getClosedArgumentMask(inv, cpg);
+		for (long m = closedMask; m != 0L; m &= m - 1) {
+			int argument = Long.numberOfTrailingZeros(m);
+			if (argument < argumentTypes.length)
+				markClosed(state, state.peek(ResourceSummary.getArgumentDepth(
+						argumentTypes, argument)));
+		}
+
+		int result = OTHER;
+		Type returnType = inv.getReturnType(cpg);
+		if (returnType instanceof ObjectType) {
+			switch (summary.getReturnKind()) {
+			case ResourceSummary.RETURNS_NEW_RESOURCE:
+				result = NEW_RESOURCE;
+				break;
+			case ResourceSummary.MAY_RETURN_NEW_RESOURCE:
+				result = MAYBE_NEW_RESOURCE;
+				break;
+			case ResourceSummary.RETURNS_PARAMETER:
+				int argument = summary.getReturnedParameter();
+				if (argument < argumentTypes.length)
+					result = state.peek(ResourceSummary.getArgumentDepth(
+							argumentTypes, argument));
+				break;
+			case ResourceSummary.UNKNOWN_RETURN:
+				// Same guess LeakResourceTracker makes without a summary
+				result = getNewOrigin((ObjectType) returnType);
+				break;
+			default:
+				break;
+			}
+		}
+
+		int consumed = argumentWords
+				+ (opcode == Constants.INVOKESTATIC ? 0 : 1);
+		for (int i = 0; i < consumed; ++i)
+			state.pop();
+		int size = returnType.getSize();
+		if (size == 1)
+			state.push(result);
+		else
+			for (int i = 0; i < size; ++i)
+				state.push(OTHER);
+	}
+
+	private static void markClosed(State state, int origin) {
+		if (origin >= 0 && origin < 64)
+			state.closedMask |= 1L << origin;
+	}
+
+	/**
+	 * Get the origin of a new object of the given type: a new resource if
+	 * it is a resource type, maybe one if its class hierarchy can't be
+	 * resolved, so callers keep their own guess, else something else.
+	 */
+	private int getNewOrigin(ObjectType type) {
+		int id = subtypeCache.lookup(type, lookupFailureCallback);
+		if (id >= 0)
+			return NEW_RESOURCE;
+		return id == ResourceSubtypeCache.MISSING_CLASS ? MAYBE_NEW_RESOURCE
+				: OTHER;
+	}
+}
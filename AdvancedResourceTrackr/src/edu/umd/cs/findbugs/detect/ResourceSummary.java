@@ -0,0 +1,160 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import org.apache.bcel.generic.Type;
+
+/**
+ * What a method does with resources, as seen by its callers: whether it
+ * returns a new open resource (a factory), returns one of its parameters,
+ * returns something else, or returns a new resource on some paths only, and
+ * which of its parameters it closes.
+ *
+ * Instances are immutable. Parameters are numbered from zero in declaration
+ * order, not counting the receiver.
+ */
+public final class ResourceSummary {
+	/**
+	 * Nothing is known about the method.
+	 */
+	public static final int UNKNOWN_RETURN = 0;
+
+	/**
+	 * The method returns a new resource (or null), which the caller owns.
+	 */
+	public static final int RETURNS_NEW_RESOURCE = 1;
+
+	/**
+	 * The method returns one of its parameters (or null).
+	 */
+	public static final int RETURNS_PARAMETER = 2;
+
+	/**
+	 * The method returns nothing, or a value which isn't a new resource, such
+	 * as a field.
+	 */
+	public static final int RETURNS_OTHER = 3;
+
+	/**
+	 * The method returns a new resource on some paths, and a parameter or
+	 * something else on others, as in
+	 * <code>return cond ? new FileInputStream(f) : cached;</code>. Callers
+	 * treat what it returns as they would without a summary.
+	 */
+	public static final int MAY_RETURN_NEW_RESOURCE = 4;
+
+	/**
+	 * Summary of a method nothing is known about.
+	 */
+	public static final ResourceSummary UNKNOWN = new ResourceSummary(
+			UNKNOWN_RETURN, -1, 0L);
+
+	private final int returnKind;
+
+	private final int returnedParameter;
+
+	private final long closedParameterMask;
+
+	public ResourceSummary(int returnKind, int returnedParameter,
+			long closedParameterMask) {
+		this.returnKind = returnKind;
+		this.returnedParameter = returnKind == RETURNS_PARAMETER ? returnedParameter
+				: -1;
+		this.closedParameterMask = closedParameterMask;
+	}
+
+	public boolean isKnown() {
+		return returnKind != UNKNOWN_RETURN;
+	}
+
+	public int getReturnKind() {
+		return returnKind;
+	}
+
+	public boolean returnsNewResource() {
+		return returnKind == RETURNS_NEW_RESOURCE;
+	}
+
+	/**
+	 * Determine if the method may return a new resource, on all paths or on
+	 * some.
+	 */
+	public boolean mayReturnNewResource() {
+		return returnKind == RETURNS_NEW_RESOURCE
+				|| returnKind == MAY_RETURN_NEW_RESOURCE;
+	}
+
+	/**
+	 * Get the parameter the method returns, or -1 if it doesn't return a
+	 * parameter.
+	 */
+	public int getReturnedParameter() {
+		return returnedParameter;
+	}
+
+	/**
+	 * Get the set of parameters the method closes on all paths, one bit per
+	 * parameter. Only the first 64 parameters are tracked.
+	 */
+	public long getClosedParameterMask() {
+		return closedParameterMask;
+	}
+
+	/**
+	 * Get the depth in the operand stack, just before a call, of the given
+	 * argument of the call.
+	 *
+	 * @param argumentTypes
+	 *            the argument types of the called method
+	 * @param argument
+	 *            the argument, numbered from zero not counting the receiver
+	 * @return the number of stack slots above the argument
+	 */
+	public static int getArgumentDepth(Type[] argumentTypes, int argument) {
+		int depth = 0;
+		for (int i = argument + 1; i < argumentTypes.length; ++i)
+			depth += argumentTypes[i].getSize();
+		return depth;
+	}
+
+	@Override
+	public int hashCode() {
+		return returnKind * 31 + returnedParameter * 7
+				+ (int) (closedParameterMask ^ (closedParameterMask >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ResourceSummary))
+			return false;
+		ResourceSummary other = (ResourceSummary) o;
+		return returnKind == other.returnKind
+				&& returnedParameter == other.returnedParameter
+				&& closedParameterMask == other.closedParameterMask;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		switch (returnKind) {
+		case RETURNS_NEW_RESOURCE:
+			buf.append("returns new resource");
+			break;
+		case RETURNS_PARAMETER:
+			buf.append("returns parameter ").append(returnedParameter);
+			break;
+		case RETURNS_OTHER:
+			buf.append("returns other");
+			break;
+		case MAY_RETURN_NEW_RESOURCE:
+			buf.append("may return new resource");
+			break;
+		default:
+			buf.append("unknown");
+			break;
+		}
+		if (closedParameterMask != 0L)
+			buf.append(", closes ").append(
+					Long.toBinaryString(closedParameterMask));
+		return buf.toString();
+	}
+}
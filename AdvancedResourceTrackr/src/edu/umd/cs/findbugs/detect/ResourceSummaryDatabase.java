@@ -0,0 +1,355 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.InvokeInstruction;
+import org.apache.bcel.generic.MethodGen;
+
+import edu.umd.cs.findbugs.ba.AnalysisContext;
+import edu.umd.cs.findbugs.ba.RepositoryLookupFailureCallback;
+
+/**
+ * ResourceSummaries of application methods, computed on demand, bottom-up
+ * through the call graph: summarizing a method first summarizes the methods
+ * it calls. Methods in recursive cycles see the callees still being
+ * summarized as unknown.
+ *
+ * Only methods which can't be overridden (static, private, final, in a final
+ * class, or constructors) are summarized, so the summary found through the
+ * class named at a call site is the one of the method actually called. Other
+ * methods, and library methods, are unknown and callers fall back to the
+ * hierarchy-based guess.
+ *
+ * With a ResourceSummaryStore, summaries of classes whose class file, and
+ * whose callees' class files, are unchanged are read from the store rather
+ * than recomputed. All access holds ResourceSubtypeCache.HIERARCHY_LOCK,
+ * since summarizing looks up classes.
+ */
+public class ResourceSummaryDatabase {
+	/**
+	 * Summaries of the methods of one class, possibly still being computed.
+	 */
+	private static class ClassSummaries {
+		final String className;
+
+		final Map<String, ResourceSummary> summaryMap = new HashMap<String, ResourceSummary>();
+
+		final Set<String> dependencySet = new HashSet<String>();
+
+		JavaClass javaClass;
+
+		ConstantPoolGen cpg;
+
+		final Set<String> inProgressSet = new HashSet<String>();
+
+		/**
+		 * Hash of the class file the summaries were derived from, and those
+		 * of the classes they depend on, once complete; null if unknown.
+		 */
+		Long classHash;
+
+		Map<String, Long> dependencyHashMap;
+
+		ClassSummaries(String className) {
+			this.className = className;
+		}
+	}
+
+	private final ResourceSubtypeCache subtypeCache;
+
+	private final ResourceSummaryStore store;
+
+	private final Map<String, ClassSummaries> classSummaryMap = new HashMap<String, ClassSummaries>();
+
+	private final ClassHashCache classHashCache;
+
+	/**
+	 * Classes whose summaries are being computed, innermost last.
+	 */
+	private final LinkedList<ClassSummaries> computeStack = new LinkedList<ClassSummaries>();
+
+	private int summarizedClassCount;
+
+	private int storedClassCount;
+
+	public ResourceSummaryDatabase(ResourceSubtypeCache subtypeCache,
+			ClassHashCache classHashCache, ResourceSummaryStore store) {
+		this.subtypeCache = subtypeCache;
+		this.classHashCache = classHashCache;
+		this.store = store;
+	}
+
+	/**
+	 * Get the summary of the method called by an invoke instruction.
+	 */
+	public ResourceSummary getSummary(InvokeInstruction inv,
+			ConstantPoolGen cpg) {
+		return getSummary(inv.getClassName(cpg), inv.getMethodName(cpg),
+				inv.getSignature(cpg));
+	}
+
+	/**
+	 * Get the summary of a method.
+	 *
+	 * @param className
+	 *            the class of the method, as named at the call site
+	 * @param methodName
+	 *            the name of the method
+	 * @param methodSig
+	 *            the signature of the method
+	 * @return the summary, or ResourceSummary.UNKNOWN
+	 */
+	public ResourceSummary getSummary(String className, String methodName,
+			String methodSig) {
+		synchronized (ResourceSubtypeCache.HIERARCHY_LOCK) {
+			ClassSummaries classSummaries = getClassSummaries(className);
+			if (classSummaries == null)
+				return ResourceSummary.UNKNOWN;
+
+			if (!computeStack.isEmpty()) {
+				ClassSummaries caller = computeStack.getLast();
+				if (caller != classSummaries)
+					caller.dependencySet.add(className);
+			}
+
+			String key = methodName + methodSig;
+			ResourceSummary summary = classSummaries.summaryMap.get(key);
+			if (summary == null && classSummaries.javaClass != null)
+				summary = computeSummary(classSummaries, key);
+			return summary != null ? summary : ResourceSummary.UNKNOWN;
+		}
+	}
+
+	/**
+	 * Get the summaries of a class, creating the entry the first time the
+	 * class is seen.
+	 *
+	 * @return the summaries, or null if the class isn't an application class
+	 */
+	private ClassSummaries getClassSummaries(String className) {
+		ClassSummaries classSummaries = classSummaryMap.get(className);
+		if (classSummaries != null || classSummaryMap.containsKey(className))
+			return classSummaries;
+
+		AnalysisContext analysisContext = AnalysisContext
+				.currentAnalysisContext();
+		if (!analysisContext.isApplicationClass(className)) {
+			classSummaryMap.put(className, null);
+			return null;
+		}
+
+		classSummaries = new ClassSummaries(className);
+		classSummaryMap.put(className, classSummaries);
+
+		ResourceSummaryStore.Entry entry = lookupStore(className);
+		if (entry != null) {
+			classSummaries.summaryMap.putAll(entry.getSummaryMap());
+			classSummaries.classHash = classHashCache.getClassHash(className);
+			classSummaries.dependencyHashMap = entry.getDependencyMap();
+			return classSummaries;
+		}
+
+		try {
+			classSummaries.javaClass = analysisContext.lookupClass(className);
+		} catch (ClassNotFoundException e) {
+			analysisContext.getLookupFailureCallback().reportMissingClass(e);
+			return classSummaries;
+		}
+		classSummaries.cpg = new ConstantPoolGen(classSummaries.javaClass
+				.getConstantPool());
+
+		// Summarize the whole class now, so the store gets a complete record
+		computeStack.addLast(classSummaries);
+		try {
+			for (Method method : classSummaries.javaClass.getMethods())
+				computeSummary(classSummaries, method.getName()
+						+ method.getSignature());
+		} finally {
+			computeStack.removeLast();
+		}
+		++summarizedClassCount;
+		classSummaries.javaClass = null;
+		classSummaries.cpg = null;
+
+		recordHashes(classSummaries);
+		saveToStore(classSummaries);
+		return classSummaries;
+	}
+
+	/**
+	 * Compute the summary of a method of a class being summarized.
+	 *
+	 * @return the summary, or null if the method can't be summarized (yet)
+	 */
+	private ResourceSummary computeSummary(ClassSummaries classSummaries,
+			String key) {
+		ResourceSummary summary = classSummaries.summaryMap.get(key);
+		if (summary != null || classSummaries.inProgressSet.contains(key))
+			return summary;
+
+		JavaClass javaClass = classSummaries.javaClass;
+		Method method = null;
+		for (Method m : javaClass.getMethods()) {
+			if (key.equals(m.getName() + m.getSignature())) {
+				method = m;
+				break;
+			}
+		}
+		if (method == null || method.getCode() == null
+				|| !isExactlyDispatched(javaClass, method))
+			return null;
+
+		classSummaries.inProgressSet.add(key);
+		computeStack.addLast(classSummaries);
+		try {
+			MethodGen methodGen = new MethodGen(method,
+					javaClass.getClassName(), classSummaries.cpg);
+			RepositoryLookupFailureCallback lookupFailureCallback = AnalysisContext
+					.currentAnalysisContext().getLookupFailureCallback();
+			summary = new ResourceSummarizer(subtypeCache, this,
+					lookupFailureCallback).summarize(methodGen);
+		} finally {
+			computeStack.removeLast();
+			classSummaries.inProgressSet.remove(key);
+		}
+		if (summary.isKnown()) {
+			classSummaries.summaryMap.put(key, summary);
+			if (ResourceLeakDetector.DEBUG)
+				System.out.println("Summary of " + classSummaries.className
+						+ "." + key + ": " + summary);
+		}
+		return summary;
+	}
+
+	/**
+	 * Determine if every call naming the class and method will call the
+	 * method itself rather than an override.
+	 */
+	private static boolean isExactlyDispatched(JavaClass javaClass,
+			Method method) {
+		return method.isStatic() || method.isPrivate() || method.isFinal()
+				|| javaClass.isFinal()
+				|| method.getName().equals(Constants.CONSTRUCTOR_NAME);
+	}
+
+	private ResourceSummaryStore.Entry lookupStore(String className) {
+		if (store == null)
+			return null;
+		Long classHash = classHashCache.getClassHash(className);
+		if (classHash == null)
+			return null;
+		ResourceSummaryStore.Entry entry = store.get(classHash.longValue());
+		if (entry == null)
+			return null;
+		for (Map.Entry<String, Long> e : entry.getDependencyMap().entrySet()) {
+			if (!e.getValue().equals(classHashCache.getClassHash(e.getKey())))
+				return null;
+		}
+		++storedClassCount;
+		return entry;
+	}
+
+	/**
+	 * Record the hashes of the class files the summaries of a class were
+	 * derived from, if they can all be read.
+	 */
+	private void recordHashes(ClassSummaries classSummaries) {
+		Long classHash = classHashCache.getClassHash(classSummaries.className);
+		if (classHash == null)
+			return;
+		Map<String, Long> dependencyMap = new HashMap<String, Long>();
+		for (String dependency : classSummaries.dependencySet) {
+			Long dependencyHash = classHashCache.getClassHash(dependency);
+			if (dependencyHash == null)
+				return;
+			dependencyMap.put(dependency, dependencyHash);
+		}
+		classSummaries.classHash = classHash;
+		classSummaries.dependencyHashMap = dependencyMap;
+	}
+
+	private void saveToStore(ClassSummaries classSummaries) {
+		if (store == null || classSummaries.classHash == null)
+			return;
+		store.put(classSummaries.classHash.longValue(),
+				new ResourceSummaryStore.Entry(
+						classSummaries.dependencyHashMap,
+						new HashMap<String, ResourceSummary>(
+								classSummaries.summaryMap)));
+	}
+
+	/**
+	 * Keep only the summaries of classes whose class file, and those of the
+	 * classes their summaries were derived from, are unchanged, for a new
+	 * run in the same JVM. Classes depending on a class whose summaries are
+	 * dropped are dropped too, so a change reached indirectly is seen. Call
+	 * after ClassHashCache.clear().
+	 */
+	public void revalidate() {
+		synchronized (ResourceSubtypeCache.HIERARCHY_LOCK) {
+			for (Iterator<ClassSummaries> i = classSummaryMap.values()
+					.iterator(); i.hasNext();) {
+				ClassSummaries classSummaries = i.next();
+				if (classSummaries == null || !isUnchanged(classSummaries))
+					i.remove();
+			}
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				for (Iterator<ClassSummaries> i = classSummaryMap.values()
+						.iterator(); i.hasNext();) {
+					ClassSummaries classSummaries = i.next();
+					for (String dependency : classSummaries.dependencyHashMap
+							.keySet()) {
+						if (!classSummaryMap.containsKey(dependency)) {
+							i.remove();
+							changed = true;
+							break;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private boolean isUnchanged(ClassSummaries classSummaries) {
+		if (classSummaries.classHash == null
+				|| !classSummaries.classHash.equals(classHashCache
+						.getClassHash(classSummaries.className)))
+			return false;
+		for (Map.Entry<String, Long> e : classSummaries.dependencyHashMap
+				.entrySet()) {
+			if (!e.getValue().equals(classHashCache.getClassHash(e.getKey())))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the summaries computed in this run to the store, if any.
+	 */
+	public void save() throws IOException {
+		if (store != null)
+			store.save();
+	}
+
+	@Override
+	public String toString() {
+		synchronized (ResourceSubtypeCache.HIERARCHY_LOCK) {
+			return "ResourceSummaryDatabase[summarized=" + summarizedClassCount
+					+ ", fromStore=" + storedClassCount + ", store=" + store
+					+ "]";
+		}
+	}
+}
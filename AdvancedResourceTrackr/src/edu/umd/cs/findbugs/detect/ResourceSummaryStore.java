@@ -0,0 +1,194 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk cache of ResourceSummaries, keyed by a hash of the class file they
+ * were computed from, so later runs can reuse summaries of unchanged classes.
+ * Records are decoded from the memory-mapped HashedRecordFile when first asked
+ * for.
+ *
+ * Each record also lists the classes whose summaries it was derived from,
+ * with their hashes, so the caller can tell when a record is stale because a
+ * callee changed.
+ */
+public class ResourceSummaryStore {
+	private static final int MAGIC = 0x46535331;
+
+	private static final int VERSION = 4;
+
+	/**
+	 * Summaries of the methods of one class, and the classes they depend on.
+	 */
+	public static class Entry {
+		private final Map<String, Long> dependencyMap;
+
+		private final Map<String, ResourceSummary> summaryMap;
+
+		public Entry(Map<String, Long> dependencyMap,
+				Map<String, ResourceSummary> summaryMap) {
+			this.dependencyMap = dependencyMap;
+			this.summaryMap = summaryMap;
+		}
+
+		/**
+		 * Get the hashes of the classes the summaries were derived from, by
+		 * class name.
+		 */
+		public Map<String, Long> getDependencyMap() {
+			return Collections.unmodifiableMap(dependencyMap);
+		}
+
+		/**
+		 * Get the summaries of the methods of the class, by method name and
+		 * signature.
+		 */
+		public Map<String, ResourceSummary> getSummaryMap() {
+			return Collections.unmodifiableMap(summaryMap);
+		}
+	}
+
+	private final HashedRecordFile recordFile;
+
+	/**
+	 * Mixed into the class hashes keying the records, so summaries computed
+	 * for other resource types aren't used.
+	 */
+	private final long keySalt;
+
+	private ResourceSummaryStore(File file, long keySalt) {
+		this.recordFile = new HashedRecordFile(file, MAGIC, VERSION);
+		this.keySalt = keySalt;
+	}
+
+	/**
+	 * Open the store in the given file. If the file doesn't exist or can't be
+	 * read, the store starts out empty.
+	 *
+	 * @param fileName
+	 *            the file, or null for no store
+	 * @param keySalt
+	 *            the fingerprint of the resource types the summaries are
+	 *            computed for
+	 * @return the store, or null if fileName is null
+	 */
+	public static ResourceSummaryStore open(String fileName, long keySalt) {
+		if (fileName == null)
+			return null;
+		return new ResourceSummaryStore(new File(fileName), keySalt);
+	}
+
+	/**
+	 * Add the records of other store files, such as those written by the
+	 * workers of ShardedScanRunner, to a store file.
+	 */
+	static void merge(File file, List<File> partList) throws IOException {
+		HashedRecordFile.merge(file, partList, MAGIC, VERSION);
+	}
+
+	/**
+	 * Get the record for the class file with given hash.
+	 *
+	 * @return the record, or null if there is none
+	 */
+	public Entry get(long classHash) {
+		byte[] payload = recordFile.get(classHash ^ keySalt);
+		if (payload == null)
+			return null;
+		try {
+			return decode(payload);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Add or replace the record for the class file with given hash.
+	 */
+	public void put(long classHash, Entry entry) {
+		try {
+			recordFile.put(classHash ^ keySalt, encode(entry));
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	public int size() {
+		return recordFile.size();
+	}
+
+	/**
+	 * Write all records, old and new, back to the file.
+	 */
+	public void save() throws IOException {
+		recordFile.save();
+	}
+
+	private static byte[] encode(Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(entry.dependencyMap.size());
+		for (Map.Entry<String, Long> e : entry.dependencyMap.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeLong(e.getValue().longValue());
+		}
+		out.writeShort(entry.summaryMap.size());
+		for (Map.Entry<String, ResourceSummary> e : entry.summaryMap
+				.entrySet()) {
+			out.writeUTF(e.getKey());
+			writeSummary(out, e.getValue());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static Entry decode(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				payload));
+		int dependencyCount = in.readUnsignedShort();
+		Map<String, Long> dependencyMap = new HashMap<String, Long>();
+		for (int i = 0; i < dependencyCount; ++i) {
+			String className = in.readUTF();
+			dependencyMap.put(className, Long.valueOf(in.readLong()));
+		}
+		int summaryCount = in.readUnsignedShort();
+		Map<String, ResourceSummary> summaryMap = new HashMap<String, ResourceSummary>();
+		for (int i = 0; i < summaryCount; ++i) {
+			String method = in.readUTF();
+			summaryMap.put(method, readSummary(in));
+		}
+		return new Entry(dependencyMap, summaryMap);
+	}
+
+	static void writeSummary(DataOutputStream out, ResourceSummary summary)
+			throws IOException {
+		out.writeByte(summary.getReturnKind());
+		out.writeByte(summary.getReturnedParameter());
+		out.writeLong(summary.getClosedParameterMask());
+	}
+
+	static ResourceSummary readSummary(DataInputStream in) throws IOException {
+		int returnKind = in.readByte();
+		int returnedParameter = in.readByte();
+		long closedParameterMask = in.readLong();
+		if (returnKind == ResourceSummary.UNKNOWN_RETURN)
+			return ResourceSummary.UNKNOWN;
+		return new ResourceSummary(returnKind, returnedParameter,
+				closedParameterMask);
+	}
+
+	@Override
+	public String toString() {
+		return "ResourceSummaryStore[" + recordFile + "]";
+	}
+}
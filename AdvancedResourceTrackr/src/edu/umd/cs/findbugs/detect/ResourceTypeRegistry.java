@@ -0,0 +1,164 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.bcel.generic.ObjectType;
+
+import edu.umd.cs.findbugs.ba.AnalysisContext;
+import edu.umd.cs.findbugs.ba.ObjectTypeFactory;
+
+/**
+ * The resource base types the detector tracks, each interned to a small
+ * integer ID, its index in the registry. The IDs of the bases a class is a
+ * subtype of make up its resource-base bitmask (see ResourceSubtypeCache),
+ * so matching a class against the bases is a bit test whatever their number.
+ * Where a class is a subtype of more than one base, the one with the lowest
+ * ID is its resource base.
+ *
+ * The bases are read from resourceTypes.txt, next to findbugs.xml in the
+ * plugin, then from the file named by fos.resourceTypes, if set: one class
+ * name per line, with # starting a comment. A base listed twice keeps its
+ * first ID.
+ */
+public class ResourceTypeRegistry {
+	/**
+	 * The plugin resource listing the bases shipped with the detector.
+	 */
+	static final String RESOURCE_NAME = "resourceTypes.txt";
+
+	/**
+	 * The bases used if the plugin resource can't be found.
+	 */
+	private static final String[] DEFAULT_TYPE_LIST = { "java.io.InputStream",
+			"java.io.OutputStream", "java.util.zip.ZipFile", "java.io.Reader",
+			"java.io.Writer", "java.sql.Connection", "java.sql.Statement",
+			"java.sql.ResultSet" };
+
+	private final List<ObjectType> typeList = new ArrayList<ObjectType>();
+
+	private final Map<String, Integer> idMap = new HashMap<String, Integer>();
+
+	public ResourceTypeRegistry(List<String> classNameList) {
+		for (String className : classNameList) {
+			if (idMap.containsKey(className))
+				continue;
+			idMap.put(className, Integer.valueOf(typeList.size()));
+			typeList.add(ObjectTypeFactory.getInstance(className));
+		}
+	}
+
+	/**
+	 * Load the bases shipped with the plugin, then those of a user file.
+	 *
+	 * @param fileName
+	 *            the user file, or null for none
+	 */
+	public static ResourceTypeRegistry load(String fileName) {
+		List<String> classNameList = new ArrayList<String>();
+		InputStream in = ResourceTypeRegistry.class.getClassLoader()
+				.getResourceAsStream(RESOURCE_NAME);
+		try {
+			if (in != null)
+				readClassNames(in, classNameList);
+		} catch (IOException e) {
+			AnalysisContext.logError("Could not read " + RESOURCE_NAME, e);
+		}
+		if (classNameList.isEmpty()) {
+			for (String className : DEFAULT_TYPE_LIST)
+				classNameList.add(className);
+		}
+		if (fileName != null) {
+			try {
+				readClassNames(new FileInputStream(fileName), classNameList);
+			} catch (IOException e) {
+				AnalysisContext.logError("Could not read resource types from "
+						+ fileName, e);
+			}
+		}
+		return new ResourceTypeRegistry(classNameList);
+	}
+
+	/**
+	 * Read the class names of a registry file, and close it.
+	 */
+	static void readClassNames(InputStream in, List<String> classNameList)
+			throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				"UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int comment = line.indexOf('#');
+				if (comment >= 0)
+					line = line.substring(0, comment);
+				line = line.trim();
+				if (line.length() > 0)
+					classNameList.add(line.replace('/', '.'));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Get the number of bases.
+	 */
+	public int size() {
+		return typeList.size();
+	}
+
+	/**
+	 * Get the ID of a base.
+	 *
+	 * @param className
+	 *            the class name, in dotted form
+	 * @return the ID, or -1 if the class isn't a registered base
+	 */
+	public int getId(String className) {
+		Integer id = idMap.get(className);
+		return id != null ? id.intValue() : -1;
+	}
+
+	/**
+	 * Get the base with the given ID.
+	 */
+	public ObjectType getType(int id) {
+		return typeList.get(id);
+	}
+
+	/**
+	 * Get the bases, by ID.
+	 */
+	public ObjectType[] getTypeList() {
+		return typeList.toArray(new ObjectType[typeList.size()]);
+	}
+
+	/**
+	 * Get a hash of the bases and their IDs, for the caches whose contents
+	 * depend on them.
+	 */
+	public long getFingerprint() {
+		long hash = 1125899906842597L;
+		for (ObjectType type : typeList) {
+			String className = type.getClassName();
+			for (int i = 0; i < className.length(); ++i)
+				hash = 31 * hash + className.charAt(i);
+			hash = 31 * hash + ';';
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return "ResourceTypeRegistry[" + typeList.size() + " types]";
+	}
+}
@@ -0,0 +1,655 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import edu.umd.cs.findbugs.BugInstance;
+import edu.umd.cs.findbugs.ClassAnnotation;
+
+/**
+ * Runs ResourceLeakDetector over class files, directories and jars in
+ * several worker processes, each analyzing a shard of the classes with its
+ * own heap, for scans too large for one JVM. The coordinator finds the class
+ * files and scans their constant pools, as FastScanRunner does, then splits
+ * the classes which pass over the workers by their estimated cost, the size
+ * of their class files:
+ * <ul>
+ * <li>cost: each class goes to the worker with the least cost so far, the
+ * costliest classes first;</li>
+ * <li>package: the same, for whole packages, so that the classes of a
+ * package share the caches of one worker.</li>
+ * </ul>
+ * Each worker writes its bugs to a partial result file, sorted by the
+ * position of their class in the input, and the coordinator merges the
+ * partial files a line at a time. The bugs are written in the order of
+ * their classes in the input, as MappedClassFiles finds them, then in the
+ * order the detector reported them, so the output is the same for any
+ * number of workers, one included.
+ *
+ * Workers are started with the classpath, the fos.* options of the
+ * coordinator (less fos.streamFile, which they would all write) and the JVM
+ * options given with -J. Unless fos.threads is set, each has an equal share
+ * of the processors. Each worker gets its own copy of the detector caches
+ * kept in files (fos.resultCache and fos.summaryCache), and once all have
+ * finished the coordinator merges the records of the copies back into the
+ * files, so the caches cover the classes of every shard.
+ *
+ * Usage, with FindBugs and the detector on the classpath:
+ *
+ * <pre>
+ * java edu.umd.cs.findbugs.detect.ShardedScanRunner [-workers n]
+ *     [-partition cost|package] [-auxclasspath path] [-out file]
+ *     [-workDir dir] [-keep] [-J jvmOption]... path...
+ * </pre>
+ *
+ * The partial files, the shard lists, the cache copies and the output of the
+ * workers are kept in the work directory, by default a new temporary
+ * directory, which is deleted at the end unless -keep is given or a worker
+ * failed.
+ */
+public class ShardedScanRunner {
+	/**
+	 * Prefix of a bug line of a partial file, followed by the index of the
+	 * bug's class and its JSON record, separated by tabs.
+	 */
+	private static final String BUG = "B";
+
+	/**
+	 * Prefix of the line of a partial file giving the number of classes the
+	 * worker analyzed.
+	 */
+	private static final String ANALYZED = "A";
+
+	private static final String MISSING_CLASS = "M";
+
+	private static final String ERROR = "E";
+
+	private static final String RESULT_CACHE = "fos.resultCache";
+
+	private static final String SUMMARY_CACHE = "fos.summaryCache";
+
+	/**
+	 * A class to analyze, with its position in the input.
+	 */
+	static class Candidate {
+		final int index;
+
+		final String className;
+
+		final long cost;
+
+		Candidate(int index, String className, long cost) {
+			this.index = index;
+			this.className = className;
+			this.cost = cost;
+		}
+
+		String getPackageName() {
+			int dot = className.lastIndexOf('.');
+			return dot >= 0 ? className.substring(0, dot) : "";
+		}
+	}
+
+	/**
+	 * The classes of one worker.
+	 */
+	static class Shard {
+		final List<Candidate> candidateList = new ArrayList<Candidate>();
+
+		long cost;
+
+		void add(Candidate candidate) {
+			candidateList.add(candidate);
+			cost += candidate.cost;
+		}
+	}
+
+	/**
+	 * The next bug line of a partial file, in the merge.
+	 */
+	private static class Head {
+		final int worker;
+
+		final BufferedReader in;
+
+		int classIndex;
+
+		String record;
+
+		Head(int worker, BufferedReader in) {
+			this.worker = worker;
+			this.in = in;
+		}
+	}
+
+	private static final Comparator<Head> HEAD_ORDER = new Comparator<Head>() {
+		public int compare(Head a, Head b) {
+			if (a.classIndex != b.classIndex)
+				return a.classIndex < b.classIndex ? -1 : 1;
+			return a.worker - b.worker;
+		}
+	};
+
+	private final List<String> pathList;
+
+	private final List<String> auxClasspath;
+
+	private final int workers;
+
+	private final boolean byPackage;
+
+	private final List<String> jvmOptionList;
+
+	private File workDir;
+
+	private boolean keep;
+
+	private final List<String> errorList = new ArrayList<String>();
+
+	private final Set<String> missingClassSet = new TreeSet<String>();
+
+	private int analyzedCount;
+
+	/**
+	 * @param workers
+	 *            the number of worker processes
+	 * @param byPackage
+	 *            whether to keep the classes of a package in one shard
+	 * @param jvmOptionList
+	 *            options for the JVMs of the workers, such as -Xmx2g
+	 */
+	public ShardedScanRunner(List<String> pathList, List<String> auxClasspath,
+			int workers, boolean byPackage, List<String> jvmOptionList) {
+		this.pathList = pathList;
+		this.auxClasspath = auxClasspath;
+		this.workers = Math.max(1, workers);
+		this.byPackage = byPackage;
+		this.jvmOptionList = jvmOptionList;
+	}
+
+	/**
+	 * Set the directory for the files of the workers, and whether to keep
+	 * them once merged.
+	 *
+	 * @param workDir
+	 *            the directory, or null for a new temporary one
+	 */
+	public void setWorkDir(File workDir, boolean keep) {
+		this.workDir = workDir;
+		this.keep = keep;
+	}
+
+	/**
+	 * Scan, shard and analyze the classes, and merge the results.
+	 *
+	 * @param out
+	 *            where to write one JSON record per bug, then a summary
+	 *            record
+	 * @return the number of bugs
+	 */
+	public int run(Writer out) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		List<MappedClassFiles.Entry> entryList = new ArrayList<MappedClassFiles.Entry>();
+		for (String path : pathList)
+			MappedClassFiles.find(new File(path), entryList);
+		List<Candidate> candidateList = scan(entryList);
+		List<Shard> shardList = partition(candidateList, workers, byPackage);
+		long scanNanos = System.nanoTime() - start;
+
+		boolean tempDir = workDir == null;
+		if (tempDir)
+			workDir = Files.createTempDirectory("fos-shards").toFile();
+		else if (!workDir.isDirectory() && !workDir.mkdirs())
+			throw new IOException("Can't create " + workDir);
+
+		start = System.nanoTime();
+		List<Process> processList = new ArrayList<Process>();
+		try {
+			for (int i = 0; i < shardList.size(); ++i) {
+				writeShard(shardList.get(i), getFile("shard", i, ".txt"));
+				processList.add(startWorker(i));
+			}
+			for (int i = 0; i < processList.size(); ++i) {
+				int status = processList.get(i).waitFor();
+				if (status != 0)
+					throw new IOException("Worker " + i + " exited with status "
+							+ status + ", see " + getFile("worker", i, ".log"));
+			}
+		} catch (IOException e) {
+			for (Process process : processList)
+				process.destroy();
+			keep = true;
+			throw e;
+		}
+		long analysisNanos = System.nanoTime() - start;
+		mergeCaches(shardList.size());
+
+		start = System.nanoTime();
+		int bugCount = merge(shardList.size(), out);
+		long mergeNanos = System.nanoTime() - start;
+
+		StringBuilder shardCosts = new StringBuilder("[");
+		for (int i = 0; i < shardList.size(); ++i)
+			shardCosts.append(i > 0 ? "," : "").append(shardList.get(i).cost);
+		shardCosts.append(']');
+		out.write("{\"done\":true,\"classes\":" + entryList.size()
+				+ ",\"candidates\":" + candidateList.size()
+				+ ",\"analyzed\":" + analyzedCount + ",\"bugs\":" + bugCount
+				+ ",\"workers\":" + shardList.size() + ",\"partition\":\""
+				+ (byPackage ? "package" : "cost") + "\",\"shardCosts\":"
+				+ shardCosts + ",\"scanMillis\":" + scanNanos / 1000000
+				+ ",\"analysisMillis\":" + analysisNanos / 1000000
+				+ ",\"mergeMillis\":" + mergeNanos / 1000000
+				+ ",\"missingClasses\":" + missingClassSet.size()
+				+ ",\"errors\":" + ResourceLeakDaemon.toJSON(errorList) + "}\n");
+		out.flush();
+
+		if (!keep)
+			deleteWorkFiles(shardList.size(), tempDir);
+		return bugCount;
+	}
+
+	/**
+	 * Find the classes which call classes named like resources, in the order
+	 * of the input.
+	 */
+	private List<Candidate> scan(List<MappedClassFiles.Entry> entryList) {
+		List<Candidate> candidateList = new ArrayList<Candidate>();
+		for (MappedClassFiles.Entry entry : entryList) {
+			try {
+				ByteBuffer buf = entry.getBytes();
+				if (!ResourceLeakDetector.referencesResourceClass(buf))
+					continue;
+				String className = entry.resourceName != null ? entry.resourceName
+						.substring(0, entry.resourceName.length() - 6)
+						: FastScanRunner.getClassName(buf);
+				if (className != null)
+					candidateList.add(new Candidate(candidateList.size(),
+							className.replace('/', '.'), entry.getSize()));
+				else
+					errorList.add("Not a class file: " + entry);
+			} catch (IOException e) {
+				errorList.add("Could not read " + entry + ": " + e);
+			}
+		}
+		return candidateList;
+	}
+
+	/**
+	 * Split classes into shards of about equal cost, the costliest classes
+	 * (or packages) first, each to the shard with the least cost so far. Ties
+	 * go to the earlier class and the earlier shard, so the shards depend
+	 * only on the input.
+	 *
+	 * @return the shards, no more than there are classes (or packages)
+	 */
+	static List<Shard> partition(List<Candidate> candidateList, int workers,
+			boolean byPackage) {
+		List<List<Candidate>> groupList = new ArrayList<List<Candidate>>();
+		if (byPackage) {
+			Map<String, List<Candidate>> packageMap = new TreeMap<String, List<Candidate>>();
+			for (Candidate candidate : candidateList) {
+				String packageName = candidate.getPackageName();
+				List<Candidate> group = packageMap.get(packageName);
+				if (group == null) {
+					group = new ArrayList<Candidate>();
+					packageMap.put(packageName, group);
+				}
+				group.add(candidate);
+			}
+			groupList.addAll(packageMap.values());
+		} else {
+			for (Candidate candidate : candidateList)
+				groupList.add(Collections.singletonList(candidate));
+		}
+
+		final Map<List<Candidate>, Long> costMap = new HashMap<List<Candidate>, Long>();
+		for (List<Candidate> group : groupList) {
+			long cost = 0;
+			for (Candidate candidate : group)
+				cost += candidate.cost;
+			costMap.put(group, Long.valueOf(cost));
+		}
+		Collections.sort(groupList, new Comparator<List<Candidate>>() {
+			public int compare(List<Candidate> a, List<Candidate> b) {
+				int c = costMap.get(b).compareTo(costMap.get(a));
+				return c != 0 ? c : a.get(0).index - b.get(0).index;
+			}
+		});
+
+		List<Shard> shardList = new ArrayList<Shard>();
+		for (int i = 0; i < Math.min(workers, groupList.size()); ++i)
+			shardList.add(new Shard());
+		for (List<Candidate> group : groupList) {
+			Shard least = shardList.get(0);
+			for (Shard shard : shardList) {
+				if (shard.cost < least.cost)
+					least = shard;
+			}
+			for (Candidate candidate : group)
+				least.add(candidate);
+		}
+		return shardList;
+	}
+
+	private File getFile(String prefix, int worker, String suffix) {
+		return new File(workDir, prefix + "-" + worker + suffix);
+	}
+
+	/**
+	 * Write the index and name of each class of a shard, one per line.
+	 */
+	private static void writeShard(Shard shard, File file) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), "UTF-8"));
+		try {
+			for (Candidate candidate : shard.candidateList)
+				out.write(candidate.index + "\t" + candidate.className + "\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private Process startWorker(int worker) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"),
+				"java").getPath());
+		command.addAll(jvmOptionList);
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith("fos.") && !name.equals("fos.streamFile")
+					&& !name.equals(RESULT_CACHE)
+					&& !name.equals(SUMMARY_CACHE))
+				command.add("-D" + name + "=" + System.getProperty(name));
+		}
+		for (String name : new String[] { RESULT_CACHE, SUMMARY_CACHE }) {
+			String fileName = System.getProperty(name);
+			if (fileName == null)
+				continue;
+			// Start from the records of earlier runs
+			File copy = getFile(name, worker, ".bin");
+			File file = new File(fileName);
+			if (file.isFile())
+				Files.copy(file.toPath(), copy.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			else
+				copy.delete();
+			command.add("-D" + name + "=" + copy.getPath());
+		}
+		if (System.getProperty("fos.threads") == null)
+			command.add("-Dfos.threads="
+					+ Math.max(1, Runtime.getRuntime().availableProcessors()
+							/ workers));
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ShardedScanRunner.class.getName());
+		command.add("-worker");
+		command.add(getFile("shard", worker, ".txt").getPath());
+		command.add(getFile("partial", worker, ".txt").getPath());
+		for (String path : auxClasspath) {
+			command.add("-auxclasspath");
+			command.add(path);
+		}
+		command.addAll(pathList);
+		return new ProcessBuilder(command).redirectErrorStream(true)
+				.redirectOutput(getFile("worker", worker, ".log")).start();
+	}
+
+	/**
+	 * Merge the detector caches saved by the workers into the files named by
+	 * fos.resultCache and fos.summaryCache.
+	 */
+	private void mergeCaches(int shardCount) throws IOException {
+		String resultCacheName = System.getProperty(RESULT_CACHE);
+		if (resultCacheName != null)
+			ClassResultCache.merge(new File(resultCacheName), getCacheCopies(
+					RESULT_CACHE, shardCount));
+		String summaryCacheName = System.getProperty(SUMMARY_CACHE);
+		if (summaryCacheName != null)
+			ResourceSummaryStore.merge(new File(summaryCacheName),
+					getCacheCopies(SUMMARY_CACHE, shardCount));
+	}
+
+	private List<File> getCacheCopies(String name, int shardCount) {
+		List<File> copyList = new ArrayList<File>();
+		for (int i = 0; i < shardCount; ++i)
+			copyList.add(getFile(name, i, ".bin"));
+		return copyList;
+	}
+
+	/**
+	 * Merge the bugs of the partial files, in the order of the index of
+	 * their class, holding one line of each file at a time, and collect the
+	 * counts and errors which follow them.
+	 *
+	 * @return the number of bugs
+	 */
+	private int merge(int shardCount, Writer out) throws IOException {
+		int bugCount = 0;
+		PriorityQueue<Head> queue = new PriorityQueue<Head>(Math.max(1,
+				shardCount), HEAD_ORDER);
+		List<BufferedReader> readerList = new ArrayList<BufferedReader>();
+		try {
+			for (int i = 0; i < shardCount; ++i) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						new FileInputStream(getFile("partial", i, ".txt")),
+						"UTF-8"));
+				readerList.add(in);
+				Head head = new Head(i, in);
+				if (advance(head))
+					queue.add(head);
+			}
+			Head head;
+			while ((head = queue.poll()) != null) {
+				out.write(head.record + "\n");
+				++bugCount;
+				if (advance(head))
+					queue.add(head);
+			}
+		} finally {
+			for (BufferedReader in : readerList)
+				in.close();
+		}
+		return bugCount;
+	}
+
+	/**
+	 * Read the next bug line of a partial file, or, past the last one, the
+	 * lines which follow.
+	 *
+	 * @return false if the file has no more bugs
+	 */
+	private boolean advance(Head head) throws IOException {
+		String line;
+		while ((line = head.in.readLine()) != null) {
+			int tab = line.indexOf('\t');
+			String kind = tab >= 0 ? line.substring(0, tab) : line;
+			String value = tab >= 0 ? line.substring(tab + 1) : "";
+			if (kind.equals(BUG)) {
+				int next = value.indexOf('\t');
+				head.classIndex = Integer.parseInt(value.substring(0, next));
+				head.record = value.substring(next + 1);
+				return true;
+			} else if (kind.equals(ANALYZED)) {
+				analyzedCount += Integer.parseInt(value);
+			} else if (kind.equals(MISSING_CLASS)) {
+				missingClassSet.add(value);
+			} else if (kind.equals(ERROR)) {
+				errorList.add("Worker " + head.worker + ": " + value);
+			} else {
+				throw new IOException("Bad line in partial result of worker "
+						+ head.worker + ": " + line);
+			}
+		}
+		return false;
+	}
+
+	private void deleteWorkFiles(int shardCount, boolean tempDir) {
+		for (int i = 0; i < shardCount; ++i) {
+			getFile("shard", i, ".txt").delete();
+			getFile("partial", i, ".txt").delete();
+			getFile("worker", i, ".log").delete();
+			getFile(RESULT_CACHE, i, ".bin").delete();
+			getFile(SUMMARY_CACHE, i, ".bin").delete();
+		}
+		if (tempDir)
+			workDir.delete();
+	}
+
+	/**
+	 * Analyze the classes of a shard, and write their bugs to a partial file:
+	 * one line per bug, sorted (stably) by the index of its class, then the
+	 * number of classes analyzed, the missing classes and the errors.
+	 */
+	static void runWorker(File shardFile, File partialFile,
+			List<String> pathList, List<String> auxClasspath)
+			throws IOException, InterruptedException {
+		final Map<String, Integer> indexMap = new HashMap<String, Integer>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(shardFile), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				indexMap.put(line.substring(tab + 1),
+						Integer.valueOf(line.substring(0, tab)));
+			}
+		} finally {
+			in.close();
+		}
+
+		ResourceLeakDaemon.ResultReporter reporter = new ResourceLeakDaemon.ResultReporter();
+		int analyzed = ResourceLeakDaemon.analyzeClasses(pathList,
+				auxClasspath, indexMap.keySet(), false, reporter);
+
+		List<BugInstance> bugList = new ArrayList<BugInstance>(
+				reporter.bugList);
+		sortByClassIndex(bugList, indexMap);
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(partialFile), "UTF-8"));
+		try {
+			for (BugInstance bug : bugList)
+				out.write(BUG + "\t" + getClassIndex(bug, indexMap) + "\t"
+						+ StreamingBugWriter.toJSON(bug,
+								ResourceLeakDaemon.getSourceLines(bug)) + "\n");
+			out.write(ANALYZED + "\t" + analyzed + "\n");
+			for (String className : reporter.missingClassSet)
+				out.write(MISSING_CLASS + "\t" + oneLine(className) + "\n");
+			for (String error : reporter.errorList)
+				out.write(ERROR + "\t" + oneLine(error) + "\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Sort bugs (stably) by the index of their class, so they come in the
+	 * order of their classes in the input whatever order the detector
+	 * finished the classes in. Bugs of classes with no index come last.
+	 */
+	static void sortByClassIndex(List<BugInstance> bugList,
+			final Map<String, Integer> indexMap) {
+		Collections.sort(bugList, new Comparator<BugInstance>() {
+			public int compare(BugInstance a, BugInstance b) {
+				int ia = getClassIndex(a, indexMap);
+				int ib = getClassIndex(b, indexMap);
+				return ia < ib ? -1 : ia > ib ? 1 : 0;
+			}
+		});
+	}
+
+	private static int getClassIndex(BugInstance bug,
+			Map<String, Integer> indexMap) {
+		ClassAnnotation primaryClass = bug.getPrimaryClass();
+		Integer index = primaryClass != null ? indexMap.get(primaryClass
+				.getClassName()) : null;
+		return index != null ? index.intValue() : Integer.MAX_VALUE;
+	}
+
+	private static String oneLine(String s) {
+		return s.replace('\n', ' ').replace('\r', ' ');
+	}
+
+	public static void main(String[] args) throws Exception {
+		int workers = Runtime.getRuntime().availableProcessors();
+		boolean byPackage = false;
+		String outFile = null;
+		File workDir = null;
+		boolean keep = false;
+		File shardFile = null;
+		File partialFile = null;
+		List<String> jvmOptionList = new ArrayList<String>();
+		List<String> auxClasspath = new ArrayList<String>();
+		List<String> pathList = new ArrayList<String>();
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.equals("-workers"))
+				workers = Integer.parseInt(args[++i]);
+			else if (arg.equals("-partition")) {
+				String partition = args[++i];
+				if (!partition.equals("cost") && !partition.equals("package"))
+					throw new IllegalArgumentException("Unknown partition "
+							+ partition);
+				byPackage = partition.equals("package");
+			} else if (arg.equals("-auxclasspath"))
+				auxClasspath.addAll(Arrays.asList(args[++i]
+						.split(File.pathSeparator)));
+			else if (arg.equals("-out"))
+				outFile = args[++i];
+			else if (arg.equals("-workDir"))
+				workDir = new File(args[++i]);
+			else if (arg.equals("-keep"))
+				keep = true;
+			else if (arg.equals("-J"))
+				jvmOptionList.add(args[++i]);
+			else if (arg.equals("-worker")) {
+				shardFile = new File(args[++i]);
+				partialFile = new File(args[++i]);
+			} else if (arg.startsWith("-"))
+				throw new IllegalArgumentException("Unknown option " + arg);
+			else
+				pathList.add(arg);
+		}
+
+		if (shardFile != null) {
+			runWorker(shardFile, partialFile, pathList, auxClasspath);
+			// Save the caches of the detector and print its statistics, as
+			// at the end of a FindBugs run
+			ResourceLeakDetector.reportRun();
+			return;
+		}
+
+		ShardedScanRunner runner = new ShardedScanRunner(pathList,
+				auxClasspath, workers, byPackage, jvmOptionList);
+		runner.setWorkDir(workDir, keep);
+		Writer out = new OutputStreamWriter(outFile != null ? new FileOutputStream(
+				outFile) : System.out, "UTF-8");
+		try {
+			runner.run(out);
+		} finally {
+			if (outFile != null)
+				out.close();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.util.BitSet;
+
+import org.apache.bcel.generic.MethodGen;
+
+import edu.umd.cs.findbugs.ba.BasicBlock;
+import edu.umd.cs.findbugs.ba.BlockOrder;
+import edu.umd.cs.findbugs.ba.CFG;
+import edu.umd.cs.findbugs.ba.DataflowAnalysisException;
+import edu.umd.cs.findbugs.ba.DepthFirstSearch;
+import edu.umd.cs.findbugs.ba.Edge;
+import edu.umd.cs.findbugs.ba.ResourceValue;
+import edu.umd.cs.findbugs.ba.ResourceValueAnalysis;
+import edu.umd.cs.findbugs.ba.ResourceValueFrame;
+
+/**
+ * ResourceValueAnalysis which only visits the blocks of the slice of the CFG
+ * reachable from the creation of the stream. Edges entering the slice carry
+ * the fact MethodSiteIndex.getBaselineFact() gives for their source, which
+ * is what ResourceValueAnalysis finds there, so the facts in the slice are
+ * those of ResourceValueAnalysis. Facts of blocks outside the slice are left
+ * top. Without a slice, every block is visited.
+ *
+ * Each iteration is charged to the budget of the method, if any.
+ */
+public class SlicedResourceValueAnalysis extends ResourceValueAnalysis<Stream> {
+	private final MethodSiteIndex siteIndex;
+
+	private final BitSet slice;
+
+	private final ResourceValueFrame baselineFact;
+
+	private final MethodBudget budget;
+
+	/**
+	 * @param slice
+	 *            the labels of the blocks of the slice, from
+	 *            MethodSiteIndex.getSlice(), or null to visit every block
+	 * @param budget
+	 *            the budget of the method, or null for no limit
+	 */
+	public SlicedResourceValueAnalysis(MethodGen methodGen, CFG cfg,
+			DepthFirstSearch dfs, LeakResourceTracker resourceTracker,
+			Stream stream, BitSet slice, MethodBudget budget) {
+		super(methodGen, cfg, dfs, resourceTracker, stream);
+		this.siteIndex = resourceTracker.getSiteIndex();
+		this.slice = slice;
+		this.baselineFact = slice != null ? createFact() : null;
+		this.budget = budget;
+	}
+
+	@Override
+	public BlockOrder getBlockOrder(CFG cfg) {
+		if (slice == null)
+			return super.getBlockOrder(cfg);
+		return siteIndex.getSliceBlockOrder(slice, getDepthFirstSearch());
+	}
+
+	@Override
+	public void startIteration() {
+		if (budget != null)
+			budget.startIteration();
+	}
+
+	@Override
+	public void meetInto(ResourceValueFrame fact, Edge edge,
+			ResourceValueFrame result) throws DataflowAnalysisException {
+		BasicBlock source = edge.getSource();
+		if (slice != null && !slice.get(source.getLabel())) {
+			// Merging top changes nothing, as the status of a top frame is
+			// always NONEXISTENT
+			if (!siteIndex.getBaselineFact(source, baselineFact,
+					ResourceValue.notInstance()))
+				return;
+			baselineFact.setStatus(ResourceValueFrame.NONEXISTENT);
+			fact = baselineFact;
+		}
+		super.meetInto(fact, edge, result);
+	}
+}
@@ -0,0 +1,108 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disjoint-set forest of Streams, using path compression and union by rank.
+ * Used by LeakResourceTracker to build stream equivalence classes without
+ * rewriting every member of a class each time two classes are merged.
+ */
+public class StreamUnionFind {
+	private final Map<Stream, Integer> indexMap = new HashMap<Stream, Integer>();
+
+	private final List<Stream> streamList = new ArrayList<Stream>();
+
+	private int[] parent = new int[16];
+
+	private byte[] rank = new byte[16];
+
+	/**
+	 * Add a stream as a singleton set, if it isn't already present.
+	 *
+	 * @return the index of the stream
+	 */
+	public int add(Stream stream) {
+		Integer index = indexMap.get(stream);
+		if (index != null)
+			return index.intValue();
+
+		int n = streamList.size();
+		if (n == parent.length) {
+			int[] newParent = new int[n * 2];
+			System.arraycopy(parent, 0, newParent, 0, n);
+			parent = newParent;
+			byte[] newRank = new byte[n * 2];
+			System.arraycopy(rank, 0, newRank, 0, n);
+			rank = newRank;
+		}
+		parent[n] = n;
+		rank[n] = 0;
+		streamList.add(stream);
+		indexMap.put(stream, Integer.valueOf(n));
+		return n;
+	}
+
+	/**
+	 * Get the index of the representative of the set containing the stream
+	 * with given index.
+	 */
+	public int find(int index) {
+		int root = index;
+		while (parent[root] != root)
+			root = parent[root];
+
+		// Path compression
+		while (parent[index] != root) {
+			int next = parent[index];
+			parent[index] = root;
+			index = next;
+		}
+		return root;
+	}
+
+	/**
+	 * Merge the sets containing the two given streams.
+	 */
+	public void union(Stream a, Stream b) {
+		int rootA = find(add(a));
+		int rootB = find(add(b));
+		if (rootA == rootB)
+			return;
+
+		if (rank[rootA] < rank[rootB]) {
+			parent[rootA] = rootB;
+		} else if (rank[rootA] > rank[rootB]) {
+			parent[rootB] = rootA;
+		} else {
+			parent[rootB] = rootA;
+			++rank[rootA];
+		}
+	}
+
+	/**
+	 * Build one StreamEquivalenceClass per set.
+	 *
+	 * @return map of each stream to the equivalence class of its set
+	 */
+	public Map<Stream, StreamEquivalenceClass> toEquivalenceClasses() {
+		int n = streamList.size();
+		StreamEquivalenceClass[] classByRoot = new StreamEquivalenceClass[n];
+		Map<Stream, StreamEquivalenceClass> result = new HashMap<Stream, StreamEquivalenceClass>();
+		for (int i = 0; i < n; ++i) {
+			int root = find(i);
+			StreamEquivalenceClass equivalenceClass = classByRoot[root];
+			if (equivalenceClass == null) {
+				equivalenceClass = new StreamEquivalenceClass();
+				classByRoot[root] = equivalenceClass;
+			}
+			Stream stream = streamList.get(i);
+			equivalenceClass.addMember(stream);
+			result.put(stream, equivalenceClass);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,330 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.umd.cs.findbugs.BugInstance;
+import edu.umd.cs.findbugs.MethodAnnotation;
+import edu.umd.cs.findbugs.SourceLineAnnotation;
+import edu.umd.cs.findbugs.TypeAnnotation;
+import edu.umd.cs.findbugs.ba.AnalysisContext;
+
+/**
+ * Writes each bug the detector reports to a file as soon as the method it
+ * was found in is done, one record per line, rather than leaving it to the
+ * end of the run. The file is only appended to, and each line is flushed
+ * whole, so it can be tailed while the analysis runs.
+ *
+ * Records are either JSON objects or, with the "sarif" format, SARIF result
+ * objects, one per line. They are handed to a writer thread through a
+ * bounded queue: when the queue is full, the analysis waits for the writer,
+ * so the memory held by records not yet written stays bounded.
+ */
+public class StreamingBugWriter {
+	/**
+	 * Queued to tell the writer thread to stop.
+	 */
+	private static final String END = new String();
+
+	private final String fileName;
+
+	private final boolean sarif;
+
+	private final BlockingQueue<String> queue;
+
+	private final Thread writerThread;
+
+	private final long startNanos = System.nanoTime();
+
+	private final AtomicLong firstRecordNanos = new AtomicLong(-1L);
+
+	private final AtomicLong recordCount = new AtomicLong();
+
+	private final AtomicLong writtenChars = new AtomicLong();
+
+	/**
+	 * Characters of the records in the queue, and their maximum.
+	 */
+	private final AtomicLong queuedChars = new AtomicLong();
+
+	private final AtomicLong maxQueuedChars = new AtomicLong();
+
+	/**
+	 * Time the analysis spent waiting for room in the queue.
+	 */
+	private final AtomicLong blockedNanos = new AtomicLong();
+
+	/**
+	 * Set if the writer thread could not write the file. Records queued after
+	 * that are dropped.
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Set by close(). Records written after that are dropped, as the writer
+	 * thread is gone.
+	 */
+	private volatile boolean closed;
+
+	private StreamingBugWriter(String fileName, boolean sarif, int capacity) {
+		this.fileName = fileName;
+		this.sarif = sarif;
+		this.queue = new ArrayBlockingQueue<String>(capacity);
+		this.writerThread = new Thread(new Runnable() {
+			public void run() {
+				writeRecords();
+			}
+		}, "ResourceLeakDetector bug stream");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Open a stream of bugs appended to the given file.
+	 *
+	 * @param fileName
+	 *            the file, or null for no stream
+	 * @param format
+	 *            "sarif" for SARIF results, anything else for JSON records
+	 * @param capacity
+	 *            the number of records which may wait to be written
+	 * @return the stream, or null if fileName is null
+	 */
+	public static StreamingBugWriter open(String fileName, String format,
+			int capacity) {
+		if (fileName == null)
+			return null;
+		return new StreamingBugWriter(fileName, "sarif".equals(format),
+				Math.max(1, capacity));
+	}
+
+	/**
+	 * Queue a bug to be written, waiting for room in the queue if it is
+	 * full. Does nothing once the stream is closed.
+	 *
+	 * @param lineList
+	 *            the source lines the bug was accumulated at
+	 */
+	public void write(BugInstance bug, List<SourceLineAnnotation> lineList) {
+		if (closed)
+			return;
+		String record = sarif ? toSARIF(bug, lineList) : "{\"timeMillis\":"
+				+ System.currentTimeMillis() + ","
+				+ toJSON(bug, lineList).substring(1);
+		firstRecordNanos.compareAndSet(-1L, System.nanoTime() - startNanos);
+		long queued = queuedChars.addAndGet(record.length());
+		long m;
+		while (queued > (m = maxQueuedChars.get())
+				&& !maxQueuedChars.compareAndSet(m, queued))
+			;
+		if (ResourceLeakDetector.METRICS) {
+			ResourceLeakDetector.metrics.streamedBugs.increment();
+			ResourceLeakDetector.metrics.bugStreamQueuedChars.record(queued);
+		}
+		put(record);
+		recordCount.incrementAndGet();
+	}
+
+	/**
+	 * Queue a record, waiting for room in the queue. The record is dropped if
+	 * the writer thread has failed, or if the stream has been closed and the
+	 * record isn't END.
+	 */
+	private void put(String record) {
+		if (queue.offer(record))
+			return;
+		long start = System.nanoTime();
+		try {
+			while (failure == null && (record == END || !closed)
+					&& !queue.offer(record, 100, TimeUnit.MILLISECONDS))
+				;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted while streaming bugs", e);
+		} finally {
+			blockedNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Write the records left in the queue and close the file. Further bugs
+	 * are not written.
+	 */
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		put(END);
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null)
+			AnalysisContext.logError("Could not write bugs to " + fileName,
+					failure);
+	}
+
+	/**
+	 * Body of the writer thread: append the records to the file, flushing
+	 * whenever the queue is empty.
+	 */
+	private void writeRecords() {
+		Writer out = null;
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(fileName, true), "UTF-8"));
+			while (true) {
+				String record = queue.take();
+				if (record == END)
+					break;
+				out.write(record);
+				out.write('\n');
+				queuedChars.addAndGet(-record.length());
+				writtenChars.addAndGet(record.length() + 1);
+				if (queue.isEmpty())
+					out.flush();
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			// Stop writing
+		} finally {
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Get the time from opening the stream to the first bug, in
+	 * nanoseconds, or -1 if there has been none.
+	 */
+	public long getFirstRecordNanos() {
+		return firstRecordNanos.get();
+	}
+
+	public long getRecordCount() {
+		return recordCount.get();
+	}
+
+	/**
+	 * Get the largest number of characters held by records waiting in the
+	 * queue at any time.
+	 */
+	public long getMaxQueuedChars() {
+		return maxQueuedChars.get();
+	}
+
+	@Override
+	public String toString() {
+		long first = firstRecordNanos.get();
+		return "streamed " + recordCount.get() + " bugs ("
+				+ writtenChars.get() + " chars) to " + fileName
+				+ (first >= 0 ? ", first after " + first / 1000000 + " ms" : "")
+				+ ", at most " + maxQueuedChars.get() + " chars queued, "
+				+ blockedNanos.get() / 1000000 + " ms waiting for the writer";
+	}
+
+	/**
+	 * Format a bug as a JSON record, as returned by ResourceLeakDaemon and
+	 * the runners. The record depends only on the bug, so the output of a
+	 * run can be compared with that of another; streamed records also get
+	 * the time they were written, as timeMillis.
+	 */
+	static String toJSON(BugInstance bug, List<SourceLineAnnotation> lineList) {
+		MethodAnnotation method = bug.getPrimaryMethod();
+		StringBuilder buf = new StringBuilder();
+		buf.append("{\"type\":").append(quote(bug.getType()));
+		buf.append(",\"priority\":").append(bug.getPriority());
+		buf.append(",\"class\":").append(
+				quote(bug.getPrimaryClass().getClassName()));
+		if (method != null) {
+			buf.append(",\"method\":").append(quote(method.getMethodName()));
+			buf.append(",\"signature\":").append(
+					quote(method.getMethodSignature()));
+		}
+		String resource = getResourceClass(bug);
+		if (resource != null)
+			buf.append(",\"resource\":").append(quote(resource));
+		if (!lineList.isEmpty())
+			buf.append(",\"sourcePath\":").append(
+					quote(lineList.get(0).getSourcePath()));
+		buf.append(",\"lines\":[");
+		for (int i = 0; i < lineList.size(); ++i)
+			buf.append(i > 0 ? "," : "").append(lineList.get(i).getStartLine());
+		return buf.append("]}").toString();
+	}
+
+	static String toSARIF(BugInstance bug, List<SourceLineAnnotation> lineList) {
+		MethodAnnotation method = bug.getPrimaryMethod();
+		String className = bug.getPrimaryClass().getClassName();
+		String location = method != null ? className + "."
+				+ method.getMethodName() : className;
+		String resource = getResourceClass(bug);
+		StringBuilder buf = new StringBuilder();
+		buf.append("{\"ruleId\":").append(quote(bug.getType()));
+		buf.append(",\"level\":").append(
+				quote(bug.getPriority() <= ResourceLeakDetector.NORMAL_PRIORITY ? "warning"
+						: "note"));
+		buf.append(",\"message\":{\"text\":").append(
+				quote(bug.getType() + " in " + location
+						+ (resource != null ? ": " + resource : "")));
+		buf.append("},\"locations\":[");
+		for (int i = 0; i < lineList.size(); ++i) {
+			SourceLineAnnotation sourceLine = lineList.get(i);
+			buf.append(i > 0 ? "," : "");
+			buf.append("{\"physicalLocation\":{\"artifactLocation\":{\"uri\":")
+					.append(quote(sourceLine.getSourcePath())).append('}');
+			if (sourceLine.getStartLine() > 0)
+				buf.append(",\"region\":{\"startLine\":")
+						.append(sourceLine.getStartLine()).append('}');
+			buf.append("},\"logicalLocations\":[{\"fullyQualifiedName\":")
+					.append(quote(location)).append("}]}");
+		}
+		return buf.append("]}").toString();
+	}
+
+	/**
+	 * Get the class of the resource a bug is about, or null if it has none.
+	 */
+	private static String getResourceClass(BugInstance bug) {
+		TypeAnnotation type = bug.getAnnotationWithRole(TypeAnnotation.class,
+				TypeAnnotation.CLOSEIT_ROLE);
+		if (type == null)
+			return null;
+		String descriptor = type.getTypeDescriptor();
+		if (descriptor.startsWith("L") && descriptor.endsWith(";"))
+			descriptor = descriptor.substring(1, descriptor.length() - 1);
+		return descriptor.replace('/', '.');
+	}
+
+	static String quote(String s) {
+		StringBuilder buf = new StringBuilder(s.length() + 2);
+		buf.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				buf.append('\\').append(c);
+			else if (c < 0x20)
+				buf.append(String.format("\\u%04x", (int) c));
+			else
+				buf.append(c);
+		}
+		return buf.append('"').toString();
+	}
+}
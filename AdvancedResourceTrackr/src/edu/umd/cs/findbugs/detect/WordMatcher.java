@@ -0,0 +1,199 @@
+package edu.umd.cs.findbugs.detect;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aho-Corasick automaton telling whether a string contains any of a fixed set
+ * of words, in a single pass over the string whatever the number of words.
+ *
+ * The automaton is compiled to a dense transition table over the characters
+ * which appear in the words; any other character takes it back to the start
+ * state. Matching stops at the first word found.
+ */
+public class WordMatcher {
+	/**
+	 * Symbol of each ASCII character, or 0 if it appears in no word.
+	 */
+	private final int[] asciiSymbol = new int[128];
+
+	/**
+	 * Symbols of the other characters which appear in the words.
+	 */
+	private final Map<Character, Integer> otherSymbolMap = new HashMap<Character, Integer>();
+
+	private final int symbolCount;
+
+	/**
+	 * Next state, indexed by state * symbolCount + symbol.
+	 */
+	private final int[] transition;
+
+	/**
+	 * Whether some word ends at each state.
+	 */
+	private final boolean[] accepting;
+
+	private final String[] words;
+
+	public WordMatcher(String[] words) {
+		this.words = words.clone();
+
+		// Number the characters of the words; 0 is any other character
+		int nextSymbol = 1;
+		for (String word : words) {
+			for (int i = 0; i < word.length(); ++i) {
+				char c = word.charAt(i);
+				if (getSymbol(c) == 0) {
+					if (c < asciiSymbol.length)
+						asciiSymbol[c] = nextSymbol++;
+					else
+						otherSymbolMap.put(Character.valueOf(c),
+								Integer.valueOf(nextSymbol++));
+				}
+			}
+		}
+		symbolCount = nextSymbol;
+
+		// Build the trie of the words
+		List<int[]> trie = new ArrayList<int[]>();
+		List<Boolean> endList = new ArrayList<Boolean>();
+		trie.add(new int[symbolCount]);
+		endList.add(Boolean.FALSE);
+		for (String word : words) {
+			int state = 0;
+			for (int i = 0; i < word.length(); ++i) {
+				int symbol = getSymbol(word.charAt(i));
+				if (trie.get(state)[symbol] == 0) {
+					trie.get(state)[symbol] = trie.size();
+					trie.add(new int[symbolCount]);
+					endList.add(Boolean.FALSE);
+				}
+				state = trie.get(state)[symbol];
+			}
+			endList.set(state, Boolean.TRUE);
+		}
+
+		// Fill in the missing transitions from the failure links, breadth
+		// first, so each state's failure state is complete before it's used
+		int stateCount = trie.size();
+		transition = new int[stateCount * symbolCount];
+		accepting = new boolean[stateCount];
+		int[] failure = new int[stateCount];
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		queue.add(Integer.valueOf(0));
+		while (!queue.isEmpty()) {
+			int state = queue.removeFirst().intValue();
+			accepting[state] = endList.get(state).booleanValue()
+					|| accepting[failure[state]];
+			for (int symbol = 0; symbol < symbolCount; ++symbol) {
+				int child = trie.get(state)[symbol];
+				int fallback = state == 0 ? 0 : transition[failure[state]
+						* symbolCount + symbol];
+				if (symbol != 0 && child != 0) {
+					failure[child] = fallback;
+					transition[state * symbolCount + symbol] = child;
+					queue.add(Integer.valueOf(child));
+				} else {
+					transition[state * symbolCount + symbol] = fallback;
+				}
+			}
+		}
+	}
+
+	private int getSymbol(char c) {
+		if (c < asciiSymbol.length)
+			return asciiSymbol[c];
+		Integer symbol = otherSymbolMap.get(Character.valueOf(c));
+		return symbol != null ? symbol.intValue() : 0;
+	}
+
+	/**
+	 * Determine if a string contains any of the words.
+	 */
+	public boolean matches(String s) {
+		if (accepting[0])
+			return true;
+		int state = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			state = transition[state * symbolCount + getSymbol(s.charAt(i))];
+			if (accepting[state])
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine if a string contains any of the words, given the modified
+	 * UTF-8 bytes of a CONSTANT_Utf8 entry of a class file. ASCII bytes are
+	 * matched in place; a string with any other character is decoded and
+	 * matched as a String.
+	 *
+	 * @param start
+	 *            the offset of the first byte of the string in buf
+	 * @param length
+	 *            the number of bytes of the string
+	 */
+	public boolean matches(ByteBuffer buf, int start, int length) {
+		if (accepting[0])
+			return true;
+		int state = 0;
+		for (int i = start; i < start + length; ++i) {
+			int b = buf.get(i);
+			if (b < 0)
+				return matches(decodeModifiedUTF8(buf, start, length));
+			state = transition[state * symbolCount + asciiSymbol[b]];
+			if (accepting[state])
+				return true;
+		}
+		return false;
+	}
+
+	private static String decodeModifiedUTF8(ByteBuffer buf, int start,
+			int length) {
+		StringBuilder s = new StringBuilder(length);
+		int i = start;
+		int end = start + length;
+		while (i < end) {
+			int b = buf.get(i++) & 0xff;
+			if (b < 0x80) {
+				s.append((char) b);
+			} else if ((b & 0xe0) == 0xc0 && i < end) {
+				s.append((char) (((b & 0x1f) << 6) | (buf.get(i++) & 0x3f)));
+			} else if ((b & 0xf0) == 0xe0 && i + 1 < end) {
+				int b2 = buf.get(i++) & 0x3f;
+				int b3 = buf.get(i++) & 0x3f;
+				s.append((char) (((b & 0x0f) << 12) | (b2 << 6) | b3));
+			} else {
+				// Malformed: keep the character, unmatched
+				s.append('\ufffd');
+			}
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Split a comma-separated list of words, ignoring empty entries.
+	 */
+	public static String[] parseWords(String list) {
+		List<String> wordList = new ArrayList<String>();
+		for (String word : list.split(",")) {
+			word = word.trim();
+			if (word.length() > 0)
+				wordList.add(word);
+		}
+		return wordList.toArray(new String[wordList.size()]);
+	}
+
+	@Override
+	public String toString() {
+		return "WordMatcher" + Arrays.toString(words) + " ("
+				+ accepting.length + " states)";
+	}
+}